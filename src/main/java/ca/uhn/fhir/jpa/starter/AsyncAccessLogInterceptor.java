@@ -0,0 +1,304 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which writes one JSON access log line per request, off the
+ * request thread.
+ * <p>
+ * When a request completes, the request thread only captures a small immutable
+ * record and offers it to a bounded lock free ring buffer. A single background
+ * thread takes the records, formats them as JSON and hands them to the logger,
+ * so neither formatting nor (synchronous) appenders add to request latency.
+ * If the buffer is full the record is dropped rather than blocking the request;
+ * the writer logs how many records were dropped once it catches up.
+ */
+@Interceptor
+public class AsyncAccessLogInterceptor {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AsyncAccessLogInterceptor.class);
+  private static final String REQUEST_START_ATTRIBUTE = AsyncAccessLogInterceptor.class.getName() + "_START";
+  private static final String USER_DATA_EXCEPTION = AsyncAccessLogInterceptor.class.getName() + "_EXCEPTION";
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private final Logger myAccessLog;
+  private final RingBuffer<AccessLogRecord> myBuffer;
+  private final LongAdder myDropped = new LongAdder();
+  private final JsonFactory myJsonFactory = new JsonFactory();
+  private final Thread myWriterThread;
+  private volatile boolean myStopped;
+
+  /**
+   * Constructor
+   *
+   * @param theLoggerName The logger the JSON lines are written to (must not be blank)
+   * @param theBufferSize The number of records which can wait for the writer, rounded up to a power of two
+   */
+  public AsyncAccessLogInterceptor(String theLoggerName, int theBufferSize) {
+    Validate.notBlank(theLoggerName, "theLoggerName must not be blank");
+    Validate.isTrue(theBufferSize > 0 && theBufferSize <= (1 << 30), "theBufferSize must be between 1 and 2^30");
+    myAccessLog = LoggerFactory.getLogger(theLoggerName);
+    myBuffer = new RingBuffer<>(theBufferSize);
+    myWriterThread = new Thread(this::writeLoop, "access-log-writer");
+    myWriterThread.setDaemon(true);
+    myWriterThread.start();
+  }
+
+  /**
+   * Writes the remaining records and stops the writer thread
+   */
+  public void stop() {
+    myStopped = true;
+    LockSupport.unpark(myWriterThread);
+    try {
+      myWriterThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public long getDroppedCount() {
+    return myDropped.sum();
+  }
+
+  @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, order = Integer.MIN_VALUE)
+  public boolean incomingRequestPreProcessed(HttpServletRequest theRequest) {
+    theRequest.setAttribute(REQUEST_START_ATTRIBUTE, System.nanoTime());
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+  public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException) {
+    theRequestDetails.getUserData().put(USER_DATA_EXCEPTION, theException.getClass().getSimpleName() + ": " + theException.getMessage());
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+  public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+    HttpServletRequest request = theServletRequestDetails.getServletRequest();
+    Object start = request.getAttribute(REQUEST_START_ATTRIBUTE);
+    long durationMicros = start instanceof Long ? TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - (Long) start) : -1;
+
+    RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+    IIdType id = theRequestDetails.getId();
+    String remoteAddress = StringUtils.defaultIfBlank(request.getHeader("X-Forwarded-For"), request.getRemoteAddr());
+
+    AccessLogRecord record = new AccessLogRecord(
+      System.currentTimeMillis(),
+      durationMicros,
+      request.getMethod(),
+      request.getRequestURI(),
+      operationType != null ? operationType.getCode() : null,
+      theRequestDetails.getResourceName(),
+      id != null ? id.getIdPart() : null,
+      theRequestDetails.getTenantId(),
+      theServletRequestDetails.getServletResponse().getStatus(),
+      remoteAddress,
+      request.getHeader("User-Agent"),
+      theRequestDetails.getRequestId(),
+      (String) theRequestDetails.getUserData().get(USER_DATA_EXCEPTION));
+
+    if (!myBuffer.offer(record)) {
+      myDropped.increment();
+    }
+  }
+
+  private void writeLoop() {
+    long reportedDropped = 0;
+    StringWriter line = new StringWriter(512);
+    while (true) {
+      AccessLogRecord next = myBuffer.poll();
+      if (next == null) {
+        long dropped = myDropped.sum();
+        if (dropped != reportedDropped) {
+          ourLog.warn("Access log buffer overflowed, dropped {} records", dropped - reportedDropped);
+          reportedDropped = dropped;
+        }
+        if (myStopped) {
+          return;
+        }
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+        continue;
+      }
+
+      line.getBuffer().setLength(0);
+      try {
+        format(next, line);
+        myAccessLog.info(line.toString());
+      } catch (Exception e) {
+        ourLog.error("Failed to write access log record", e);
+      }
+    }
+  }
+
+  private void format(AccessLogRecord theRecord, StringWriter theTarget) throws IOException {
+    try (JsonGenerator json = myJsonFactory.createGenerator(theTarget)) {
+      json.writeStartObject();
+      json.writeStringField("ts", Instant.ofEpochMilli(theRecord.myTimestamp).toString());
+      if (theRecord.myDurationMicros >= 0) {
+        json.writeNumberField("durationMs", theRecord.myDurationMicros / 1000.0);
+      }
+      writeOptional(json, "method", theRecord.myMethod);
+      writeOptional(json, "path", theRecord.myPath);
+      writeOptional(json, "operation", theRecord.myOperation);
+      writeOptional(json, "resourceType", theRecord.myResourceType);
+      writeOptional(json, "id", theRecord.myId);
+      writeOptional(json, "tenant", theRecord.myTenant);
+      json.writeNumberField("status", theRecord.myStatus);
+      writeOptional(json, "remoteAddress", theRecord.myRemoteAddress);
+      writeOptional(json, "userAgent", theRecord.myUserAgent);
+      writeOptional(json, "requestId", theRecord.myRequestId);
+      writeOptional(json, "error", theRecord.myError);
+      json.writeEndObject();
+    }
+  }
+
+  private static void writeOptional(JsonGenerator theJson, String theName, String theValue) throws IOException {
+    if (theValue != null) {
+      theJson.writeStringField(theName, theValue);
+    }
+  }
+
+  private static class AccessLogRecord {
+
+    private final long myTimestamp;
+    private final long myDurationMicros;
+    private final String myMethod;
+    private final String myPath;
+    private final String myOperation;
+    private final String myResourceType;
+    private final String myId;
+    private final String myTenant;
+    private final int myStatus;
+    private final String myRemoteAddress;
+    private final String myUserAgent;
+    private final String myRequestId;
+    private final String myError;
+
+    private AccessLogRecord(long theTimestamp, long theDurationMicros, String theMethod, String thePath, String theOperation, String theResourceType, String theId, String theTenant, int theStatus, String theRemoteAddress, String theUserAgent, String theRequestId, String theError) {
+      myTimestamp = theTimestamp;
+      myDurationMicros = theDurationMicros;
+      myMethod = theMethod;
+      myPath = thePath;
+      myOperation = theOperation;
+      myResourceType = theResourceType;
+      myId = theId;
+      myTenant = theTenant;
+      myStatus = theStatus;
+      myRemoteAddress = theRemoteAddress;
+      myUserAgent = theUserAgent;
+      myRequestId = theRequestId;
+      myError = theError;
+    }
+  }
+
+  /**
+   * Bounded multi producer, single consumer queue. Every slot carries a sequence
+   * number which tells producers whether the slot is free for their position and
+   * the consumer whether it has been filled, so neither side takes a lock.
+   */
+  static final class RingBuffer<T> {
+
+    private final int myMask;
+    private final AtomicReferenceArray<T> myItems;
+    private final AtomicLongArray mySequences;
+    private final AtomicLong myProducerPosition = new AtomicLong();
+    private long myConsumerPosition;
+
+    RingBuffer(int theMinimumCapacity) {
+      int capacity = Integer.highestOneBit(Math.max(2, theMinimumCapacity) - 1) << 1;
+      myMask = capacity - 1;
+      myItems = new AtomicReferenceArray<>(capacity);
+      mySequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        mySequences.set(i, i);
+      }
+    }
+
+    /**
+     * @return Returns <code>false</code> if the buffer is full
+     */
+    boolean offer(T theItem) {
+      long position = myProducerPosition.get();
+      while (true) {
+        int index = (int) (position & myMask);
+        long available = mySequences.get(index) - position;
+        if (available == 0) {
+          if (myProducerPosition.compareAndSet(position, position + 1)) {
+            myItems.set(index, theItem);
+            mySequences.set(index, position + 1);
+            return true;
+          }
+          position = myProducerPosition.get();
+        } else if (available < 0) {
+          return false;
+        } else {
+          position = myProducerPosition.get();
+        }
+      }
+    }
+
+    /**
+     * Must only be called by the consumer thread
+     *
+     * @return Returns the oldest item, or <code>null</code> if the buffer is empty
+     */
+    T poll() {
+      int index = (int) (myConsumerPosition & myMask);
+      if (mySequences.get(index) != myConsumerPosition + 1) {
+        return null;
+      }
+      T retVal = myItems.get(index);
+      myItems.set(index, null);
+      mySequences.set(index, myConsumerPosition + myMask + 1);
+      myConsumerPosition++;
+      return retVal;
+    }
+  }
+
+}
@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.starter;
 
+import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
@@ -8,6 +9,7 @@ import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.binstore.BinaryStorageInterceptor;
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.bulk.provider.BulkDataExportProvider;
 import ca.uhn.fhir.jpa.interceptor.CascadingDeleteInterceptor;
 import ca.uhn.fhir.jpa.partition.PartitionManagementProvider;
@@ -23,10 +25,12 @@ import ca.uhn.fhir.jpa.provider.r4.JpaSystemProviderR4;
 import ca.uhn.fhir.jpa.provider.r5.JpaConformanceProviderR5;
 import ca.uhn.fhir.jpa.provider.r5.JpaSystemProviderR5;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
 import ca.uhn.fhir.jpa.searchparam.registry.ISearchParamRegistry;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
@@ -57,6 +61,9 @@ import java.util.TreeSet;
 public class BaseJpaRestfulServer extends RestfulServer {
 
   private static final long serialVersionUID = 1L;
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseJpaRestfulServer.class);
+
+  private transient AsyncAccessLogInterceptor myAccessLogInterceptor;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -144,16 +151,51 @@ public class BaseJpaRestfulServer extends RestfulServer {
       }
     }
 
+    /*
+     * Tell the in-memory caches below about writes made by other nodes
+     * sharing the same database
+     */
+    ClusterCacheInvalidationSvc clusterCacheInvalidationSvc = null;
+    if (HapiProperties.getClusterCacheInvalidationEnabled()) {
+      clusterCacheInvalidationSvc = appCtx.getBean(ClusterCacheInvalidationSvc.class);
+    }
+
     /*
      * ETag Support
      */
     setETagSupport(HapiProperties.getEtagSupport());
 
+    /*
+     * Answer conditional reads of unchanged resources without loading them
+     */
+    if (HapiProperties.getConditionalReadIndexEnabled() && HapiProperties.getEtagSupport() == ETagSupportEnum.ENABLED) {
+      ConditionalReadInterceptor conditionalReadInterceptor = new ConditionalReadInterceptor(appCtx.getBean(FhirContext.class), HapiProperties.getConditionalReadIndexMaxEntries(), HapiProperties.getConditionalReadIndexTtlSeconds());
+      registerInterceptor(conditionalReadInterceptor);
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(conditionalReadInterceptor.getIndexingInterceptor());
+      if (clusterCacheInvalidationSvc != null) {
+        clusterCacheInvalidationSvc.registerSubscriber(conditionalReadInterceptor);
+      }
+    }
+
     /*
      * This server tries to dynamically generate narratives
      */
     FhirContext ctx = getFhirContext();
-    ctx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+    if (HapiProperties.getNarrativeCacheEnabled()) {
+      DefaultThymeleafNarrativeGenerator narrativeGenerator = new DefaultThymeleafNarrativeGenerator();
+      if (HapiProperties.getPartitioningMultitenancyEnabled() || HapiProperties.getShardingEnabled()) {
+        // Narratives are cached by resource ID and version, which aren't unique across tenants
+        ourLog.warn("The narrative cache is not used on multitenant servers, narratives are rendered on every read");
+        ctx.setNarrativeGenerator(narrativeGenerator);
+      } else {
+        ctx.setNarrativeGenerator(new CachingNarrativeGenerator(narrativeGenerator, HapiProperties.getNarrativeCacheMaxBytes()));
+      }
+      if (HapiProperties.getNarrativeCacheGenerateOnWrite()) {
+        appCtx.getBean(IInterceptorService.class).registerInterceptor(new NarrativeGeneratingInterceptor(ctx, narrativeGenerator));
+      }
+    } else {
+      ctx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+    }
 
     /*
      * Default to JSON and pretty printing
@@ -173,6 +215,48 @@ public class BaseJpaRestfulServer extends RestfulServer {
      */
     setPagingProvider(appCtx.getBean(DatabaseBackedPagingProvider.class));
 
+    /*
+     * Serve repeated searches from an in-memory copy of their first page
+     * for as long as the search itself may be reused
+     */
+    Long reuseCachedSearchResultsMillis = HapiProperties.getReuseCachedSearchResultsMillis();
+    if (HapiProperties.getSearchFirstPageCacheEnabled() && reuseCachedSearchResultsMillis != null && reuseCachedSearchResultsMillis > 0) {
+      FirstPageCacheInterceptor firstPageCacheInterceptor = new FirstPageCacheInterceptor(getFhirContext(), HapiProperties.getSearchFirstPageCacheMaxBytes(), reuseCachedSearchResultsMillis);
+      registerInterceptor(firstPageCacheInterceptor);
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(firstPageCacheInterceptor.getInvalidatingInterceptor());
+      if (clusterCacheInvalidationSvc != null) {
+        clusterCacheInvalidationSvc.registerSubscriber(firstPageCacheInterceptor);
+      }
+    }
+
+    /*
+     * Accept and serve CBOR and Smile encoded resources. The request validating
+     * interceptor can't read binary bodies, so these are validated after parsing.
+     */
+    if (HapiProperties.getBinaryEncodingEnabled()) {
+      BinaryEncodingInterceptor binaryEncodingInterceptor = new BinaryEncodingInterceptor(getFhirContext());
+      if (HapiProperties.getValidateRequestsEnabled()) {
+        binaryEncodingInterceptor.setValidatorModules(Collections.singletonList(appCtx.getBean(IValidatorModule.class)));
+      }
+      registerInterceptor(binaryEncodingInterceptor);
+    }
+
+    /*
+     * Write search and history Bundles to the client entry by entry. Streamed
+     * responses never reach the outgoing response hooks, so interceptors which
+     * cache or validate responses can't be combined with it.
+     */
+    if (HapiProperties.getSearchStreamingEnabled()) {
+      if (HapiProperties.getSearchFirstPageCacheEnabled()) {
+        throw new ConfigurationException(HapiProperties.SEARCH_STREAMING_ENABLED + " can't be combined with " + HapiProperties.SEARCH_FIRST_PAGE_CACHE_ENABLED);
+      }
+      if (HapiProperties.getValidateResponsesEnabled()) {
+        throw new ConfigurationException(HapiProperties.SEARCH_STREAMING_ENABLED + " can't be combined with " + HapiProperties.VALIDATE_RESPONSES_ENABLED);
+      }
+      IFhirSystemDao<?, ?> streamingSystemDao = appCtx.getBean(IFhirSystemDao.class);
+      registerInterceptor(new StreamingBundleInterceptor(getFhirContext(), appCtx.getBean(DaoRegistry.class), streamingSystemDao, appCtx.getBean(MatchUrlService.class), HapiProperties.getSearchStreamingChunkSize()));
+    }
+
     /*
      * This interceptor formats the output using nice colourful
      * HTML output when the request is detected to come from a
@@ -186,14 +270,20 @@ public class BaseJpaRestfulServer extends RestfulServer {
     }
 
     /*
-     * Add some logging for each request
+     * Add some logging for each request, either formatted on the request
+     * thread or as JSON written by a background thread
      */
-    LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
-    loggingInterceptor.setLoggerName(HapiProperties.getLoggerName());
-    loggingInterceptor.setMessageFormat(HapiProperties.getLoggerFormat());
-    loggingInterceptor.setErrorMessageFormat(HapiProperties.getLoggerErrorFormat());
-    loggingInterceptor.setLogExceptions(HapiProperties.getLoggerLogExceptions());
-    this.registerInterceptor(loggingInterceptor);
+    if (HapiProperties.getAccessLogAsyncEnabled()) {
+      myAccessLogInterceptor = new AsyncAccessLogInterceptor(HapiProperties.getLoggerName(), HapiProperties.getAccessLogAsyncBufferSize());
+      this.registerInterceptor(myAccessLogInterceptor);
+    } else {
+      LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
+      loggingInterceptor.setLoggerName(HapiProperties.getLoggerName());
+      loggingInterceptor.setMessageFormat(HapiProperties.getLoggerFormat());
+      loggingInterceptor.setErrorMessageFormat(HapiProperties.getLoggerErrorFormat());
+      loggingInterceptor.setLogExceptions(HapiProperties.getLoggerLogExceptions());
+      this.registerInterceptor(loggingInterceptor);
+    }
 
     /*
      * If you are hosting this server at a specific DNS name, the server will try to
@@ -273,11 +363,35 @@ public class BaseJpaRestfulServer extends RestfulServer {
       getInterceptorService().registerInterceptor(cascadingDeleteInterceptor);
     }
 
+    // Background cascading deletes, in chunks of short transactions
+    if (HapiProperties.getCascadingDeleteJobsEnabled()) {
+      registerProvider(new CascadingDeleteJobProvider(ctx, appCtx.getBean(CascadingDeleteJobSvc.class)));
+    }
+
+    // Expunge scheduler, throttled background expunges
+    if (HapiProperties.getExpungeSchedulerEnabled()) {
+      registerProvider(new ExpungeSchedulerProvider(ctx, appCtx.getBean(ExpungeSchedulerSvc.class)));
+    }
+
+    // Version history retention, starts the background pruner
+    if (HapiProperties.getHistoryRetentionEnabled()) {
+      appCtx.getBean(HistoryRetentionSvc.class);
+    }
+
     // Binary Storage
     if (HapiProperties.isBinaryStorageEnabled()) {
       BinaryStorageInterceptor binaryStorageInterceptor = appCtx
         .getBean(BinaryStorageInterceptor.class);
       getInterceptorService().registerInterceptor(binaryStorageInterceptor);
+      IBinaryStorageSvc binaryStorageSvc = appCtx.getBean(IBinaryStorageSvc.class);
+      if (binaryStorageSvc instanceof ContentAddressedBinaryStorageSvcImpl) {
+        getInterceptorService().registerInterceptor(((ContentAddressedBinaryStorageSvcImpl) binaryStorageSvc).getReferenceInterceptor());
+      }
+    }
+
+    // Resource read cache
+    if (HapiProperties.getResourceReadCacheEnabled()) {
+      registerProvider(new ResourceReadCacheProvider(ctx, appCtx.getBean(ResourceReadCache.class)));
     }
 
     // Validation
@@ -321,6 +435,11 @@ public class BaseJpaRestfulServer extends RestfulServer {
       registerProvider(appCtx.getBean(BulkDataExportProvider.class));
     }
 
+    // Parallel NDJSON export to the filesystem
+    if (HapiProperties.getBulkExportParallelEnabled()) {
+      registerProvider(new ParallelBulkExportProvider(ctx, appCtx.getBean(ParallelBulkExportSvc.class)));
+    }
+
     // Partitioning
     if (HapiProperties.getPartitioningMultitenancyEnabled()) {
       registerInterceptor(new RequestTenantPartitionInterceptor());
@@ -328,10 +447,61 @@ public class BaseJpaRestfulServer extends RestfulServer {
       registerProviders(appCtx.getBean(PartitionManagementProvider.class));
     }
 
+    // Sharding, routes the requests of sharded tenants to their databases
+    if (HapiProperties.getShardingEnabled()) {
+      TenantRoutingDataSource tenantRoutingDataSource = appCtx.getBean(TenantRoutingDataSource.class);
+      registerInterceptor(tenantRoutingDataSource.getShardSelectingInterceptor());
+      appCtx.getBean(IInterceptorService.class).registerInterceptor(tenantRoutingDataSource.getShardStorageInterceptor());
+      appCtx.getBean(ShardMaintenanceSvc.class);
+    }
+
+    // Tenant usage
+    if (HapiProperties.getTenantUsageEnabled()) {
+      TenantUsageTracker tenantUsageTracker = appCtx.getBean(TenantUsageTracker.class);
+      registerInterceptor(tenantUsageTracker.getRequestInterceptor());
+      registerProvider(new TenantUsageProvider(ctx, tenantUsageTracker));
+    }
+
+    // Admission control, limits concurrent requests per tenant
+    if (HapiProperties.getAdmissionControlEnabled()) {
+      TenantAdmissionInterceptor admissionInterceptor = new TenantAdmissionInterceptor(
+        HapiProperties.getAdmissionControlQueueTimeoutMillis(),
+        HapiProperties.getAdmissionControlRetryAfterSeconds());
+      for (TenantAdmissionInterceptor.OperationClass next : TenantAdmissionInterceptor.OperationClass.values()) {
+        admissionInterceptor.setLimits(next, HapiProperties.getAdmissionControlMaxConcurrent(next), HapiProperties.getAdmissionControlMaxQueued(next));
+      }
+      if (HapiProperties.getPartitioningMultitenancyEnabled()) {
+        admissionInterceptor.setTenantValidator(appCtx.getBean(TenantValidator.class));
+      }
+      registerInterceptor(admissionInterceptor);
+    }
+
     if (HapiProperties.getClientIdStrategy() == DaoConfig.ClientIdStrategyEnum.ANY) {
       daoConfig.setResourceServerIdStrategy(DaoConfig.IdStrategyEnum.UUID);
       daoConfig.setResourceClientIdStrategy(HapiProperties.getClientIdStrategy());
     }
+
+    // Metrics, served by the MetricsServlet
+    if (HapiProperties.getMetricsEnabled()) {
+      registerInterceptor(appCtx.getBean(ServerMetrics.class).getRequestInterceptor());
+    }
+
+    // Profiler, registered last so that it sees the hooks of every interceptor above
+    if (HapiProperties.getProfilerEnabled()) {
+      RequestProfiler profiler = appCtx.getBean(RequestProfiler.class);
+      registerInterceptor(profiler.getRequestTimingInterceptor());
+      profiler.registerPointcutTimers("server", getInterceptorService());
+      profiler.registerPointcutTimers("storage", appCtx.getBean(IInterceptorService.class));
+      registerProvider(new RequestProfilerProvider(ctx, profiler));
+    }
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    if (myAccessLogInterceptor != null) {
+      myAccessLogInterceptor.stop();
+    }
   }
 
 }
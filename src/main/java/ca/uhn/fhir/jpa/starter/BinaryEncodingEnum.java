@@ -0,0 +1,346 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IJsonLikeParser;
+import ca.uhn.fhir.parser.json.JsonLikeWriter;
+import ca.uhn.fhir.parser.json.jackson.JacksonStructure;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Binary encodings of the FHIR JSON format, see {@link BinaryEncodingInterceptor}.
+ * <p>
+ * A binary document has exactly the structure of the FHIR JSON representation of
+ * the resource, only its tokens are encoded in CBOR or Smile. Both directions
+ * bind directly to the FHIR model through HAPI's JSON-like parser API: encoding
+ * hands the parser a {@link JsonLikeWriter} which emits binary tokens, parsing
+ * reads the binary document into a Jackson tree and gives it to the parser as a
+ * {@link JacksonStructure}. No JSON text is produced on the way. Decimals are
+ * carried as big decimals so their precision (e.g. <code>1.50</code>) survives
+ * the round trip.
+ */
+public enum BinaryEncodingEnum {
+
+  /**
+   * Concise Binary Object Representation (RFC 7049)
+   */
+  CBOR(new CBORFactory(), "application/fhir+cbor", "application/cbor"),
+
+  /**
+   * Jackson's binary JSON format
+   */
+  SMILE(new SmileFactory(), "application/fhir+smile", "application/x-jackson-smile");
+
+  private final JsonFactory myFactory;
+  private final ObjectMapper myObjectMapper;
+  private final String myContentType;
+  private final List<String> myContentTypes;
+
+  BinaryEncodingEnum(JsonFactory theFactory, String... theContentTypes) {
+    myFactory = theFactory;
+    myObjectMapper = new ObjectMapper(theFactory)
+      .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+      .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+    myContentType = theContentTypes[0];
+    myContentTypes = Collections.unmodifiableList(Arrays.asList(theContentTypes));
+  }
+
+  /**
+   * The content type sent with responses in this encoding
+   */
+  public String getContentType() {
+    return myContentType;
+  }
+
+  /**
+   * All content types which select this encoding
+   */
+  public List<String> getContentTypes() {
+    return myContentTypes;
+  }
+
+  /**
+   * Encodes a resource in this encoding, applying the settings (server base,
+   * summary mode, elements) of the given JSON parser
+   */
+  public void encodeResource(IJsonLikeParser theParser, IBaseResource theResource, OutputStream theTarget) throws IOException {
+    try (JsonGenerator generator = myFactory.createGenerator(theTarget)) {
+      theParser.encodeResourceToJsonLikeWriter(theResource, new BinaryJsonLikeWriter(generator));
+    }
+  }
+
+  /**
+   * Parses a resource in this encoding
+   *
+   * @throws DataFormatException If the document is not a FHIR resource in this encoding
+   */
+  public IBaseResource parseResource(IJsonLikeParser theParser, InputStream theSource) throws IOException {
+    JsonNode root = myObjectMapper.readTree(theSource);
+    if (!(root instanceof ObjectNode)) {
+      throw new DataFormatException("Content does not start with an object, expected a " + name() + " encoded FHIR resource");
+    }
+    JacksonStructure structure = new JacksonStructure();
+    structure.setNativeObject((ObjectNode) root);
+    return theParser.parseResource(structure);
+  }
+
+  /**
+   * Encodes a resource in this encoding
+   */
+  public byte[] encodeResource(FhirContext theFhirContext, IBaseResource theResource) {
+    ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+    try {
+      encodeResource((IJsonLikeParser) theFhirContext.newJsonParser(), theResource, retVal);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return retVal.toByteArray();
+  }
+
+  /**
+   * Parses a resource in this encoding
+   */
+  public <T extends IBaseResource> T parseResource(FhirContext theFhirContext, Class<T> theResourceType, byte[] theEncoded) {
+    try {
+      return theResourceType.cast(parseResource((IJsonLikeParser) theFhirContext.newJsonParser(), new ByteArrayInputStream(theEncoded)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the encoding selected by the given media type (parameters such as
+   * <code>charset</code> are ignored), or <code>null</code> if it isn't a binary one
+   */
+  public static BinaryEncodingEnum forContentType(String theContentType) {
+    if (theContentType == null) {
+      return null;
+    }
+    String mediaType = theContentType;
+    int semicolon = mediaType.indexOf(';');
+    if (semicolon != -1) {
+      mediaType = mediaType.substring(0, semicolon);
+    }
+    mediaType = mediaType.trim().toLowerCase(Locale.US);
+    for (BinaryEncodingEnum next : values()) {
+      if (next.myContentTypes.contains(mediaType)) {
+        return next;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Passes the events of the FHIR JSON parser straight to a binary Jackson generator
+   */
+  private static class BinaryJsonLikeWriter extends JsonLikeWriter {
+
+    private final JsonGenerator myGenerator;
+
+    private BinaryJsonLikeWriter(JsonGenerator theGenerator) {
+      myGenerator = theGenerator;
+    }
+
+    @Override
+    public JsonLikeWriter init() {
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter flush() throws IOException {
+      myGenerator.flush();
+      return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+      myGenerator.flush();
+    }
+
+    @Override
+    public JsonLikeWriter beginObject() throws IOException {
+      myGenerator.writeStartObject();
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray() throws IOException {
+      myGenerator.writeStartArray();
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginObject(String theName) throws IOException {
+      myGenerator.writeObjectFieldStart(theName);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray(String theName) throws IOException {
+      myGenerator.writeArrayFieldStart(theName);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theValue) throws IOException {
+      myGenerator.writeString(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(BigInteger theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(BigDecimal theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(long theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(double theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(Boolean theValue) throws IOException {
+      myGenerator.writeBoolean(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(boolean theValue) throws IOException {
+      myGenerator.writeBoolean(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter writeNull() throws IOException {
+      myGenerator.writeNull();
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, String theValue) throws IOException {
+      myGenerator.writeStringField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, BigInteger theValue) throws IOException {
+      myGenerator.writeFieldName(theName);
+      myGenerator.writeNumber(theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, BigDecimal theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, long theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, double theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, Boolean theValue) throws IOException {
+      myGenerator.writeBooleanField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String theName, boolean theValue) throws IOException {
+      myGenerator.writeBooleanField(theName, theValue);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter writeNull(String theName) throws IOException {
+      myGenerator.writeNullField(theName);
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter endObject() throws IOException {
+      myGenerator.writeEndObject();
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter endArray() throws IOException {
+      myGenerator.writeEndArray();
+      return this;
+    }
+
+    @Override
+    public JsonLikeWriter endBlock() throws IOException {
+      if (myGenerator.getOutputContext().inArray()) {
+        myGenerator.writeEndArray();
+      } else {
+        myGenerator.writeEndObject();
+      }
+      return this;
+    }
+  }
+
+}
@@ -0,0 +1,225 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IJsonLikeParser;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which lets clients exchange resources in one of the
+ * {@link BinaryEncodingEnum binary encodings} of FHIR JSON.
+ * <p>
+ * Request bodies sent with a binary <code>Content-Type</code> are parsed
+ * straight into the FHIR model and handed to the server as the request's
+ * resource, so the regular operation runs on them. The request validating
+ * interceptor skips bodies it can't read as FHIR, so when validator modules are
+ * set, parsed resources are validated here instead and rejected on errors. If a
+ * binary encoding is the
+ * client's preferred <code>Accept</code> type (and no <code>_format</code> is
+ * given), the response resource is encoded straight from the model once every
+ * other outgoing response hook has accepted it. No JSON text is produced in
+ * either direction.
+ * <p>
+ * Error responses (OperationOutcome) are sent as FHIR JSON. Binary resources
+ * keep HAPI's raw content handling and are never decoded or encoded here.
+ */
+@Interceptor
+public class BinaryEncodingInterceptor {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BinaryEncodingInterceptor.class);
+  private static final String HEADER_VARY = "Vary";
+  private static final String BINARY_RESOURCE_NAME = "Binary";
+
+  private final FhirContext myFhirContext;
+  private FhirValidator myValidator;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   */
+  public BinaryEncodingInterceptor(FhirContext theFhirContext) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    myFhirContext = theFhirContext;
+  }
+
+  /**
+   * Validates every resource parsed from a binary request body with the given
+   * modules, failing the request on any error like the request validating
+   * interceptor does. Set to <code>null</code> or an empty list to disable.
+   */
+  public void setValidatorModules(List<IValidatorModule> theValidatorModules) {
+    if (theValidatorModules == null || theValidatorModules.isEmpty()) {
+      myValidator = null;
+      return;
+    }
+    FhirValidator validator = myFhirContext.newValidator();
+    for (IValidatorModule next : theValidatorModules) {
+      validator.registerValidatorModule(next);
+    }
+    myValidator = validator;
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) throws IOException {
+    BinaryEncodingEnum encoding = BinaryEncodingEnum.forContentType(theRequestDetails.getHeader(Constants.HEADER_CONTENT_TYPE));
+    if (encoding == null || BINARY_RESOURCE_NAME.equals(theRequestDetails.getResourceName())) {
+      return true;
+    }
+
+    byte[] body = theRequestDetails.loadRequestContents();
+    if (body == null || body.length == 0) {
+      return true;
+    }
+    IBaseResource resource;
+    try {
+      IJsonLikeParser parser = (IJsonLikeParser) myFhirContext.newJsonParser();
+      resource = encoding.parseResource(parser, new ByteArrayInputStream(body));
+    } catch (DataFormatException | IOException e) {
+      throw new InvalidRequestException("Failed to parse " + encoding.name() + " request body: " + e.getMessage());
+    }
+    if (myValidator != null) {
+      validate(resource);
+    }
+    theRequestDetails.setResource(resource);
+    return true;
+  }
+
+  private void validate(IBaseResource theResource) {
+    ValidationResult result = myValidator.validateWithResult(theResource);
+    for (SingleValidationMessage next : result.getMessages()) {
+      if (next.getSeverity() != null && next.getSeverity().ordinal() >= ResultSeverityEnum.ERROR.ordinal()) {
+        ourLog.debug("Rejecting binary encoded {}: {}", theResource.fhirType(), next.getMessage());
+        throw new UnprocessableEntityException(myFhirContext, result.toOperationOutcome());
+      }
+    }
+  }
+
+  /**
+   * Runs after the other outgoing response hooks, so the resource written here
+   * is the one the rest of the chain has approved
+   */
+  @Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MAX_VALUE - 1)
+  public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails, HttpServletResponse theServletResponse) throws IOException {
+    IBaseResource resource = theResponseDetails.getResponseResource();
+    if (resource == null || resource instanceof IBaseBinary || theRequestDetails.getParameters().containsKey(Constants.PARAM_FORMAT)) {
+      return true;
+    }
+    BinaryEncodingEnum encoding = chooseEncoding(theRequestDetails.getHeader(Constants.HEADER_ACCEPT));
+    if (encoding == null) {
+      return true;
+    }
+    IParser parser = RestfulServerUtils.getNewParser(myFhirContext, myFhirContext.getVersion().getVersion(), theRequestDetails);
+    if (!(parser instanceof IJsonLikeParser)) {
+      ourLog.debug("Default encoding is not JSON, serving {} as usual", encoding);
+      return true;
+    }
+    parser.setServerBaseUrl(theRequestDetails.getFhirServerBase());
+
+    theServletResponse.setStatus(theResponseDetails.getResponseCode());
+    theServletResponse.setContentType(encoding.getContentType());
+    theServletResponse.addHeader(HEADER_VARY, Constants.HEADER_ACCEPT);
+    addResourceHeaders(theRequestDetails, theResponseDetails, resource, theServletResponse);
+    encoding.encodeResource((IJsonLikeParser) parser, resource, theServletResponse.getOutputStream());
+    return false;
+  }
+
+  /**
+   * Adds the headers the server sends with a single resource
+   */
+  private static void addResourceHeaders(RequestDetails theRequestDetails, ResponseDetails theResponseDetails, IBaseResource theResource, HttpServletResponse theServletResponse) {
+    IIdType id = theResource.getIdElement();
+    if (id == null || !id.hasIdPart() || StringUtils.isBlank(theResource.fhirType())) {
+      return;
+    }
+    if (id.hasVersionIdPart()) {
+      theServletResponse.setHeader(Constants.HEADER_ETAG, "W/\"" + id.getVersionIdPart() + '"');
+    }
+    if (theResponseDetails.getResponseCode() == HttpServletResponse.SC_CREATED) {
+      IIdType location = id.withServerBase(theRequestDetails.getFhirServerBase(), theResource.fhirType());
+      theServletResponse.setHeader(Constants.HEADER_LOCATION, location.getValue());
+    }
+    Date lastUpdated = theResource.getMeta() != null ? theResource.getMeta().getLastUpdated() : null;
+    if (lastUpdated != null) {
+      theServletResponse.setDateHeader(Constants.HEADER_LAST_MODIFIED, lastUpdated.getTime());
+    }
+  }
+
+  /**
+   * @return Returns the binary encoding if one is the first media type of the
+   * <code>Accept</code> header with the highest quality, otherwise <code>null</code>
+   */
+  static BinaryEncodingEnum chooseEncoding(String theAccept) {
+    if (StringUtils.isBlank(theAccept)) {
+      return null;
+    }
+
+    BinaryEncodingEnum retVal = null;
+    double best = 0;
+    for (String next : theAccept.split(",")) {
+      String[] parts = next.trim().split(";");
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (quality > best) {
+        best = quality;
+        retVal = BinaryEncodingEnum.forContentType(parts[0]);
+      }
+    }
+    return retVal;
+  }
+
+}
@@ -0,0 +1,18 @@
+package ca.uhn.fhir.jpa.starter;
+
+/**
+ * Where externalized binaries are kept, see {@link HapiProperties#getBinaryStorageBackend()}
+ */
+public enum BinaryStorageBackendEnum {
+
+  /**
+   * Store binaries in BLOB columns of the FHIR database
+   */
+  DATABASE,
+
+  /**
+   * Store binaries as content addressed files, see {@link ContentAddressedBinaryStorageSvcImpl}
+   */
+  FILESYSTEM
+
+}
@@ -0,0 +1,565 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Servlet filter which adds streaming behaviour to the binary access operations.
+ * <ul>
+ * <li><code>$binary-access-write</code> requests without a Content-Length (chunked
+ * uploads) are spooled to a temporary file in fixed size chunks, and handed on with
+ * a known length. The binary access provider then streams them into binary storage
+ * instead of reading the whole body into a byte array. Uploads larger than
+ * <code>max_binary_size</code> are rejected as soon as the limit is passed.</li>
+ * <li><code>$binary-access-read</code> requests carrying a single byte range
+ * (<code>Range: bytes=start-end</code>) are answered with
+ * <code>206 Partial Content</code>, unless an <code>If-Range</code> validator no
+ * longer matches the ETag or Last-Modified date of the blob. Storage which
+ * supports it reads only the requested bytes through {@link RangedOutputStream},
+ * otherwise the response is sliced while it streams out, so partial downloads
+ * can be resumed without the blob ever being held in memory.</li>
+ * </ul>
+ */
+public class BinaryStreamingFilter implements Filter {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BinaryStreamingFilter.class);
+  private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+  private static final int SPOOL_BUFFER_SIZE = 65536;
+
+  private boolean myEnabled;
+  private Path mySpoolDirectory;
+  private long myMaxSize;
+
+  @Override
+  public void init(FilterConfig theFilterConfig) {
+    myEnabled = HapiProperties.isBinaryStorageEnabled() && HapiProperties.getBinaryStorageStreamingEnabled();
+    mySpoolDirectory = Paths.get(HapiProperties.getBinaryStorageStreamingSpoolDirectory());
+    Integer maxSize = HapiProperties.getMaxBinarySize();
+    myMaxSize = maxSize != null ? maxSize : Long.MAX_VALUE;
+  }
+
+  @Override
+  public void doFilter(ServletRequest theRequest, ServletResponse theResponse, FilterChain theChain) throws IOException, ServletException {
+    if (!myEnabled || !(theRequest instanceof HttpServletRequest)) {
+      theChain.doFilter(theRequest, theResponse);
+      return;
+    }
+
+    HttpServletRequest request = (HttpServletRequest) theRequest;
+    HttpServletResponse response = (HttpServletResponse) theResponse;
+    String path = request.getPathInfo();
+
+    if (path != null && path.endsWith("/" + JpaConstants.OPERATION_BINARY_ACCESS_WRITE) && request.getContentLengthLong() < 0) {
+      doFilterChunkedUpload(request, response, theChain);
+    } else if (path != null && path.endsWith("/" + JpaConstants.OPERATION_BINARY_ACCESS_READ) && "GET".equals(request.getMethod())) {
+      response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+      ByteRange range = ByteRange.parse(request.getHeader(HEADER_RANGE));
+      if (range == null) {
+        theChain.doFilter(request, response);
+      } else {
+        RangeResponseWrapper wrapper = new RangeResponseWrapper(response, range, request.getHeader(HEADER_IF_RANGE));
+        theChain.doFilter(request, wrapper);
+        wrapper.finish();
+      }
+    } else {
+      theChain.doFilter(request, response);
+    }
+  }
+
+  private void doFilterChunkedUpload(HttpServletRequest theRequest, HttpServletResponse theResponse, FilterChain theChain) throws IOException, ServletException {
+    Files.createDirectories(mySpoolDirectory);
+    Path spoolFile = Files.createTempFile(mySpoolDirectory, "upload", ".tmp");
+    try {
+      long size = spool(theRequest.getInputStream(), spoolFile);
+      if (size > myMaxSize) {
+        ourLog.debug("Rejecting chunked binary upload larger than {} bytes", myMaxSize);
+        theResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Binary content exceeds the maximum size of " + myMaxSize + " bytes");
+        return;
+      }
+      ourLog.debug("Spooled {} bytes of chunked binary upload to {}", size, spoolFile);
+      theChain.doFilter(new SpooledRequestWrapper(theRequest, spoolFile, size), theResponse);
+    } finally {
+      Files.deleteIfExists(spoolFile);
+    }
+  }
+
+  /**
+   * Copies the request body to the spool file, stopping as soon as it exceeds the maximum size
+   *
+   * @return Returns the number of bytes spooled, which is larger than the maximum size if the body was cut off
+   */
+  private long spool(InputStream theInputStream, Path theSpoolFile) throws IOException {
+    byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+    long retVal = 0;
+    try (OutputStream outputStream = Files.newOutputStream(theSpoolFile)) {
+      int read;
+      while (retVal <= myMaxSize && (read = theInputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+        retVal += read;
+      }
+    }
+    return retVal;
+  }
+
+  @Override
+  public void destroy() {
+    // nothing
+  }
+
+  /**
+   * A single byte range. Either bound may be null: <code>bytes=500-</code> means
+   * everything from byte 500, and <code>bytes=-500</code> means the last 500 bytes.
+   */
+  static class ByteRange {
+
+    private final Long myFirst;
+    private final Long myLast;
+
+    private ByteRange(Long theFirst, Long theLast) {
+      myFirst = theFirst;
+      myLast = theLast;
+    }
+
+    /**
+     * @return Returns the parsed range, or <code>null</code> if the header is absent,
+     * malformed or requests several ranges (in which case the full content is sent)
+     */
+    static ByteRange parse(String theHeader) {
+      if (theHeader == null) {
+        return null;
+      }
+      Matcher matcher = RANGE_PATTERN.matcher(theHeader.trim());
+      if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+        return null;
+      }
+      try {
+        Long first = matcher.group(1).isEmpty() ? null : Long.parseLong(matcher.group(1));
+        Long last = matcher.group(2).isEmpty() ? null : Long.parseLong(matcher.group(2));
+        if (first != null && last != null && last < first) {
+          return null;
+        }
+        return new ByteRange(first, last);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    long getStart(long theTotal) {
+      if (myFirst == null) {
+        return Math.max(0, theTotal - myLast);
+      }
+      return myFirst;
+    }
+
+    long getEnd(long theTotal) {
+      if (myFirst == null || myLast == null) {
+        return theTotal - 1;
+      }
+      return Math.min(myLast, theTotal - 1);
+    }
+
+    boolean isSatisfiable(long theTotal) {
+      if (myFirst == null) {
+        return myLast > 0 && theTotal > 0;
+      }
+      return myFirst < theTotal;
+    }
+  }
+
+  /**
+   * Implemented by the output stream of a ranged read, so that binary storage
+   * can read just the requested bytes instead of having the full content
+   * sliced while it is written
+   */
+  public interface RangedOutputStream {
+
+    /**
+     * @return Returns the offset of the first requested byte
+     */
+    long getRangeStart();
+
+    /**
+     * @return Returns the number of requested bytes
+     */
+    long getRangeLength();
+
+    /**
+     * Switches off slicing, so that the requested bytes can be written
+     * directly to the returned stream
+     */
+    OutputStream startDirectWrite();
+  }
+
+  /**
+   * Holds back the status and length of the wrapped response until the body
+   * is about to be written, then turns a <code>200</code> into a
+   * <code>206</code> (or <code>416</code>) and only lets the requested bytes
+   * through to the client. If the request carries an <code>If-Range</code>
+   * validator which does not match the ETag or Last-Modified header set by the
+   * binary access provider, the full content is sent instead.
+   */
+  private static class RangeResponseWrapper extends HttpServletResponseWrapper {
+
+    private final ByteRange myRange;
+    private final String myIfRange;
+    private int myStatus = SC_OK;
+    private long myTotal = -1;
+    private String myETag;
+    private String myLastModified;
+    private boolean myDecided;
+    private boolean myRanged;
+    private long myStart;
+    private long mySkip;
+    private long myRemaining;
+    private ServletOutputStream myOutputStream;
+
+    private RangeResponseWrapper(HttpServletResponse theResponse, ByteRange theRange, String theIfRange) {
+      super(theResponse);
+      myRange = theRange;
+      myIfRange = StringUtils.trimToNull(theIfRange);
+    }
+
+    @Override
+    public void setStatus(int theStatus) {
+      myStatus = theStatus;
+      if (myDecided && !myRanged) {
+        super.setStatus(theStatus);
+      }
+    }
+
+    @Override
+    public void setContentLength(int theLength) {
+      setContentLengthLong(theLength);
+    }
+
+    @Override
+    public void setContentLengthLong(long theLength) {
+      if (!myDecided) {
+        myTotal = theLength;
+      } else if (!myRanged) {
+        super.setContentLengthLong(theLength);
+      }
+    }
+
+    @Override
+    public void setHeader(String theName, String theValue) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        setContentLengthLong(Long.parseLong(theValue));
+      } else {
+        recordValidator(theName, theValue);
+        super.setHeader(theName, theValue);
+      }
+    }
+
+    @Override
+    public void addHeader(String theName, String theValue) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        setContentLengthLong(Long.parseLong(theValue));
+      } else {
+        recordValidator(theName, theValue);
+        super.addHeader(theName, theValue);
+      }
+    }
+
+    private void recordValidator(String theName, String theValue) {
+      if (Constants.HEADER_ETAG.equalsIgnoreCase(theName)) {
+        myETag = theValue;
+      } else if (Constants.HEADER_LAST_MODIFIED.equalsIgnoreCase(theName)) {
+        myLastModified = theValue;
+      }
+    }
+
+    /**
+     * An If-Range validator matches if it is a strong entity tag equal to the
+     * ETag, or a date equal to the Last-Modified date
+     */
+    private boolean isIfRangeSatisfied() {
+      if (myIfRange == null) {
+        return true;
+      }
+      if (myIfRange.startsWith("\"")) {
+        return myIfRange.equals(myETag);
+      }
+      if (myIfRange.startsWith("W/")) {
+        return false;
+      }
+      return myIfRange.equals(myLastModified);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (!myDecided) {
+        // Character content (e.g. an OperationOutcome) is never sliced
+        decide(false);
+      }
+      return super.getWriter();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (!myDecided) {
+        decide(true);
+      }
+      if (!myRanged) {
+        return super.getOutputStream();
+      }
+      if (myOutputStream == null) {
+        myOutputStream = new RangeOutputStream(super.getOutputStream());
+      }
+      return myOutputStream;
+    }
+
+    private void decide(boolean theAllowRange) {
+      myDecided = true;
+      long total = myTotal;
+      if (!theAllowRange || myStatus != SC_OK || total < 0 || !isIfRangeSatisfied()) {
+        // Not a successful read of known size, or the content has changed, so send the response as is
+        super.setStatus(myStatus);
+        if (total >= 0) {
+          super.setContentLengthLong(total);
+        }
+        return;
+      }
+
+      myRanged = true;
+      if (!myRange.isSatisfiable(total)) {
+        super.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        super.setHeader(HEADER_CONTENT_RANGE, "bytes */" + total);
+        super.setContentLengthLong(0);
+        mySkip = Long.MAX_VALUE;
+        myRemaining = 0;
+        return;
+      }
+
+      long start = myRange.getStart(total);
+      long end = myRange.getEnd(total);
+      super.setStatus(SC_PARTIAL_CONTENT);
+      super.setHeader(HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + total);
+      super.setContentLengthLong(end - start + 1);
+      myStart = start;
+      mySkip = start;
+      myRemaining = end - start + 1;
+    }
+
+    private void finish() {
+      if (!myDecided) {
+        decide(false);
+      }
+    }
+
+    private class RangeOutputStream extends ServletOutputStream implements RangedOutputStream {
+
+      private final ServletOutputStream myTarget;
+      private final long myLength;
+
+      private RangeOutputStream(ServletOutputStream theTarget) {
+        myTarget = theTarget;
+        myLength = myRemaining;
+      }
+
+      @Override
+      public long getRangeStart() {
+        return myStart;
+      }
+
+      @Override
+      public long getRangeLength() {
+        return myLength;
+      }
+
+      @Override
+      public OutputStream startDirectWrite() {
+        mySkip = Long.MAX_VALUE;
+        myRemaining = 0;
+        return myTarget;
+      }
+
+      @Override
+      public void write(int theByte) throws IOException {
+        if (mySkip > 0) {
+          mySkip--;
+        } else if (myRemaining > 0) {
+          myRemaining--;
+          myTarget.write(theByte);
+        }
+      }
+
+      @Override
+      public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+        int offset = theOffset;
+        int length = theLength;
+        if (mySkip > 0) {
+          int skipped = (int) Math.min(mySkip, length);
+          mySkip -= skipped;
+          offset += skipped;
+          length -= skipped;
+        }
+        int toWrite = (int) Math.min(myRemaining, length);
+        if (toWrite > 0) {
+          myRemaining -= toWrite;
+          myTarget.write(theBytes, offset, toWrite);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        myTarget.flush();
+      }
+
+      @Override
+      public boolean isReady() {
+        return myTarget.isReady();
+      }
+
+      @Override
+      public void setWriteListener(WriteListener theWriteListener) {
+        myTarget.setWriteListener(theWriteListener);
+      }
+    }
+  }
+
+  /**
+   * Presents a request body which has been spooled to disk as a request of known length
+   */
+  private static class SpooledRequestWrapper extends HttpServletRequestWrapper {
+
+    private final Path mySpoolFile;
+    private final long mySize;
+
+    private SpooledRequestWrapper(HttpServletRequest theRequest, Path theSpoolFile, long theSize) {
+      super(theRequest);
+      mySpoolFile = theSpoolFile;
+      mySize = theSize;
+    }
+
+    @Override
+    public int getContentLength() {
+      return mySize > Integer.MAX_VALUE ? -1 : (int) mySize;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return mySize;
+    }
+
+    @Override
+    public String getHeader(String theName) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        return Long.toString(mySize);
+      }
+      return super.getHeader(theName);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String theName) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        return Collections.enumeration(Collections.singletonList(Long.toString(mySize)));
+      }
+      return super.getHeaders(theName);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+      InputStream inputStream = Files.newInputStream(mySpoolFile);
+      return new ServletInputStream() {
+        private boolean myFinished;
+
+        @Override
+        public int read() throws IOException {
+          int retVal = inputStream.read();
+          myFinished = retVal == -1;
+          return retVal;
+        }
+
+        @Override
+        public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+          int retVal = inputStream.read(theBuffer, theOffset, theLength);
+          myFinished = retVal == -1;
+          return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+          inputStream.close();
+        }
+
+        @Override
+        public boolean isFinished() {
+          return myFinished;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener theReadListener) {
+          // The spool file is local, so all of it is available straight away
+          try {
+            if (!myFinished) {
+              theReadListener.onDataAvailable();
+            }
+            if (myFinished) {
+              theReadListener.onAllDataRead();
+            }
+          } catch (IOException e) {
+            theReadListener.onError(e);
+          }
+        }
+      };
+    }
+  }
+
+}
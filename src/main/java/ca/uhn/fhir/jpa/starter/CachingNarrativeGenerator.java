@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.INarrative;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Narrative generator which remembers the narratives generated by another one,
+ * keyed by resource type, ID and version. A stored version never changes, so a
+ * cached narrative stays valid until it is evicted; the cache is bounded by the
+ * total size of the narratives it holds. Resources without a version (and DSTU2
+ * resources) are always passed to the delegate.
+ *
+ * @see NarrativeGeneratingInterceptor
+ */
+public class CachingNarrativeGenerator implements INarrativeGenerator {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CachingNarrativeGenerator.class);
+
+  private final INarrativeGenerator myDelegate;
+  private final Cache<String, CachedNarrative> myCache;
+  private final LongAdder myHits = new LongAdder();
+  private final LongAdder myMisses = new LongAdder();
+
+  /**
+   * Constructor
+   *
+   * @param theDelegate The generator which renders the narratives (must not be null)
+   * @param theMaxBytes The maximum total size of all cached narratives
+   */
+  public CachingNarrativeGenerator(INarrativeGenerator theDelegate, long theMaxBytes) {
+    Validate.notNull(theDelegate, "theDelegate must not be null");
+    Validate.isTrue(theMaxBytes > 0, "theMaxBytes must be positive");
+    myDelegate = theDelegate;
+    myCache = CacheBuilder.newBuilder()
+      .maximumWeight(theMaxBytes)
+      .<String, CachedNarrative>weigher((theKey, theValue) -> theKey.length() + theValue.myDiv.length())
+      .build();
+  }
+
+  public long getHitCount() {
+    return myHits.sum();
+  }
+
+  public long getMissCount() {
+    return myMisses.sum();
+  }
+
+  @Override
+  public boolean populateResourceNarrative(FhirContext theFhirContext, IBaseResource theResource) {
+    String key = toCacheKey(theFhirContext, theResource);
+    if (key == null) {
+      return myDelegate.populateResourceNarrative(theFhirContext, theResource);
+    }
+
+    INarrative narrative = ((IDomainResource) theResource).getText();
+    CachedNarrative cached = myCache.getIfPresent(key);
+    if (cached != null) {
+      myHits.increment();
+      try {
+        narrative.setDivAsString(cached.myDiv);
+        narrative.setStatusAsString(cached.myStatus);
+        return true;
+      } catch (Exception e) {
+        ourLog.warn("Failed to apply cached narrative of {}, generating it again: {}", key, e.toString());
+      }
+    }
+
+    myMisses.increment();
+    boolean retVal = myDelegate.populateResourceNarrative(theFhirContext, theResource);
+    if (retVal && narrative.getDivAsString() != null) {
+      myCache.put(key, new CachedNarrative(narrative.getDivAsString(), narrative.getStatusAsString()));
+    }
+    return retVal;
+  }
+
+  private static String toCacheKey(FhirContext theFhirContext, IBaseResource theResource) {
+    if (!(theResource instanceof IDomainResource)) {
+      return null;
+    }
+    IIdType id = theResource.getIdElement();
+    if (!id.hasIdPart() || !id.hasVersionIdPart()) {
+      return null;
+    }
+    return theFhirContext.getResourceType(theResource) + "/" + id.getIdPart() + "/" + id.getVersionIdPart();
+  }
+
+  private static class CachedNarrative {
+
+    private final String myDiv;
+    private final String myStatus;
+
+    private CachedNarrative(String theDiv, String theStatus) {
+      myDiv = theDiv;
+      myStatus = theStatus;
+    }
+  }
+
+}
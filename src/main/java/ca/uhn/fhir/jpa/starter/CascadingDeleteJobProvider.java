@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level operations for starting, resuming and monitoring the
+ * background cascading deletes run by the {@link CascadingDeleteJobSvc}
+ */
+public class CascadingDeleteJobProvider {
+
+  public static final String OPERATION_CASCADING_DELETE = "$cascading-delete";
+  public static final String OPERATION_CASCADING_DELETE_STATUS = "$cascading-delete-status";
+  public static final String OPERATION_CASCADING_DELETE_RESUME = "$cascading-delete-resume";
+
+  private final FhirContext myFhirContext;
+  private final CascadingDeleteJobSvc myJobSvc;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theJobSvc      The job service (must not be null)
+   */
+  public CascadingDeleteJobProvider(FhirContext theFhirContext, CascadingDeleteJobSvc theJobSvc) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theJobSvc, "theJobSvc must not be null");
+    myFhirContext = theFhirContext;
+    myJobSvc = theJobSvc;
+  }
+
+  @Operation(name = OPERATION_CASCADING_DELETE, idempotent = false)
+  public IBaseParameters cascadingDelete(
+    @OperationParam(name = "resource", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theResource,
+    RequestDetails theRequestDetails
+  ) {
+    CascadingDeleteJobSvc.DeleteJob job = myJobSvc.submitJob(new IdDt(theResource.getValueAsString()), theRequestDetails);
+    return toParameters(job);
+  }
+
+  @Operation(name = OPERATION_CASCADING_DELETE_STATUS, idempotent = true)
+  public IBaseParameters cascadingDeleteStatus(
+    @OperationParam(name = "jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId
+  ) {
+    return toParameters(getJob(myJobSvc.getJob(theJobId.getValueAsString()), theJobId));
+  }
+
+  @Operation(name = OPERATION_CASCADING_DELETE_RESUME, idempotent = false)
+  public IBaseParameters cascadingDeleteResume(
+    @OperationParam(name = "jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId
+  ) {
+    return toParameters(getJob(myJobSvc.resumeJob(theJobId.getValueAsString()), theJobId));
+  }
+
+  private static CascadingDeleteJobSvc.DeleteJob getJob(CascadingDeleteJobSvc.DeleteJob theJob, IPrimitiveType<String> theJobId) {
+    if (theJob == null) {
+      throw new ResourceNotFoundException("Unknown cascading delete job: " + theJobId.getValueAsString());
+    }
+    return theJob;
+  }
+
+  private IBaseParameters toParameters(CascadingDeleteJobSvc.DeleteJob theJob) {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "jobId", theJob.getJobId());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "resource", theJob.getRootId());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "status", theJob.getStatus().name());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "submitted", new InstantDt(theJob.getSubmitted()).getValueAsString());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "updated", new InstantDt(theJob.getUpdated()).getValueAsString());
+    if (theJob.getCompleted() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "completed", new InstantDt(theJob.getCompleted()).getValueAsString());
+    }
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "deleted", Long.toString(theJob.getDeletedCount()));
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "pending", Long.toString(theJob.getPendingCount()));
+    if (theJob.getError() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "error", theJob.getError());
+    }
+    return retVal;
+  }
+
+}
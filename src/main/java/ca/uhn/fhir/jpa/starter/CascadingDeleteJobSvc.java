@@ -0,0 +1,506 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Deletes a resource together with everything referencing it, in the
+ * background and in small steps, instead of in the one transaction of the
+ * triggering request as the <code>CascadingDeleteInterceptor</code> does.
+ * <p>
+ * A job keeps the resources still to be deleted in a table, starting with the
+ * root. Each step takes up to one chunk of them, deepest first, in a short
+ * transaction of its own: a resource which is still referenced adds the
+ * referencing resources to the table one level deeper and stays, and a resource
+ * which is no longer referenced is deleted and removed from the table. The
+ * reference graph is thereby deleted from the leaves up, and every committed
+ * step leaves a consistent database behind.
+ * <p>
+ * Jobs and their pending resources live in the database, so a job which was
+ * interrupted (by a failure or a restart of the node running it) continues
+ * from its last committed step once it is resumed, or on its own once it has
+ * not made progress for {@value #STALE_JOB_MILLIS}ms.
+ * <p>
+ * A resource referenced by a resource which is already pending in the job may
+ * be part of a reference cycle, whose resources would otherwise push each
+ * other deeper on every step. The resources which reference it and are
+ * referenced by it in turn (its strongly connected set, looked at up to one
+ * chunk of resources) are then deleted together in one step, once nothing
+ * outside the set references them. A job whose resources are nested more
+ * than {@value #MAX_DEPTH} levels deep, e.g. because of a cycle larger than a
+ * chunk, ends with an error.
+ */
+public class CascadingDeleteJobSvc {
+
+  static final String JOB_TABLE_NAME = "STARTER_DELETE_JOB";
+  static final String ITEM_TABLE_NAME = "STARTER_DELETE_JOB_ITEM";
+  static final int MAX_DEPTH = 1000;
+  static final long STALE_JOB_MILLIS = 300000L;
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CascadingDeleteJobSvc.class);
+  private static final long POLL_INTERVAL_MILLIS = 5000L;
+
+  public enum JobStatus {
+    SUBMITTED, RUNNING, COMPLETE, ERROR
+  }
+
+  @Autowired
+  private DaoRegistry myDaoRegistry;
+  @Autowired
+  private PlatformTransactionManager myTransactionManager;
+  @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+  private EntityManager myEntityManager;
+
+  private final JdbcTemplate myJdbcTemplate;
+  private final JdbcTemplate myChunkJdbcTemplate;
+  private final int myChunkSize;
+  private ScheduledExecutorService myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theDataSource The data source of the FHIR transactions (must not be null)
+   * @param theChunkSize  The maximum number of resources deleted or expanded per transaction
+   */
+  public CascadingDeleteJobSvc(DataSource theDataSource, int theChunkSize) {
+    Validate.notNull(theDataSource, "theDataSource must not be null");
+    Validate.isTrue(theChunkSize > 0, "theChunkSize must be positive");
+    myJdbcTemplate = new JdbcTemplate(theDataSource);
+    myChunkJdbcTemplate = new JdbcTemplate(theDataSource);
+    myChunkJdbcTemplate.setMaxRows(theChunkSize);
+    myChunkSize = theChunkSize;
+  }
+
+  @PostConstruct
+  public void start() {
+    StarterSchemaUtil.createTableIfMissing(myJdbcTemplate, JOB_TABLE_NAME,
+      "CREATE TABLE " + JOB_TABLE_NAME + " (JOB_ID VARCHAR(36) NOT NULL, ROOT_ID VARCHAR(200) NOT NULL, STATUS VARCHAR(20) NOT NULL, SUBMITTED BIGINT NOT NULL, UPDATED BIGINT NOT NULL, COMPLETED BIGINT, DELETED_COUNT BIGINT NOT NULL, ERROR_MSG VARCHAR(500), PRIMARY KEY (JOB_ID))",
+      "CREATE INDEX IDX_STARTER_DELETE_JOB_STATUS ON " + JOB_TABLE_NAME + " (STATUS)");
+    StarterSchemaUtil.createTableIfMissing(myJdbcTemplate, ITEM_TABLE_NAME,
+      "CREATE TABLE " + ITEM_TABLE_NAME + " (JOB_ID VARCHAR(36) NOT NULL, RES_PID BIGINT NOT NULL, DEPTH INTEGER NOT NULL, PRIMARY KEY (JOB_ID, RES_PID))",
+      "CREATE INDEX IDX_STARTER_DELETE_ITEM_DEPTH ON " + ITEM_TABLE_NAME + " (JOB_ID, DEPTH)");
+
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("cascading-delete-%d")
+      .setDaemon(true)
+      .build());
+    myExecutor.scheduleWithFixedDelay(this::runJobsSafely, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Submit a new job deleting the given resource and everything referencing it
+   *
+   * @param theResourceId      The ID of the root resource (<code>Type/id</code>)
+   * @param theRequestDetails  The request submitting the job, used to read the root resource
+   */
+  public DeleteJob submitJob(IIdType theResourceId, RequestDetails theRequestDetails) {
+    if (HapiProperties.getPartitioningEnabled()) {
+      throw new InvalidRequestException("Background cascading deletes are not supported on partitioned servers");
+    }
+    if (!theResourceId.hasResourceType() || !theResourceId.hasIdPart() || !myDaoRegistry.isResourceTypeSupported(theResourceId.getResourceType())) {
+      throw new InvalidRequestException("Invalid resource ID for a cascading delete: " + theResourceId.getValue());
+    }
+
+    IIdType rootId = theResourceId.toUnqualifiedVersionless();
+    ResourceTable root = (ResourceTable) myDaoRegistry.getResourceDao(rootId.getResourceType()).readEntity(rootId, theRequestDetails);
+    if (root.getDeleted() != null) {
+      throw new ResourceNotFoundException(rootId);
+    }
+
+    String jobId = UUID.randomUUID().toString();
+    long now = System.currentTimeMillis();
+    new TransactionTemplate(myTransactionManager).execute(t -> {
+      myJdbcTemplate.update("INSERT INTO " + JOB_TABLE_NAME + " (JOB_ID, ROOT_ID, STATUS, SUBMITTED, UPDATED, DELETED_COUNT) VALUES (?, ?, ?, ?, ?, 0)",
+        jobId, rootId.getValue(), JobStatus.SUBMITTED.name(), now, now);
+      myJdbcTemplate.update("INSERT INTO " + ITEM_TABLE_NAME + " (JOB_ID, RES_PID, DEPTH) VALUES (?, ?, 0)", jobId, root.getId());
+      return null;
+    });
+
+    ourLog.info("Submitted cascading delete job {} for {}", jobId, rootId.getValue());
+    myExecutor.execute(this::runJobsSafely);
+    return getJob(jobId);
+  }
+
+  /**
+   * Resume a job which ended with an error, e.g. after the reference cycle it
+   * ran into has been broken up
+   */
+  public DeleteJob resumeJob(String theJobId) {
+    int updated = myJdbcTemplate.update("UPDATE " + JOB_TABLE_NAME + " SET STATUS = ?, ERROR_MSG = NULL, UPDATED = ? WHERE JOB_ID = ? AND STATUS = ?",
+      JobStatus.SUBMITTED.name(), System.currentTimeMillis(), theJobId, JobStatus.ERROR.name());
+    if (updated > 0) {
+      myExecutor.execute(this::runJobsSafely);
+    }
+    return getJob(theJobId);
+  }
+
+  /**
+   * @return Returns the job, or <code>null</code> if it is unknown
+   */
+  public DeleteJob getJob(String theJobId) {
+    List<DeleteJob> jobs = myJdbcTemplate.query("SELECT JOB_ID, ROOT_ID, STATUS, SUBMITTED, UPDATED, COMPLETED, DELETED_COUNT, ERROR_MSG FROM " + JOB_TABLE_NAME + " WHERE JOB_ID = ?",
+      (theResultSet, theRowNum) -> {
+        DeleteJob retVal = new DeleteJob();
+        retVal.myJobId = theResultSet.getString(1);
+        retVal.myRootId = theResultSet.getString(2);
+        retVal.myStatus = JobStatus.valueOf(theResultSet.getString(3));
+        retVal.mySubmitted = new Date(theResultSet.getLong(4));
+        retVal.myUpdated = new Date(theResultSet.getLong(5));
+        long completed = theResultSet.getLong(6);
+        retVal.myCompleted = theResultSet.wasNull() ? null : new Date(completed);
+        retVal.myDeletedCount = theResultSet.getLong(7);
+        retVal.myError = theResultSet.getString(8);
+        return retVal;
+      }, theJobId);
+    if (jobs.isEmpty()) {
+      return null;
+    }
+    DeleteJob retVal = jobs.get(0);
+    retVal.myPendingCount = myJdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + ITEM_TABLE_NAME + " WHERE JOB_ID = ?", Long.class, theJobId);
+    return retVal;
+  }
+
+  private void runJobsSafely() {
+    try {
+      runJobs();
+    } catch (Exception e) {
+      ourLog.error("Failed to run cascading delete jobs", e);
+    }
+  }
+
+  private synchronized void runJobs() {
+    long staleBefore = System.currentTimeMillis() - STALE_JOB_MILLIS;
+    List<String> jobIds = myJdbcTemplate.queryForList("SELECT JOB_ID FROM " + JOB_TABLE_NAME + " WHERE STATUS = ? OR (STATUS = ? AND UPDATED < ?) ORDER BY SUBMITTED",
+      String.class, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name(), staleBefore);
+
+    for (String next : jobIds) {
+      // Claim the job, another node may have been faster
+      int claimed = myJdbcTemplate.update("UPDATE " + JOB_TABLE_NAME + " SET STATUS = ?, UPDATED = ? WHERE JOB_ID = ? AND (STATUS = ? OR (STATUS = ? AND UPDATED < ?))",
+        JobStatus.RUNNING.name(), System.currentTimeMillis(), next, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name(), staleBefore);
+      if (claimed > 0) {
+        runJob(next);
+      }
+    }
+  }
+
+  private void runJob(String theJobId) {
+    ourLog.info("Running cascading delete job {}", theJobId);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        if (!new TransactionTemplate(myTransactionManager).execute(t -> processChunk(theJobId))) {
+          break;
+        }
+      }
+    } catch (Exception e) {
+      ourLog.error("Failure during cascading delete job " + theJobId, e);
+      myJdbcTemplate.update("UPDATE " + JOB_TABLE_NAME + " SET STATUS = ?, ERROR_MSG = ?, UPDATED = ? WHERE JOB_ID = ?",
+        JobStatus.ERROR.name(), StringUtils.left(e.toString(), 500), System.currentTimeMillis(), theJobId);
+    }
+  }
+
+  /**
+   * Processes the deepest pending resources of the job
+   *
+   * @return Returns <code>true</code> if there is more to do
+   */
+  private boolean processChunk(String theJobId) {
+    List<long[]> items = myChunkJdbcTemplate.query("SELECT RES_PID, DEPTH FROM " + ITEM_TABLE_NAME + " WHERE JOB_ID = ? ORDER BY DEPTH DESC, RES_PID",
+      (theResultSet, theRowNum) -> new long[]{theResultSet.getLong(1), theResultSet.getLong(2)}, theJobId);
+
+    long now = System.currentTimeMillis();
+    if (items.isEmpty()) {
+      myJdbcTemplate.update("UPDATE " + JOB_TABLE_NAME + " SET STATUS = ?, UPDATED = ?, COMPLETED = ? WHERE JOB_ID = ?",
+        JobStatus.COMPLETE.name(), now, now, theJobId);
+      ourLog.info("Cascading delete job {} is complete", theJobId);
+      return false;
+    }
+
+    int deleted = 0;
+    for (long[] next : items) {
+      long pid = next[0];
+      int depth = (int) next[1];
+
+      List<Long> sources = myEntityManager
+        .createQuery("SELECT DISTINCT l.mySourceResourcePid FROM ResourceLink l WHERE l.myTargetResourcePid = :pid AND l.mySourceResourcePid <> :pid", Long.class)
+        .setParameter("pid", pid)
+        .setMaxResults(myChunkSize)
+        .getResultList();
+
+      if (!sources.isEmpty()) {
+        // A referencing resource which is already pending may close a cycle
+        Set<Long> cycle = findPending(theJobId, sources).isEmpty() ? new HashSet<>() : findReferenceCycle(pid);
+        if (!cycle.isEmpty()) {
+          List<Long> outside = findSourcesOutside(cycle);
+          if (outside.isEmpty()) {
+            deleted += deleteCycle(theJobId, cycle);
+            continue;
+          }
+          sources = outside;
+        }
+        if (depth + 1 > MAX_DEPTH) {
+          throw new IllegalStateException("Resource " + pid + " is referenced more than " + MAX_DEPTH + " levels below the root, probably by a reference cycle");
+        }
+        addOrDeepen(theJobId, sources, depth + 1);
+        continue;
+      }
+
+      ResourceTable entity = myEntityManager.find(ResourceTable.class, pid);
+      if (entity != null && entity.getDeleted() == null) {
+        IFhirResourceDao<IBaseResource> dao = myDaoRegistry.getResourceDao(entity.getResourceType());
+        dao.delete(entity.getIdDt().toUnqualifiedVersionless(), null);
+        deleted++;
+      }
+      myJdbcTemplate.update("DELETE FROM " + ITEM_TABLE_NAME + " WHERE JOB_ID = ? AND RES_PID = ?", theJobId, pid);
+    }
+
+    myJdbcTemplate.update("UPDATE " + JOB_TABLE_NAME + " SET DELETED_COUNT = DELETED_COUNT + ?, UPDATED = ? WHERE JOB_ID = ?", deleted, now, theJobId);
+    ourLog.debug("Cascading delete job {} deleted {} resources", theJobId, deleted);
+    return true;
+  }
+
+  /**
+   * @return Returns the resources of the strongly connected set of the resource
+   * (those which reference it and are referenced by it, directly or not), or
+   * an empty set if it is not part of a cycle
+   */
+  private Set<Long> findReferenceCycle(long thePid) {
+    // Everything referencing the resource, directly or not, up to one chunk
+    Set<Long> referencing = new LinkedHashSet<>();
+    Deque<Long> queue = new ArrayDeque<>();
+    referencing.add(thePid);
+    queue.add(thePid);
+    while (!queue.isEmpty() && referencing.size() < myChunkSize) {
+      List<Long> sources = myEntityManager
+        .createQuery("SELECT DISTINCT l.mySourceResourcePid FROM ResourceLink l WHERE l.myTargetResourcePid = :pid", Long.class)
+        .setParameter("pid", queue.poll())
+        .setMaxResults(myChunkSize)
+        .getResultList();
+      for (Long next : sources) {
+        if (referencing.size() < myChunkSize && referencing.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+
+    // Of those, the ones the resource references, directly or not
+    Map<Long, List<Long>> targets = new HashMap<>();
+    for (List<Long> nextChunk : Lists.partition(new ArrayList<>(referencing), PlaceholderReferenceSvc.QUERY_CHUNK_SIZE)) {
+      List<Object[]> links = myEntityManager
+        .createQuery("SELECT DISTINCT l.mySourceResourcePid, l.myTargetResourcePid FROM ResourceLink l WHERE l.mySourceResourcePid IN (:pids)", Object[].class)
+        .setParameter("pids", nextChunk)
+        .getResultList();
+      for (Object[] next : links) {
+        if (referencing.contains((Long) next[1])) {
+          targets.computeIfAbsent((Long) next[0], t -> new ArrayList<>()).add((Long) next[1]);
+        }
+      }
+    }
+    Set<Long> retVal = new HashSet<>();
+    queue.add(thePid);
+    while (!queue.isEmpty()) {
+      for (Long next : targets.getOrDefault(queue.poll(), new ArrayList<>())) {
+        if (retVal.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    if (!retVal.isEmpty()) {
+      retVal.add(thePid);
+    }
+    return retVal;
+  }
+
+  /**
+   * @return Returns resources outside of the cycle which reference one of its resources
+   */
+  private List<Long> findSourcesOutside(Set<Long> theCycle) {
+    return myEntityManager
+      .createQuery("SELECT DISTINCT l.mySourceResourcePid FROM ResourceLink l WHERE l.myTargetResourcePid IN (:pids) AND l.mySourceResourcePid NOT IN (:pids)", Long.class)
+      .setParameter("pids", theCycle)
+      .setMaxResults(myChunkSize)
+      .getResultList();
+  }
+
+  /**
+   * Deletes the resources of a cycle which nothing else references
+   *
+   * @return Returns the number of resources deleted
+   */
+  private int deleteCycle(String theJobId, Set<Long> theCycle) {
+    // The links within the cycle would make every delete conflict with the others
+    myEntityManager.flush();
+    myEntityManager
+      .createQuery("DELETE FROM ResourceLink l WHERE l.mySourceResourcePid IN (:pids) AND l.myTargetResourcePid IN (:pids)")
+      .setParameter("pids", theCycle)
+      .executeUpdate();
+    // Loaded entities still hold the removed links
+    myEntityManager.clear();
+
+    int retVal = 0;
+    List<Object[]> itemDeletes = new ArrayList<>();
+    for (Long next : theCycle) {
+      ResourceTable entity = myEntityManager.find(ResourceTable.class, next);
+      if (entity != null && entity.getDeleted() == null) {
+        IFhirResourceDao<IBaseResource> dao = myDaoRegistry.getResourceDao(entity.getResourceType());
+        dao.delete(entity.getIdDt().toUnqualifiedVersionless(), null);
+        retVal++;
+      }
+      itemDeletes.add(new Object[]{theJobId, next});
+    }
+    myJdbcTemplate.batchUpdate("DELETE FROM " + ITEM_TABLE_NAME + " WHERE JOB_ID = ? AND RES_PID = ?", itemDeletes);
+    ourLog.info("Cascading delete job {} deleted a reference cycle of {} resources", theJobId, theCycle.size());
+    return retVal;
+  }
+
+  /**
+   * @return Returns those of the resources which are pending in the job
+   */
+  private Set<Long> findPending(String theJobId, List<Long> thePids) {
+    Set<Long> retVal = new HashSet<>();
+    for (List<Long> nextChunk : Lists.partition(thePids, PlaceholderReferenceSvc.QUERY_CHUNK_SIZE)) {
+      String placeholders = StringUtils.repeat("?", ", ", nextChunk.size());
+      List<Object> args = new ArrayList<>();
+      args.add(theJobId);
+      args.addAll(nextChunk);
+      retVal.addAll(myJdbcTemplate.queryForList("SELECT RES_PID FROM " + ITEM_TABLE_NAME + " WHERE JOB_ID = ? AND RES_PID IN (" + placeholders + ")", Long.class, args.toArray()));
+    }
+    return retVal;
+  }
+
+  /**
+   * Adds the referencing resources to the job, or moves those already pending
+   * below the resource they reference so they are processed before it
+   */
+  private void addOrDeepen(String theJobId, List<Long> theSourcePids, int theDepth) {
+    Set<Long> pending = findPending(theJobId, theSourcePids);
+
+    List<Object[]> inserts = new ArrayList<>();
+    List<Object[]> updates = new ArrayList<>();
+    for (Long next : theSourcePids) {
+      if (pending.contains(next)) {
+        updates.add(new Object[]{theDepth, theJobId, next, theDepth});
+      } else {
+        inserts.add(new Object[]{theJobId, next, theDepth});
+      }
+    }
+    if (!inserts.isEmpty()) {
+      myJdbcTemplate.batchUpdate("INSERT INTO " + ITEM_TABLE_NAME + " (JOB_ID, RES_PID, DEPTH) VALUES (?, ?, ?)", inserts);
+    }
+    if (!updates.isEmpty()) {
+      myJdbcTemplate.batchUpdate("UPDATE " + ITEM_TABLE_NAME + " SET DEPTH = ? WHERE JOB_ID = ? AND RES_PID = ? AND DEPTH < ?", updates);
+    }
+  }
+
+  public static class DeleteJob {
+
+    private String myJobId;
+    private String myRootId;
+    private JobStatus myStatus;
+    private Date mySubmitted;
+    private Date myUpdated;
+    private Date myCompleted;
+    private long myDeletedCount;
+    private long myPendingCount;
+    private String myError;
+
+    public String getJobId() {
+      return myJobId;
+    }
+
+    public String getRootId() {
+      return myRootId;
+    }
+
+    public JobStatus getStatus() {
+      return myStatus;
+    }
+
+    public Date getSubmitted() {
+      return mySubmitted;
+    }
+
+    public Date getUpdated() {
+      return myUpdated;
+    }
+
+    public Date getCompleted() {
+      return myCompleted;
+    }
+
+    public long getDeletedCount() {
+      return myDeletedCount;
+    }
+
+    /**
+     * @return Returns the number of resources found so far which still have to be deleted
+     */
+    public long getPendingCount() {
+      return myPendingCount;
+    }
+
+    public String getError() {
+      return myError;
+    }
+  }
+
+}
@@ -0,0 +1,386 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Keeps the in-process caches of several server nodes sharing one database
+ * consistent, using nothing but that database.
+ * <p>
+ * Every create, update and delete appends a row to a small change log table from
+ * within the writing transaction, so the row becomes visible exactly when the
+ * write commits (and disappears with it on rollback). Every node polls the table
+ * for rows written by other nodes and hands them to its registered
+ * {@link ICacheInvalidationSubscriber subscribers}.
+ * <p>
+ * Rows are ordered by a change ID assigned by the database, so node clocks play
+ * no part. Each node keeps a high-water mark: the change ID up to which every
+ * row has been delivered. Since IDs are assigned at insert but become visible
+ * at commit, a poll may see a row while an earlier ID is still missing. Such a
+ * gap holds the high-water mark back, and every poll reads again from the mark,
+ * until the missing row shows up or the gap timeout has passed (the writing
+ * transaction rolled back, or the database skipped the ID). Rows above the mark
+ * which were already delivered are remembered and skipped.
+ * <p>
+ * On PostgreSQL the writers can additionally <code>NOTIFY</code> a channel on
+ * commit; nodes <code>LISTEN</code> on it and poll as soon as a notification
+ * arrives instead of waiting for the next poll interval.
+ * <p>
+ * On a sharded server the writes of sharded tenants go to the change log of
+ * their shard, as it is written on the connection of the writing transaction.
+ * Each shard therefore has its own change log, high-water mark and listener,
+ * and a poll reads the change logs of the default data source and of every
+ * shard.
+ */
+public class ClusterCacheInvalidationSvc {
+
+  static final String TABLE_NAME = "STARTER_CACHE_CHANGE_LOG";
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ClusterCacheInvalidationSvc.class);
+  private static final String NOTIFY_CHANNEL = "starter_cache_change";
+  private static final int PRUNE_EVERY_POLLS = 100;
+  private static final int MAX_ROWS_PER_POLL = 10000;
+
+  private final FhirContext myFhirContext;
+  private final DataSource myDataSource;
+  private final JdbcTemplate myJdbcTemplate;
+  private final JdbcTemplate myPollJdbcTemplate;
+  private final String myNodeId;
+  private final long myPollIntervalMillis;
+  private final long myGapTimeoutMillis;
+  private final long myRetentionMillis;
+  private final boolean myPostgresNotify;
+  private final List<ICacheInvalidationSubscriber> mySubscribers = new CopyOnWriteArrayList<>();
+  private final ChangeLogInterceptor myChangeLogInterceptor = new ChangeLogInterceptor();
+  private final List<ChangeLogCursor> myCursors = new ArrayList<>();
+  private final List<Thread> myListenerThreads = new ArrayList<>();
+  private Collection<String> myShardNames = new TreeSet<>();
+  private ScheduledExecutorService myExecutor;
+  private volatile boolean myStopped;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext        The FHIR context (must not be null)
+   * @param theDataSource         The data source of the FHIR transactions (must not be null)
+   * @param theNodeId             Identifies this node in the change log (must not be blank)
+   * @param thePollIntervalMillis How often the change log is polled
+   * @param theGapTimeoutMillis   How long a poll waits for a missing change ID before skipping it
+   * @param theRetentionMillis    How long rows are kept in the change log
+   * @param thePostgresNotify     Whether to use PostgreSQL LISTEN/NOTIFY in addition to polling
+   */
+  public ClusterCacheInvalidationSvc(FhirContext theFhirContext, DataSource theDataSource, String theNodeId, long thePollIntervalMillis, long theGapTimeoutMillis, long theRetentionMillis, boolean thePostgresNotify) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theDataSource, "theDataSource must not be null");
+    Validate.notBlank(theNodeId, "theNodeId must not be blank");
+    Validate.isTrue(thePollIntervalMillis > 0, "thePollIntervalMillis must be positive");
+    Validate.isTrue(theGapTimeoutMillis > 0, "theGapTimeoutMillis must be positive");
+    Validate.isTrue(theRetentionMillis > theGapTimeoutMillis, "theRetentionMillis must be greater than theGapTimeoutMillis");
+
+    myFhirContext = theFhirContext;
+    myDataSource = theDataSource;
+    myJdbcTemplate = new JdbcTemplate(theDataSource);
+    myPollJdbcTemplate = new JdbcTemplate(theDataSource);
+    myPollJdbcTemplate.setMaxRows(MAX_ROWS_PER_POLL);
+    myNodeId = theNodeId;
+    myPollIntervalMillis = thePollIntervalMillis;
+    myGapTimeoutMillis = theGapTimeoutMillis;
+    myRetentionMillis = theRetentionMillis;
+    myPostgresNotify = thePostgresNotify;
+  }
+
+  /**
+   * Sets the shards whose change logs are polled in addition to the one of the
+   * default data source. Must be called before the service is started.
+   */
+  public void setShardNames(Collection<String> theShardNames) {
+    Validate.notNull(theShardNames, "theShardNames must not be null");
+    myShardNames = new TreeSet<>(theShardNames);
+  }
+
+  @PostConstruct
+  public void start() {
+    List<String> shards = new ArrayList<>();
+    shards.add(null);
+    shards.addAll(myShardNames);
+    for (String next : shards) {
+      TenantRoutingDataSource.runInShard(next, () -> {
+        StarterSchemaUtil.createTableIfMissing(myJdbcTemplate, TABLE_NAME,
+          "CREATE TABLE " + TABLE_NAME + " (CHANGE_ID " + getIdentityColumnType() + " PRIMARY KEY, CHANGE_TIME BIGINT NOT NULL, NODE_ID VARCHAR(64) NOT NULL, RES_TYPE VARCHAR(40) NOT NULL, RES_ID VARCHAR(100) NOT NULL, RES_VER BIGINT, DELETED SMALLINT NOT NULL)",
+          "CREATE INDEX IDX_STARTER_CHANGE_TIME ON " + TABLE_NAME + " (CHANGE_TIME)");
+
+        // Changes written before this node started are of no interest to its empty caches
+        Long maxChangeId = myJdbcTemplate.queryForObject("SELECT MAX(CHANGE_ID) FROM " + TABLE_NAME, Long.class);
+        myCursors.add(new ChangeLogCursor(next, maxChangeId != null ? maxChangeId : 0));
+      });
+    }
+
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("cache-invalidation-poll-%d")
+      .setDaemon(true)
+      .build());
+    myExecutor.scheduleWithFixedDelay(this::pollAllSafely, myPollIntervalMillis, myPollIntervalMillis, TimeUnit.MILLISECONDS);
+
+    if (myPostgresNotify) {
+      for (ChangeLogCursor next : myCursors) {
+        Thread listenerThread = new Thread(() -> listen(next), "cache-invalidation-listen" + (next.myShardName != null ? "-" + next.myShardName : ""));
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        myListenerThreads.add(listenerThread);
+      }
+    }
+
+    ourLog.info("Cache invalidation bus started for node {} (poll interval {}ms, notify {}, shards {})", myNodeId, myPollIntervalMillis, myPostgresNotify, myShardNames);
+  }
+
+  @PreDestroy
+  public void stop() {
+    myStopped = true;
+    myExecutor.shutdownNow();
+    for (Thread next : myListenerThreads) {
+      next.interrupt();
+    }
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor
+   * service so that every write is recorded in the change log
+   */
+  public Object getChangeLogInterceptor() {
+    return myChangeLogInterceptor;
+  }
+
+  public void registerSubscriber(ICacheInvalidationSubscriber theSubscriber) {
+    Validate.notNull(theSubscriber, "theSubscriber must not be null");
+    mySubscribers.add(theSubscriber);
+  }
+
+  /**
+   * @return Returns the column type of the change ID, which is assigned by the database on insert
+   */
+  private String getIdentityColumnType() {
+    String productName = myJdbcTemplate.execute((ConnectionCallback<String>) t -> t.getMetaData().getDatabaseProductName());
+    if (StringUtils.containsIgnoreCase(productName, "MySQL") || StringUtils.containsIgnoreCase(productName, "MariaDB")) {
+      return "BIGINT AUTO_INCREMENT";
+    }
+    if (StringUtils.containsIgnoreCase(productName, "SQL Server")) {
+      return "BIGINT IDENTITY";
+    }
+    return "BIGINT GENERATED BY DEFAULT AS IDENTITY";
+  }
+
+  private void record(IBaseResource theResource, boolean theDeleted) {
+    IIdType id = theResource.getIdElement();
+    if (!id.hasIdPart()) {
+      return;
+    }
+    Long version = id.hasVersionIdPart() && id.isVersionIdPartValidLong() ? id.getVersionIdPartAsLong() : null;
+
+    // Runs on the connection of the writing transaction
+    myJdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (CHANGE_TIME, NODE_ID, RES_TYPE, RES_ID, RES_VER, DELETED) VALUES (?, ?, ?, ?, ?, ?)",
+      System.currentTimeMillis(), myNodeId, myFhirContext.getResourceType(theResource), id.getIdPart(), version, theDeleted ? 1 : 0);
+    if (myPostgresNotify) {
+      myJdbcTemplate.execute("NOTIFY " + NOTIFY_CHANNEL);
+    }
+  }
+
+  private void pollAllSafely() {
+    for (ChangeLogCursor next : myCursors) {
+      pollSafely(next);
+    }
+  }
+
+  private void pollSafely(ChangeLogCursor theCursor) {
+    try {
+      TenantRoutingDataSource.runInShard(theCursor.myShardName, () -> poll(theCursor));
+    } catch (Exception e) {
+      ourLog.error("Failed to poll the cache change log" + (theCursor.myShardName != null ? " of shard " + theCursor.myShardName : ""), e);
+    }
+  }
+
+  private synchronized void poll(ChangeLogCursor theCursor) {
+    long pollStart = System.currentTimeMillis();
+
+    // Rows of this node are read as well, as they fill the gaps between the rows of the others
+    myPollJdbcTemplate.query("SELECT CHANGE_ID, NODE_ID, RES_TYPE, RES_ID, RES_VER, DELETED FROM " + TABLE_NAME + " WHERE CHANGE_ID > ? ORDER BY CHANGE_ID",
+      (RowCallbackHandler) theResultSet -> {
+        long changeId = theResultSet.getLong(1);
+        if (!theCursor.mySeenAboveHighWaterMark.add(changeId) || myNodeId.equals(theResultSet.getString(2))) {
+          return;
+        }
+        String resourceType = theResultSet.getString(3);
+        String idPart = theResultSet.getString(4);
+        long version = theResultSet.getLong(5);
+        Long versionOrNull = theResultSet.wasNull() ? null : version;
+        boolean deleted = theResultSet.getInt(6) != 0;
+        deliver(resourceType, idPart, versionOrNull, deleted);
+      }, theCursor.myHighWaterMark);
+
+    theCursor.advanceHighWaterMark(pollStart);
+
+    if (++theCursor.myPollCount % PRUNE_EVERY_POLLS == 0) {
+      int pruned = myJdbcTemplate.update("DELETE FROM " + TABLE_NAME + " WHERE CHANGE_TIME < ?", pollStart - myRetentionMillis);
+      ourLog.debug("Pruned {} rows from the cache change log", pruned);
+    }
+  }
+
+  private void deliver(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted) {
+    for (ICacheInvalidationSubscriber next : mySubscribers) {
+      try {
+        next.resourceChanged(theResourceType, theIdPart, theVersion, theDeleted);
+      } catch (Exception e) {
+        ourLog.error("Cache invalidation subscriber " + next + " failed", e);
+      }
+    }
+  }
+
+  /**
+   * Waits for notifications on a dedicated connection and polls as soon as one arrives
+   */
+  private void listen(ChangeLogCursor theCursor) {
+    TenantRoutingDataSource.setCurrentShard(theCursor.myShardName);
+    while (!myStopped) {
+      try (Connection connection = myDataSource.getConnection()) {
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("LISTEN " + NOTIFY_CHANNEL);
+        }
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        while (!myStopped) {
+          PGNotification[] notifications = pgConnection.getNotifications((int) myPollIntervalMillis);
+          if (notifications != null && notifications.length > 0) {
+            myExecutor.execute(() -> pollSafely(theCursor));
+          }
+        }
+      } catch (SQLException e) {
+        if (myStopped) {
+          return;
+        }
+        ourLog.warn("Lost the cache change notification connection, reconnecting: {}", e.toString());
+        try {
+          Thread.sleep(myPollIntervalMillis);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Storage hooks which append every write to the change log
+   */
+  @Interceptor
+  public class ChangeLogInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+      record(theResource, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+      record(theNewResource, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+      record(theResource, true);
+    }
+  }
+
+  /**
+   * The position of this node in the change log of one data source
+   */
+  private class ChangeLogCursor {
+
+    private final String myShardName;
+    private final NavigableSet<Long> mySeenAboveHighWaterMark = new TreeSet<>();
+    private final Map<Long, Long> myGapFirstSeen = new HashMap<>();
+    private long myHighWaterMark;
+    private int myPollCount;
+
+    private ChangeLogCursor(String theShardName, long theHighWaterMark) {
+      myShardName = theShardName;
+      myHighWaterMark = theHighWaterMark;
+    }
+
+    /**
+     * Moves the high-water mark over every change ID which has been seen, or which
+     * has been missing for longer than the gap timeout
+     */
+    private void advanceHighWaterMark(long theNow) {
+      if (mySeenAboveHighWaterMark.isEmpty()) {
+        return;
+      }
+      long highestSeen = mySeenAboveHighWaterMark.last();
+      for (long next = myHighWaterMark + 1; next < highestSeen; next++) {
+        if (!mySeenAboveHighWaterMark.contains(next)) {
+          myGapFirstSeen.putIfAbsent(next, theNow);
+        }
+      }
+
+      while (myHighWaterMark < highestSeen) {
+        long next = myHighWaterMark + 1;
+        if (!mySeenAboveHighWaterMark.remove(next)) {
+          if (theNow - myGapFirstSeen.get(next) < myGapTimeoutMillis) {
+            break;
+          }
+          ourLog.debug("Skipping change ID {} which did not appear within {}ms", next, myGapTimeoutMillis);
+        }
+        myGapFirstSeen.remove(next);
+        myHighWaterMark = next;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,288 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.util.DateUtils;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which answers conditional reads (<code>If-None-Match</code>
+ * and <code>If-Modified-Since</code>) with <code>304 Not Modified</code> from an
+ * in-memory index of the current version of each resource, without loading or
+ * parsing the resource.
+ * <p>
+ * The index is filled from successful reads and from every create, update and
+ * delete seen by the storage interceptor service. A write removes the resource
+ * from the index while its transaction is open and only records the new version
+ * once the transaction has committed, so a rolled back write is never indexed.
+ * An entry only ever moves to a higher version, so a read racing with a write
+ * can not roll it back, and a deleted resource is never answered from the index.
+ * Entries expire after a while, in case a write was missed. When the index does
+ * not know a resource, or the request does not match, the read proceeds normally.
+ */
+@Interceptor
+public class ConditionalReadInterceptor implements ICacheInvalidationSubscriber {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ConditionalReadInterceptor.class);
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  private final FhirContext myFhirContext;
+  private final Cache<String, VersionEntry> myIndex;
+  private final IndexingInterceptor myIndexingInterceptor = new IndexingInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theMaxEntries  The maximum number of resources to keep in the index
+   * @param theTtlSeconds  How long an entry is kept after it was recorded
+   */
+  public ConditionalReadInterceptor(FhirContext theFhirContext, long theMaxEntries, long theTtlSeconds) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.isTrue(theMaxEntries > 0, "theMaxEntries must be positive");
+    Validate.isTrue(theTtlSeconds > 0, "theTtlSeconds must be positive");
+    myFhirContext = theFhirContext;
+    myIndex = CacheBuilder.newBuilder()
+      .maximumSize(theMaxEntries)
+      .expireAfterWrite(theTtlSeconds, TimeUnit.SECONDS)
+      .build();
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor
+   * service so that writes keep the index current
+   */
+  public Object getIndexingInterceptor() {
+    return myIndexingInterceptor;
+  }
+
+  /**
+   * Removes a resource from the index
+   */
+  public void invalidate(String theResourceType, String theIdPart) {
+    myIndex.invalidate(toKey(theResourceType, theIdPart));
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) {
+    if (theRequestDetails.getRequestType() != RequestTypeEnum.GET
+      || theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ
+      || theRequestDetails.getId() == null
+      || theRequestDetails.getId().hasVersionIdPart()) {
+      return true;
+    }
+
+    String ifNoneMatch = theRequestDetails.getHeader(HEADER_IF_NONE_MATCH);
+    String ifModifiedSince = theRequestDetails.getHeader(HEADER_IF_MODIFIED_SINCE);
+    if (ifNoneMatch == null && ifModifiedSince == null) {
+      return true;
+    }
+
+    IIdType id = theRequestDetails.getId();
+    VersionEntry entry = myIndex.getIfPresent(toKey(theRequestDetails.getResourceName(), id.getIdPart()));
+    if (entry == null || entry.isDeleted() || entry.isMarker() || !Objects.equals(entry.getTenantId(), theRequestDetails.getTenantId())) {
+      return true;
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since (RFC 7232 section 6)
+    boolean notModified;
+    if (ifNoneMatch != null) {
+      notModified = matchesVersion(ifNoneMatch, entry.getVersion());
+    } else {
+      Date since = DateUtils.parseDate(ifModifiedSince);
+      notModified = since != null && entry.getLastUpdated() != null && entry.getLastUpdated().getTime() / 1000 <= since.getTime() / 1000;
+    }
+    if (!notModified) {
+      return true;
+    }
+
+    ourLog.debug("Answering conditional read of {}/{} from the version index", theRequestDetails.getResourceName(), id.getIdPart());
+    theServletResponse.setStatus(Constants.STATUS_HTTP_304_NOT_MODIFIED);
+    theServletResponse.setHeader(Constants.HEADER_ETAG, "W/\"" + entry.getVersion() + '"');
+    if (entry.getLastUpdated() != null) {
+      theServletResponse.setHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(entry.getLastUpdated()));
+    }
+    return false;
+  }
+
+  @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+  public void outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) {
+    if (theRequestDetails.getRestOperationType() == RestOperationTypeEnum.READ
+      && theResponseDetails.getResponseCode() == Constants.STATUS_HTTP_200_OK
+      && theResponseDetails.getResponseResource() != null) {
+      index(theResponseDetails.getResponseResource(), theRequestDetails.getTenantId(), false);
+    }
+  }
+
+  private void index(IBaseResource theResource, String theTenantId, boolean theDeleted) {
+    IIdType id = theResource.getIdElement();
+    if (!id.hasIdPart() || !id.hasVersionIdPart() || !id.isVersionIdPartValidLong()) {
+      return;
+    }
+
+    String key = toKey(myFhirContext.getResourceType(theResource), id.getIdPart());
+    VersionEntry entry = new VersionEntry(id.getVersionIdPartAsLong(), theResource.getMeta().getLastUpdated(), theTenantId, theDeleted, false);
+    myIndex.asMap().merge(key, entry, (theExisting, theNew) -> isNewer(theNew, theExisting) ? theNew : theExisting);
+  }
+
+  /**
+   * A resource written on another node is replaced by a marker which is never
+   * answered from, until a local read or write records the version again
+   */
+  @Override
+  public void resourceChanged(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted) {
+    VersionEntry marker = new VersionEntry(theVersion != null ? theVersion : Long.MAX_VALUE, null, null, theDeleted, true);
+    myIndex.asMap().merge(toKey(theResourceType, theIdPart), marker, (theExisting, theNew) -> isNewer(theNew, theExisting) ? theNew : theExisting);
+  }
+
+  /**
+   * A delete wins over a read of the same version, so a read which completes after
+   * the delete can not bring the resource back into the index. A read or local
+   * write of the same version replaces a marker.
+   */
+  private static boolean isNewer(VersionEntry theNew, VersionEntry theExisting) {
+    if (theNew.getVersion() != theExisting.getVersion()) {
+      return theNew.getVersion() > theExisting.getVersion();
+    }
+    if (theNew.isDeleted() || theExisting.isDeleted()) {
+      return theNew.isDeleted() && !theExisting.isDeleted();
+    }
+    return theExisting.isMarker() && !theNew.isMarker();
+  }
+
+  private static boolean matchesVersion(String theIfNoneMatch, long theVersion) {
+    for (String next : theIfNoneMatch.split(",")) {
+      String tag = StringUtils.removeStart(next.trim(), "W/");
+      tag = StringUtils.removeStart(StringUtils.removeEnd(tag, "\""), "\"");
+      if (tag.equals(Long.toString(theVersion))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String toKey(String theResourceType, String theIdPart) {
+    return theResourceType + '/' + theIdPart;
+  }
+
+  /**
+   * Removes a resource which is being written from the index, and records the
+   * written version once the transaction has committed
+   */
+  private void indexAfterCommit(IBaseResource theResource, RequestDetails theRequestDetails, boolean theDeleted) {
+    String tenantId = theRequestDetails != null ? theRequestDetails.getTenantId() : null;
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      index(theResource, tenantId, theDeleted);
+      return;
+    }
+
+    invalidate(myFhirContext.getResourceType(theResource), theResource.getIdElement().getIdPart());
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        index(theResource, tenantId, theDeleted);
+      }
+    });
+  }
+
+  /**
+   * Storage hooks which record the version written by every create, update and delete
+   */
+  @Interceptor
+  public class IndexingInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource, RequestDetails theRequestDetails) {
+      indexAfterCommit(theResource, theRequestDetails, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails) {
+      indexAfterCommit(theNewResource, theRequestDetails, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource, RequestDetails theRequestDetails) {
+      indexAfterCommit(theResource, theRequestDetails, true);
+    }
+  }
+
+  private static class VersionEntry {
+
+    private final long myVersion;
+    private final Date myLastUpdated;
+    private final String myTenantId;
+    private final boolean myDeleted;
+    private final boolean myMarker;
+
+    private VersionEntry(long theVersion, Date theLastUpdated, String theTenantId, boolean theDeleted, boolean theMarker) {
+      myVersion = theVersion;
+      myLastUpdated = theLastUpdated;
+      myTenantId = theTenantId;
+      myDeleted = theDeleted;
+      myMarker = theMarker;
+    }
+
+    long getVersion() {
+      return myVersion;
+    }
+
+    Date getLastUpdated() {
+      return myLastUpdated;
+    }
+
+    String getTenantId() {
+      return myTenantId;
+    }
+
+    boolean isDeleted() {
+      return myDeleted;
+    }
+
+    boolean isMarker() {
+      return myMarker;
+    }
+  }
+
+}
@@ -0,0 +1,433 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.util.concurrent.Striped;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.binstore.BaseBinaryStorageSvcImpl;
+import ca.uhn.fhir.jpa.binstore.StoredDetails;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Binary storage which keeps blobs on the filesystem instead of in database BLOBs.
+ * <p>
+ * Unless the caller supplies an explicit blob ID, blobs are content addressed: the
+ * ID is the SHA-256 of the content, so identical attachments are only stored once.
+ * An explicit blob ID may only be reused for identical content, storing different
+ * content under an existing ID is rejected.
+ * Files are sharded into two directory levels taken from the start of the ID
+ * (<code>ab/cd/abcd...</code>) to keep directories small. Next to every blob there
+ * is a JSON descriptor and a directory holding one marker file per tenant and
+ * resource version that references the blob, and the blob itself is only removed
+ * once the last referencing version has been expunged. The tenant and version of
+ * a reference are taken from the storage hooks of the
+ * {@link #getReferenceInterceptor() reference interceptor}, which also marks the
+ * blobs a new version keeps from the previous one. Markers written before they
+ * carried the tenant and version are never removed, so their blobs are kept.
+ * <p>
+ * Reads are served through {@link FileChannel} so the content is never copied
+ * into a heap buffer of the size of the blob, and byte range reads only touch
+ * the requested part of the file.
+ */
+public class ContentAddressedBinaryStorageSvcImpl extends BaseBinaryStorageSvcImpl {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ContentAddressedBinaryStorageSvcImpl.class);
+  private static final Pattern VALID_BLOB_ID = Pattern.compile("[a-zA-Z0-9]{4,200}");
+  private static final String DESCRIPTOR_SUFFIX = ".json";
+  private static final String REFERENCES_SUFFIX = ".refs";
+  private static final String DEFAULT_TENANT = "DEFAULT";
+  private static final ThreadLocal<BlobReference> ourCurrentReference = new ThreadLocal<>();
+
+  @Autowired
+  private FhirContext myFhirContext;
+
+  private final Path myBaseDirectory;
+  private final Path myTempDirectory;
+  private final ObjectMapper myJsonSerializer;
+  private final Striped<Lock> myBlobLocks = Striped.lock(64);
+
+  /**
+   * Constructor
+   *
+   * @param theBaseDirectory The directory in which blobs are stored (must not be blank)
+   */
+  public ContentAddressedBinaryStorageSvcImpl(String theBaseDirectory) {
+    Validate.notBlank(theBaseDirectory, "theBaseDirectory must not be blank");
+    myBaseDirectory = Paths.get(theBaseDirectory).toAbsolutePath();
+    myTempDirectory = myBaseDirectory.resolve("tmp");
+    try {
+      Files.createDirectories(myTempDirectory);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not create binary storage directory " + myBaseDirectory, e);
+    }
+
+    myJsonSerializer = new ObjectMapper();
+    myJsonSerializer.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    myJsonSerializer.enable(SerializationFeature.INDENT_OUTPUT);
+
+    ourLog.info("Storing binaries in {}", myBaseDirectory);
+  }
+
+  @Override
+  public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream) throws IOException {
+    if (theBlobIdOrNull != null) {
+      validateBlobId(theBlobIdOrNull);
+    }
+
+    // Spool to a temporary file first, since the content address is only known once everything has been read
+    Path tempFile = Files.createTempFile(myTempDirectory, "blob", ".tmp");
+    try {
+      CountingInputStream countingInputStream = createCountingInputStream(theInputStream);
+      HashingInputStream hashingInputStream = createHashingInputStream(countingInputStream);
+      Files.copy(hashingInputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      long count = countingInputStream.getCount();
+
+      StoredDetails details = new StoredDetails("pending", count, theContentType, hashingInputStream, new Date());
+      String blobId = theBlobIdOrNull != null ? theBlobIdOrNull : details.getHash();
+      details.setBlobId(blobId);
+
+      Lock lock = myBlobLocks.get(blobId);
+      lock.lock();
+      try {
+        Path blobFile = getBlobFile(blobId);
+        Path descriptorFile = getDescriptorFile(blobId);
+        Files.createDirectories(blobFile.getParent());
+        if (Files.exists(blobFile) && Files.exists(descriptorFile)) {
+          StoredDetails existing = myJsonSerializer.readValue(descriptorFile.toFile(), StoredDetails.class);
+          if (!details.getHash().equals(existing.getHash())) {
+            throw new InvalidRequestException("Blob " + blobId + " already exists with different content");
+          }
+          details = existing;
+        } else {
+          Files.move(tempFile, blobFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+          myJsonSerializer.writeValue(descriptorFile.toFile(), details);
+        }
+
+        addReference(blobId, toReferenceName(theResourceId));
+      } finally {
+        lock.unlock();
+      }
+
+      return details;
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  @Override
+  public StoredDetails fetchBlobDetails(IIdType theResourceId, String theBlobId) throws IOException {
+    validateBlobId(theBlobId);
+    Path descriptorFile = getDescriptorFile(theBlobId);
+    if (!Files.exists(descriptorFile)) {
+      return null;
+    }
+    return myJsonSerializer.readValue(descriptorFile.toFile(), StoredDetails.class);
+  }
+
+  /**
+   * Writes a blob to the given stream. If the stream belongs to a ranged read
+   * of the {@link BinaryStreamingFilter}, only the requested bytes are read.
+   */
+  @Override
+  public boolean writeBlob(IIdType theResourceId, String theBlobId, OutputStream theOutputStream) throws IOException {
+    if (theOutputStream instanceof BinaryStreamingFilter.RangedOutputStream) {
+      BinaryStreamingFilter.RangedOutputStream rangedOutputStream = (BinaryStreamingFilter.RangedOutputStream) theOutputStream;
+      long offset = rangedOutputStream.getRangeStart();
+      long length = rangedOutputStream.getRangeLength();
+      return writeBlob(theResourceId, theBlobId, offset, length, rangedOutputStream.startDirectWrite());
+    }
+    return writeBlob(theResourceId, theBlobId, 0, Long.MAX_VALUE, theOutputStream);
+  }
+
+  /**
+   * Writes part of a blob to the given stream
+   *
+   * @param theOffset The first byte to write
+   * @param theLength The maximum number of bytes to write
+   * @return Returns <code>false</code> if the blob does not exist
+   */
+  public boolean writeBlob(IIdType theResourceId, String theBlobId, long theOffset, long theLength, OutputStream theOutputStream) throws IOException {
+    validateBlobId(theBlobId);
+    Path blobFile = getBlobFile(theBlobId);
+    try (FileChannel channel = FileChannel.open(blobFile, StandardOpenOption.READ)) {
+      long end = Math.min(channel.size(), theOffset + Math.min(theLength, channel.size()));
+      WritableByteChannel target = Channels.newChannel(theOutputStream);
+      long position = theOffset;
+      while (position < end) {
+        position += channel.transferTo(position, end - position, target);
+      }
+      theOutputStream.flush();
+      return true;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void expungeBlob(IIdType theResourceId, String theBlobId) {
+    validateBlobId(theBlobId);
+    Lock lock = myBlobLocks.get(theBlobId);
+    lock.lock();
+    try {
+      Path referencesDirectory = getReferencesDirectory(theBlobId);
+      Files.deleteIfExists(referencesDirectory.resolve(toReferenceName(theResourceId)));
+
+      if (Files.exists(referencesDirectory)) {
+        try (DirectoryStream<Path> remaining = Files.newDirectoryStream(referencesDirectory)) {
+          if (remaining.iterator().hasNext()) {
+            ourLog.debug("Not removing blob {} as it is still referenced", theBlobId);
+            return;
+          }
+        }
+        Files.delete(referencesDirectory);
+      }
+
+      ourLog.info("Removing blob {}", theBlobId);
+      Files.deleteIfExists(getDescriptorFile(theBlobId));
+      Files.deleteIfExists(getBlobFile(theBlobId));
+    } catch (IOException e) {
+      ourLog.error("Failed to expunge blob " + theBlobId, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public byte[] fetchBlob(IIdType theResourceId, String theBlobId) throws IOException {
+    validateBlobId(theBlobId);
+    try (FileChannel channel = FileChannel.open(getBlobFile(theBlobId), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > getMaximumBinarySize()) {
+        throw new IOException("Blob " + theBlobId + " is larger than the maximum binary size");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      byte[] retVal = new byte[(int) size];
+      buffer.get(retVal);
+      return retVal;
+    }
+  }
+
+  /**
+   * @return Returns the interceptor which supplies the tenant and version of the resources referencing blobs
+   */
+  public ReferenceInterceptor getReferenceInterceptor() {
+    return new ReferenceInterceptor();
+  }
+
+  private void addReference(String theBlobId, String theReferenceName) throws IOException {
+    Path referencesDirectory = getReferencesDirectory(theBlobId);
+    Files.createDirectories(referencesDirectory);
+    Path reference = referencesDirectory.resolve(theReferenceName);
+    if (!Files.exists(reference)) {
+      Files.createFile(reference);
+    }
+  }
+
+  /**
+   * Marks the blobs which the new version of a resource keeps from the previous
+   * version, as those are not stored again
+   */
+  private void addKeptReferences(IBaseResource theResource, IIdType theResourceId) {
+    @SuppressWarnings("unchecked")
+    Class<? extends IBase> binaryType = (Class<? extends IBase>) myFhirContext.getElementDefinition("base64Binary").getImplementingClass();
+    for (IBase next : myFhirContext.newTerser().getAllPopulatedChildElementsOfType(theResource, binaryType)) {
+      for (IBaseExtension<?, ?> nextExtension : ((IBaseHasExtensions) next).getExtension()) {
+        if (!JpaConstants.EXT_EXTERNALIZED_BINARY_ID.equals(nextExtension.getUrl()) || !(nextExtension.getValue() instanceof IPrimitiveType)) {
+          continue;
+        }
+        String blobId = ((IPrimitiveType<?>) nextExtension.getValue()).getValueAsString();
+        validateBlobId(blobId);
+        Lock lock = myBlobLocks.get(blobId);
+        lock.lock();
+        try {
+          if (Files.exists(getBlobFile(blobId))) {
+            addReference(blobId, toReferenceName(theResourceId));
+          }
+        } catch (IOException e) {
+          throw new InternalErrorException("Failed to mark blob " + blobId + " as referenced", e);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private Path getShardDirectory(String theBlobId) {
+    return myBaseDirectory.resolve(theBlobId.substring(0, 2)).resolve(theBlobId.substring(2, 4));
+  }
+
+  private Path getBlobFile(String theBlobId) {
+    return getShardDirectory(theBlobId).resolve(theBlobId);
+  }
+
+  private Path getDescriptorFile(String theBlobId) {
+    return getShardDirectory(theBlobId).resolve(theBlobId + DESCRIPTOR_SUFFIX);
+  }
+
+  private Path getReferencesDirectory(String theBlobId) {
+    return getShardDirectory(theBlobId).resolve(theBlobId + REFERENCES_SUFFIX);
+  }
+
+  /**
+   * @return Returns the name of the marker of a resource version, e.g. <code>TENANT-A@Binary_1_2</code>
+   */
+  private static String toReferenceName(IIdType theResourceId) {
+    String tenantId = null;
+    IIdType resourceId = theResourceId;
+    BlobReference current = ourCurrentReference.get();
+    if (current != null && current.isSameResource(theResourceId)) {
+      tenantId = current.myTenantId;
+      resourceId = current.myResourceId;
+    }
+
+    StringBuilder b = new StringBuilder();
+    try {
+      // Tenant names are encoded, so they neither contain '@' nor characters unsafe in file names
+      b.append(URLEncoder.encode(StringUtils.defaultIfBlank(tenantId, DEFAULT_TENANT), StandardCharsets.UTF_8.name()));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    b.append('@').append(resourceId.getResourceType()).append('_').append(resourceId.getIdPart());
+    if (resourceId.hasVersionIdPart()) {
+      b.append('_').append(resourceId.getVersionIdPart());
+    }
+    return b.toString();
+  }
+
+  private static void validateBlobId(String theBlobId) {
+    if (theBlobId == null || !VALID_BLOB_ID.matcher(theBlobId).matches()) {
+      throw new InvalidRequestException("Invalid blob ID: " + theBlobId);
+    }
+  }
+
+  /**
+   * The tenant and version of the resource which the storage hooks currently work on
+   */
+  private static class BlobReference {
+
+    private final String myTenantId;
+    private final IIdType myResourceId;
+
+    BlobReference(RequestDetails theRequestDetails, IIdType theResourceId) {
+      myTenantId = theRequestDetails != null ? theRequestDetails.getTenantId() : null;
+      myResourceId = theResourceId;
+    }
+
+    boolean isSameResource(IIdType theResourceId) {
+      if (myResourceId == null || !StringUtils.equals(myResourceId.getIdPart(), theResourceId.getIdPart())) {
+        return false;
+      }
+      return !theResourceId.hasResourceType() || StringUtils.equals(myResourceId.getResourceType(), theResourceId.getResourceType());
+    }
+  }
+
+  /**
+   * Runs ahead of the {@link ca.uhn.fhir.jpa.binstore.BinaryStorageInterceptor}
+   * on the same pointcuts and tells the storage which tenant and version the
+   * blobs it is about to store or expunge belong to
+   */
+  @Interceptor
+  public class ReferenceInterceptor {
+
+    @Hook(value = Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED, order = Integer.MIN_VALUE)
+    public void resourceCreated(RequestDetails theRequestDetails, IBaseResource theResource) {
+      setCurrentReference(theRequestDetails, theResource, "1");
+    }
+
+    @Hook(value = Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED, order = Integer.MIN_VALUE)
+    public void resourceUpdated(RequestDetails theRequestDetails, IBaseResource theOldResource, IBaseResource theNewResource) {
+      // The version sent by the client (if any) is not the one the update is stored as
+      Long previousVersion = theOldResource.getIdElement().getVersionIdPartAsLong();
+      IIdType newId = setCurrentReference(theRequestDetails, theNewResource, previousVersion != null ? Long.toString(previousVersion + 1) : null);
+      if (newId != null) {
+        addKeptReferences(theNewResource, newId);
+      }
+    }
+
+    @Hook(value = Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED, order = Integer.MIN_VALUE)
+    public void resourceCreatedPrecommit(RequestDetails theRequestDetails, IBaseResource theResource) {
+      setCurrentReference(theRequestDetails, theResource, "1");
+    }
+
+    @Hook(value = Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE, order = Integer.MIN_VALUE)
+    public void resourceExpunged(RequestDetails theRequestDetails, IBaseResource theResource) {
+      // Expunged resources are loaded from their history row, so they carry their version
+      setCurrentReference(theRequestDetails, theResource, theResource.getIdElement().getVersionIdPart());
+    }
+
+    /**
+     * @return Returns the versioned ID of the resource, or <code>null</code> if it has no ID yet
+     */
+    private IIdType setCurrentReference(RequestDetails theRequestDetails, IBaseResource theResource, String theVersion) {
+      IIdType id = theResource.getIdElement();
+      if (id.isEmpty() || !id.hasIdPart() || StringUtils.isBlank(theVersion)) {
+        ourCurrentReference.set(new BlobReference(theRequestDetails, null));
+        return null;
+      }
+      String resourceType = id.hasResourceType() ? id.getResourceType() : myFhirContext.getResourceType(theResource);
+      IIdType retVal = id.withResourceType(resourceType).withVersion(theVersion);
+      ourCurrentReference.set(new BlobReference(theRequestDetails, retVal));
+      return retVal;
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level operations for queueing and monitoring the background
+ * expunges run by the {@link ExpungeSchedulerSvc}
+ */
+public class ExpungeSchedulerProvider {
+
+  public static final String OPERATION_EXPUNGE_SCHEDULE = "$expunge-schedule";
+  public static final String OPERATION_EXPUNGE_SCHEDULE_STATUS = "$expunge-schedule-status";
+
+  private final FhirContext myFhirContext;
+  private final ExpungeSchedulerSvc myExpungeSchedulerSvc;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext         The FHIR context (must not be null)
+   * @param theExpungeSchedulerSvc The expunge scheduler (must not be null)
+   */
+  public ExpungeSchedulerProvider(FhirContext theFhirContext, ExpungeSchedulerSvc theExpungeSchedulerSvc) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theExpungeSchedulerSvc, "theExpungeSchedulerSvc must not be null");
+    myFhirContext = theFhirContext;
+    myExpungeSchedulerSvc = theExpungeSchedulerSvc;
+  }
+
+  @Operation(name = OPERATION_EXPUNGE_SCHEDULE, idempotent = false)
+  public IBaseParameters expungeSchedule(
+    @OperationParam(name = "_type", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    @OperationParam(name = "expungeDeletedResources", min = 0, max = 1, typeName = "boolean") IPrimitiveType<Boolean> theExpungeDeletedResources,
+    @OperationParam(name = "expungePreviousVersions", min = 0, max = 1, typeName = "boolean") IPrimitiveType<Boolean> theExpungePreviousVersions
+  ) {
+    String resourceType = theType != null ? StringUtils.defaultIfBlank(theType.getValueAsString(), null) : null;
+    boolean expungeDeletedResources = theExpungeDeletedResources == null || Boolean.TRUE.equals(theExpungeDeletedResources.getValue());
+    boolean expungePreviousVersions = theExpungePreviousVersions == null || Boolean.TRUE.equals(theExpungePreviousVersions.getValue());
+
+    ExpungeSchedulerSvc.ExpungeJob job = myExpungeSchedulerSvc.submitJob(resourceType, expungeDeletedResources, expungePreviousVersions);
+    return toParameters(job);
+  }
+
+  @Operation(name = OPERATION_EXPUNGE_SCHEDULE_STATUS, idempotent = true)
+  public IBaseParameters expungeScheduleStatus(
+    @OperationParam(name = "jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId
+  ) {
+    ExpungeSchedulerSvc.ExpungeJob job = myExpungeSchedulerSvc.getJob(theJobId.getValueAsString());
+    if (job == null) {
+      throw new ResourceNotFoundException("Unknown expunge job: " + theJobId.getValueAsString());
+    }
+    return toParameters(job);
+  }
+
+  private IBaseParameters toParameters(ExpungeSchedulerSvc.ExpungeJob theJob) {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "jobId", theJob.getJobId());
+    if (theJob.getResourceType() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "type", theJob.getResourceType());
+    }
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "status", theJob.getStatus().name());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "submitted", new InstantDt(theJob.getSubmitted()).getValueAsString());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "updated", new InstantDt(theJob.getUpdated()).getValueAsString());
+    if (theJob.getCompleted() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "completed", new InstantDt(theJob.getCompleted()).getValueAsString());
+    }
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "scanned", Long.toString(theJob.getScannedCount()));
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "expunged", Long.toString(theJob.getExpungedCount()));
+    if (theJob.getError() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "error", theJob.getError());
+    }
+    return retVal;
+  }
+
+}
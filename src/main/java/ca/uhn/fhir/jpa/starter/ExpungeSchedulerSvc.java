@@ -0,0 +1,501 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.time.Clock;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.ExpungeOptions;
+import ca.uhn.fhir.jpa.api.model.ExpungeOutcome;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Runs expunges in the background, throttled and limited to configurable
+ * time windows, instead of within the <code>$expunge</code> request.
+ * <p>
+ * Jobs are queued in a database table and run one after the other, oldest
+ * first. A job walks the resources of one type (or of all types) in the order
+ * of their persistent IDs, a batch at a time, and expunges the deleted ones
+ * and the old versions of the others one resource at a time, at most one
+ * second's worth of rows per step. The number of rows expunged is throttled to
+ * a configured rate, the position of the job is saved after every batch, and
+ * a running job is marked as alive at least every {@value #HEARTBEAT_MILLIS}ms.
+ * When a time window closes, the job is put back into the queue and continues
+ * from its position (the resource it was working on) in the next window; jobs
+ * of a node which stopped are taken over by another node after
+ * {@value #STALE_JOB_MILLIS}ms.
+ * <p>
+ * Optionally, a sweep of all resource types is queued whenever no job has
+ * been submitted for a configured interval and no sweep is waiting or running
+ * yet, so old versions and deleted resources are purged continuously.
+ */
+public class ExpungeSchedulerSvc {
+
+  static final String TABLE_NAME = "STARTER_EXPUNGE_JOB";
+  static final long STALE_JOB_MILLIS = 300000L;
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ExpungeSchedulerSvc.class);
+  private static final long POLL_INTERVAL_MILLIS = 10000L;
+  private static final long HEARTBEAT_MILLIS = STALE_JOB_MILLIS / 5;
+
+  public enum JobStatus {
+    SUBMITTED, RUNNING, COMPLETE, ERROR
+  }
+
+  @Autowired
+  private DaoRegistry myDaoRegistry;
+  @Autowired
+  private DaoConfig myDaoConfig;
+  @Autowired
+  private PlatformTransactionManager myTransactionManager;
+  @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+  private EntityManager myEntityManager;
+
+  private final JdbcTemplate myJdbcTemplate;
+  private final RateLimiter myRateLimiter;
+  private final int myStepRows;
+  private final int myBatchSize;
+  private final List<LocalTime[]> myWindows;
+  private final long mySweepIntervalMillis;
+  private final LongAdder myResourcesScanned = new LongAdder();
+  private final LongAdder myRowsExpunged = new LongAdder();
+  private volatile String myRunningJobId;
+  private volatile Clock myClock = Clock.systemDefaultZone();
+  private ScheduledExecutorService myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theDataSource         The data source of the FHIR transactions (must not be null)
+   * @param theRowsPerSecond      The maximum number of rows expunged per second
+   * @param theBatchSize          The number of resources after which the position of a job is saved
+   * @param theWindows            Comma separated <code>HH:mm-HH:mm</code> windows in which jobs run, or blank to run them at any time
+   * @param theSweepIntervalHours Queue a sweep of all resource types if no job was submitted for this many hours, or 0 for none
+   */
+  public ExpungeSchedulerSvc(DataSource theDataSource, double theRowsPerSecond, int theBatchSize, String theWindows, long theSweepIntervalHours) {
+    Validate.notNull(theDataSource, "theDataSource must not be null");
+    Validate.isTrue(theRowsPerSecond > 0, "theRowsPerSecond must be positive");
+    Validate.isTrue(theBatchSize > 0, "theBatchSize must be positive");
+    Validate.isTrue(theSweepIntervalHours >= 0, "theSweepIntervalHours must not be negative");
+    myJdbcTemplate = new JdbcTemplate(theDataSource);
+    myRateLimiter = RateLimiter.create(theRowsPerSecond);
+    // One second's worth of rows per expunge, so a resource with a long history is throttled as well
+    myStepRows = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(theRowsPerSecond)));
+    myBatchSize = theBatchSize;
+    myWindows = parseWindows(theWindows);
+    mySweepIntervalMillis = TimeUnit.HOURS.toMillis(theSweepIntervalHours);
+  }
+
+  @PostConstruct
+  public void start() {
+    StarterSchemaUtil.createTableIfMissing(myJdbcTemplate, TABLE_NAME,
+      "CREATE TABLE " + TABLE_NAME + " (JOB_ID VARCHAR(36) NOT NULL, RES_TYPE VARCHAR(40), EXPUNGE_DELETED SMALLINT NOT NULL, EXPUNGE_OLD_VERSIONS SMALLINT NOT NULL, STATUS VARCHAR(20) NOT NULL, SUBMITTED BIGINT NOT NULL, UPDATED BIGINT NOT NULL, COMPLETED BIGINT, CURSOR_PID BIGINT NOT NULL, SCANNED_COUNT BIGINT NOT NULL, EXPUNGED_COUNT BIGINT NOT NULL, ERROR_MSG VARCHAR(500), PRIMARY KEY (JOB_ID))",
+      "CREATE INDEX IDX_STARTER_EXPUNGE_JOB_STATUS ON " + TABLE_NAME + " (STATUS, SUBMITTED)");
+
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("expunge-scheduler-%d")
+      .setDaemon(true)
+      .build());
+    myExecutor.scheduleWithFixedDelay(this::runJobsSafely, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Queue a new expunge job
+   *
+   * @param theResourceType             The resource type to expunge, or <code>null</code> for all types
+   * @param theExpungeDeletedResources  Whether to expunge deleted resources
+   * @param theExpungeOldVersions       Whether to expunge the old versions of current resources
+   */
+  public ExpungeJob submitJob(String theResourceType, boolean theExpungeDeletedResources, boolean theExpungeOldVersions) {
+    if (!myDaoConfig.isExpungeEnabled()) {
+      throw new InvalidRequestException("Expunge is not enabled on this server");
+    }
+    if (HapiProperties.getPartitioningEnabled()) {
+      throw new InvalidRequestException("Scheduled expunges are not supported on partitioned servers");
+    }
+    if (theResourceType != null && !myDaoRegistry.isResourceTypeSupported(theResourceType)) {
+      throw new InvalidRequestException("Resource type " + theResourceType + " is not supported on this server");
+    }
+    if (!theExpungeDeletedResources && !theExpungeOldVersions) {
+      throw new InvalidRequestException("Nothing to expunge, expunge deleted resources and/or old versions");
+    }
+
+    String jobId = UUID.randomUUID().toString();
+    long now = System.currentTimeMillis();
+    myJdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (JOB_ID, RES_TYPE, EXPUNGE_DELETED, EXPUNGE_OLD_VERSIONS, STATUS, SUBMITTED, UPDATED, CURSOR_PID, SCANNED_COUNT, EXPUNGED_COUNT) VALUES (?, ?, ?, ?, ?, ?, ?, 0, 0, 0)",
+      jobId, theResourceType, theExpungeDeletedResources ? 1 : 0, theExpungeOldVersions ? 1 : 0, JobStatus.SUBMITTED.name(), now, now);
+
+    ourLog.info("Queued expunge job {} for {}", jobId, StringUtils.defaultString(theResourceType, "all resource types"));
+    return getJob(jobId);
+  }
+
+  /**
+   * @return Returns the job, or <code>null</code> if it is unknown
+   */
+  public ExpungeJob getJob(String theJobId) {
+    List<ExpungeJob> jobs = myJdbcTemplate.query("SELECT JOB_ID, RES_TYPE, EXPUNGE_DELETED, EXPUNGE_OLD_VERSIONS, STATUS, SUBMITTED, UPDATED, COMPLETED, CURSOR_PID, SCANNED_COUNT, EXPUNGED_COUNT, ERROR_MSG FROM " + TABLE_NAME + " WHERE JOB_ID = ?",
+      (theResultSet, theRowNum) -> {
+        ExpungeJob retVal = new ExpungeJob();
+        retVal.myJobId = theResultSet.getString(1);
+        retVal.myResourceType = theResultSet.getString(2);
+        retVal.myExpungeDeletedResources = theResultSet.getInt(3) != 0;
+        retVal.myExpungeOldVersions = theResultSet.getInt(4) != 0;
+        retVal.myStatus = JobStatus.valueOf(theResultSet.getString(5));
+        retVal.mySubmitted = new Date(theResultSet.getLong(6));
+        retVal.myUpdated = new Date(theResultSet.getLong(7));
+        long completed = theResultSet.getLong(8);
+        retVal.myCompleted = theResultSet.wasNull() ? null : new Date(completed);
+        retVal.myCursor = theResultSet.getLong(9);
+        retVal.myScannedCount = theResultSet.getLong(10);
+        retVal.myExpungedCount = theResultSet.getLong(11);
+        retVal.myError = theResultSet.getString(12);
+        return retVal;
+      }, theJobId);
+    return jobs.isEmpty() ? null : jobs.get(0);
+  }
+
+  /**
+   * @return Returns the number of jobs waiting in the queue, including the running one
+   */
+  public long getQueuedJobCount() {
+    return myJdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE STATUS IN (?, ?)", Long.class, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name());
+  }
+
+  public long getResourcesScanned() {
+    return myResourcesScanned.sum();
+  }
+
+  public long getRowsExpunged() {
+    return myRowsExpunged.sum();
+  }
+
+  public boolean isRunning() {
+    return myRunningJobId != null;
+  }
+
+  /**
+   * Sets the clock the time windows are checked against
+   */
+  void setClock(Clock theClock) {
+    Validate.notNull(theClock, "theClock must not be null");
+    myClock = theClock;
+  }
+
+  /**
+   * @return Returns <code>true</code> if jobs may run at the given time of day
+   */
+  boolean isInWindow(LocalTime theTime) {
+    if (myWindows.isEmpty()) {
+      return true;
+    }
+    for (LocalTime[] next : myWindows) {
+      boolean inWindow = next[0].isBefore(next[1])
+        ? !theTime.isBefore(next[0]) && theTime.isBefore(next[1])
+        : !theTime.isBefore(next[0]) || theTime.isBefore(next[1]);
+      if (inWindow) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<LocalTime[]> parseWindows(String theWindows) {
+    List<LocalTime[]> retVal = new ArrayList<>();
+    for (String next : StringUtils.defaultString(theWindows).split(",")) {
+      if (StringUtils.isBlank(next)) {
+        continue;
+      }
+      String[] bounds = next.trim().split("-");
+      try {
+        retVal.add(new LocalTime[]{LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim())});
+      } catch (RuntimeException e) {
+        throw new ConfigurationException("Invalid expunge window '" + next.trim() + "', expected HH:mm-HH:mm");
+      }
+    }
+    return retVal;
+  }
+
+  private void runJobsSafely() {
+    try {
+      runJobs();
+    } catch (Exception e) {
+      ourLog.error("Failed to run expunge jobs", e);
+    }
+  }
+
+  private synchronized void runJobs() {
+    if (!isInWindow(LocalTime.now(myClock))) {
+      return;
+    }
+    queueSweepIfDue();
+
+    long staleBefore = System.currentTimeMillis() - STALE_JOB_MILLIS;
+    List<String> jobIds = myJdbcTemplate.queryForList("SELECT JOB_ID FROM " + TABLE_NAME + " WHERE STATUS = ? OR (STATUS = ? AND UPDATED < ?) ORDER BY SUBMITTED",
+      String.class, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name(), staleBefore);
+
+    for (String next : jobIds) {
+      if (isPaused()) {
+        return;
+      }
+      // Claim the job, another node may have been faster
+      int claimed = myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET STATUS = ?, UPDATED = ? WHERE JOB_ID = ? AND (STATUS = ? OR (STATUS = ? AND UPDATED < ?))",
+        JobStatus.RUNNING.name(), System.currentTimeMillis(), next, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name(), staleBefore);
+      if (claimed > 0) {
+        runJob(getJob(next));
+      }
+    }
+  }
+
+  private void queueSweepIfDue() {
+    if (mySweepIntervalMillis == 0 || !myDaoConfig.isExpungeEnabled() || HapiProperties.getPartitioningEnabled()) {
+      return;
+    }
+    // A sweep which hasn't finished within the interval (e.g. paused by the windows) is not queued again
+    Long pendingSweeps = myJdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE RES_TYPE IS NULL AND STATUS IN (?, ?)",
+      Long.class, JobStatus.SUBMITTED.name(), JobStatus.RUNNING.name());
+    if (pendingSweeps != null && pendingSweeps > 0) {
+      return;
+    }
+    Long lastSubmitted = myJdbcTemplate.queryForObject("SELECT MAX(SUBMITTED) FROM " + TABLE_NAME, Long.class);
+    if (lastSubmitted == null || lastSubmitted < System.currentTimeMillis() - mySweepIntervalMillis) {
+      submitJob(null, true, true);
+    }
+  }
+
+  private void runJob(ExpungeJob theJob) {
+    ourLog.info("Running expunge job {} from resource {}", theJob.myJobId, theJob.myCursor);
+    myRunningJobId = theJob.myJobId;
+    ExpungeOptions options = new ExpungeOptions()
+      .setExpungeDeletedResources(theJob.myExpungeDeletedResources)
+      .setExpungeOldVersions(theJob.myExpungeOldVersions)
+      .setLimit(myStepRows);
+    TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+    txTemplate.setReadOnly(true);
+
+    try {
+      long cursor = theJob.myCursor;
+      long heartbeat = System.currentTimeMillis();
+      while (true) {
+        if (isPaused()) {
+          pauseJob(theJob, cursor, 0, 0);
+          return;
+        }
+
+        long from = cursor;
+        List<Pair<Long, IIdType>> batch = txTemplate.execute(t -> findCandidates(theJob, from));
+        long now = System.currentTimeMillis();
+        if (batch.isEmpty()) {
+          myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET STATUS = ?, UPDATED = ?, COMPLETED = ? WHERE JOB_ID = ?", JobStatus.COMPLETE.name(), now, now, theJob.myJobId);
+          ourLog.info("Expunge job {} is complete", theJob.myJobId);
+          return;
+        }
+
+        long expunged = 0;
+        int scanned = 0;
+        for (Pair<Long, IIdType> next : batch) {
+          IFhirResourceDao<IBaseResource> dao = myDaoRegistry.getResourceDao(next.getValue().getResourceType());
+          // Expunge the resource a step at a time until a step comes up short
+          int rows;
+          do {
+            if (isPaused()) {
+              // The resource was not finished, the next window starts over with it
+              pauseJob(theJob, cursor, scanned, expunged);
+              return;
+            }
+            ExpungeOutcome outcome = dao.expunge(next.getValue(), options, null);
+            rows = outcome != null ? outcome.getDeletedCount() : 0;
+            expunged += rows;
+            myRowsExpunged.add(rows);
+            myRateLimiter.acquire(Math.max(1, rows));
+
+            if (System.currentTimeMillis() - heartbeat >= HEARTBEAT_MILLIS) {
+              heartbeat = System.currentTimeMillis();
+              myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET UPDATED = ? WHERE JOB_ID = ?", heartbeat, theJob.myJobId);
+            }
+          } while (rows >= myStepRows);
+          cursor = next.getKey();
+          scanned++;
+          myResourcesScanned.increment();
+        }
+
+        heartbeat = System.currentTimeMillis();
+        myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET CURSOR_PID = ?, SCANNED_COUNT = SCANNED_COUNT + ?, EXPUNGED_COUNT = EXPUNGED_COUNT + ?, UPDATED = ? WHERE JOB_ID = ?",
+          cursor, scanned, expunged, heartbeat, theJob.myJobId);
+      }
+    } catch (Exception e) {
+      ourLog.error("Failure during expunge job " + theJob.myJobId, e);
+      myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET STATUS = ?, ERROR_MSG = ?, UPDATED = ? WHERE JOB_ID = ?",
+        JobStatus.ERROR.name(), StringUtils.left(e.toString(), 500), System.currentTimeMillis(), theJob.myJobId);
+    } finally {
+      myRunningJobId = null;
+    }
+  }
+
+  private boolean isPaused() {
+    return !isInWindow(LocalTime.now(myClock)) || Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * Puts the job back into the queue, the next window continues from the cursor
+   */
+  private void pauseJob(ExpungeJob theJob, long theCursor, int theScannedCount, long theExpungedCount) {
+    myJdbcTemplate.update("UPDATE " + TABLE_NAME + " SET STATUS = ?, CURSOR_PID = ?, SCANNED_COUNT = SCANNED_COUNT + ?, EXPUNGED_COUNT = EXPUNGED_COUNT + ?, UPDATED = ? WHERE JOB_ID = ?",
+      JobStatus.SUBMITTED.name(), theCursor, theScannedCount, theExpungedCount, System.currentTimeMillis(), theJob.myJobId);
+    ourLog.info("Paused expunge job {} at resource {}", theJob.myJobId, theCursor);
+  }
+
+  /**
+   * @return Returns the persistent IDs and IDs of the next resources after the cursor which have something to expunge
+   */
+  private List<Pair<Long, IIdType>> findCandidates(ExpungeJob theJob, long theCursor) {
+    List<String> conditions = new ArrayList<>();
+    if (theJob.myExpungeDeletedResources) {
+      conditions.add("t.myDeleted IS NOT NULL");
+    }
+    if (theJob.myExpungeOldVersions) {
+      conditions.add("EXISTS (SELECT h.myId FROM ResourceHistoryTable h WHERE h.myResourceId = t.myId AND h.myResourceVersion < t.myVersion)");
+    }
+    String query = "SELECT t FROM ResourceTable t WHERE t.myId > :cursor AND (" + StringUtils.join(conditions, " OR ") + ")";
+    if (theJob.myResourceType != null) {
+      query += " AND t.myResourceType = :type";
+    }
+
+    TypedQuery<ResourceTable> typedQuery = myEntityManager.createQuery(query + " ORDER BY t.myId", ResourceTable.class)
+      .setParameter("cursor", theCursor)
+      .setMaxResults(myBatchSize);
+    if (theJob.myResourceType != null) {
+      typedQuery.setParameter("type", theJob.myResourceType);
+    }
+
+    List<Pair<Long, IIdType>> retVal = new ArrayList<>();
+    for (ResourceTable next : typedQuery.getResultList()) {
+      retVal.add(Pair.of(next.getId(), next.getIdDt().toUnqualifiedVersionless()));
+    }
+    return retVal;
+  }
+
+  public static class ExpungeJob {
+
+    private String myJobId;
+    private String myResourceType;
+    private boolean myExpungeDeletedResources;
+    private boolean myExpungeOldVersions;
+    private JobStatus myStatus;
+    private Date mySubmitted;
+    private Date myUpdated;
+    private Date myCompleted;
+    private long myCursor;
+    private long myScannedCount;
+    private long myExpungedCount;
+    private String myError;
+
+    public String getJobId() {
+      return myJobId;
+    }
+
+    /**
+     * @return Returns the expunged resource type, or <code>null</code> for all types
+     */
+    public String getResourceType() {
+      return myResourceType;
+    }
+
+    public boolean isExpungeDeletedResources() {
+      return myExpungeDeletedResources;
+    }
+
+    public boolean isExpungeOldVersions() {
+      return myExpungeOldVersions;
+    }
+
+    public JobStatus getStatus() {
+      return myStatus;
+    }
+
+    public Date getSubmitted() {
+      return mySubmitted;
+    }
+
+    public Date getUpdated() {
+      return myUpdated;
+    }
+
+    public Date getCompleted() {
+      return myCompleted;
+    }
+
+    /**
+     * @return Returns the persistent ID of the last resource the job processed
+     */
+    public long getCursor() {
+      return myCursor;
+    }
+
+    public long getScannedCount() {
+      return myScannedCount;
+    }
+
+    public long getExpungedCount() {
+      return myExpungedCount;
+    }
+
+    public String getError() {
+      return myError;
+    }
+  }
+
+}
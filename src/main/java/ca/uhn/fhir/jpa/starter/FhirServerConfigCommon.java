@@ -1,22 +1,33 @@
 package ca.uhn.fhir.jpa.starter;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.binstore.BaseBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.binstore.DatabaseBlobBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.partition.IPartitionLookupSvc;
 import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionDeliveryHandlerFactory;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.IEmailSender;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.JavaMailEmailSender;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
 import org.hl7.fhir.dstu2.model.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
+import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 import org.thymeleaf.util.Validate;
 
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.Driver;
 
@@ -101,6 +112,7 @@ public class FhirServerConfigCommon {
     retVal.setExpungeEnabled(this.expungeEnabled);
     retVal.setAutoCreatePlaceholderReferenceTargets(this.allowPlaceholderReferences);
     retVal.setEmailFromAddress(this.emailFrom);
+    retVal.setResourceEncoding(HapiProperties.getResourceEncoding());
 
     Integer maxFetchSize = HapiProperties.getMaximumFetchSize();
     retVal.setFetchSizeDefaultMaximum(maxFetchSize);
@@ -172,6 +184,7 @@ public class FhirServerConfigCommon {
    * A URL to a remote database could also be placed here, along with login credentials and other properties supported by BasicDataSource.
    */
   @Bean(destroyMethod = "close")
+  @Primary
   public BasicDataSource dataSource() throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
     BasicDataSource retVal = new BasicDataSource();
     Driver driver = (Driver) Class.forName(HapiProperties.getDataSourceDriver()).getConstructor().newInstance();
@@ -183,10 +196,52 @@ public class FhirServerConfigCommon {
     return retVal;
   }
 
+  /**
+   * When sharding is enabled, the entity manager factory uses this data source,
+   * which routes the requests of sharded tenants to the databases of their shards
+   * and everything else to {@link #dataSource()}.
+   */
+  @Lazy
+  @Bean(destroyMethod = "close")
+  public TenantRoutingDataSource tenantRoutingDataSource() throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+    TenantRoutingDataSource retVal = new TenantRoutingDataSource(myAppCtx.getBean(BasicDataSource.class), HapiProperties.getShardingTenants());
+    for (String next : HapiProperties.getShardingShards()) {
+      BasicDataSource shard = new BasicDataSource();
+      Driver driver = (Driver) Class.forName(HapiProperties.getDataSourceDriver()).getConstructor().newInstance();
+      shard.setDriver(driver);
+      shard.setUrl(HapiProperties.getShardingDataSourceUrl(next));
+      shard.setUsername(HapiProperties.getShardingDataSourceUsername(next));
+      shard.setPassword(HapiProperties.getShardingDataSourcePassword(next));
+      shard.setMaxTotal(HapiProperties.getShardingDataSourceMaxPoolSize(next));
+      retVal.addShard(next, shard);
+    }
+    return retVal;
+  }
+
+  @Lazy
+  @Bean
+  public ShardMaintenanceSvc shardMaintenanceSvc() {
+    return new ShardMaintenanceSvc(HapiProperties.getShardingShards(), HapiProperties.getBulkExportEnabled());
+  }
+
+  /**
+   * Carries the shard of a request over to the tasks it submits to executors.
+   * This is static so that registering it doesn't create this configuration early.
+   */
+  @Bean
+  public static TenantShardPropagatingPostProcessor tenantShardPropagatingPostProcessor() {
+    return new TenantShardPropagatingPostProcessor();
+  }
+
   @Lazy
   @Bean
   public IBinaryStorageSvc binaryStorageSvc() {
-    DatabaseBlobBinaryStorageSvcImpl binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+    BaseBinaryStorageSvcImpl binaryStorageSvc;
+    if (HapiProperties.getBinaryStorageBackend() == BinaryStorageBackendEnum.FILESYSTEM) {
+      binaryStorageSvc = new ContentAddressedBinaryStorageSvcImpl(HapiProperties.getBinaryStorageFilesystemBaseDirectory());
+    } else {
+      binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+    }
 
     if (HapiProperties.getMaxBinarySize() != null) {
       binaryStorageSvc.setMaximumBinarySize(HapiProperties.getMaxBinarySize());
@@ -195,6 +250,223 @@ public class FhirServerConfigCommon {
     return binaryStorageSvc;
   }
 
+  @Lazy
+  @Bean
+  public ParallelBulkExportSvc parallelBulkExportSvc() {
+    return new ParallelBulkExportSvc(
+      HapiProperties.getBulkExportParallelDirectory(),
+      HapiProperties.getBulkExportParallelThreads(),
+      HapiProperties.getBulkExportParallelChunkSize(),
+      HapiProperties.getBulkExportParallelFileRolloverBytes(),
+      HapiProperties.getBulkExportParallelRetentionHours());
+  }
+
+  @Lazy
+  @Bean
+  public CascadingDeleteJobSvc cascadingDeleteJobSvc() {
+    return new CascadingDeleteJobSvc(
+      getTransactionDataSource(),
+      HapiProperties.getCascadingDeleteJobsChunkSize());
+  }
+
+  @Lazy
+  @Bean
+  public ExpungeSchedulerSvc expungeSchedulerSvc() {
+    return new ExpungeSchedulerSvc(
+      getTransactionDataSource(),
+      HapiProperties.getExpungeSchedulerRowsPerSecond(),
+      HapiProperties.getExpungeSchedulerBatchSize(),
+      HapiProperties.getExpungeSchedulerWindows(),
+      HapiProperties.getExpungeSchedulerSweepIntervalHours());
+  }
+
+  @Lazy
+  @Bean
+  public HistoryRetentionSvc historyRetentionSvc() {
+    return new HistoryRetentionSvc(
+      HapiProperties.getHistoryRetentionMaxVersions(),
+      HapiProperties.getHistoryRetentionMaxAgeDays(),
+      HapiProperties.getHistoryRetentionBatchSize(),
+      HapiProperties.getHistoryRetentionIntervalMinutes());
+  }
+
+  /**
+   * Puts the read cache in front of the DAOs of the cached resource types. This
+   * is static so that registering it doesn't create this configuration early.
+   */
+  @Bean
+  public static ResourceReadCachingPostProcessor resourceReadCachingPostProcessor() {
+    return new ResourceReadCachingPostProcessor();
+  }
+
+  @Lazy
+  @Bean
+  public ResourceReadCache resourceReadCache() {
+    ResourceReadCache retVal = new ResourceReadCache(
+      myAppCtx.getBean(FhirContext.class),
+      HapiProperties.getResourceReadCacheResourceTypes(),
+      HapiProperties.getResourceReadCacheMaxEntriesPerType(),
+      HapiProperties.getResourceReadCacheTtlSeconds());
+
+    // Invalidate on every write, not only those arriving through the REST server
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getInvalidatingInterceptor());
+    if (HapiProperties.getClusterCacheInvalidationEnabled()) {
+      myAppCtx.getBean(ClusterCacheInvalidationSvc.class).registerSubscriber(retVal);
+    }
+    return retVal;
+  }
+
+  /**
+   * Caches the resolution of identifier match URLs when enabled. This is static
+   * so that registering it doesn't create this configuration early.
+   */
+  @Bean
+  public static MatchUrlCachingPostProcessor matchUrlCachingPostProcessor() {
+    return new MatchUrlCachingPostProcessor();
+  }
+
+  @Lazy
+  @Bean
+  public MatchUrlCache matchUrlCache() {
+    MatchUrlCache retVal = new MatchUrlCache(
+      myAppCtx.getBean(FhirContext.class),
+      HapiProperties.getMatchUrlCacheMaxEntriesPerType(),
+      HapiProperties.getMatchUrlCacheTtlSeconds());
+
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getInvalidatingInterceptor());
+    if (HapiProperties.getClusterCacheInvalidationEnabled()) {
+      myAppCtx.getBean(ClusterCacheInvalidationSvc.class).registerSubscriber(retVal);
+    }
+    return retVal;
+  }
+
+  @Lazy
+  @Bean
+  public ClusterCacheInvalidationSvc clusterCacheInvalidationSvc() {
+    ClusterCacheInvalidationSvc retVal = new ClusterCacheInvalidationSvc(
+      myAppCtx.getBean(FhirContext.class),
+      getTransactionDataSource(),
+      HapiProperties.getClusterCacheInvalidationNodeId(),
+      HapiProperties.getClusterCacheInvalidationPollIntervalMillis(),
+      HapiProperties.getClusterCacheInvalidationGapTimeoutMillis(),
+      HapiProperties.getClusterCacheInvalidationRetentionMillis(),
+      HapiProperties.getClusterCacheInvalidationPostgresNotify());
+    if (HapiProperties.getShardingEnabled()) {
+      retVal.setShardNames(HapiProperties.getShardingShards());
+    }
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getChangeLogInterceptor());
+    return retVal;
+  }
+
+  /**
+   * Times the DAO calls when the profiler is enabled. This is static so that
+   * registering it doesn't create this configuration early.
+   */
+  @Bean
+  public static RequestProfilingPostProcessor requestProfilingPostProcessor() {
+    return new RequestProfilingPostProcessor();
+  }
+
+  /**
+   * Splits large batch Bundles when parallel batch processing is enabled. This
+   * is static so that registering it doesn't create this configuration early.
+   */
+  @Bean
+  public static ParallelBatchPostProcessor parallelBatchPostProcessor() {
+    return new ParallelBatchPostProcessor();
+  }
+
+  @Lazy
+  @Bean
+  public ParallelBatchSvc parallelBatchSvc() {
+    return new ParallelBatchSvc(
+      myAppCtx.getBean(FhirContext.class),
+      HapiProperties.getBatchParallelThreads(),
+      HapiProperties.getBatchParallelQueueSize(),
+      HapiProperties.getBatchParallelMinEntries());
+  }
+
+  /**
+   * Creates the missing reference targets of Bundles up front when placeholder
+   * batching is enabled. This is static so that registering it doesn't create
+   * this configuration early.
+   */
+  @Bean
+  public static PlaceholderReferencePostProcessor placeholderReferencePostProcessor() {
+    return new PlaceholderReferencePostProcessor();
+  }
+
+  @Lazy
+  @Bean
+  public PlaceholderReferenceSvc placeholderReferenceSvc() {
+    PlaceholderReferenceSvc retVal = new PlaceholderReferenceSvc(HapiProperties.getPlaceholderBatchingMinReferences());
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getStorageInterceptor());
+    return retVal;
+  }
+
+  @Lazy
+  @Bean
+  public RequestProfiler requestProfiler() {
+    return new RequestProfiler();
+  }
+
+  @Lazy
+  @Bean
+  public ServerMetrics serverMetrics() {
+    ServerMetrics retVal = new ServerMetrics(
+      myAppCtx.getBean(FhirContext.class),
+      myAppCtx.getBean(BasicDataSource.class),
+      myAppCtx.getBean(EntityManagerFactory.class));
+    if (HapiProperties.getResourceReadCacheEnabled()) {
+      retVal.setResourceReadCache(myAppCtx.getBean(ResourceReadCache.class));
+    }
+    if (HapiProperties.getMatchUrlCacheEnabled()) {
+      retVal.setMatchUrlCache(myAppCtx.getBean(MatchUrlCache.class));
+    }
+    if (HapiProperties.getExpungeSchedulerEnabled()) {
+      retVal.setExpungeSchedulerSvc(myAppCtx.getBean(ExpungeSchedulerSvc.class));
+    }
+    if (HapiProperties.getHistoryRetentionEnabled()) {
+      retVal.setHistoryRetentionSvc(myAppCtx.getBean(HistoryRetentionSvc.class));
+    }
+    if (HapiProperties.getTenantUsageEnabled()) {
+      retVal.setTenantUsageTracker(myAppCtx.getBean(TenantUsageTracker.class));
+    }
+
+    // Count searches and subscription deliveries, not only those triggered through the REST server
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getStorageInterceptor());
+    return retVal;
+  }
+
+  @Lazy
+  @Bean
+  public TenantValidator tenantValidator() {
+    return new TenantValidator(myAppCtx.getBean(IPartitionLookupSvc.class), HapiProperties.getShardingTenants().keySet());
+  }
+
+  @Lazy
+  @Bean
+  public TenantUsageTracker tenantUsageTracker() {
+    TenantUsageTracker retVal = new TenantUsageTracker(myAppCtx.getBean(TenantValidator.class));
+    myAppCtx.getBean(IInterceptorService.class).registerInterceptor(retVal.getStorageInterceptor());
+    myAppCtx.getBean(EntityManagerFactory.class)
+      .unwrap(SessionFactoryImplementor.class)
+      .getServiceRegistry()
+      .getService(EventListenerRegistry.class)
+      .appendListeners(EventType.POST_COMMIT_INSERT, retVal.getHistoryInsertListener());
+    return retVal;
+  }
+
+  /**
+   * Returns the data source of the FHIR transactions, so that JDBC statements
+   * run on the connection of the surrounding transaction (and, with sharding,
+   * on the shard selected for the thread) instead of auto-committing on a
+   * connection of their own
+   */
+  private DataSource getTransactionDataSource() {
+    return myAppCtx.getBean("hapiTransactionManager", JpaTransactionManager.class).getDataSource();
+  }
+
   @Bean()
   public IEmailSender emailSender() {
     if (this.emailEnabled) {
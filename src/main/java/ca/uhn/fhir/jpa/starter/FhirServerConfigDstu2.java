@@ -3,6 +3,8 @@ package ca.uhn.fhir.jpa.starter;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigDstu2;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.search.cache.ISearchResultCacheSvc;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,6 +21,9 @@ public class FhirServerConfigDstu2 extends BaseJavaConfigDstu2 {
     @Autowired
     private DataSource myDataSource;
 
+    @Autowired
+    private ObjectProvider<TenantRoutingDataSource> myTenantRoutingDataSource;
+
     /**
      * We override the paging provider definition so that we can customize
      * the default/max page sizes for search results. You can set these however
@@ -32,6 +37,20 @@ public class FhirServerConfigDstu2 extends BaseJavaConfigDstu2 {
         return pagingProvider;
     }
 
+    /**
+     * When keyset paging is enabled, pages of stored search results are loaded
+     * by seeking on their position instead of with an offset query, so deep
+     * pages of large searches cost the same as the first one.
+     */
+    @Override
+    @Bean()
+    public ISearchResultCacheSvc searchResultCacheSvc() {
+        if (HapiProperties.getSearchKeysetPagingEnabled()) {
+            return new KeysetSearchResultCacheSvcImpl();
+        }
+        return super.searchResultCacheSvc();
+    }
+
     @Override
     @Bean()
     public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
@@ -39,7 +58,7 @@ public class FhirServerConfigDstu2 extends BaseJavaConfigDstu2 {
         retVal.setPersistenceUnitName("HAPI_PU");
 
         try {
-            retVal.setDataSource(myDataSource);
+            retVal.setDataSource(HapiProperties.getShardingEnabled() ? myTenantRoutingDataSource.getObject() : myDataSource);
         } catch (Exception e) {
             throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
         }
@@ -0,0 +1,324 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which keeps the serialized first page of recent type level
+ * searches in memory, so repeated identical searches (e.g. dashboards polling the
+ * same query) are answered without going through the paging provider and the
+ * database.
+ * <p>
+ * Entries are keyed by the server base (and therefore the tenant), the resource
+ * type, the sorted request parameters and the response encoding, and live no
+ * longer than the search reuse period, so the paging links they contain always
+ * point to a search which is still stored. Every write of a resource type drops
+ * all cached pages for that type, both before and after its transaction
+ * completes, so a page built from data the transaction had not committed yet
+ * is not kept either. Searches whose results depend on other types
+ * (chains, <code>_has</code>, <code>_include</code>/<code>_revinclude</code>) are
+ * never cached.
+ * <p>
+ * Cache hits are answered before the resource provider is invoked, so any
+ * interceptor which filters search results must not be combined with this cache.
+ */
+@Interceptor
+public class FirstPageCacheInterceptor implements ICacheInvalidationSubscriber {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FirstPageCacheInterceptor.class);
+  private static final String USER_DATA_KEY = FirstPageCacheInterceptor.class.getName() + "_KEY";
+  private static final String USER_DATA_GENERATION = FirstPageCacheInterceptor.class.getName() + "_GENERATION";
+
+  private final FhirContext myFhirContext;
+  private final Cache<CacheKey, CachedPage> myCache;
+  private final Map<String, AtomicLong> myGenerations = new ConcurrentHashMap<>();
+  private final InvalidatingInterceptor myInvalidatingInterceptor = new InvalidatingInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theMaxBytes    The maximum total size of all cached pages
+   * @param theTtlMillis   How long a page may be served from the cache
+   */
+  public FirstPageCacheInterceptor(FhirContext theFhirContext, long theMaxBytes, long theTtlMillis) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.isTrue(theMaxBytes > 0, "theMaxBytes must be positive");
+    Validate.isTrue(theTtlMillis > 0, "theTtlMillis must be positive");
+    myFhirContext = theFhirContext;
+    myCache = CacheBuilder.newBuilder()
+      .maximumWeight(theMaxBytes)
+      .<CacheKey, CachedPage>weigher((theKey, theValue) -> theValue.getBody().length)
+      .expireAfterWrite(theTtlMillis, TimeUnit.MILLISECONDS)
+      .build();
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor
+   * service so that writes invalidate the cache, including writes which do not
+   * arrive through this server
+   */
+  public Object getInvalidatingInterceptor() {
+    return myInvalidatingInterceptor;
+  }
+
+  /**
+   * Drops all cached pages for the given resource type
+   */
+  public void invalidateResourceType(String theResourceType) {
+    getGeneration(theResourceType).incrementAndGet();
+    myCache.asMap().keySet().removeIf(t -> t.getResourceType().equals(theResourceType));
+  }
+
+  @Override
+  public void resourceChanged(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted) {
+    invalidateResourceType(theResourceType);
+  }
+
+  @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) throws IOException {
+    if (!isCacheable(theRequestDetails)) {
+      return true;
+    }
+
+    CacheKey key = toCacheKey(theRequestDetails);
+    CachedPage page = myCache.getIfPresent(key);
+    if (page == null) {
+      theRequestDetails.getUserData().put(USER_DATA_KEY, key);
+      theRequestDetails.getUserData().put(USER_DATA_GENERATION, getGeneration(key.getResourceType()).get());
+      return true;
+    }
+
+    ourLog.debug("Serving first page of {} from cache", key.getResourceType());
+    theServletResponse.setStatus(Constants.STATUS_HTTP_200_OK);
+    theServletResponse.setContentType(page.getContentType());
+    theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+    theServletResponse.setContentLength(page.getBody().length);
+    theServletResponse.getOutputStream().write(page.getBody());
+    theServletResponse.getOutputStream().close();
+    return false;
+  }
+
+  @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+  public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) {
+    CacheKey key = (CacheKey) theRequestDetails.getUserData().get(USER_DATA_KEY);
+    if (key == null || theResponseDetails.getResponseCode() != Constants.STATUS_HTTP_200_OK) {
+      return true;
+    }
+    IBaseResource resource = theResponseDetails.getResponseResource();
+    if (!(resource instanceof IBaseBundle)) {
+      return true;
+    }
+
+    // Don't cache a page which was built while the type was being written to
+    Long generation = (Long) theRequestDetails.getUserData().get(USER_DATA_GENERATION);
+    if (!Objects.equals(generation, getGeneration(key.getResourceType()).get())) {
+      return true;
+    }
+
+    IParser parser = RestfulServerUtils.getNewParser(myFhirContext, myFhirContext.getVersion().getVersion(), theRequestDetails);
+    parser.setServerBaseUrl(theRequestDetails.getFhirServerBase());
+    byte[] body = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+    String contentType = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getResourceContentType();
+    myCache.put(key, new CachedPage(contentType, body));
+    return true;
+  }
+
+  private boolean isCacheable(RequestDetails theRequestDetails) {
+    if (theRequestDetails.getRequestType() != RequestTypeEnum.GET
+      || theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE
+      || theRequestDetails.getResourceName() == null) {
+      return false;
+    }
+
+    // Explicit requests for fresh results and browser (HTML) responses bypass the cache
+    String cacheControl = theRequestDetails.getHeader(Constants.HEADER_CACHE_CONTROL);
+    if (StringUtils.containsIgnoreCase(cacheControl, Constants.CACHE_CONTROL_NO_CACHE)) {
+      return false;
+    }
+    String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+    if (StringUtils.containsIgnoreCase(accept, "text/html")) {
+      return false;
+    }
+
+    for (Map.Entry<String, String[]> next : theRequestDetails.getParameters().entrySet()) {
+      String name = next.getKey();
+      if (name.contains(".")
+        || name.startsWith(Constants.PARAM_HAS)
+        || name.startsWith(Constants.PARAM_INCLUDE)
+        || name.startsWith(Constants.PARAM_REVINCLUDE)
+        || name.equals(Constants.PARAM_SUMMARY)
+        || name.equals(Constants.PARAM_ELEMENTS)) {
+        return false;
+      }
+      if (name.equals(Constants.PARAM_FORMAT) && Arrays.stream(next.getValue()).anyMatch(t -> StringUtils.containsIgnoreCase(t, "html"))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private CacheKey toCacheKey(RequestDetails theRequestDetails) {
+    StringBuilder b = new StringBuilder();
+    b.append(theRequestDetails.getFhirServerBase()).append('|');
+    b.append(theRequestDetails.getTenantId()).append('|');
+    b.append(RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getEncoding()).append('|');
+    b.append(RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails)).append('|');
+
+    Map<String, String[]> sortedParams = new TreeMap<>(theRequestDetails.getParameters());
+    for (Map.Entry<String, String[]> next : sortedParams.entrySet()) {
+      String[] values = next.getValue().clone();
+      Arrays.sort(values);
+      for (String nextValue : values) {
+        b.append(next.getKey()).append('=').append(nextValue).append('&');
+      }
+    }
+
+    return new CacheKey(theRequestDetails.getResourceName(), b.toString());
+  }
+
+  private AtomicLong getGeneration(String theResourceType) {
+    return myGenerations.computeIfAbsent(theResourceType, t -> new AtomicLong());
+  }
+
+  /**
+   * Drops the cached pages of the type of a resource being written, and once
+   * more when the writing transaction has completed. Searches which ran while
+   * the transaction was open see the bumped generation and are not cached.
+   */
+  private void invalidateOnWrite(IBaseResource theResource) {
+    String resourceType = myFhirContext.getResourceType(theResource);
+    invalidateResourceType(resourceType);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int theStatus) {
+          invalidateResourceType(resourceType);
+        }
+      });
+    }
+  }
+
+  /**
+   * Storage hooks which drop the cached pages of every type that is written
+   */
+  @Interceptor
+  public class InvalidatingInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+      invalidateOnWrite(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+      invalidateOnWrite(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+      invalidateOnWrite(theResource);
+    }
+  }
+
+  private static class CacheKey {
+
+    private final String myResourceType;
+    private final String myQuery;
+
+    private CacheKey(String theResourceType, String theQuery) {
+      myResourceType = theResourceType;
+      myQuery = theQuery;
+    }
+
+    String getResourceType() {
+      return myResourceType;
+    }
+
+    @Override
+    public boolean equals(Object theO) {
+      if (this == theO) {
+        return true;
+      }
+      if (!(theO instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey that = (CacheKey) theO;
+      return myResourceType.equals(that.myResourceType) && myQuery.equals(that.myQuery);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myResourceType, myQuery);
+    }
+  }
+
+  private static class CachedPage {
+
+    private final String myContentType;
+    private final byte[] myBody;
+
+    private CachedPage(String theContentType, byte[] theBody) {
+      myContentType = theContentType;
+      myBody = theBody;
+    }
+
+    String getContentType() {
+      return myContentType;
+    }
+
+    byte[] getBody() {
+      return myBody;
+    }
+  }
+
+}
@@ -3,6 +3,7 @@ package ca.uhn.fhir.jpa.starter;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.model.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.search.elastic.ElasticsearchHibernatePropertiesBuilder;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
@@ -16,14 +17,19 @@ import javax.annotation.Nonnull;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.isNumeric;
 import static org.apache.commons.lang3.StringUtils.trim;
 
 public class HapiProperties {
@@ -32,19 +38,82 @@ public class HapiProperties {
   static final String ENFORCE_REFERENTIAL_INTEGRITY_ON_WRITE = "enforce_referential_integrity_on_write";
   static final String ENFORCE_REFERENTIAL_INTEGRITY_ON_DELETE = "enforce_referential_integrity_on_delete";
   static final String BINARY_STORAGE_ENABLED = "binary_storage.enabled";
+  static final String BINARY_STORAGE_BACKEND = "binary_storage.backend";
+  static final String BINARY_STORAGE_FILESYSTEM_BASE_DIRECTORY = "binary_storage.filesystem.base_directory";
+  static final String BINARY_ENCODING_ENABLED = "binary_encoding.enabled";
+  static final String RESPONSE_COMPRESSION_ENABLED = "response_compression.enabled";
+  static final String RESPONSE_COMPRESSION_MINIMUM_SIZE = "response_compression.minimum_size";
+  static final String RESPONSE_COMPRESSION_LEVEL = "response_compression.level";
+  static final String BINARY_STORAGE_STREAMING_ENABLED = "binary_storage.streaming.enabled";
+  static final String BINARY_STORAGE_STREAMING_SPOOL_DIRECTORY = "binary_storage.streaming.spool_directory";
   static final String ALLOW_EXTERNAL_REFERENCES = "allow_external_references";
   static final String ALLOW_MULTIPLE_DELETE = "allow_multiple_delete";
   static final String ALLOW_PLACEHOLDER_REFERENCES = "allow_placeholder_references";
   static final String REUSE_CACHED_SEARCH_RESULTS_MILLIS = "reuse_cached_search_results_millis";
+  static final String SEARCH_FIRST_PAGE_CACHE_ENABLED = "search_first_page_cache.enabled";
+  static final String SEARCH_FIRST_PAGE_CACHE_MAX_BYTES = "search_first_page_cache.max_bytes";
+  static final String SEARCH_KEYSET_PAGING_ENABLED = "search_keyset_paging.enabled";
+  static final String SEARCH_STREAMING_ENABLED = "search_streaming.enabled";
+  static final String SEARCH_STREAMING_CHUNK_SIZE = "search_streaming.chunk_size";
   static final String DATASOURCE_DRIVER = "datasource.driver";
   static final String DATASOURCE_MAX_POOL_SIZE = "datasource.max_pool_size";
   static final String DATASOURCE_PASSWORD = "datasource.password";
   static final String DATASOURCE_URL = "datasource.url";
   static final String DATASOURCE_USERNAME = "datasource.username";
   static final String DEFAULT_ENCODING = "default_encoding";
+  static final String RESOURCE_ENCODING = "resource_encoding";
   static final String DEFAULT_PAGE_SIZE = "default_page_size";
   static final String DEFAULT_PRETTY_PRINT = "default_pretty_print";
   static final String ETAG_SUPPORT = "etag_support";
+  static final String CONDITIONAL_READ_INDEX_ENABLED = "conditional_read_index.enabled";
+  static final String CONDITIONAL_READ_INDEX_MAX_ENTRIES = "conditional_read_index.max_entries";
+  static final String CONDITIONAL_READ_INDEX_TTL_SECONDS = "conditional_read_index.ttl_seconds";
+  static final String ACCESS_LOG_ASYNC_ENABLED = "access_log.async.enabled";
+  static final String ACCESS_LOG_ASYNC_BUFFER_SIZE = "access_log.async.buffer_size";
+  static final String PROFILER_ENABLED = "profiler.enabled";
+  static final String METRICS_ENABLED = "metrics.enabled";
+  static final String METRICS_ALLOWED_ADDRESSES = "metrics.allowed_addresses";
+  static final String MATCH_URL_CACHE_ENABLED = "match_url_cache.enabled";
+  static final String MATCH_URL_CACHE_MAX_ENTRIES_PER_TYPE = "match_url_cache.max_entries_per_type";
+  static final String MATCH_URL_CACHE_TTL_SECONDS = "match_url_cache.ttl_seconds";
+  static final String BATCH_PARALLEL_ENABLED = "batch_parallel.enabled";
+  static final String BATCH_PARALLEL_THREADS = "batch_parallel.threads";
+  static final String BATCH_PARALLEL_QUEUE_SIZE = "batch_parallel.queue_size";
+  static final String BATCH_PARALLEL_MIN_ENTRIES = "batch_parallel.min_entries";
+  static final String PLACEHOLDER_BATCHING_ENABLED = "placeholder_batching.enabled";
+  static final String PLACEHOLDER_BATCHING_MIN_REFERENCES = "placeholder_batching.min_references";
+  static final String CASCADING_DELETE_JOBS_ENABLED = "cascading_delete_jobs.enabled";
+  static final String CASCADING_DELETE_JOBS_CHUNK_SIZE = "cascading_delete_jobs.chunk_size";
+  static final String EXPUNGE_SCHEDULER_ENABLED = "expunge_scheduler.enabled";
+  static final String EXPUNGE_SCHEDULER_ROWS_PER_SECOND = "expunge_scheduler.rows_per_second";
+  static final String EXPUNGE_SCHEDULER_BATCH_SIZE = "expunge_scheduler.batch_size";
+  static final String EXPUNGE_SCHEDULER_WINDOWS = "expunge_scheduler.windows";
+  static final String EXPUNGE_SCHEDULER_SWEEP_INTERVAL_HOURS = "expunge_scheduler.sweep_interval_hours";
+  static final String HISTORY_RETENTION_ENABLED = "history_retention.enabled";
+  static final String HISTORY_RETENTION_MAX_VERSIONS = "history_retention.max_versions";
+  static final String HISTORY_RETENTION_MAX_AGE_DAYS = "history_retention.max_age_days";
+  static final String HISTORY_RETENTION_BATCH_SIZE = "history_retention.batch_size";
+  static final String HISTORY_RETENTION_INTERVAL_MINUTES = "history_retention.interval_minutes";
+  static final String SHARDING_ENABLED = "sharding.enabled";
+  static final String SHARDING_SHARDS = "sharding.shards";
+  static final String SHARDING_TENANTS = "sharding.tenants";
+  static final String TENANT_USAGE_ENABLED = "tenant_usage.enabled";
+  static final String ADMISSION_CONTROL_ENABLED = "admission_control.enabled";
+  static final String ADMISSION_CONTROL_QUEUE_TIMEOUT_MILLIS = "admission_control.queue_timeout_millis";
+  static final String ADMISSION_CONTROL_RETRY_AFTER_SECONDS = "admission_control.retry_after_seconds";
+  static final String NARRATIVE_CACHE_ENABLED = "narrative_cache.enabled";
+  static final String NARRATIVE_CACHE_MAX_BYTES = "narrative_cache.max_bytes";
+  static final String NARRATIVE_CACHE_GENERATE_ON_WRITE = "narrative_cache.generate_on_write";
+  static final String RESOURCE_READ_CACHE_ENABLED = "resource_read_cache.enabled";
+  static final String CLUSTER_CACHE_INVALIDATION_ENABLED = "cluster_cache_invalidation.enabled";
+  static final String CLUSTER_CACHE_INVALIDATION_NODE_ID = "cluster_cache_invalidation.node_id";
+  static final String CLUSTER_CACHE_INVALIDATION_POLL_INTERVAL_MILLIS = "cluster_cache_invalidation.poll_interval_millis";
+  static final String CLUSTER_CACHE_INVALIDATION_GAP_TIMEOUT_MILLIS = "cluster_cache_invalidation.gap_timeout_millis";
+  static final String CLUSTER_CACHE_INVALIDATION_RETENTION_MILLIS = "cluster_cache_invalidation.retention_millis";
+  static final String CLUSTER_CACHE_INVALIDATION_POSTGRES_NOTIFY = "cluster_cache_invalidation.postgres_notify";
+  static final String RESOURCE_READ_CACHE_RESOURCE_TYPES = "resource_read_cache.resource_types";
+  static final String RESOURCE_READ_CACHE_MAX_ENTRIES_PER_TYPE = "resource_read_cache.max_entries_per_type";
+  static final String RESOURCE_READ_CACHE_TTL_SECONDS = "resource_read_cache.ttl_seconds";
   static final String FHIR_VERSION = "fhir_version";
   static final String ALLOW_CASCADING_DELETES = "allow_cascading_deletes";
   static final String HAPI_PROPERTIES = "hapi.properties";
@@ -77,6 +146,12 @@ public class HapiProperties {
   static final String FILTER_SEARCH_ENABLED = "filter_search.enabled";
   static final String GRAPHQL_ENABLED = "graphql.enabled";
   static final String BULK_EXPORT_ENABLED = "bulk.export.enabled";
+  static final String BULK_EXPORT_PARALLEL_ENABLED = "bulk.export.parallel.enabled";
+  static final String BULK_EXPORT_PARALLEL_DIRECTORY = "bulk.export.parallel.directory";
+  static final String BULK_EXPORT_PARALLEL_THREADS = "bulk.export.parallel.threads";
+  static final String BULK_EXPORT_PARALLEL_CHUNK_SIZE = "bulk.export.parallel.chunk_size";
+  static final String BULK_EXPORT_PARALLEL_FILE_ROLLOVER_BYTES = "bulk.export.parallel.file_rollover_bytes";
+  static final String BULK_EXPORT_PARALLEL_RETENTION_HOURS = "bulk.export.parallel.retention_hours";
   static final String EXPIRE_SEARCH_RESULTS_AFTER_MINS = "retain_cached_searches_mins";
   static final String MAX_BINARY_SIZE = "max_binary_size";
   static final String PARTITIONING_MULTITENANCY_ENABLED = "partitioning.multitenancy.enabled";
@@ -121,6 +196,14 @@ public class HapiProperties {
       builder.apply(retVal);
     }
 
+    // The Hibernate figures of the metrics endpoint need the session factory statistics
+    if (getMetricsEnabled() && !retVal.containsKey("hibernate.generate_statistics")) {
+      retVal.setProperty("hibernate.generate_statistics", "true");
+    }
+    if (getPlaceholderBatchingEnabled() && !retVal.containsKey("hibernate.order_inserts")) {
+      retVal.setProperty("hibernate.order_inserts", "true");
+    }
+
     return retVal;
   }
 
@@ -218,6 +301,16 @@ public class HapiProperties {
     return getBooleanProperty(propertyName, Boolean.valueOf(defaultValue));
   }
 
+  private static Long getLongProperty(String propertyName, Long defaultValue) {
+    String value = HapiProperties.getProperty(propertyName);
+
+    if (value == null || value.length() == 0) {
+      return defaultValue;
+    }
+
+    return Long.parseLong(value);
+  }
+
   private static Integer getIntegerProperty(String propertyName, Integer defaultValue) {
     String value = HapiProperties.getProperty(propertyName);
 
@@ -242,6 +335,60 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(BINARY_STORAGE_ENABLED, true);
   }
 
+  public static BinaryStorageBackendEnum getBinaryStorageBackend() {
+    String backendString = HapiProperties.getProperty(BINARY_STORAGE_BACKEND);
+
+    if (backendString != null && backendString.length() > 0) {
+      return BinaryStorageBackendEnum.valueOf(backendString);
+    }
+
+    return BinaryStorageBackendEnum.DATABASE;
+  }
+
+  public static String getBinaryStorageFilesystemBaseDirectory() {
+    return HapiProperties.getProperty(BINARY_STORAGE_FILESYSTEM_BASE_DIRECTORY, "target/binaries");
+  }
+
+  public static boolean getBinaryEncodingEnabled() {
+    return HapiProperties.getBooleanProperty(BINARY_ENCODING_ENABLED, false);
+  }
+
+  public static boolean getResponseCompressionEnabled() {
+    return HapiProperties.getBooleanProperty(RESPONSE_COMPRESSION_ENABLED, false);
+  }
+
+  public static int getResponseCompressionMinimumSize() {
+    return HapiProperties.getIntegerProperty(RESPONSE_COMPRESSION_MINIMUM_SIZE, 1024);
+  }
+
+  public static int getResponseCompressionLevel() {
+    Integer level = HapiProperties.getIntegerProperty(RESPONSE_COMPRESSION_LEVEL, 6);
+    if (level < 1 || level > 9) {
+      throw new ConfigurationException(RESPONSE_COMPRESSION_LEVEL + " must be between 1 and 9");
+    }
+    return level;
+  }
+
+  public static boolean getBinaryStorageStreamingEnabled() {
+    return HapiProperties.getBooleanProperty(BINARY_STORAGE_STREAMING_ENABLED, false);
+  }
+
+  public static String getBinaryStorageStreamingSpoolDirectory() {
+    return HapiProperties.getProperty(BINARY_STORAGE_STREAMING_SPOOL_DIRECTORY, "target/binary-spool");
+  }
+
+  public static boolean getConditionalReadIndexEnabled() {
+    return HapiProperties.getBooleanProperty(CONDITIONAL_READ_INDEX_ENABLED, false);
+  }
+
+  public static long getConditionalReadIndexMaxEntries() {
+    return HapiProperties.getLongProperty(CONDITIONAL_READ_INDEX_MAX_ENTRIES, 100000L);
+  }
+
+  public static long getConditionalReadIndexTtlSeconds() {
+    return HapiProperties.getLongProperty(CONDITIONAL_READ_INDEX_TTL_SECONDS, 600L);
+  }
+
   public static ETagSupportEnum getEtagSupport() {
     String etagSupportString = HapiProperties.getProperty(ETAG_SUPPORT);
 
@@ -272,6 +419,28 @@ public class HapiProperties {
     return EncodingEnum.JSON;
   }
 
+  /**
+   * @return Returns the encoding new resource versions are stored in
+   */
+  public static ResourceEncodingEnum getResourceEncoding() {
+    String resourceEncodingString = HapiProperties.getProperty(RESOURCE_ENCODING);
+
+    if (resourceEncodingString != null && resourceEncodingString.length() > 0) {
+      ResourceEncodingEnum retVal;
+      try {
+        retVal = ResourceEncodingEnum.valueOf(resourceEncodingString.trim());
+      } catch (IllegalArgumentException e) {
+        throw new ConfigurationException("Invalid " + RESOURCE_ENCODING + ": " + resourceEncodingString, e);
+      }
+      if (retVal == ResourceEncodingEnum.DEL) {
+        throw new ConfigurationException("Invalid " + RESOURCE_ENCODING + ": " + resourceEncodingString);
+      }
+      return retVal;
+    }
+
+    return ResourceEncodingEnum.JSONC;
+  }
+
   public static Boolean getDefaultPrettyPrint() {
     return HapiProperties.getBooleanProperty(DEFAULT_PRETTY_PRINT, true);
   }
@@ -369,6 +538,267 @@ public class HapiProperties {
       .collect(Collectors.toSet());
   }
 
+  public static boolean getAccessLogAsyncEnabled() {
+    return HapiProperties.getBooleanProperty(ACCESS_LOG_ASYNC_ENABLED, false);
+  }
+
+  public static int getAccessLogAsyncBufferSize() {
+    return HapiProperties.getIntegerProperty(ACCESS_LOG_ASYNC_BUFFER_SIZE, 8192);
+  }
+
+  public static boolean getProfilerEnabled() {
+    return HapiProperties.getBooleanProperty(PROFILER_ENABLED, false);
+  }
+
+  public static boolean getMetricsEnabled() {
+    return HapiProperties.getBooleanProperty(METRICS_ENABLED, false);
+  }
+
+  /**
+   * @return Returns the remote addresses allowed to read the metrics, or an empty set if anyone may
+   */
+  @Nonnull
+  public static Set<String> getMetricsAllowedAddresses() {
+    String[] addresses = HapiProperties.getProperty(METRICS_ALLOWED_ADDRESSES, "127.0.0.1,0:0:0:0:0:0:0:1").split(",");
+    return Arrays.stream(addresses)
+      .map(StringUtils::trim)
+      .filter(StringUtils::isNotBlank)
+      .collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  public static boolean getMatchUrlCacheEnabled() {
+    return HapiProperties.getBooleanProperty(MATCH_URL_CACHE_ENABLED, false);
+  }
+
+  public static long getMatchUrlCacheMaxEntriesPerType() {
+    return HapiProperties.getLongProperty(MATCH_URL_CACHE_MAX_ENTRIES_PER_TYPE, 100000L);
+  }
+
+  public static long getMatchUrlCacheTtlSeconds() {
+    return HapiProperties.getLongProperty(MATCH_URL_CACHE_TTL_SECONDS, 600L);
+  }
+
+  public static boolean getBatchParallelEnabled() {
+    return HapiProperties.getBooleanProperty(BATCH_PARALLEL_ENABLED, false);
+  }
+
+  public static int getBatchParallelThreads() {
+    return HapiProperties.getIntegerProperty(BATCH_PARALLEL_THREADS, 8);
+  }
+
+  public static int getBatchParallelQueueSize() {
+    return HapiProperties.getIntegerProperty(BATCH_PARALLEL_QUEUE_SIZE, 100);
+  }
+
+  public static int getBatchParallelMinEntries() {
+    return HapiProperties.getIntegerProperty(BATCH_PARALLEL_MIN_ENTRIES, 10);
+  }
+
+  public static boolean getPlaceholderBatchingEnabled() {
+    return HapiProperties.getBooleanProperty(PLACEHOLDER_BATCHING_ENABLED, false);
+  }
+
+  public static int getPlaceholderBatchingMinReferences() {
+    return HapiProperties.getIntegerProperty(PLACEHOLDER_BATCHING_MIN_REFERENCES, 10);
+  }
+
+  public static boolean getCascadingDeleteJobsEnabled() {
+    return HapiProperties.getBooleanProperty(CASCADING_DELETE_JOBS_ENABLED, false);
+  }
+
+  public static int getCascadingDeleteJobsChunkSize() {
+    return HapiProperties.getIntegerProperty(CASCADING_DELETE_JOBS_CHUNK_SIZE, 100);
+  }
+
+  public static boolean getExpungeSchedulerEnabled() {
+    return HapiProperties.getBooleanProperty(EXPUNGE_SCHEDULER_ENABLED, false);
+  }
+
+  public static int getExpungeSchedulerRowsPerSecond() {
+    return HapiProperties.getIntegerProperty(EXPUNGE_SCHEDULER_ROWS_PER_SECOND, 200);
+  }
+
+  public static int getExpungeSchedulerBatchSize() {
+    return HapiProperties.getIntegerProperty(EXPUNGE_SCHEDULER_BATCH_SIZE, 100);
+  }
+
+  public static String getExpungeSchedulerWindows() {
+    return HapiProperties.getProperty(EXPUNGE_SCHEDULER_WINDOWS, "");
+  }
+
+  public static long getExpungeSchedulerSweepIntervalHours() {
+    return HapiProperties.getLongProperty(EXPUNGE_SCHEDULER_SWEEP_INTERVAL_HOURS, 0L);
+  }
+
+  public static boolean getHistoryRetentionEnabled() {
+    return HapiProperties.getBooleanProperty(HISTORY_RETENTION_ENABLED, false);
+  }
+
+  /**
+   * @return Returns the number of versions to keep by resource type
+   */
+  public static Map<String, Integer> getHistoryRetentionMaxVersions() {
+    return getResourceTypeLimits(HISTORY_RETENTION_MAX_VERSIONS);
+  }
+
+  /**
+   * @return Returns the number of days to keep versions for by resource type
+   */
+  public static Map<String, Integer> getHistoryRetentionMaxAgeDays() {
+    return getResourceTypeLimits(HISTORY_RETENTION_MAX_AGE_DAYS);
+  }
+
+  public static int getHistoryRetentionBatchSize() {
+    return HapiProperties.getIntegerProperty(HISTORY_RETENTION_BATCH_SIZE, 100);
+  }
+
+  public static long getHistoryRetentionIntervalMinutes() {
+    return HapiProperties.getLongProperty(HISTORY_RETENTION_INTERVAL_MINUTES, 60L);
+  }
+
+  private static Map<String, Integer> getResourceTypeLimits(String thePropertyName) {
+    Map<String, Integer> retVal = new HashMap<>();
+    for (String next : defaultString(getProperty(thePropertyName)).split(",")) {
+      if (isBlank(next)) {
+        continue;
+      }
+      String[] parts = next.split(":");
+      if (parts.length != 2 || isBlank(parts[0]) || !isNumeric(parts[1].trim()) || Integer.parseInt(parts[1].trim()) <= 0) {
+        throw new ConfigurationException("Invalid " + thePropertyName + " entry: " + next);
+      }
+      retVal.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+    }
+    return retVal;
+  }
+
+  public static boolean getShardingEnabled() {
+    return HapiProperties.getBooleanProperty(SHARDING_ENABLED, false);
+  }
+
+  @Nonnull
+  public static Set<String> getShardingShards() {
+    String[] shards = defaultString(getProperty(SHARDING_SHARDS)).split(",");
+    return Arrays.stream(shards)
+      .map(StringUtils::trim)
+      .filter(StringUtils::isNotBlank)
+      .collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  /**
+   * @return Returns the shard of every sharded tenant, configured as <code>tenant:shard,...</code>
+   */
+  @Nonnull
+  public static Map<String, String> getShardingTenants() {
+    Map<String, String> retVal = new HashMap<>();
+    for (String next : defaultString(getProperty(SHARDING_TENANTS)).split(",")) {
+      if (isBlank(next)) {
+        continue;
+      }
+      String[] parts = next.split(":");
+      if (parts.length != 2 || isBlank(parts[0]) || isBlank(parts[1])) {
+        throw new ConfigurationException("Invalid " + SHARDING_TENANTS + " entry: " + next);
+      }
+      retVal.put(parts[0].trim(), parts[1].trim());
+    }
+    return retVal;
+  }
+
+  public static String getShardingDataSourceUrl(String theShard) {
+    return HapiProperties.getProperty("sharding.shard." + theShard + ".url");
+  }
+
+  public static String getShardingDataSourceUsername(String theShard) {
+    return HapiProperties.getProperty("sharding.shard." + theShard + ".username");
+  }
+
+  public static String getShardingDataSourcePassword(String theShard) {
+    return HapiProperties.getProperty("sharding.shard." + theShard + ".password");
+  }
+
+  public static Integer getShardingDataSourceMaxPoolSize(String theShard) {
+    return HapiProperties.getIntegerProperty("sharding.shard." + theShard + ".max_pool_size", getDataSourceMaxPoolSize());
+  }
+
+  public static boolean getTenantUsageEnabled() {
+    return HapiProperties.getBooleanProperty(TENANT_USAGE_ENABLED, false);
+  }
+
+  public static boolean getAdmissionControlEnabled() {
+    return HapiProperties.getBooleanProperty(ADMISSION_CONTROL_ENABLED, false);
+  }
+
+  public static long getAdmissionControlQueueTimeoutMillis() {
+    return HapiProperties.getLongProperty(ADMISSION_CONTROL_QUEUE_TIMEOUT_MILLIS, 2000L);
+  }
+
+  public static int getAdmissionControlRetryAfterSeconds() {
+    return HapiProperties.getIntegerProperty(ADMISSION_CONTROL_RETRY_AFTER_SECONDS, 1);
+  }
+
+  public static int getAdmissionControlMaxConcurrent(TenantAdmissionInterceptor.OperationClass theOperationClass) {
+    return HapiProperties.getIntegerProperty("admission_control." + theOperationClass.getPropertyName() + ".max_concurrent", theOperationClass.getDefaultMaxConcurrent());
+  }
+
+  public static int getAdmissionControlMaxQueued(TenantAdmissionInterceptor.OperationClass theOperationClass) {
+    return HapiProperties.getIntegerProperty("admission_control." + theOperationClass.getPropertyName() + ".max_queued", theOperationClass.getDefaultMaxQueued());
+  }
+
+  public static boolean getNarrativeCacheEnabled() {
+    return HapiProperties.getBooleanProperty(NARRATIVE_CACHE_ENABLED, false);
+  }
+
+  public static long getNarrativeCacheMaxBytes() {
+    return HapiProperties.getLongProperty(NARRATIVE_CACHE_MAX_BYTES, 16777216L);
+  }
+
+  public static boolean getNarrativeCacheGenerateOnWrite() {
+    return HapiProperties.getBooleanProperty(NARRATIVE_CACHE_GENERATE_ON_WRITE, false);
+  }
+
+  public static boolean getResourceReadCacheEnabled() {
+    return HapiProperties.getBooleanProperty(RESOURCE_READ_CACHE_ENABLED, false);
+  }
+
+  public static Set<String> getResourceReadCacheResourceTypes() {
+    String[] types = HapiProperties.getProperty(RESOURCE_READ_CACHE_RESOURCE_TYPES, "Patient,Organization,Endpoint,Practitioner").split(",");
+    return Arrays.stream(types)
+      .map(StringUtils::trim)
+      .filter(StringUtils::isNotBlank)
+      .collect(Collectors.toSet());
+  }
+
+  public static long getResourceReadCacheMaxEntriesPerType() {
+    return HapiProperties.getLongProperty(RESOURCE_READ_CACHE_MAX_ENTRIES_PER_TYPE, 10000L);
+  }
+
+  public static long getResourceReadCacheTtlSeconds() {
+    return HapiProperties.getLongProperty(RESOURCE_READ_CACHE_TTL_SECONDS, 300L);
+  }
+
+  public static boolean getClusterCacheInvalidationEnabled() {
+    return HapiProperties.getBooleanProperty(CLUSTER_CACHE_INVALIDATION_ENABLED, false);
+  }
+
+  public static String getClusterCacheInvalidationNodeId() {
+    return HapiProperties.getProperty(CLUSTER_CACHE_INVALIDATION_NODE_ID, UUID.randomUUID().toString());
+  }
+
+  public static long getClusterCacheInvalidationPollIntervalMillis() {
+    return HapiProperties.getLongProperty(CLUSTER_CACHE_INVALIDATION_POLL_INTERVAL_MILLIS, 1000L);
+  }
+
+  public static long getClusterCacheInvalidationGapTimeoutMillis() {
+    return HapiProperties.getLongProperty(CLUSTER_CACHE_INVALIDATION_GAP_TIMEOUT_MILLIS, 10000L);
+  }
+
+  public static long getClusterCacheInvalidationRetentionMillis() {
+    return HapiProperties.getLongProperty(CLUSTER_CACHE_INVALIDATION_RETENTION_MILLIS, 3600000L);
+  }
+
+  public static boolean getClusterCacheInvalidationPostgresNotify() {
+    return HapiProperties.getBooleanProperty(CLUSTER_CACHE_INVALIDATION_POSTGRES_NOTIFY, false);
+  }
+
   public static String getServerName() {
     return HapiProperties.getProperty(SERVER_NAME, "Local Tester");
   }
@@ -464,6 +894,26 @@ public class HapiProperties {
     return Long.valueOf(value);
   }
 
+  public static boolean getSearchFirstPageCacheEnabled() {
+    return HapiProperties.getBooleanProperty(SEARCH_FIRST_PAGE_CACHE_ENABLED, false);
+  }
+
+  public static long getSearchFirstPageCacheMaxBytes() {
+    return HapiProperties.getLongProperty(SEARCH_FIRST_PAGE_CACHE_MAX_BYTES, 33554432L);
+  }
+
+  public static boolean getSearchKeysetPagingEnabled() {
+    return HapiProperties.getBooleanProperty(SEARCH_KEYSET_PAGING_ENABLED, false);
+  }
+
+  public static boolean getSearchStreamingEnabled() {
+    return HapiProperties.getBooleanProperty(SEARCH_STREAMING_ENABLED, false);
+  }
+
+  public static int getSearchStreamingChunkSize() {
+    return HapiProperties.getIntegerProperty(SEARCH_STREAMING_CHUNK_SIZE, 50);
+  }
+
   public static Long getExpireSearchResultsAfterMins() {
     String value = HapiProperties.getProperty(EXPIRE_SEARCH_RESULTS_AFTER_MINS, "60");
     return Long.valueOf(value);
@@ -523,6 +973,30 @@ public class HapiProperties {
     return HapiProperties.getBooleanProperty(BULK_EXPORT_ENABLED, true);
   }
 
+  public static boolean getBulkExportParallelEnabled() {
+    return HapiProperties.getBooleanProperty(BULK_EXPORT_PARALLEL_ENABLED, false);
+  }
+
+  public static String getBulkExportParallelDirectory() {
+    return HapiProperties.getProperty(BULK_EXPORT_PARALLEL_DIRECTORY, "target/bulk-export");
+  }
+
+  public static Integer getBulkExportParallelThreads() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_PARALLEL_THREADS, 4);
+  }
+
+  public static Integer getBulkExportParallelChunkSize() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_PARALLEL_CHUNK_SIZE, 1000);
+  }
+
+  public static Long getBulkExportParallelFileRolloverBytes() {
+    return HapiProperties.getLongProperty(BULK_EXPORT_PARALLEL_FILE_ROLLOVER_BYTES, 104857600L);
+  }
+
+  public static Integer getBulkExportParallelRetentionHours() {
+    return HapiProperties.getIntegerProperty(BULK_EXPORT_PARALLEL_RETENTION_HOURS, 24);
+  }
+
   public static boolean isFhirPathFilterInterceptorEnabled() {
     return HapiProperties.getBooleanProperty("fhirpath_interceptor.enabled", false);
   }
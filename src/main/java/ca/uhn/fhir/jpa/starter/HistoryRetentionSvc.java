@@ -0,0 +1,235 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.ExpungeOptions;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Enforces a retention policy on the version history of selected resource
+ * types by expunging the versions it no longer keeps.
+ * <p>
+ * A policy keeps the last <code>N</code> versions of every resource of a type,
+ * the versions updated within a number of days, or, if both are configured,
+ * every version either of them keeps. The current version is always kept.
+ * <p>
+ * A background pass runs at a fixed interval. For every type it looks up the
+ * versions to prune in batches, oldest history entry first, and expunges them
+ * one version at a time through the DAO, so the tags and provenance of the
+ * version go with it. Each batch is read in its own short transaction, and
+ * the pass pauses briefly between batches to leave room for regular traffic.
+ */
+public class HistoryRetentionSvc {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HistoryRetentionSvc.class);
+  private static final long BATCH_PAUSE_MILLIS = 100L;
+
+  @Autowired
+  private DaoRegistry myDaoRegistry;
+  @Autowired
+  private DaoConfig myDaoConfig;
+  @Autowired
+  private PlatformTransactionManager myTransactionManager;
+  @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+  private EntityManager myEntityManager;
+
+  private final Map<String, Integer> myMaxVersions;
+  private final Map<String, Integer> myMaxAgeDays;
+  private final int myBatchSize;
+  private final long myIntervalMinutes;
+  private final LongAdder myVersionsPruned = new LongAdder();
+  private ScheduledExecutorService myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theMaxVersions     The number of versions to keep by resource type
+   * @param theMaxAgeDays      The number of days to keep versions for by resource type
+   * @param theBatchSize       The number of versions looked up per transaction
+   * @param theIntervalMinutes The time between two pruning passes
+   */
+  public HistoryRetentionSvc(Map<String, Integer> theMaxVersions, Map<String, Integer> theMaxAgeDays, int theBatchSize, long theIntervalMinutes) {
+    Validate.notNull(theMaxVersions, "theMaxVersions must not be null");
+    Validate.notNull(theMaxAgeDays, "theMaxAgeDays must not be null");
+    Validate.isTrue(theMaxVersions.values().stream().allMatch(t -> t > 0), "theMaxVersions must be positive");
+    Validate.isTrue(theMaxAgeDays.values().stream().allMatch(t -> t > 0), "theMaxAgeDays must be positive");
+    Validate.isTrue(theBatchSize > 0, "theBatchSize must be positive");
+    Validate.isTrue(theIntervalMinutes > 0, "theIntervalMinutes must be positive");
+    myMaxVersions = new TreeMap<>(theMaxVersions);
+    myMaxAgeDays = new TreeMap<>(theMaxAgeDays);
+    myBatchSize = theBatchSize;
+    myIntervalMinutes = theIntervalMinutes;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!myDaoConfig.isExpungeEnabled()) {
+      ourLog.warn("History retention requires expunge to be enabled, no versions will be pruned");
+      return;
+    }
+    if (HapiProperties.getPartitioningEnabled()) {
+      ourLog.warn("History retention is not supported on partitioned servers, no versions will be pruned");
+      return;
+    }
+
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("history-retention-%d")
+      .setDaemon(true)
+      .build());
+    myExecutor.scheduleWithFixedDelay(this::pruneSafely, 1, myIntervalMinutes, TimeUnit.MINUTES);
+    ourLog.info("History retention started (max versions {}, max age in days {})", myMaxVersions, myMaxAgeDays);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+    }
+  }
+
+  public long getVersionsPruned() {
+    return myVersionsPruned.sum();
+  }
+
+  private void pruneSafely() {
+    try {
+      prune();
+    } catch (Exception e) {
+      ourLog.error("Failed to prune the version history", e);
+    }
+  }
+
+  /**
+   * Runs one pass over all resource types with a policy
+   */
+  synchronized void prune() throws InterruptedException {
+    Set<String> resourceTypes = new TreeSet<>(myMaxVersions.keySet());
+    resourceTypes.addAll(myMaxAgeDays.keySet());
+
+    for (String next : resourceTypes) {
+      if (!myDaoRegistry.isResourceTypeSupported(next)) {
+        continue;
+      }
+      long pruned = pruneResourceType(next);
+      if (pruned > 0) {
+        ourLog.info("Pruned {} {} versions", pruned, next);
+      }
+    }
+  }
+
+  private long pruneResourceType(String theResourceType) throws InterruptedException {
+    IFhirResourceDao<IBaseResource> dao = myDaoRegistry.getResourceDao(theResourceType);
+    ExpungeOptions options = new ExpungeOptions().setExpungeOldVersions(true);
+    TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+    txTemplate.setReadOnly(true);
+
+    long retVal = 0;
+    long cursor = 0;
+    while (!Thread.currentThread().isInterrupted()) {
+      long from = cursor;
+      List<Pair<Long, IIdType>> batch = txTemplate.execute(t -> findPrunableVersions(theResourceType, from));
+      if (batch.isEmpty()) {
+        break;
+      }
+
+      for (Pair<Long, IIdType> next : batch) {
+        try {
+          dao.expunge(next.getValue(), options, null);
+          myVersionsPruned.increment();
+          retVal++;
+        } catch (ResourceNotFoundException e) {
+          // Expunged in the meantime, e.g. by another node
+          ourLog.debug("Version {} is already gone", next.getValue().getValue());
+        }
+      }
+      cursor = batch.get(batch.size() - 1).getKey();
+      Thread.sleep(BATCH_PAUSE_MILLIS);
+    }
+    return retVal;
+  }
+
+  /**
+   * @return Returns the history entry IDs and versioned IDs of the next versions after the cursor which the policy does not keep
+   */
+  private List<Pair<Long, IIdType>> findPrunableVersions(String theResourceType, long theCursor) {
+    Integer maxVersions = myMaxVersions.get(theResourceType);
+    Integer maxAgeDays = myMaxAgeDays.get(theResourceType);
+
+    StringBuilder query = new StringBuilder("SELECT h.myId, h.myResourceVersion, t FROM ResourceHistoryTable h, ResourceTable t WHERE t.myId = h.myResourceId AND h.myResourceType = :type AND h.myId > :cursor AND h.myResourceVersion < t.myVersion");
+    if (maxVersions != null) {
+      query.append(" AND h.myResourceVersion <= t.myVersion - :maxVersions");
+    }
+    if (maxAgeDays != null) {
+      query.append(" AND h.myUpdated < :cutoff");
+    }
+    query.append(" ORDER BY h.myId");
+
+    TypedQuery<Object[]> typedQuery = myEntityManager.createQuery(query.toString(), Object[].class)
+      .setParameter("type", theResourceType)
+      .setParameter("cursor", theCursor)
+      .setMaxResults(myBatchSize);
+    if (maxVersions != null) {
+      typedQuery.setParameter("maxVersions", maxVersions.longValue());
+    }
+    if (maxAgeDays != null) {
+      typedQuery.setParameter("cutoff", new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays)));
+    }
+
+    List<Pair<Long, IIdType>> retVal = new ArrayList<>();
+    for (Object[] next : typedQuery.getResultList()) {
+      IIdType id = ((ResourceTable) next[2]).getIdDt().toUnqualifiedVersionless().withVersion(next[1].toString());
+      retVal.add(Pair.of((Long) next[0], id));
+    }
+    return retVal;
+  }
+
+}
@@ -0,0 +1,37 @@
+package ca.uhn.fhir.jpa.starter;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * A local cache which must be told about resources written on other nodes of
+ * the cluster, see {@link ClusterCacheInvalidationSvc}
+ */
+public interface ICacheInvalidationSubscriber {
+
+  /**
+   * Called once for every resource created, updated or deleted on another node
+   *
+   * @param theResourceType The resource type
+   * @param theIdPart       The ID of the resource, without type and version
+   * @param theVersion      The version which was written, or <code>null</code> if unknown
+   * @param theDeleted      Whether the resource was deleted
+   */
+  void resourceChanged(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted);
+
+}
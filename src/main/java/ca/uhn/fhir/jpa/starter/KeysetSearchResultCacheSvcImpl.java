@@ -0,0 +1,71 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.search.cache.DatabaseSearchResultCacheSvcImpl;
+import ca.uhn.fhir.rest.api.server.storage.ResourcePersistentId;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Search result cache which loads pages of a stored search by seeking on the
+ * position of each result rather than with a LIMIT/OFFSET query.
+ * <p>
+ * Every stored result carries its position within the search
+ * (<code>SEARCH_ORDER</code>, assigned contiguously from zero and covered by the
+ * unique index on <code>SEARCH_PID, SEARCH_ORDER</code>). That position is the
+ * keyset cursor: the <code>_getpagesoffset</code> of a paging link maps directly
+ * onto it, so fetching the thousandth page is an index range scan of one page,
+ * just like the first, instead of reading and discarding every earlier row.
+ */
+public class KeysetSearchResultCacheSvcImpl extends DatabaseSearchResultCacheSvcImpl {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(KeysetSearchResultCacheSvcImpl.class);
+
+  @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+  private EntityManager myEntityManager;
+
+  @Override
+  @Transactional(propagation = Propagation.REQUIRED)
+  public List<ResourcePersistentId> fetchResultPids(Search theSearch, int theFrom, int theTo) {
+    if (theTo <= theFrom) {
+      return Collections.emptyList();
+    }
+
+    List<Long> pids = myEntityManager
+      .createQuery("SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearchPid = :search AND r.myOrder >= :from AND r.myOrder < :to ORDER BY r.myOrder ASC", Long.class)
+      .setParameter("search", theSearch.getId())
+      .setParameter("from", theFrom)
+      .setParameter("to", theTo)
+      .getResultList();
+
+    ourLog.debug("Loaded {} results at positions {}-{} of search {}", pids.size(), theFrom, theTo, theSearch.getUuid());
+    return ResourcePersistentId.fromLongList(pids);
+  }
+
+}
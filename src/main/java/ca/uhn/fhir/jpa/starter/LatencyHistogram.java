@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Lock free latency histogram with fixed, roughly logarithmic buckets from 10
+ * microseconds to 10 seconds. Recording costs two counter increments, so it can
+ * be used on every request; percentiles are estimated as the upper bound of the
+ * bucket they fall into.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Upper bounds of the buckets in microseconds, the last bucket is unbounded
+   */
+  private static final long[] BUCKET_BOUNDS_MICROS = {
+    10, 25, 50, 100, 250, 500,
+    1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+    100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000
+  };
+
+  private final LongAdder[] myBuckets = new LongAdder[BUCKET_BOUNDS_MICROS.length + 1];
+  private final LongAdder myCount = new LongAdder();
+  private final LongAdder myTotalNanos = new LongAdder();
+  private final AtomicLong myMaxNanos = new AtomicLong();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < myBuckets.length; i++) {
+      myBuckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long theNanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(theNanos);
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+      bucket++;
+    }
+    myBuckets[bucket].increment();
+    myCount.increment();
+    myTotalNanos.add(theNanos);
+    myMaxNanos.accumulateAndGet(theNanos, Math::max);
+  }
+
+  public long getCount() {
+    return myCount.sum();
+  }
+
+  public double getTotalMillis() {
+    return myTotalNanos.sum() / 1e6;
+  }
+
+  public double getMeanMillis() {
+    long count = getCount();
+    return count > 0 ? getTotalMillis() / count : 0;
+  }
+
+  public double getMaxMillis() {
+    return myMaxNanos.get() / 1e6;
+  }
+
+  /**
+   * @param theQuantile The quantile, e.g. <code>0.95</code>
+   * @return Returns the upper bound of the bucket holding the quantile, or the
+   * maximum if it lies in the unbounded bucket
+   */
+  public double getQuantileMillis(double theQuantile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(theQuantile * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+      seen += myBuckets[i].sum();
+      if (seen >= rank) {
+        return BUCKET_BOUNDS_MICROS[i] / 1e3;
+      }
+    }
+    return getMaxMillis();
+  }
+
+  /**
+   * @return Returns the upper bounds of the buckets in seconds, without the unbounded one
+   */
+  public static double[] getBucketBoundsSeconds() {
+    double[] retVal = new double[BUCKET_BOUNDS_MICROS.length];
+    for (int i = 0; i < retVal.length; i++) {
+      retVal[i] = BUCKET_BOUNDS_MICROS[i] / 1e6;
+    }
+    return retVal;
+  }
+
+  /**
+   * @return Returns the cumulative counts of the buckets, including the unbounded one last
+   */
+  public long[] getCumulativeBucketCounts() {
+    long[] retVal = new long[myBuckets.length];
+    long sum = 0;
+    for (int i = 0; i < myBuckets.length; i++) {
+      sum += myBuckets[i].sum();
+      retVal[i] = sum;
+    }
+    return retVal;
+  }
+
+}
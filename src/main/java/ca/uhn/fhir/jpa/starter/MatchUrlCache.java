@@ -0,0 +1,270 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Bounded cache from the match URL of a conditional create, update, patch or
+ * delete to the persistent ID of the one resource it matched, filled by
+ * {@link MatchUrlCachingPostProcessor}.
+ * <p>
+ * Only match URLs consisting of a single <code>identifier</code> token are
+ * cached, as these are what interface engines upsert by, and they can be
+ * invalidated precisely: every write invalidates the identifiers of the old
+ * and the new version of the written resource, once before and once after the
+ * commit. A lookup only stores its result if none of its identifier was
+ * invalidated while it ran, so a search which saw the database before a write
+ * can not put a stale result back. Writes on other nodes drop the entries of
+ * the whole resource type, as they only carry the resource ID.
+ */
+public class MatchUrlCache implements ICacheInvalidationSubscriber {
+
+  private static final int STRIPES = 1024;
+
+  private final FhirContext myFhirContext;
+  private final long myMaxEntries;
+  private final long myTtlSeconds;
+  private final Map<String, Cache<String, Map<String, Set<Object>>>> myTypeCaches = new ConcurrentHashMap<>();
+  private final AtomicLongArray myInvalidationCounts = new AtomicLongArray(STRIPES);
+  private final LongAdder myHits = new LongAdder();
+  private final LongAdder myMisses = new LongAdder();
+  private final InvalidatingInterceptor myInvalidatingInterceptor = new InvalidatingInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theMaxEntries  The maximum number of match URLs to cache per resource type
+   * @param theTtlSeconds  How long a match may be served from the cache
+   */
+  public MatchUrlCache(FhirContext theFhirContext, long theMaxEntries, long theTtlSeconds) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.isTrue(theMaxEntries > 0, "theMaxEntries must be positive");
+    Validate.isTrue(theTtlSeconds > 0, "theTtlSeconds must be positive");
+    myFhirContext = theFhirContext;
+    myMaxEntries = theMaxEntries;
+    myTtlSeconds = theTtlSeconds;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor
+   * service so that writes invalidate the cache
+   */
+  public Object getInvalidatingInterceptor() {
+    return myInvalidatingInterceptor;
+  }
+
+  /**
+   * @return Returns the identifier token of the match URL if it can be cached, or <code>null</code>
+   */
+  public static String getIdentifierToken(String theMatchUrl) {
+    if (theMatchUrl == null) {
+      return null;
+    }
+    String query = theMatchUrl.contains("?") ? theMatchUrl.substring(theMatchUrl.indexOf('?') + 1) : theMatchUrl;
+    if (!query.startsWith("identifier=") || query.contains("&")) {
+      return null;
+    }
+    String token;
+    try {
+      token = URLDecoder.decode(query.substring("identifier=".length()), "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return null;
+    }
+    // Skip OR lists, escaped characters and system-only tokens
+    if (StringUtils.isBlank(token) || token.contains(",") || token.contains("\\") || token.endsWith("|")) {
+      return null;
+    }
+    return token;
+  }
+
+  /**
+   * @return Returns the invalidation stamp which must be passed to {@link #put(String, String, String, long, Set)}
+   */
+  public long getStamp(String theIdentifierToken) {
+    return myInvalidationCounts.get(stripe(theIdentifierToken));
+  }
+
+  /**
+   * @return Returns a copy of the cached persistent IDs, or <code>null</code>
+   */
+  public Set<Object> get(String theResourceType, String theIdentifierToken, String theTenantId) {
+    Cache<String, Map<String, Set<Object>>> cache = myTypeCaches.get(theResourceType);
+    Map<String, Set<Object>> tenants = cache != null ? cache.getIfPresent(theIdentifierToken) : null;
+    Set<Object> retVal = tenants != null ? tenants.get(StringUtils.defaultString(theTenantId)) : null;
+    if (retVal == null) {
+      myMisses.increment();
+      return null;
+    }
+    myHits.increment();
+    return new HashSet<>(retVal);
+  }
+
+  /**
+   * Stores the result of a lookup if it matched exactly one resource and the
+   * identifier was not invalidated since the stamp was taken
+   */
+  public void put(String theResourceType, String theIdentifierToken, String theTenantId, long theStamp, Set<?> thePersistentIds) {
+    if (thePersistentIds == null || thePersistentIds.size() != 1) {
+      return;
+    }
+    Cache<String, Map<String, Set<Object>>> cache = myTypeCaches.computeIfAbsent(theResourceType, t -> CacheBuilder.newBuilder()
+      .maximumSize(myMaxEntries)
+      .expireAfterWrite(myTtlSeconds, TimeUnit.SECONDS)
+      .build());
+    cache.asMap().compute(theIdentifierToken, (theKey, theTenants) -> {
+      if (getStamp(theIdentifierToken) != theStamp) {
+        return theTenants;
+      }
+      Map<String, Set<Object>> retVal = theTenants != null ? theTenants : new ConcurrentHashMap<>();
+      retVal.put(StringUtils.defaultString(theTenantId), Collections.unmodifiableSet(new HashSet<>(thePersistentIds)));
+      return retVal;
+    });
+  }
+
+  public long getHitCount() {
+    return myHits.sum();
+  }
+
+  public long getMissCount() {
+    return myMisses.sum();
+  }
+
+  @Override
+  public void resourceChanged(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted) {
+    Cache<String, Map<String, Set<Object>>> cache = myTypeCaches.get(theResourceType);
+    if (cache != null) {
+      for (int i = 0; i < STRIPES; i++) {
+        myInvalidationCounts.incrementAndGet(i);
+      }
+      cache.invalidateAll();
+    }
+  }
+
+  private void invalidate(String theResourceType, Set<String> theIdentifierTokens) {
+    Cache<String, Map<String, Set<Object>>> cache = myTypeCaches.get(theResourceType);
+    for (String next : theIdentifierTokens) {
+      myInvalidationCounts.incrementAndGet(stripe(next));
+      if (cache != null) {
+        cache.invalidate(next);
+      }
+    }
+  }
+
+  /**
+   * @return Returns every identifier token which may match one of the identifiers of the resource
+   */
+  private Set<String> getIdentifierTokens(IBaseResource theResource) {
+    Set<String> retVal = new HashSet<>();
+    if (theResource == null || myFhirContext.getResourceDefinition(theResource).getChildByName("identifier") == null) {
+      return retVal;
+    }
+    FhirTerser terser = myFhirContext.newTerser();
+    for (IBase next : terser.getValues(theResource, myFhirContext.getResourceType(theResource) + ".identifier")) {
+      String system = getPrimitiveValue(terser, next, "system");
+      String value = getPrimitiveValue(terser, next, "value");
+      if (value == null) {
+        continue;
+      }
+      retVal.add(value);
+      retVal.add(StringUtils.defaultString(system) + "|" + value);
+    }
+    return retVal;
+  }
+
+  private static String getPrimitiveValue(FhirTerser theTerser, IBase theElement, String theChild) {
+    List<IPrimitiveType> values = theTerser.getValues(theElement, theChild, IPrimitiveType.class);
+    return values.isEmpty() ? null : StringUtils.defaultIfBlank(values.get(0).getValueAsString(), null);
+  }
+
+  private void invalidateNowAndAfterCompletion(IBaseResource theOldResource, IBaseResource theNewResource) {
+    IBaseResource resource = theNewResource != null ? theNewResource : theOldResource;
+    String resourceType = myFhirContext.getResourceType(resource);
+    Set<String> identifierTokens = getIdentifierTokens(theOldResource);
+    identifierTokens.addAll(getIdentifierTokens(theNewResource));
+    if (identifierTokens.isEmpty()) {
+      return;
+    }
+
+    invalidate(resourceType, identifierTokens);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int theStatus) {
+          invalidate(resourceType, identifierTokens);
+        }
+      });
+    }
+  }
+
+  private static int stripe(String theIdentifierToken) {
+    return (theIdentifierToken.hashCode() & Integer.MAX_VALUE) % STRIPES;
+  }
+
+  /**
+   * Storage hooks which invalidate the identifiers of every written resource
+   */
+  @Interceptor
+  public class InvalidatingInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+      invalidateNowAndAfterCompletion(null, theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+      invalidateNowAndAfterCompletion(theOldResource, theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+      invalidateNowAndAfterCompletion(theResource, null);
+    }
+  }
+
+}
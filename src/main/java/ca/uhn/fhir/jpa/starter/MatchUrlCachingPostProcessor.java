@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.MatchResourceUrlService;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Puts the {@link MatchUrlCache} in front of the
+ * {@link MatchResourceUrlService}, which resolves the match URLs of all
+ * conditional operations (<code>If-None-Exist</code> creates, conditional
+ * updates, patches and deletes).
+ */
+public class MatchUrlCachingPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(MatchUrlCachingPostProcessor.class);
+
+  private BeanFactory myBeanFactory;
+
+  @Override
+  public void setBeanFactory(BeanFactory theBeanFactory) throws BeansException {
+    myBeanFactory = theBeanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (!HapiProperties.getMatchUrlCacheEnabled() || !(theBean instanceof MatchResourceUrlService)) {
+      return theBean;
+    }
+
+    ourLog.info("Caching identifier match URLs through bean {}", theBeanName);
+    DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(new ProcessMatchUrlPointcut(), new MatchUrlCachingAdvice(myBeanFactory));
+    if (theBean instanceof Advised && !((Advised) theBean).isFrozen()) {
+      ((Advised) theBean).addAdvisor(0, advisor);
+      return theBean;
+    }
+
+    ProxyFactory proxyFactory = new ProxyFactory(theBean);
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAdvisor(advisor);
+    return proxyFactory.getProxy();
+  }
+
+  /**
+   * Matches <code>processMatchUrl(String, Class, RequestDetails)</code>
+   */
+  private static class ProcessMatchUrlPointcut extends StaticMethodMatcherPointcut {
+
+    @Override
+    public boolean matches(Method theMethod, Class<?> theTargetClass) {
+      return theMethod.getName().equals("processMatchUrl")
+        && theMethod.getParameterCount() == 3
+        && theMethod.getParameterTypes()[0] == String.class
+        && theMethod.getParameterTypes()[1] == Class.class
+        && Set.class.isAssignableFrom(theMethod.getReturnType());
+    }
+  }
+
+  private static class MatchUrlCachingAdvice implements MethodInterceptor {
+
+    private final BeanFactory myBeanFactory;
+
+    private MatchUrlCachingAdvice(BeanFactory theBeanFactory) {
+      myBeanFactory = theBeanFactory;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation theInvocation) throws Throwable {
+      Object[] args = theInvocation.getArguments();
+      String identifierToken = MatchUrlCache.getIdentifierToken((String) args[0]);
+      if (identifierToken == null || args[1] == null) {
+        return theInvocation.proceed();
+      }
+
+      MatchUrlCache cache = myBeanFactory.getBean(MatchUrlCache.class);
+      @SuppressWarnings("unchecked")
+      String resourceType = myBeanFactory.getBean(FhirContext.class).getResourceType((Class<? extends IBaseResource>) args[1]);
+      String tenantId = args[2] instanceof RequestDetails ? ((RequestDetails) args[2]).getTenantId() : null;
+
+      Set<Object> cached = cache.get(resourceType, identifierToken, tenantId);
+      if (cached != null) {
+        return cached;
+      }
+
+      long stamp = cache.getStamp(identifierToken);
+      Object retVal = theInvocation.proceed();
+      if (retVal instanceof Set) {
+        cache.put(resourceType, identifierToken, tenantId, stamp, (Set<?>) retVal);
+      }
+      return retVal;
+    }
+  }
+
+}
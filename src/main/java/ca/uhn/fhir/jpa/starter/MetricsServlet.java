@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.context.ApplicationContext;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Serves the {@link ServerMetrics} in the Prometheus text format. Responds
+ * with 404 unless <code>metrics.enabled</code> is set, and with 403 to clients
+ * whose address is not listed in <code>metrics.allowed_addresses</code>.
+ * <p>
+ * The metrics reveal resource types, tenants and load figures, and the servlet
+ * does no authentication of its own: scrapers outside the host must come
+ * through an address allowed explicitly, or a proxy which protects the path.
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  @Override
+  protected void doGet(HttpServletRequest theRequest, HttpServletResponse theResponse) throws IOException {
+    if (!HapiProperties.getMetricsEnabled()) {
+      theResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    Set<String> allowedAddresses = HapiProperties.getMetricsAllowedAddresses();
+    if (!allowedAddresses.isEmpty() && !allowedAddresses.contains(theRequest.getRemoteAddr())) {
+      theResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    ApplicationContext appCtx = (ApplicationContext) getServletContext()
+      .getAttribute("org.springframework.web.context.WebApplicationContext.ROOT");
+    ServerMetrics metrics = appCtx.getBean(ServerMetrics.class);
+
+    theResponse.setStatus(HttpServletResponse.SC_OK);
+    theResponse.setContentType(CONTENT_TYPE);
+    theResponse.setHeader("Cache-Control", "no-cache");
+    metrics.write(theResponse.getWriter());
+  }
+
+}
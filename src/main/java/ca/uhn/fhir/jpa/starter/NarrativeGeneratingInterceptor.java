@@ -0,0 +1,91 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Objects;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+import org.hl7.fhir.instance.model.api.INarrative;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Storage interceptor which adds a narrative to resources which are created or
+ * updated without one, so the narrative is stored with the resource and reads
+ * never need to render it. An update which sends back the narrative generated
+ * for the previous version unchanged gets a new one as well, as the data
+ * behind it has most likely changed.
+ * <p>
+ * Register it with the storage interceptor service. It works without the
+ * {@link CachingNarrativeGenerator}, and so on multitenant servers too.
+ */
+@Interceptor
+public class NarrativeGeneratingInterceptor {
+
+  private static final String STATUS_GENERATED = "generated";
+
+  private final FhirContext myFhirContext;
+  private final INarrativeGenerator myNarrativeGenerator;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext        The FHIR context narratives are generated for (must not be null)
+   * @param theNarrativeGenerator The generator which renders the narratives (must not be null)
+   */
+  public NarrativeGeneratingInterceptor(FhirContext theFhirContext, INarrativeGenerator theNarrativeGenerator) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theNarrativeGenerator, "theNarrativeGenerator must not be null");
+    myFhirContext = theFhirContext;
+    myNarrativeGenerator = theNarrativeGenerator;
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    if (theResource instanceof IDomainResource && ((IDomainResource) theResource).getText().isEmpty()) {
+      myNarrativeGenerator.populateResourceNarrative(myFhirContext, theResource);
+    }
+  }
+
+  @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    if (!(theNewResource instanceof IDomainResource)) {
+      return;
+    }
+    INarrative newNarrative = ((IDomainResource) theNewResource).getText();
+    if (newNarrative.isEmpty()) {
+      myNarrativeGenerator.populateResourceNarrative(myFhirContext, theNewResource);
+      return;
+    }
+
+    // A client which sends back the narrative generated earlier has most likely changed the data behind it
+    if (theOldResource instanceof IDomainResource
+      && STATUS_GENERATED.equals(newNarrative.getStatusAsString())
+      && Objects.equals(((IDomainResource) theOldResource).getText().getDivAsString(), newNarrative.getDivAsString())) {
+      myNarrativeGenerator.populateResourceNarrative(myFhirContext, theNewResource);
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Hands large <code>batch</code> Bundles passed to
+ * {@link IFhirSystemDao#transaction(RequestDetails, Object)} to the
+ * {@link ParallelBatchSvc}, which calls the system DAO again for every entry.
+ * Transactions and small batches are processed by the DAO as before.
+ */
+public class ParallelBatchPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+  private BeanFactory myBeanFactory;
+
+  @Override
+  public void setBeanFactory(BeanFactory theBeanFactory) throws BeansException {
+    myBeanFactory = theBeanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (!HapiProperties.getBatchParallelEnabled() || !(theBean instanceof IFhirSystemDao)) {
+      return theBean;
+    }
+
+    ParallelBatchAdvice advice = new ParallelBatchAdvice(myBeanFactory);
+    if (theBean instanceof Advised && !((Advised) theBean).isFrozen()) {
+      ((Advised) theBean).addAdvice(0, advice);
+      return theBean;
+    }
+
+    ProxyFactory proxyFactory = new ProxyFactory(theBean);
+    proxyFactory.addAdvice(advice);
+    return proxyFactory.getProxy();
+  }
+
+  private static class ParallelBatchAdvice implements MethodInterceptor {
+
+    private final BeanFactory myBeanFactory;
+
+    private ParallelBatchAdvice(BeanFactory theBeanFactory) {
+      myBeanFactory = theBeanFactory;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation theInvocation) throws Throwable {
+      Method method = theInvocation.getMethod();
+      Object[] arguments = theInvocation.getArguments();
+      if (!method.getName().equals("transaction") || arguments.length != 2 || !(arguments[1] instanceof IBaseBundle) || (arguments[0] != null && !(arguments[0] instanceof RequestDetails))) {
+        return theInvocation.proceed();
+      }
+
+      ParallelBatchSvc parallelBatchSvc = myBeanFactory.getBean(ParallelBatchSvc.class);
+      RequestDetails requestDetails = (RequestDetails) arguments[0];
+      IBaseBundle bundle = (IBaseBundle) arguments[1];
+      if (!parallelBatchSvc.isParallelizable(requestDetails, bundle)) {
+        return theInvocation.proceed();
+      }
+
+      // Call through the proxy, so every entry gets the transaction handling of the DAO
+      Object proxy = ((ProxyMethodInvocation) theInvocation).getProxy();
+      return parallelBatchSvc.execute(requestDetails, bundle, (theEntryRequestDetails, theEntryBundle) -> {
+        try {
+          return (IBaseBundle) method.invoke(proxy, theEntryRequestDetails, theEntryBundle);
+        } catch (InvocationTargetException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+  }
+
+}
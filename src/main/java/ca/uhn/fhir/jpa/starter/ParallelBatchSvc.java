@@ -0,0 +1,211 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletSubRequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Executes the entries of <code>batch</code> Bundles concurrently on a bounded
+ * thread pool which is shared by all requests.
+ * <p>
+ * Every entry is processed as a batch Bundle of its own, so it gets its own
+ * transaction and its own error handling, exactly like an entry of a
+ * sequentially processed batch. Each entry also gets its own sub-request
+ * details, as request details are not thread safe. The response entries are
+ * collected in the order of the request entries.
+ * <p>
+ * The queue of the pool is bounded. Once it is full, the request submitting an
+ * entry processes it on its own thread, so a large batch slows down itself
+ * rather than queueing up in front of the entries of every other request.
+ */
+public class ParallelBatchSvc {
+
+  private final FhirContext myFhirContext;
+  private final int myThreadCount;
+  private final int myQueueSize;
+  private final int myMinimumEntries;
+  private final RuntimeResourceDefinition myBundleDefinition;
+  private final BaseRuntimeChildDefinition myEntryChild;
+  private final BaseRuntimeChildDefinition myTypeChild;
+  private ThreadPoolExecutor myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext    The FHIR context (must not be null)
+   * @param theThreadCount    The number of entries processed concurrently by the pool, across all requests
+   * @param theQueueSize      The number of entries waiting for the pool, across all requests
+   * @param theMinimumEntries Batches with fewer entries are processed sequentially
+   */
+  public ParallelBatchSvc(FhirContext theFhirContext, int theThreadCount, int theQueueSize, int theMinimumEntries) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.isTrue(theThreadCount > 0, "theThreadCount must be positive");
+    Validate.isTrue(theQueueSize > 0, "theQueueSize must be positive");
+    Validate.isTrue(theMinimumEntries > 1, "theMinimumEntries must be greater than 1");
+    myFhirContext = theFhirContext;
+    myThreadCount = theThreadCount;
+    myQueueSize = theQueueSize;
+    myMinimumEntries = theMinimumEntries;
+    myBundleDefinition = theFhirContext.getResourceDefinition("Bundle");
+    myEntryChild = myBundleDefinition.getChildByName("entry");
+    myTypeChild = myBundleDefinition.getChildByName("type");
+  }
+
+  @PostConstruct
+  public void start() {
+    myExecutor = new ThreadPoolExecutor(myThreadCount, myThreadCount, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(myQueueSize),
+      new ThreadFactoryBuilder()
+        .setNameFormat("parallel-batch-%d")
+        .setDaemon(true)
+        .build(),
+      ParallelBatchSvc::runOnCaller);
+  }
+
+  @PreDestroy
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * @return Returns <code>true</code> if the Bundle is a batch which is large enough to be split,
+   * and the request details can be copied for its entries
+   */
+  public boolean isParallelizable(RequestDetails theRequestDetails, IBaseBundle theBundle) {
+    return (theRequestDetails == null || theRequestDetails instanceof ServletRequestDetails)
+      && "batch".equals(BundleUtil.getBundleType(myFhirContext, theBundle))
+      && myEntryChild.getAccessor().getValues(theBundle).size() >= myMinimumEntries;
+  }
+
+  /**
+   * Processes every entry of the batch with the given processor and combines the responses
+   *
+   * @param theRequestDetails The request details of the batch, or <code>null</code>
+   * @param theBundle         The batch Bundle
+   * @param theBatchProcessor Processes a batch Bundle with a single entry and returns the batch-response Bundle
+   */
+  public IBaseBundle execute(RequestDetails theRequestDetails, IBaseBundle theBundle, BiFunction<RequestDetails, IBaseBundle, IBaseBundle> theBatchProcessor) {
+    List<IBase> entries = myEntryChild.getAccessor().getValues(theBundle);
+    List<IBase> type = myTypeChild.getAccessor().getValues(theBundle);
+    String shard = TenantRoutingDataSource.getCurrentShard();
+
+    List<Future<IBaseBundle>> futures = new ArrayList<>(entries.size());
+    for (IBase next : entries) {
+      IBaseBundle entryBundle = (IBaseBundle) myBundleDefinition.newInstance();
+      myTypeChild.getMutator().setValue(entryBundle, type.get(0));
+      myEntryChild.getMutator().addValue(entryBundle, next);
+      RequestDetails entryRequestDetails = newSubRequestDetails((ServletRequestDetails) theRequestDetails);
+      futures.add(myExecutor.submit(() -> {
+        // May run on the request thread, so the previous shard is restored
+        String previousShard = TenantRoutingDataSource.getCurrentShard();
+        TenantRoutingDataSource.setCurrentShard(shard);
+        try {
+          return theBatchProcessor.apply(entryRequestDetails, entryBundle);
+        } finally {
+          TenantRoutingDataSource.setCurrentShard(previousShard);
+        }
+      }));
+    }
+
+    IBaseBundle retVal = null;
+    for (Future<IBaseBundle> next : futures) {
+      IBaseBundle response = await(next);
+      if (retVal == null) {
+        retVal = response;
+      } else {
+        for (IBase nextEntry : myEntryChild.getAccessor().getValues(response)) {
+          myEntryChild.getMutator().addValue(retVal, nextEntry);
+        }
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * Runs an entry which doesn't fit into the queue on the thread submitting it
+   */
+  private static void runOnCaller(Runnable theTask, ThreadPoolExecutor theExecutor) {
+    if (theExecutor.isShutdown()) {
+      throw new RejectedExecutionException("The parallel batch pool has been shut down");
+    }
+    theTask.run();
+  }
+
+  /**
+   * @return Returns a copy of the request details of the batch for one entry, or <code>null</code> if there are none
+   */
+  private static RequestDetails newSubRequestDetails(ServletRequestDetails theRequestDetails) {
+    if (theRequestDetails == null) {
+      return null;
+    }
+    ServletSubRequestDetails retVal = new ServletSubRequestDetails(theRequestDetails);
+    retVal.setServletRequest(theRequestDetails.getServletRequest());
+    retVal.setServer(theRequestDetails.getServer());
+    retVal.setFhirServerBase(theRequestDetails.getFhirServerBase());
+    retVal.setTenantId(theRequestDetails.getTenantId());
+    retVal.setRequestType(theRequestDetails.getRequestType());
+    retVal.setRestOperationType(RestOperationTypeEnum.TRANSACTION);
+    retVal.getUserData().putAll(theRequestDetails.getUserData());
+    // Entries are stored concurrently, each one collects its own placeholders
+    retVal.getUserData().remove(PlaceholderReferenceSvc.USER_DATA_PENDING);
+    return retVal;
+  }
+
+  private static IBaseBundle await(Future<IBaseBundle> theFuture) {
+    try {
+      return theFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InternalErrorException("Interrupted while processing batch", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new InternalErrorException("Failed to process batch entry", e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,171 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level operations for starting and monitoring exports run by the
+ * {@link ParallelBulkExportSvc}, and for downloading the files they produce.
+ * <p>
+ * Like <code>$export</code>, the status lists one URL per output file rather
+ * than a location on the server's filesystem. Jobs are only visible to the
+ * tenant which submitted them.
+ */
+public class ParallelBulkExportProvider {
+
+  public static final String OPERATION_EXPORT = "$parallel-export";
+  public static final String OPERATION_EXPORT_STATUS = "$parallel-export-status";
+  public static final String OPERATION_EXPORT_FILE = "$parallel-export-file";
+
+  private final FhirContext myFhirContext;
+  private final ParallelBulkExportSvc myExportSvc;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theExportSvc   The export service (must not be null)
+   */
+  public ParallelBulkExportProvider(FhirContext theFhirContext, ParallelBulkExportSvc theExportSvc) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theExportSvc, "theExportSvc must not be null");
+    myFhirContext = theFhirContext;
+    myExportSvc = theExportSvc;
+  }
+
+  @Operation(name = OPERATION_EXPORT, idempotent = false)
+  public IBaseParameters export(
+    @OperationParam(name = "_type", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theType,
+    @OperationParam(name = "_since", min = 0, max = 1, typeName = "instant") IPrimitiveType<Date> theSince,
+    RequestDetails theRequestDetails
+  ) {
+    Set<String> resourceTypes = Arrays.stream(StringUtils.defaultString(theType != null ? theType.getValueAsString() : null).split(","))
+      .map(StringUtils::trim)
+      .filter(StringUtils::isNotBlank)
+      .collect(Collectors.toSet());
+    Date since = theSince != null ? theSince.getValue() : null;
+
+    ParallelBulkExportSvc.ExportJob job = myExportSvc.submitJob(resourceTypes, since, theRequestDetails);
+    return toParameters(job, theRequestDetails);
+  }
+
+  @Operation(name = OPERATION_EXPORT_STATUS, idempotent = true)
+  public IBaseParameters exportStatus(
+    @OperationParam(name = "jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId,
+    RequestDetails theRequestDetails
+  ) {
+    return toParameters(getJob(theJobId, theRequestDetails), theRequestDetails);
+  }
+
+  @Operation(name = OPERATION_EXPORT_FILE, idempotent = true, manualResponse = true)
+  public void exportFile(
+    @OperationParam(name = "jobId", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theJobId,
+    @OperationParam(name = "file", min = 1, max = 1, typeName = "string") IPrimitiveType<String> theFile,
+    RequestDetails theRequestDetails,
+    HttpServletResponse theServletResponse
+  ) throws IOException {
+    ParallelBulkExportSvc.ExportJob job = getJob(theJobId, theRequestDetails);
+    Path file = null;
+    if (job.getStatus() == ParallelBulkExportSvc.JobStatus.COMPLETE) {
+      for (ParallelBulkExportSvc.TypeExport next : job.getTypes().values()) {
+        file = next.getFile(theFile.getValueAsString());
+        if (file != null) {
+          break;
+        }
+      }
+    }
+    if (file == null) {
+      throw new ResourceNotFoundException("Unknown export file: " + theFile.getValueAsString());
+    }
+
+    theServletResponse.setStatus(HttpServletResponse.SC_OK);
+    theServletResponse.setContentType(Constants.CT_FHIR_NDJSON);
+    theServletResponse.setContentLengthLong(Files.size(file));
+    Files.copy(file, theServletResponse.getOutputStream());
+  }
+
+  /**
+   * Looks up a job, treating jobs of other tenants as unknown
+   */
+  private ParallelBulkExportSvc.ExportJob getJob(IPrimitiveType<String> theJobId, RequestDetails theRequestDetails) {
+    ParallelBulkExportSvc.ExportJob job = myExportSvc.getJob(theJobId.getValueAsString());
+    if (job == null || !Objects.equals(job.getTenantId(), theRequestDetails.getTenantId())) {
+      throw new ResourceNotFoundException("Unknown export job: " + theJobId.getValueAsString());
+    }
+    return job;
+  }
+
+  private IBaseParameters toParameters(ParallelBulkExportSvc.ExportJob theJob, RequestDetails theRequestDetails) {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "jobId", theJob.getJobId());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "status", theJob.getStatus().name());
+    ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "submitted", new InstantDt(theJob.getSubmitted()).getValueAsString());
+    if (theJob.getCompleted() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "completed", new InstantDt(theJob.getCompleted()).getValueAsString());
+    }
+    if (theJob.getError() != null) {
+      ParametersUtil.addParameterToParametersString(myFhirContext, retVal, "error", theJob.getError());
+    }
+
+    for (ParallelBulkExportSvc.TypeExport next : theJob.getTypes().values()) {
+      IBase output = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "output");
+      ParametersUtil.addPartString(myFhirContext, output, "type", next.getResourceType());
+      ParametersUtil.addPartString(myFhirContext, output, "count", Long.toString(next.getResourceCount()));
+      if (theJob.getStatus() == ParallelBulkExportSvc.JobStatus.COMPLETE) {
+        for (Path nextFile : next.getFiles()) {
+          ParametersUtil.addPartString(myFhirContext, output, "url", toFileUrl(theJob, nextFile, theRequestDetails));
+        }
+      }
+    }
+
+    return retVal;
+  }
+
+  private static String toFileUrl(ParallelBulkExportSvc.ExportJob theJob, Path theFile, RequestDetails theRequestDetails) {
+    return StringUtils.removeEnd(theRequestDetails.getFhirServerBase(), "/") + "/" + OPERATION_EXPORT_FILE
+      + "?jobId=" + theJob.getJobId()
+      + "&file=" + theFile.getFileName().toString();
+  }
+
+}
@@ -0,0 +1,437 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Bulk export engine which streams NDJSON straight to the filesystem.
+ * <p>
+ * Every requested resource type is searched once, and the resulting persisted
+ * search is then fetched in chunks by several workers at the same time. Work
+ * for all types is interleaved on one bounded pool, so a single large type is
+ * spread over all threads while small types finish early.
+ * <p>
+ * Searches run on behalf of the tenant which submitted the job, so that on
+ * a partitioned server a job only ever exports the partition of its tenant.
+ * Finished jobs are kept for a retention period, after which they are
+ * forgotten and their files are deleted.
+ */
+public class ParallelBulkExportSvc {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParallelBulkExportSvc.class);
+  private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+  public enum JobStatus {
+    SUBMITTED, BUILDING, COMPLETE, ERROR
+  }
+
+  @Autowired
+  private DaoRegistry myDaoRegistry;
+  @Autowired
+  private FhirContext myFhirContext;
+
+  private final Map<String, ExportJob> myJobs = new ConcurrentHashMap<>();
+  private final Path myBaseDirectory;
+  private final int myThreadCount;
+  private final int myChunkSize;
+  private final long myFileRolloverBytes;
+  private final long myRetentionMillis;
+  private ExecutorService myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theBaseDirectory     Directory below which one sub-directory per job is created
+   * @param theThreadCount       Number of worker threads shared by all jobs
+   * @param theChunkSize         Number of resources fetched from the search per unit of work
+   * @param theFileRolloverBytes Size after which a new NDJSON file is started
+   * @param theRetentionHours    Time after which finished jobs and their files are removed
+   */
+  public ParallelBulkExportSvc(String theBaseDirectory, int theThreadCount, int theChunkSize, long theFileRolloverBytes, int theRetentionHours) {
+    Validate.notBlank(theBaseDirectory, "theBaseDirectory must not be blank");
+    Validate.isTrue(theThreadCount > 0, "theThreadCount must be positive");
+    Validate.isTrue(theChunkSize > 0, "theChunkSize must be positive");
+    Validate.isTrue(theFileRolloverBytes > 0, "theFileRolloverBytes must be positive");
+    Validate.isTrue(theRetentionHours > 0, "theRetentionHours must be positive");
+
+    myBaseDirectory = Paths.get(theBaseDirectory);
+    myThreadCount = theThreadCount;
+    myChunkSize = theChunkSize;
+    myFileRolloverBytes = theFileRolloverBytes;
+    myRetentionMillis = TimeUnit.HOURS.toMillis(theRetentionHours);
+  }
+
+  @PostConstruct
+  public void start() {
+    myExecutor = Executors.newFixedThreadPool(myThreadCount, new ThreadFactoryBuilder()
+      .setNameFormat("parallel-export-%d")
+      .setDaemon(true)
+      .build());
+  }
+
+  @PreDestroy
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Submit a new export job
+   *
+   * @param theResourceTypes The resource types to export, or an empty set to export every supported type
+   * @param theSince         If not null, only resources updated at or after this instant are exported
+   * @param theRequestDetails The request submitting the job, which determines the tenant being exported
+   */
+  public ExportJob submitJob(Set<String> theResourceTypes, Date theSince, RequestDetails theRequestDetails) {
+    purgeExpiredJobs();
+
+    Set<String> resourceTypes = new TreeSet<>(theResourceTypes);
+    if (resourceTypes.isEmpty()) {
+      resourceTypes.addAll(myDaoRegistry.getRegisteredDaoTypes());
+    }
+    for (String next : resourceTypes) {
+      if (!myDaoRegistry.isResourceTypeSupported(next)) {
+        throw new InvalidRequestException("Resource type " + next + " is not supported on this server");
+      }
+    }
+
+    String jobId = UUID.randomUUID().toString();
+    Path jobDirectory = myBaseDirectory.resolve(jobId);
+    try {
+      Files.createDirectories(jobDirectory);
+    } catch (IOException e) {
+      throw new InternalErrorException("Could not create export directory " + jobDirectory, e);
+    }
+
+    ExportJob job = new ExportJob(jobId, jobDirectory, theSince, theRequestDetails.getTenantId());
+    for (String next : resourceTypes) {
+      job.myTypes.put(next, new TypeExport(next, jobDirectory, myFileRolloverBytes, newSearchRequestDetails(theRequestDetails)));
+    }
+    myJobs.put(jobId, job);
+
+    /*
+     * Submit the workers round-robin across the types so that the types start
+     * exporting concurrently, and every type can use the whole pool once the
+     * smaller ones are done.
+     */
+    job.myRemainingWorkers.set(resourceTypes.size() * myThreadCount);
+    for (int i = 0; i < myThreadCount; i++) {
+      for (TypeExport next : job.myTypes.values()) {
+        myExecutor.submit(() -> runWorker(job, next));
+      }
+    }
+
+    ourLog.info("Submitted parallel export job {} for {} resource types", jobId, resourceTypes.size());
+    return job;
+  }
+
+  public ExportJob getJob(String theJobId) {
+    purgeExpiredJobs();
+    return myJobs.get(theJobId);
+  }
+
+  /**
+   * Creates the request details a background search runs with. The submitting
+   * request can not be used, as it is recycled once it has been answered.
+   */
+  private static RequestDetails newSearchRequestDetails(RequestDetails theRequestDetails) {
+    ServletRequestDetails retVal = new ServletRequestDetails(theRequestDetails.getInterceptorBroadcaster());
+    retVal.setTenantId(theRequestDetails.getTenantId());
+    return retVal;
+  }
+
+  /**
+   * Forgets the jobs which finished longer than the retention period ago and
+   * deletes their files
+   */
+  private void purgeExpiredJobs() {
+    long cutoff = System.currentTimeMillis() - myRetentionMillis;
+    for (ExportJob next : myJobs.values()) {
+      if (next.myCompleted != null && next.myCompleted.getTime() < cutoff && myJobs.remove(next.myJobId, next)) {
+        ourLog.info("Removing expired parallel export job {}", next.myJobId);
+        deleteDirectory(next.myDirectory);
+      }
+    }
+  }
+
+  private static void deleteDirectory(Path theDirectory) {
+    try (Stream<Path> files = Files.walk(theDirectory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(t -> t.toFile().delete());
+    } catch (IOException e) {
+      ourLog.warn("Failed to delete export directory " + theDirectory, e);
+    }
+  }
+
+  private void runWorker(ExportJob theJob, TypeExport theType) {
+    try {
+      theJob.myStatus.compareAndSet(JobStatus.SUBMITTED, JobStatus.BUILDING);
+      if (theJob.myStatus.get() != JobStatus.ERROR) {
+        exportChunks(theJob, theType);
+      }
+    } catch (Exception e) {
+      ourLog.error("Failure during parallel export of " + theType.myResourceType + " in job " + theJob.myJobId, e);
+      theJob.myError = e.toString();
+      theJob.myStatus.set(JobStatus.ERROR);
+    } finally {
+      if (theType.myRemainingWorkers.decrementAndGet() == 0) {
+        closeQuietly(theJob, theType);
+      }
+      if (theJob.myRemainingWorkers.decrementAndGet() == 0) {
+        theJob.myCompleted = new Date();
+        theJob.myStatus.compareAndSet(JobStatus.BUILDING, JobStatus.COMPLETE);
+        ourLog.info("Parallel export job {} finished with status {} after {}ms", theJob.myJobId, theJob.myStatus.get(), theJob.myCompleted.getTime() - theJob.mySubmitted.getTime());
+      }
+    }
+  }
+
+  private void exportChunks(ExportJob theJob, TypeExport theType) throws IOException {
+    IBundleProvider provider = theType.getOrCreateSearch(theJob.mySince);
+    IParser parser = myFhirContext.newJsonParser();
+
+    while (theJob.myStatus.get() != JobStatus.ERROR) {
+      int from = theType.myNextOffset.getAndAdd(myChunkSize);
+      List<IBaseResource> resources = provider.getResources(from, from + myChunkSize);
+      if (resources.isEmpty()) {
+        Integer size = provider.size();
+        if (size == null || from >= size) {
+          return;
+        }
+        continue;
+      }
+
+      // Encoding happens outside of the writer lock so that workers only serialise on disk I/O
+      List<byte[]> lines = new ArrayList<>(resources.size());
+      for (IBaseResource next : resources) {
+        lines.add(parser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8));
+      }
+      theType.myWriter.write(lines);
+    }
+  }
+
+  private void closeQuietly(ExportJob theJob, TypeExport theType) {
+    try {
+      theType.myWriter.close();
+    } catch (IOException e) {
+      ourLog.error("Failed to close export file for " + theType.myResourceType + " in job " + theJob.myJobId, e);
+      theJob.myError = e.toString();
+      theJob.myStatus.set(JobStatus.ERROR);
+    }
+  }
+
+  public static class ExportJob {
+
+    private final String myJobId;
+    private final Path myDirectory;
+    private final Date mySince;
+    private final String myTenantId;
+    private final Date mySubmitted = new Date();
+    private final Map<String, TypeExport> myTypes = new LinkedHashMap<>();
+    private final AtomicInteger myRemainingWorkers = new AtomicInteger();
+    private final AtomicReference<JobStatus> myStatus = new AtomicReference<>(JobStatus.SUBMITTED);
+    private volatile String myError;
+    private volatile Date myCompleted;
+
+    private ExportJob(String theJobId, Path theDirectory, Date theSince, String theTenantId) {
+      myJobId = theJobId;
+      myDirectory = theDirectory;
+      mySince = theSince;
+      myTenantId = theTenantId;
+    }
+
+    public String getJobId() {
+      return myJobId;
+    }
+
+    public String getTenantId() {
+      return myTenantId;
+    }
+
+    public JobStatus getStatus() {
+      return myStatus.get();
+    }
+
+    public String getError() {
+      return myError;
+    }
+
+    public Date getSubmitted() {
+      return mySubmitted;
+    }
+
+    public Date getCompleted() {
+      return myCompleted;
+    }
+
+    public Map<String, TypeExport> getTypes() {
+      return Collections.unmodifiableMap(myTypes);
+    }
+  }
+
+  public class TypeExport {
+
+    private final String myResourceType;
+    private final NdjsonWriter myWriter;
+    private final AtomicInteger myNextOffset = new AtomicInteger();
+    private final AtomicInteger myRemainingWorkers = new AtomicInteger(myThreadCount);
+    private final RequestDetails myRequestDetails;
+    private IBundleProvider mySearch;
+
+    private TypeExport(String theResourceType, Path theDirectory, long theFileRolloverBytes, RequestDetails theRequestDetails) {
+      myResourceType = theResourceType;
+      myWriter = new NdjsonWriter(theDirectory, theResourceType, theFileRolloverBytes);
+      myRequestDetails = theRequestDetails;
+    }
+
+    private synchronized IBundleProvider getOrCreateSearch(Date theSince) {
+      if (mySearch == null) {
+        SearchParameterMap map = new SearchParameterMap();
+        if (theSince != null) {
+          map.setLastUpdated(new DateRangeParam(theSince, null));
+        }
+        IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(myResourceType);
+        mySearch = dao.search(map, myRequestDetails);
+      }
+      return mySearch;
+    }
+
+    public String getResourceType() {
+      return myResourceType;
+    }
+
+    public long getResourceCount() {
+      return myWriter.myLineCount.get();
+    }
+
+    public List<Path> getFiles() {
+      return myWriter.getFiles();
+    }
+
+    /**
+     * @return Returns the file with the given name if it belongs to this export, or <code>null</code>
+     */
+    public Path getFile(String theFileName) {
+      return getFiles().stream()
+        .filter(t -> t.getFileName().toString().equals(theFileName))
+        .findFirst()
+        .orElse(null);
+    }
+  }
+
+  /**
+   * Appends NDJSON lines to a sequence of files named
+   * <code>[resourceType]_[index].ndjson</code>, starting a new file whenever
+   * the current one would grow beyond the rollover size.
+   */
+  private static class NdjsonWriter {
+
+    private final Path myDirectory;
+    private final String myResourceType;
+    private final long myRolloverBytes;
+    private final List<Path> myFiles = new ArrayList<>();
+    private final AtomicLong myLineCount = new AtomicLong();
+    private OutputStream myOutputStream;
+    private long myCurrentBytes;
+
+    private NdjsonWriter(Path theDirectory, String theResourceType, long theRolloverBytes) {
+      myDirectory = theDirectory;
+      myResourceType = theResourceType;
+      myRolloverBytes = theRolloverBytes;
+    }
+
+    private synchronized void write(List<byte[]> theLines) throws IOException {
+      for (byte[] next : theLines) {
+        long lineBytes = next.length + NEWLINE.length;
+        if (myOutputStream == null || (myCurrentBytes > 0 && myCurrentBytes + lineBytes > myRolloverBytes)) {
+          rollover();
+        }
+        myOutputStream.write(next);
+        myOutputStream.write(NEWLINE);
+        myCurrentBytes += lineBytes;
+        myLineCount.incrementAndGet();
+      }
+    }
+
+    private void rollover() throws IOException {
+      if (myOutputStream != null) {
+        myOutputStream.close();
+      }
+      Path file = myDirectory.resolve(String.format("%s_%03d.ndjson", myResourceType, myFiles.size() + 1));
+      myOutputStream = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+      myFiles.add(file);
+      myCurrentBytes = 0;
+    }
+
+    private synchronized void close() throws IOException {
+      if (myOutputStream != null) {
+        myOutputStream.close();
+        myOutputStream = null;
+      }
+    }
+
+    private synchronized List<Path> getFiles() {
+      return new ArrayList<>(myFiles);
+    }
+  }
+
+}
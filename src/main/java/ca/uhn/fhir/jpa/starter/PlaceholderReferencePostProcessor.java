@@ -0,0 +1,92 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Lets the {@link PlaceholderReferenceSvc} collect the reference targets of a
+ * Bundle passed to {@link IFhirSystemDao#transaction(RequestDetails, Object)}
+ * before the DAO processes it, so they can be created together within the
+ * transaction of the Bundle.
+ */
+public class PlaceholderReferencePostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+  private BeanFactory myBeanFactory;
+
+  @Override
+  public void setBeanFactory(BeanFactory theBeanFactory) throws BeansException {
+    myBeanFactory = theBeanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (!HapiProperties.getPlaceholderBatchingEnabled() || !(theBean instanceof IFhirSystemDao)) {
+      return theBean;
+    }
+
+    PlaceholderAdvice advice = new PlaceholderAdvice(myBeanFactory);
+    if (theBean instanceof Advised && !((Advised) theBean).isFrozen()) {
+      ((Advised) theBean).addAdvice(0, advice);
+      return theBean;
+    }
+
+    ProxyFactory proxyFactory = new ProxyFactory(theBean);
+    proxyFactory.addAdvice(advice);
+    return proxyFactory.getProxy();
+  }
+
+  private static class PlaceholderAdvice implements MethodInterceptor {
+
+    private final BeanFactory myBeanFactory;
+
+    private PlaceholderAdvice(BeanFactory theBeanFactory) {
+      myBeanFactory = theBeanFactory;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation theInvocation) throws Throwable {
+      Object[] arguments = theInvocation.getArguments();
+      if (theInvocation.getMethod().getName().equals("transaction") && arguments.length == 2 && arguments[1] instanceof IBaseBundle) {
+        RequestDetails requestDetails = arguments[0] instanceof RequestDetails ? (RequestDetails) arguments[0] : null;
+        PlaceholderReferenceSvc placeholderReferenceSvc = myBeanFactory.getBean(PlaceholderReferenceSvc.class);
+        if (placeholderReferenceSvc.prepare(requestDetails, (IBaseBundle) arguments[1])) {
+          try {
+            return theInvocation.proceed();
+          } finally {
+            placeholderReferenceSvc.release(requestDetails);
+          }
+        }
+      }
+      return theInvocation.proceed();
+    }
+  }
+
+}
@@ -0,0 +1,400 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.model.entity.ForcedId;
+import ca.uhn.fhir.jpa.model.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.JpaInterceptorBroadcaster;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Creates the placeholder reference targets of a transaction or batch Bundle
+ * together, instead of one at a time while the entries are written.
+ * <p>
+ * Before the Bundle is processed, the literal references (<code>Type/id</code>)
+ * of all entries are collected. When the first entry is about to be stored,
+ * within the Bundle's own database transaction, the targets are checked
+ * against the forced IDs with one query per resource type and
+ * {@value #QUERY_CHUNK_SIZE} IDs, and those which neither exist nor are written
+ * by the Bundle itself are persisted as entities without any query in between,
+ * so Hibernate sends their inserts in JDBC batches. Their bodies are stored in
+ * the configured resource encoding, and the pre-storage and pre-commit hooks
+ * are called for every placeholder, as the DAO would. When the entries are
+ * indexed, every reference resolves to an existing resource.
+ * <p>
+ * The placeholders of a transaction Bundle are rolled back with it. The
+ * entries of a batch Bundle have transactions of their own; if the one
+ * creating the placeholders fails, the next entry creates them again. Batches
+ * split by the {@link ParallelBatchSvc} are prepared per entry instead, as
+ * their entries are stored concurrently. Numeric IDs which can not be
+ * assigned by clients, and partitioned servers, are left to the regular
+ * processing.
+ */
+public class PlaceholderReferenceSvc {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PlaceholderReferenceSvc.class);
+  static final int QUERY_CHUNK_SIZE = 500;
+  /**
+   * User data key of the collected reference targets. Request details copied
+   * for parts of the Bundle must not take it along, see {@link ParallelBatchSvc}.
+   */
+  static final String USER_DATA_PENDING = PlaceholderReferenceSvc.class.getName() + "_PENDING";
+
+  @Autowired
+  private FhirContext myFhirContext;
+  @Autowired
+  private DaoRegistry myDaoRegistry;
+  @Autowired
+  private DaoConfig myDaoConfig;
+  @Autowired
+  private IInterceptorBroadcaster myInterceptorBroadcaster;
+  @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+  private EntityManager myEntityManager;
+
+  private final int myMinimumReferences;
+  private final StorageInterceptor myStorageInterceptor = new StorageInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theMinimumReferences Bundles with fewer distinct reference targets are left to the regular processing
+   */
+  public PlaceholderReferenceSvc(int theMinimumReferences) {
+    Validate.isTrue(theMinimumReferences > 0, "theMinimumReferences must be positive");
+    myMinimumReferences = theMinimumReferences;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor service
+   */
+  public Object getStorageInterceptor() {
+    return myStorageInterceptor;
+  }
+
+  /**
+   * Collects the reference targets of the Bundle, which are created once the
+   * first entry of the request is stored
+   *
+   * @return Returns <code>true</code> if the Bundle's placeholders will be created together
+   */
+  public boolean prepare(RequestDetails theRequestDetails, IBaseBundle theBundle) {
+    if (theRequestDetails == null || !myDaoConfig.isAutoCreatePlaceholderReferenceTargets() || HapiProperties.getPartitioningEnabled()) {
+      return false;
+    }
+    String bundleType = BundleUtil.getBundleType(myFhirContext, theBundle);
+    if (!"transaction".equals(bundleType) && !"batch".equals(bundleType)) {
+      return false;
+    }
+    if (theRequestDetails.getUserData().containsKey(USER_DATA_PENDING)) {
+      // An entry of a Bundle which is already prepared
+      return false;
+    }
+
+    Map<String, Set<String>> targets = collectReferenceTargets(theBundle);
+    int targetCount = targets.values().stream().mapToInt(Set::size).sum();
+    if (targetCount < myMinimumReferences) {
+      return false;
+    }
+    theRequestDetails.getUserData().put(USER_DATA_PENDING, new PendingPlaceholders(targets));
+    return true;
+  }
+
+  /**
+   * Forgets the reference targets collected by {@link #prepare(RequestDetails, IBaseBundle)}
+   */
+  public void release(RequestDetails theRequestDetails) {
+    theRequestDetails.getUserData().remove(USER_DATA_PENDING);
+  }
+
+  /**
+   * Creates the placeholders of the request within the current transaction,
+   * unless another entry of the request already has
+   */
+  private void createPending(RequestDetails theRequestDetails) {
+    if (theRequestDetails == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+      return;
+    }
+    PendingPlaceholders pending = (PendingPlaceholders) theRequestDetails.getUserData().get(USER_DATA_PENDING);
+    if (pending == null || !pending.myClaimed.compareAndSet(false, true)) {
+      return;
+    }
+
+    // A batch entry which rolls back hands the placeholders on to the next entry
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCompletion(int theStatus) {
+        if (theStatus != TransactionSynchronization.STATUS_COMMITTED) {
+          pending.myClaimed.set(false);
+        }
+      }
+    });
+
+    Map<String, Set<String>> missing = findMissing(pending.myTargets);
+    int missingCount = missing.values().stream().mapToInt(Set::size).sum();
+    if (missingCount > 0) {
+      persistPlaceholders(missing, theRequestDetails);
+    }
+    ourLog.debug("Created {} placeholder reference targets for {} references", missingCount, pending.myTargets.values().stream().mapToInt(Set::size).sum());
+  }
+
+  private void persistPlaceholders(Map<String, Set<String>> theMissing, RequestDetails theRequestDetails) {
+    Date now = new Date();
+    ResourceEncodingEnum encoding = myDaoConfig.getResourceEncoding();
+    List<IBaseResource> placeholders = new ArrayList<>();
+    for (Map.Entry<String, Set<String>> next : theMissing.entrySet()) {
+      for (String nextId : next.getValue()) {
+        IBaseResource placeholder = myFhirContext.getResourceDefinition(next.getKey()).newInstance();
+        placeholder.setId(next.getKey() + "/" + nextId + "/_history/1");
+        // Lets the hooks veto the placeholder, e.g. a Subscription on a sharded tenant
+        callHooks(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED, placeholder, theRequestDetails);
+
+        ResourceTable entity = new ResourceTable();
+        entity.setResourceType(next.getKey());
+        entity.setVersion(1);
+        entity.setPublished(now);
+        entity.setUpdated(now);
+        entity.setFhirVersion(myFhirContext.getVersion().getVersion());
+        entity.setIndexStatus(BaseHapiFhirDao.INDEX_STATUS_INDEXED);
+        ForcedId forcedId = new ForcedId();
+        forcedId.setForcedId(nextId);
+        forcedId.setResourceType(next.getKey());
+        forcedId.setResource(entity);
+        entity.setForcedId(forcedId);
+        myEntityManager.persist(entity);
+        myEntityManager.persist(forcedId);
+
+        ResourceHistoryTable history = entity.toHistory();
+        history.setEncoding(encoding);
+        history.setResource(encodeResource(placeholder, encoding));
+        myEntityManager.persist(history);
+        placeholders.add(placeholder);
+      }
+    }
+
+    // Sends the inserts, ordered by table, before any hook can run a query
+    myEntityManager.flush();
+
+    for (IBaseResource next : placeholders) {
+      callHooks(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED, next, theRequestDetails);
+    }
+  }
+
+  /**
+   * Encodes the body of a placeholder the way the DAO stores it in the given encoding
+   */
+  private byte[] encodeResource(IBaseResource theResource, ResourceEncodingEnum theEncoding) {
+    String encoded = theEncoding.newParser(myFhirContext).encodeResourceToString(theResource);
+    if (theEncoding != ResourceEncodingEnum.JSONC) {
+      return encoded.getBytes(StandardCharsets.UTF_8);
+    }
+    ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(retVal)) {
+      gzip.write(encoded.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to compress placeholder " + theResource.getIdElement().getValue(), e);
+    }
+    return retVal.toByteArray();
+  }
+
+  /**
+   * Calls the hooks the DAO calls for a created resource, on the storage
+   * interceptors and those of the request. Parameters of the pointcut which a
+   * placeholder has no value for are passed as <code>null</code>.
+   */
+  private void callHooks(Pointcut thePointcut, IBaseResource theResource, RequestDetails theRequestDetails) {
+    Map<String, Object> values = new HashMap<>();
+    values.put(IBaseResource.class.getName(), theResource);
+    values.put(RequestDetails.class.getName(), theRequestDetails);
+    values.put(ServletRequestDetails.class.getName(), theRequestDetails instanceof ServletRequestDetails ? theRequestDetails : null);
+
+    HookParams params = new HookParams();
+    for (String next : thePointcut.getParameterTypes()) {
+      params.add(loadParameterType(next), values.get(next));
+    }
+    JpaInterceptorBroadcaster.doCallHooks(myInterceptorBroadcaster, theRequestDetails, thePointcut, params);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<Object> loadParameterType(String theClassName) {
+    try {
+      return (Class<Object>) Class.forName(theClassName);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Unknown hook parameter type " + theClassName, e);
+    }
+  }
+
+  /**
+   * @return Returns the IDs referenced by the entries of the Bundle, by resource
+   * type, without those of resources the Bundle writes itself
+   */
+  private Map<String, Set<String>> collectReferenceTargets(IBaseBundle theBundle) {
+    Map<String, Set<String>> retVal = new TreeMap<>();
+    Set<String> written = new HashSet<>();
+    FhirTerser terser = myFhirContext.newTerser();
+    boolean numericIdsAllowed = myDaoConfig.getResourceClientIdStrategy() == DaoConfig.ClientIdStrategyEnum.ANY;
+
+    for (IBase next : terser.getValues(theBundle, "Bundle.entry")) {
+      addWritten(written, getPrimitiveValue(terser, next, "fullUrl"));
+      addWritten(written, getPrimitiveValue(terser, next, "request.url"));
+      List<IBaseResource> resources = terser.getValues(next, "resource", IBaseResource.class);
+      if (resources.isEmpty()) {
+        continue;
+      }
+      IBaseResource resource = resources.get(0);
+      addWritten(written, resource.getIdElement().getValue());
+
+      for (IBaseReference nextReference : terser.getAllPopulatedChildElementsOfType(resource, IBaseReference.class)) {
+        IIdType target = nextReference.getReferenceElement();
+        if (target == null || target.isEmpty() || target.isAbsolute() || target.isLocal() || !target.hasResourceType() || !target.hasIdPart()) {
+          continue;
+        }
+        String resourceType = target.getResourceType();
+        String idPart = target.getIdPart();
+        if (!myDaoRegistry.isResourceTypeSupported(resourceType) || idPart.contains("?") || (!numericIdsAllowed && StringUtils.isNumeric(idPart))) {
+          continue;
+        }
+        retVal.computeIfAbsent(resourceType, t -> new TreeSet<>()).add(idPart);
+      }
+    }
+
+    for (String next : written) {
+      String[] parts = next.split("/");
+      Set<String> ids = retVal.get(parts[0]);
+      if (ids != null) {
+        ids.remove(parts[1]);
+      }
+    }
+    return retVal;
+  }
+
+  private static String getPrimitiveValue(FhirTerser theTerser, IBase theElement, String thePath) {
+    List<IPrimitiveType> values = theTerser.getValues(theElement, thePath, IPrimitiveType.class);
+    return values.isEmpty() ? null : values.get(0).getValueAsString();
+  }
+
+  private static void addWritten(Set<String> theWritten, String theUrl) {
+    if (StringUtils.isBlank(theUrl) || theUrl.contains("?") || theUrl.startsWith("urn:")) {
+      return;
+    }
+    String[] parts = StringUtils.removeEnd(theUrl, "/").split("/");
+    if (parts.length >= 2) {
+      // Type/id, optionally after a base URL or followed by _history/version
+      int typeIndex = parts.length >= 4 && "_history".equals(parts[parts.length - 2]) ? parts.length - 4 : parts.length - 2;
+      theWritten.add(parts[typeIndex] + "/" + parts[typeIndex + 1]);
+    }
+  }
+
+  private Map<String, Set<String>> findMissing(Map<String, Set<String>> theTargets) {
+    Map<String, Set<String>> retVal = new TreeMap<>();
+    for (Map.Entry<String, Set<String>> next : theTargets.entrySet()) {
+      Set<String> missing = new TreeSet<>(next.getValue());
+      for (List<String> nextChunk : Lists.partition(new ArrayList<>(next.getValue()), QUERY_CHUNK_SIZE)) {
+        List<String> existing = myEntityManager
+          .createQuery("SELECT f.myForcedId FROM ForcedId f WHERE f.myResourceType = :type AND f.myForcedId IN (:ids)", String.class)
+          .setParameter("type", next.getKey())
+          .setParameter("ids", nextChunk)
+          .getResultList();
+        missing.removeAll(existing);
+      }
+      if (!missing.isEmpty()) {
+        retVal.put(next.getKey(), missing);
+      }
+    }
+    return retVal;
+  }
+
+  /**
+   * The reference targets of the Bundle of a request, created by whichever entry is stored first
+   */
+  private static class PendingPlaceholders {
+
+    private final Map<String, Set<String>> myTargets;
+    private final AtomicBoolean myClaimed = new AtomicBoolean();
+
+    private PendingPlaceholders(Map<String, Set<String>> theTargets) {
+      myTargets = theTargets;
+    }
+  }
+
+  /**
+   * Storage hooks which create the placeholders before the first entry of the Bundle is stored
+   */
+  @Interceptor
+  public class StorageInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+    public void resourceCreated(RequestDetails theRequestDetails) {
+      createPending(theRequestDetails);
+    }
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+    public void resourceUpdated(RequestDetails theRequestDetails) {
+      createPending(theRequestDetails);
+    }
+  }
+
+}
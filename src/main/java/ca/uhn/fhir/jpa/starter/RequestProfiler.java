@@ -0,0 +1,206 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Collects latency histograms showing where request time goes:
+ * <ul>
+ * <li><code>request.[operation]</code>: whole requests, by REST operation type</li>
+ * <li><code>hooks.[service].[pointcut]</code>: all hooks of one pointcut of the
+ * server (<code>server</code>) or the storage (<code>storage</code>) interceptor
+ * service, measured between two hooks registered at the lowest and highest order</li>
+ * <li><code>dao.[type].[method]</code>: DAO calls, see {@link RequestProfilingPostProcessor}</li>
+ * </ul>
+ * HAPI invokes the hooks of a pointcut as one sequence without a callback per
+ * hook, so hook time is attributed to the pointcut; {@link #getHookNames(String)}
+ * lists the interceptors contributing to it. Pointcuts are only timed if they
+ * already had hooks when {@link #registerPointcutTimers(String, IInterceptorService)}
+ * was called, so pointcuts nobody listens to stay free. Nested invocations of a
+ * pointcut (e.g. a DAO call made from a hook of the same pointcut) are timed
+ * separately. A pointcut whose hooks abort processing (return <code>false</code>)
+ * is not recorded for that call.
+ */
+public class RequestProfiler {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RequestProfiler.class);
+  private static final String REQUEST_START_ATTRIBUTE = RequestProfiler.class.getName() + "_START";
+  private static final int MAX_NESTED_INVOCATIONS = 64;
+
+  private final Map<String, LatencyHistogram> myTimers = new ConcurrentHashMap<>();
+  private final Map<String, IInterceptorService> myServices = new ConcurrentHashMap<>();
+  private final RequestTimingInterceptor myRequestTimingInterceptor = new RequestTimingInterceptor();
+
+  /**
+   * Returns the server interceptor which times whole requests
+   */
+  public Object getRequestTimingInterceptor() {
+    return myRequestTimingInterceptor;
+  }
+
+  /**
+   * Times every pointcut of the given interceptor service which currently has
+   * hooks and returns nothing or a boolean
+   *
+   * @param theServiceName Name of the service used in the timer names
+   */
+  public void registerPointcutTimers(String theServiceName, IInterceptorService theInterceptorService) {
+    Validate.notBlank(theServiceName, "theServiceName must not be blank");
+    Validate.notNull(theInterceptorService, "theInterceptorService must not be null");
+    myServices.put(theServiceName, theInterceptorService);
+
+    ThreadLocal<List<Deque<PointcutInvocation>>> invocations = ThreadLocal.withInitial(RequestProfiler::newInvocationStacks);
+    int count = 0;
+    for (Pointcut next : Pointcut.values()) {
+      Class<?> returnType = next.getReturnType();
+      if ((returnType != void.class && returnType != boolean.class) || !theInterceptorService.hasHooks(next)) {
+        continue;
+      }
+      String timerName = "hooks." + theServiceName + "." + next.name();
+      int index = next.ordinal();
+      theInterceptorService.registerAnonymousInterceptor(next, Integer.MIN_VALUE, (thePointcut, theParams) -> {
+        Deque<PointcutInvocation> stack = invocations.get().get(index);
+        if (stack.size() >= MAX_NESTED_INVOCATIONS) {
+          // Only aborted invocations are left behind, drop the oldest
+          stack.removeLast();
+        }
+        stack.push(new PointcutInvocation(theParams, System.nanoTime()));
+      });
+      theInterceptorService.registerAnonymousInterceptor(next, Integer.MAX_VALUE, (thePointcut, theParams) -> {
+        // HAPI passes the same parameters to all hooks of one invocation; entries above it were aborted
+        Iterator<PointcutInvocation> iter = invocations.get().get(index).iterator();
+        while (iter.hasNext()) {
+          PointcutInvocation invocation = iter.next();
+          iter.remove();
+          if (invocation.myParams == theParams) {
+            record(timerName, System.nanoTime() - invocation.myStartNanos);
+            break;
+          }
+        }
+      });
+      count++;
+    }
+    ourLog.info("Profiling {} pointcuts of the {} interceptor service", count, theServiceName);
+  }
+
+  public void record(String theTimerName, long theNanos) {
+    myTimers.computeIfAbsent(theTimerName, t -> new LatencyHistogram()).record(theNanos);
+  }
+
+  /**
+   * @return Returns all timers sorted by name
+   */
+  public SortedMap<String, LatencyHistogram> getTimers() {
+    return new TreeMap<>(myTimers);
+  }
+
+  public void reset() {
+    myTimers.clear();
+  }
+
+  /**
+   * @return Returns the simple class names of the interceptors with hooks on
+   * the pointcut timed by the given timer, or an empty list for other timers
+   */
+  public List<String> getHookNames(String theTimerName) {
+    String[] parts = theTimerName.split("\\.");
+    if (parts.length != 3 || !parts[0].equals("hooks") || !myServices.containsKey(parts[1])) {
+      return new ArrayList<>();
+    }
+    Pointcut pointcut = Pointcut.valueOf(parts[2]);
+    Set<String> retVal = new TreeSet<>();
+    for (Object next : myServices.get(parts[1]).getAllRegisteredInterceptors()) {
+      for (Method nextMethod : next.getClass().getMethods()) {
+        Hook hook = MethodUtils.getAnnotation(nextMethod, Hook.class, true, true);
+        if (hook != null && hook.value() == pointcut) {
+          retVal.add(next.getClass().getSimpleName());
+        }
+      }
+    }
+    return new ArrayList<>(retVal);
+  }
+
+  private static List<Deque<PointcutInvocation>> newInvocationStacks() {
+    List<Deque<PointcutInvocation>> retVal = new ArrayList<>(Pointcut.values().length);
+    for (int i = 0; i < Pointcut.values().length; i++) {
+      retVal.add(new ArrayDeque<>());
+    }
+    return retVal;
+  }
+
+  private static class PointcutInvocation {
+
+    private final HookParams myParams;
+    private final long myStartNanos;
+
+    private PointcutInvocation(HookParams theParams, long theStartNanos) {
+      myParams = theParams;
+      myStartNanos = theStartNanos;
+    }
+  }
+
+  /**
+   * Server hooks which time whole requests
+   */
+  @Interceptor
+  public class RequestTimingInterceptor {
+
+    @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, order = Integer.MIN_VALUE)
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest) {
+      theRequest.setAttribute(REQUEST_START_ATTRIBUTE, System.nanoTime());
+      return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+      Object start = theServletRequestDetails.getServletRequest().getAttribute(REQUEST_START_ATTRIBUTE);
+      if (start instanceof Long) {
+        RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+        record("request." + (operationType != null ? operationType.name() : "UNKNOWN"), System.nanoTime() - (Long) start);
+      }
+    }
+  }
+
+}
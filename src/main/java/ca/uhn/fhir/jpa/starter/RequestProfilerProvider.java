@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level <code>$profiler</code> operation which reports the timers of the
+ * {@link RequestProfiler} by name, with the hooks behind each pointcut timer,
+ * and <code>$profiler-reset</code> which reports the timers and clears them.
+ */
+public class RequestProfilerProvider {
+
+  public static final String OPERATION_PROFILER = "$profiler";
+  public static final String OPERATION_PROFILER_RESET = "$profiler-reset";
+
+  private final FhirContext myFhirContext;
+  private final RequestProfiler myProfiler;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theProfiler    The profiler (must not be null)
+   */
+  public RequestProfilerProvider(FhirContext theFhirContext, RequestProfiler theProfiler) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theProfiler, "theProfiler must not be null");
+    myFhirContext = theFhirContext;
+    myProfiler = theProfiler;
+  }
+
+  @Operation(name = OPERATION_PROFILER, idempotent = true)
+  public IBaseParameters profiler() {
+    return toParameters();
+  }
+
+  @Operation(name = OPERATION_PROFILER_RESET)
+  public IBaseParameters profilerReset() {
+    IBaseParameters retVal = toParameters();
+    myProfiler.reset();
+    return retVal;
+  }
+
+  private IBaseParameters toParameters() {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    for (Map.Entry<String, LatencyHistogram> next : myProfiler.getTimers().entrySet()) {
+      LatencyHistogram histogram = next.getValue();
+      IBase timer = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "timer");
+      ParametersUtil.addPartString(myFhirContext, timer, "name", next.getKey());
+      ParametersUtil.addPartString(myFhirContext, timer, "count", Long.toString(histogram.getCount()));
+      ParametersUtil.addPartString(myFhirContext, timer, "totalMillis", formatMillis(histogram.getTotalMillis()));
+      ParametersUtil.addPartString(myFhirContext, timer, "meanMillis", formatMillis(histogram.getMeanMillis()));
+      ParametersUtil.addPartString(myFhirContext, timer, "p50Millis", formatMillis(histogram.getQuantileMillis(0.5)));
+      ParametersUtil.addPartString(myFhirContext, timer, "p95Millis", formatMillis(histogram.getQuantileMillis(0.95)));
+      ParametersUtil.addPartString(myFhirContext, timer, "p99Millis", formatMillis(histogram.getQuantileMillis(0.99)));
+      ParametersUtil.addPartString(myFhirContext, timer, "maxMillis", formatMillis(histogram.getMaxMillis()));
+      for (String nextHook : myProfiler.getHookNames(next.getKey())) {
+        ParametersUtil.addPartString(myFhirContext, timer, "hook", nextHook);
+      }
+    }
+    return retVal;
+  }
+
+  private static String formatMillis(double theMillis) {
+    return String.format(Locale.US, "%.3f", theMillis);
+  }
+
+}
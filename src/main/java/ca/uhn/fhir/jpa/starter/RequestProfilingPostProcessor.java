@@ -0,0 +1,104 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Times every call of the resource and system DAOs as
+ * <code>dao.[type].[method]</code> (<code>dao.system.[method]</code> for the
+ * system DAO) in the {@link RequestProfiler}. The advice is added in front of
+ * the transaction advice, so the time includes opening and committing the
+ * transaction. Accessors (<code>get*</code>, <code>set*</code>, <code>is*</code>)
+ * are not timed.
+ */
+public class RequestProfilingPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+  private BeanFactory myBeanFactory;
+
+  @Override
+  public void setBeanFactory(BeanFactory theBeanFactory) throws BeansException {
+    myBeanFactory = theBeanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (!HapiProperties.getProfilerEnabled()) {
+      return theBean;
+    }
+
+    String prefix;
+    if (theBean instanceof IFhirResourceDao) {
+      FhirContext fhirContext = myBeanFactory.getBean(FhirContext.class);
+      prefix = "dao." + fhirContext.getResourceType(((IFhirResourceDao<?>) theBean).getResourceType()) + ".";
+    } else if (theBean instanceof IFhirSystemDao) {
+      prefix = "dao.system.";
+    } else {
+      return theBean;
+    }
+
+    TimingAdvice advice = new TimingAdvice(myBeanFactory.getBean(RequestProfiler.class), prefix);
+    if (theBean instanceof Advised && !((Advised) theBean).isFrozen()) {
+      ((Advised) theBean).addAdvice(0, advice);
+      return theBean;
+    }
+
+    ProxyFactory proxyFactory = new ProxyFactory(theBean);
+    proxyFactory.addAdvice(advice);
+    return proxyFactory.getProxy();
+  }
+
+  private static class TimingAdvice implements MethodInterceptor {
+
+    private final RequestProfiler myProfiler;
+    private final String myPrefix;
+
+    private TimingAdvice(RequestProfiler theProfiler, String thePrefix) {
+      myProfiler = theProfiler;
+      myPrefix = thePrefix;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation theInvocation) throws Throwable {
+      String methodName = theInvocation.getMethod().getName();
+      if (methodName.startsWith("get") || methodName.startsWith("set") || methodName.startsWith("is") || theInvocation.getMethod().getDeclaringClass() == Object.class) {
+        return theInvocation.proceed();
+      }
+
+      long start = System.nanoTime();
+      try {
+        return theInvocation.proceed();
+      } finally {
+        myProfiler.record(myPrefix + methodName, System.nanoTime() - start);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,279 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * In-memory cache of parsed resources for a configured set of resource types,
+ * filled by {@link ResourceReadCachingPostProcessor} on reads of the current
+ * version of a resource.
+ * <p>
+ * Every type has its own bounded cache. Resources are copied on the way in and on
+ * the way out, so callers may modify what they get back. Writes replace the
+ * cached resource with a marker carrying the new version; a read which started
+ * before the write and finishes after it carries an older version and is not
+ * allowed to overwrite the marker, so it can not put a stale resource back.
+ */
+public class ResourceReadCache implements ICacheInvalidationSubscriber {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceReadCache.class);
+
+  private final FhirContext myFhirContext;
+  private final Map<String, TypeCache> myTypeCaches = new TreeMap<>();
+  private final InvalidatingInterceptor myInvalidatingInterceptor = new InvalidatingInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext   The FHIR context (must not be null)
+   * @param theResourceTypes The resource types to cache
+   * @param theMaxEntries    The maximum number of resources to cache per type
+   * @param theTtlSeconds    How long a resource may be served from the cache
+   */
+  public ResourceReadCache(FhirContext theFhirContext, Set<String> theResourceTypes, long theMaxEntries, long theTtlSeconds) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theResourceTypes, "theResourceTypes must not be null");
+    Validate.isTrue(theMaxEntries > 0, "theMaxEntries must be positive");
+    Validate.isTrue(theTtlSeconds > 0, "theTtlSeconds must be positive");
+    myFhirContext = theFhirContext;
+    for (String next : theResourceTypes) {
+      myTypeCaches.put(next, new TypeCache(theMaxEntries, theTtlSeconds));
+    }
+    ourLog.info("Caching reads of resource types {} ({} entries per type, {}s)", myTypeCaches.keySet(), theMaxEntries, theTtlSeconds);
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor
+   * service so that writes invalidate the cache
+   */
+  public Object getInvalidatingInterceptor() {
+    return myInvalidatingInterceptor;
+  }
+
+  public boolean isCachedType(String theResourceType) {
+    return myTypeCaches.containsKey(theResourceType);
+  }
+
+  /**
+   * @return Returns a copy of the cached resource, or <code>null</code>
+   */
+  public IBaseResource get(String theResourceType, String theIdPart, String theTenantId) {
+    TypeCache typeCache = myTypeCaches.get(theResourceType);
+    if (typeCache == null) {
+      return null;
+    }
+    CacheEntry entry = typeCache.myCache.getIfPresent(theIdPart);
+    if (entry == null || entry.myResource == null || !Objects.equals(entry.myTenantId, theTenantId)) {
+      typeCache.myMisses.increment();
+      return null;
+    }
+    typeCache.myHits.increment();
+    return copy(entry.myResource);
+  }
+
+  /**
+   * Stores a copy of a resource which has just been read
+   */
+  public void put(IBaseResource theResource, String theTenantId) {
+    String resourceType = myFhirContext.getResourceType(theResource);
+    TypeCache typeCache = myTypeCaches.get(resourceType);
+    IIdType id = theResource.getIdElement();
+    if (typeCache == null || !id.hasIdPart() || !id.hasVersionIdPart() || !id.isVersionIdPartValidLong()) {
+      return;
+    }
+    CacheEntry entry = new CacheEntry(id.getVersionIdPartAsLong(), copy(theResource), theTenantId, false);
+    typeCache.myCache.asMap().merge(id.getIdPart(), entry, (theExisting, theNew) -> {
+      if (theNew.myVersion != theExisting.myVersion) {
+        return theNew.myVersion > theExisting.myVersion ? theNew : theExisting;
+      }
+      return theExisting.myResource == null && !theExisting.myDeleted ? theNew : theExisting;
+    });
+  }
+
+  /**
+   * Replaces any cached copy of a resource with a marker for the given version
+   */
+  public void invalidate(String theResourceType, String theIdPart, long theVersion, boolean theDeleted) {
+    TypeCache typeCache = myTypeCaches.get(theResourceType);
+    if (typeCache == null) {
+      return;
+    }
+    CacheEntry marker = new CacheEntry(theVersion, null, null, theDeleted);
+    typeCache.myCache.asMap().merge(theIdPart, marker, (theExisting, theNew) -> theNew.myVersion >= theExisting.myVersion ? theNew : theExisting);
+  }
+
+  @Override
+  public void resourceChanged(String theResourceType, String theIdPart, Long theVersion, boolean theDeleted) {
+    invalidate(theResourceType, theIdPart, theVersion != null ? theVersion : Long.MAX_VALUE, theDeleted);
+  }
+
+  /**
+   * Drops everything cached for the given resource type
+   */
+  public void invalidateAll(String theResourceType) {
+    TypeCache typeCache = myTypeCaches.get(theResourceType);
+    if (typeCache != null) {
+      typeCache.myCache.invalidateAll();
+    }
+  }
+
+  /**
+   * @return Returns the statistics of every cached type, keyed by resource type
+   */
+  public Map<String, Statistics> getStatistics() {
+    Map<String, Statistics> retVal = new TreeMap<>();
+    myTypeCaches.forEach((theType, theCache) -> retVal.put(theType, new Statistics(
+      theCache.myCache.size(),
+      theCache.myHits.sum(),
+      theCache.myMisses.sum(),
+      theCache.myCache.stats().evictionCount())));
+    return Collections.unmodifiableMap(retVal);
+  }
+
+  private IBaseResource copy(IBaseResource theResource) {
+    IBaseResource retVal = myFhirContext.getResourceDefinition(theResource).newInstance();
+    myFhirContext.newTerser().cloneInto(theResource, retVal, true);
+    retVal.setId(theResource.getIdElement().getValue());
+    return retVal;
+  }
+
+  private void invalidate(IBaseResource theResource, boolean theDeleted) {
+    IIdType id = theResource.getIdElement();
+    String resourceType = myFhirContext.getResourceType(theResource);
+    if (!id.hasIdPart()) {
+      return;
+    }
+    if (id.hasVersionIdPart() && id.isVersionIdPartValidLong()) {
+      invalidate(resourceType, id.getIdPart(), id.getVersionIdPartAsLong(), theDeleted);
+    } else {
+      invalidate(resourceType, id.getIdPart(), Long.MAX_VALUE, theDeleted);
+    }
+  }
+
+  /**
+   * Storage hooks which invalidate the cached copy of every written resource
+   */
+  @Interceptor
+  public class InvalidatingInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+      invalidate(theResource, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+      invalidate(theNewResource, false);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+      invalidate(theResource, true);
+    }
+  }
+
+  /**
+   * Hit and miss counts of one cached resource type
+   */
+  public static class Statistics {
+
+    private final long mySize;
+    private final long myHitCount;
+    private final long myMissCount;
+    private final long myEvictionCount;
+
+    Statistics(long theSize, long theHitCount, long theMissCount, long theEvictionCount) {
+      mySize = theSize;
+      myHitCount = theHitCount;
+      myMissCount = theMissCount;
+      myEvictionCount = theEvictionCount;
+    }
+
+    public long getSize() {
+      return mySize;
+    }
+
+    public long getHitCount() {
+      return myHitCount;
+    }
+
+    public long getMissCount() {
+      return myMissCount;
+    }
+
+    public long getEvictionCount() {
+      return myEvictionCount;
+    }
+
+    public double getHitRate() {
+      long requests = myHitCount + myMissCount;
+      return requests == 0 ? 0.0 : (double) myHitCount / requests;
+    }
+  }
+
+  private static class TypeCache {
+
+    private final Cache<String, CacheEntry> myCache;
+    private final LongAdder myHits = new LongAdder();
+    private final LongAdder myMisses = new LongAdder();
+
+    private TypeCache(long theMaxEntries, long theTtlSeconds) {
+      myCache = CacheBuilder.newBuilder()
+        .maximumSize(theMaxEntries)
+        .expireAfterWrite(theTtlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    }
+  }
+
+  private static class CacheEntry {
+
+    private final long myVersion;
+    private final IBaseResource myResource;
+    private final String myTenantId;
+    private final boolean myDeleted;
+
+    private CacheEntry(long theVersion, IBaseResource theResource, String theTenantId, boolean theDeleted) {
+      myVersion = theVersion;
+      myResource = theResource;
+      myTenantId = theTenantId;
+      myDeleted = theDeleted;
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level operation reporting the hit rate of the {@link ResourceReadCache}
+ * for every cached resource type
+ */
+public class ResourceReadCacheProvider {
+
+  public static final String OPERATION_READ_CACHE_STATISTICS = "$read-cache-statistics";
+
+  private final FhirContext myFhirContext;
+  private final ResourceReadCache myCache;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theCache       The read cache (must not be null)
+   */
+  public ResourceReadCacheProvider(FhirContext theFhirContext, ResourceReadCache theCache) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theCache, "theCache must not be null");
+    myFhirContext = theFhirContext;
+    myCache = theCache;
+  }
+
+  @Operation(name = OPERATION_READ_CACHE_STATISTICS, idempotent = true)
+  public IBaseParameters readCacheStatistics() {
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    for (Map.Entry<String, ResourceReadCache.Statistics> next : myCache.getStatistics().entrySet()) {
+      ResourceReadCache.Statistics statistics = next.getValue();
+      IBase type = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "type");
+      ParametersUtil.addPartString(myFhirContext, type, "name", next.getKey());
+      ParametersUtil.addPartString(myFhirContext, type, "size", Long.toString(statistics.getSize()));
+      ParametersUtil.addPartString(myFhirContext, type, "hits", Long.toString(statistics.getHitCount()));
+      ParametersUtil.addPartString(myFhirContext, type, "misses", Long.toString(statistics.getMissCount()));
+      ParametersUtil.addPartString(myFhirContext, type, "evictions", Long.toString(statistics.getEvictionCount()));
+      ParametersUtil.addPartString(myFhirContext, type, "hitRate", String.format(Locale.US, "%.4f", statistics.getHitRate()));
+    }
+    return retVal;
+  }
+
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Puts the {@link ResourceReadCache} in front of the <code>read</code> methods of
+ * the resource DAOs of every cached type, so REST reads and server side code
+ * reading through the {@link ca.uhn.fhir.jpa.api.dao.DaoRegistry} (such as the
+ * {@link PushInterceptor}) are both served from it.
+ * <p>
+ * The advice is added in front of the transactional proxy, so a cache hit does
+ * not open a transaction. Note that a hit also skips the storage access hooks
+ * (<code>STORAGE_PREACCESS_RESOURCES</code> and
+ * <code>STORAGE_PRESHOW_RESOURCES</code>), so the cache must not be used
+ * together with interceptors which rely on them to filter reads.
+ */
+public class ResourceReadCachingPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceReadCachingPostProcessor.class);
+
+  private BeanFactory myBeanFactory;
+
+  @Override
+  public void setBeanFactory(BeanFactory theBeanFactory) throws BeansException {
+    myBeanFactory = theBeanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (!HapiProperties.getResourceReadCacheEnabled() || !(theBean instanceof IFhirResourceDao)) {
+      return theBean;
+    }
+
+    FhirContext fhirContext = myBeanFactory.getBean(FhirContext.class);
+    String resourceType = fhirContext.getResourceType(((IFhirResourceDao<?>) theBean).getResourceType());
+    ResourceReadCache cache = myBeanFactory.getBean(ResourceReadCache.class);
+    if (!cache.isCachedType(resourceType)) {
+      return theBean;
+    }
+
+    ourLog.info("Caching reads of {} through DAO bean {}", resourceType, theBeanName);
+    DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(new ReadMethodPointcut(), new ReadCachingAdvice(cache, resourceType));
+    if (theBean instanceof Advised && !((Advised) theBean).isFrozen()) {
+      ((Advised) theBean).addAdvisor(0, advisor);
+      return theBean;
+    }
+
+    ProxyFactory proxyFactory = new ProxyFactory(theBean);
+    proxyFactory.addAdvisor(advisor);
+    return proxyFactory.getProxy();
+  }
+
+  /**
+   * Matches <code>read(IIdType, ...)</code>
+   */
+  private static class ReadMethodPointcut extends StaticMethodMatcherPointcut {
+
+    @Override
+    public boolean matches(Method theMethod, Class<?> theTargetClass) {
+      return theMethod.getName().equals("read")
+        && theMethod.getParameterCount() > 0
+        && IIdType.class.isAssignableFrom(theMethod.getParameterTypes()[0]);
+    }
+  }
+
+  private static class ReadCachingAdvice implements MethodInterceptor {
+
+    private final ResourceReadCache myCache;
+    private final String myResourceType;
+
+    private ReadCachingAdvice(ResourceReadCache theCache, String theResourceType) {
+      myCache = theCache;
+      myResourceType = theResourceType;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation theInvocation) throws Throwable {
+      Object[] args = theInvocation.getArguments();
+      IIdType id = (IIdType) args[0];
+      // Version specific reads and reads which may return deleted resources always go to the database
+      boolean deletedOk = args.length > 2 && Boolean.TRUE.equals(args[2]);
+      if (id == null || !id.hasIdPart() || id.hasVersionIdPart() || deletedOk) {
+        return theInvocation.proceed();
+      }
+
+      RequestDetails requestDetails = args.length > 1 && args[1] instanceof RequestDetails ? (RequestDetails) args[1] : null;
+      String tenantId = requestDetails != null ? requestDetails.getTenantId() : null;
+      IBaseResource cached = myCache.get(myResourceType, id.getIdPart(), tenantId);
+      if (cached != null) {
+        return cached;
+      }
+
+      Object retVal = theInvocation.proceed();
+      if (retVal instanceof IBaseResource) {
+        myCache.put((IBaseResource) retVal, tenantId);
+      }
+      return retVal;
+    }
+  }
+
+}
@@ -0,0 +1,473 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ca.uhn.fhir.rest.api.Constants;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Servlet filter which compresses responses with gzip or deflate, as preferred
+ * by the client's <code>Accept-Encoding</code> header.
+ * <p>
+ * The first bytes of a response are held back until the minimum size is reached.
+ * Smaller responses are sent as they are, larger ones
+ * are compressed as they are written, so the serializer streams straight into the
+ * compressor and the full response is never held in memory. Only textual content
+ * types are compressed. <code>Accept-Encoding</code> is hidden from the FHIR
+ * servlet, so responses are never compressed twice.
+ */
+public class ResponseCompressionFilter implements Filter {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResponseCompressionFilter.class);
+  private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String HEADER_VARY = "Vary";
+  private static final String HEADER_RANGE = "Range";
+  private static final String ENCODING_GZIP = "gzip";
+  private static final String ENCODING_DEFLATE = "deflate";
+  private static final List<String> COMPRESSIBLE_CONTENT_TYPES = Collections.unmodifiableList(Arrays.asList(
+    "application/fhir+json", "application/json+fhir", "application/json",
+    "application/fhir+xml", "application/xml+fhir", "application/xml",
+    "application/fhir+ndjson", "application/ndjson", "text/"));
+
+  private boolean myEnabled;
+  private int myMinimumSize;
+  private int myLevel;
+
+  @Override
+  public void init(FilterConfig theFilterConfig) {
+    myEnabled = HapiProperties.getResponseCompressionEnabled();
+    myMinimumSize = HapiProperties.getResponseCompressionMinimumSize();
+    myLevel = HapiProperties.getResponseCompressionLevel();
+    if (myEnabled) {
+      ourLog.info("Compressing responses of at least {} bytes with level {}", myMinimumSize, myLevel);
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest theRequest, ServletResponse theResponse, FilterChain theChain) throws IOException, ServletException {
+    if (!myEnabled || !(theRequest instanceof HttpServletRequest)) {
+      theChain.doFilter(theRequest, theResponse);
+      return;
+    }
+
+    HttpServletRequest request = (HttpServletRequest) theRequest;
+    HttpServletResponse response = (HttpServletResponse) theResponse;
+    String encoding = chooseEncoding(request.getHeader(HEADER_ACCEPT_ENCODING));
+    if (encoding == null || "HEAD".equals(request.getMethod()) || request.getHeader(HEADER_RANGE) != null) {
+      theChain.doFilter(theRequest, theResponse);
+      return;
+    }
+
+    response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+    CompressingResponseWrapper wrapper = new CompressingResponseWrapper(response, encoding);
+    try {
+      theChain.doFilter(new NoAcceptEncodingRequestWrapper(request), wrapper);
+    } finally {
+      wrapper.finish();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    // nothing
+  }
+
+  /**
+   * @return Returns the preferred supported content coding, or <code>null</code> if the
+   * client doesn't accept a supported one
+   */
+  static String chooseEncoding(String theAcceptEncoding) {
+    if (StringUtils.isBlank(theAcceptEncoding)) {
+      return null;
+    }
+
+    double gzip = -1;
+    double deflate = -1;
+    double wildcard = -1;
+    for (String next : theAcceptEncoding.split(",")) {
+      String[] parts = next.trim().split(";");
+      String coding = parts[0].trim().toLowerCase(Locale.US);
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals(ENCODING_GZIP) || coding.equals("x-gzip")) {
+        gzip = quality;
+      } else if (coding.equals(ENCODING_DEFLATE)) {
+        deflate = quality;
+      } else if (coding.equals("*")) {
+        wildcard = quality;
+      }
+    }
+
+    if (gzip < 0) {
+      gzip = wildcard;
+    }
+    if (deflate < 0) {
+      deflate = wildcard;
+    }
+    if (gzip > 0 && gzip >= deflate) {
+      return ENCODING_GZIP;
+    }
+    if (deflate > 0) {
+      return ENCODING_DEFLATE;
+    }
+    return null;
+  }
+
+  private static boolean isCompressible(String theContentType) {
+    if (theContentType == null) {
+      return false;
+    }
+    String contentType = theContentType.toLowerCase(Locale.US);
+    return COMPRESSIBLE_CONTENT_TYPES.stream().anyMatch(contentType::startsWith);
+  }
+
+  /**
+   * Hides <code>Accept-Encoding</code> so the FHIR servlet doesn't compress by itself
+   */
+  private static class NoAcceptEncodingRequestWrapper extends HttpServletRequestWrapper {
+
+    private NoAcceptEncodingRequestWrapper(HttpServletRequest theRequest) {
+      super(theRequest);
+    }
+
+    @Override
+    public String getHeader(String theName) {
+      return HEADER_ACCEPT_ENCODING.equalsIgnoreCase(theName) ? null : super.getHeader(theName);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String theName) {
+      return HEADER_ACCEPT_ENCODING.equalsIgnoreCase(theName) ? Collections.emptyEnumeration() : super.getHeaders(theName);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      List<String> names = Collections.list(super.getHeaderNames());
+      names.removeIf(HEADER_ACCEPT_ENCODING::equalsIgnoreCase);
+      return Collections.enumeration(names);
+    }
+  }
+
+  private class CompressingResponseWrapper extends HttpServletResponseWrapper {
+
+    private final String myEncoding;
+    private final ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+    private long myContentLength = -1;
+    private boolean myDecided;
+    private boolean myCompressing;
+    private boolean myFinished;
+    private Deflater myDeflater;
+    private OutputStream myTarget;
+    private ServletOutputStream myOutputStream;
+    private PrintWriter myWriter;
+
+    private CompressingResponseWrapper(HttpServletResponse theResponse, String theEncoding) {
+      super(theResponse);
+      myEncoding = theEncoding;
+    }
+
+    @Override
+    public void setContentLength(int theLength) {
+      setContentLengthLong(theLength);
+    }
+
+    @Override
+    public void setContentLengthLong(long theLength) {
+      if (myDecided) {
+        if (!myCompressing) {
+          super.setContentLengthLong(theLength);
+        }
+      } else {
+        myContentLength = theLength;
+      }
+    }
+
+    @Override
+    public void setHeader(String theName, String theValue) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        setContentLengthLong(Long.parseLong(theValue));
+      } else {
+        super.setHeader(theName, theValue);
+      }
+    }
+
+    @Override
+    public void addHeader(String theName, String theValue) {
+      if (Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(theName)) {
+        setContentLengthLong(Long.parseLong(theValue));
+      } else {
+        super.addHeader(theName, theValue);
+      }
+    }
+
+    @Override
+    public void sendError(int theStatus, String theMessage) throws IOException {
+      decide(false);
+      super.sendError(theStatus, theMessage);
+    }
+
+    @Override
+    public void sendError(int theStatus) throws IOException {
+      decide(false);
+      super.sendError(theStatus);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      if (myWriter != null) {
+        throw new IllegalStateException("getWriter() has already been called");
+      }
+      if (myOutputStream == null) {
+        myOutputStream = new CompressingOutputStream();
+      }
+      return myOutputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (myWriter == null) {
+        if (myOutputStream != null) {
+          throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        myOutputStream = new CompressingOutputStream();
+        myWriter = new PrintWriter(new OutputStreamWriter(myOutputStream, getCharacterEncoding()));
+      }
+      return myWriter;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (myWriter != null) {
+        myWriter.flush();
+      }
+      flushStream();
+      if (myDecided) {
+        super.flushBuffer();
+      }
+    }
+
+    /**
+     * Only succeeds while the response isn't committed. The headers are gone
+     * with it, so the response starts over as if nothing had been written.
+     */
+    @Override
+    public void reset() {
+      super.reset();
+      releaseDeflater();
+      myDecided = false;
+      myCompressing = false;
+      myTarget = null;
+      myOutputStream = null;
+      myWriter = null;
+      myBuffer.reset();
+      myContentLength = -1;
+    }
+
+    @Override
+    public void resetBuffer() {
+      super.resetBuffer();
+      myBuffer.reset();
+      if (myCompressing) {
+        // The start of the compressed stream went with the buffer, so begin a new one
+        releaseDeflater();
+        try {
+          myTarget = openCompressingStream();
+        } catch (IOException e) {
+          throw new IllegalStateException("Failed to restart the compressed response", e);
+        }
+      }
+    }
+
+    private void decide(boolean theCompress) throws IOException {
+      if (myDecided) {
+        return;
+      }
+      myDecided = true;
+      int status = getStatus();
+      myCompressing = theCompress
+        && isCompressible(getContentType())
+        && getHeader(Constants.HEADER_CONTENT_ENCODING) == null
+        && status != SC_NO_CONTENT
+        && status != SC_NOT_MODIFIED;
+
+      HttpServletResponse response = (HttpServletResponse) getResponse();
+      if (myCompressing) {
+        response.setHeader(Constants.HEADER_CONTENT_ENCODING, myEncoding);
+        myTarget = openCompressingStream();
+      } else {
+        if (myContentLength >= 0) {
+          response.setContentLengthLong(myContentLength);
+        }
+        myTarget = response.getOutputStream();
+      }
+
+      myBuffer.writeTo(myTarget);
+      myBuffer.reset();
+    }
+
+    private OutputStream openCompressingStream() throws IOException {
+      OutputStream target = getResponse().getOutputStream();
+      if (ENCODING_GZIP.equals(myEncoding)) {
+        return new GZIPOutputStream(target, 8192, true) {
+          {
+            def.setLevel(myLevel);
+            myDeflater = def;
+          }
+        };
+      }
+      myDeflater = new Deflater(myLevel);
+      return new DeflaterOutputStream(target, myDeflater, 8192, true);
+    }
+
+    /**
+     * Releases the native resources of a compressing stream which won't be finished
+     */
+    private void releaseDeflater() {
+      if (myDeflater != null) {
+        myDeflater.end();
+        myDeflater = null;
+      }
+    }
+
+    private void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+      if (!myDecided) {
+        if (myContentLength >= 0 && myContentLength < myMinimumSize) {
+          decide(false);
+        } else if (myBuffer.size() + theLength < myMinimumSize) {
+          myBuffer.write(theBytes, theOffset, theLength);
+          return;
+        } else {
+          decide(true);
+        }
+      }
+      myTarget.write(theBytes, theOffset, theLength);
+    }
+
+    private void flushStream() throws IOException {
+      // Below the threshold there is nothing worth sending yet
+      if (myDecided) {
+        myTarget.flush();
+      }
+    }
+
+    private void finish() throws IOException {
+      if (myFinished) {
+        return;
+      }
+      myFinished = true;
+      if (myWriter != null) {
+        myWriter.flush();
+      }
+      if (!myDecided) {
+        if (myContentLength < 0 && myBuffer.size() > 0) {
+          myContentLength = myBuffer.size();
+        }
+        decide(false);
+      }
+      if (myCompressing) {
+        // Writes the trailer, then releases the native resources of the deflater
+        myTarget.close();
+        releaseDeflater();
+      }
+    }
+
+    private class CompressingOutputStream extends ServletOutputStream {
+
+      @Override
+      public void write(int theByte) throws IOException {
+        CompressingResponseWrapper.this.write(new byte[]{(byte) theByte}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+        CompressingResponseWrapper.this.write(theBytes, theOffset, theLength);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        flushStream();
+      }
+
+      @Override
+      public void close() throws IOException {
+        finish();
+      }
+
+      /**
+       * Compressed output is written to the container's stream, so readiness
+       * and write listeners are those of the container's stream
+       */
+      @Override
+      public boolean isReady() {
+        try {
+          return getResponse().getOutputStream().isReady();
+        } catch (IOException e) {
+          return false;
+        }
+      }
+
+      @Override
+      public void setWriteListener(WriteListener theWriteListener) {
+        try {
+          getResponse().getOutputStream().setWriteListener(theWriteListener);
+        } catch (IOException e) {
+          theWriteListener.onError(e);
+        }
+      }
+    }
+  }
+
+}
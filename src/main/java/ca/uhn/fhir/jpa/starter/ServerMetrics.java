@@ -0,0 +1,543 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Collects the server's metrics and renders them in the Prometheus text
+ * exposition format, see {@link MetricsServlet}.
+ * <p>
+ * Request counts and latencies are recorded by the {@link #getRequestInterceptor()
+ * request interceptor}, search reuse and subscription processing by the
+ * {@link #getStorageInterceptor() storage interceptor}. Connection pool,
+ * Hibernate (if <code>hibernate.generate_statistics</code> is on), cache,
+ * tenant usage and JVM figures are read when the metrics are scraped.
+ */
+public class ServerMetrics {
+
+  private static final String REQUEST_START_ATTRIBUTE = ServerMetrics.class.getName() + "_START";
+  private static final String RESOURCE_TYPE_OTHER = "other";
+
+  private final FhirContext myFhirContext;
+  private final Set<String> myResourceTypes;
+  private final BasicDataSource myDataSource;
+  private final EntityManagerFactory myEntityManagerFactory;
+  private final Map<RequestKey, LatencyHistogram> myRequestLatencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> myResponseCounts = new ConcurrentHashMap<>();
+  private final LongAdder mySearchesExecuted = new LongAdder();
+  private final LongAdder mySearchesReused = new LongAdder();
+  private final LongAdder mySubscriptionResourcesMatched = new LongAdder();
+  private final LongAdder mySubscriptionDeliveriesStarted = new LongAdder();
+  private final LongAdder mySubscriptionDeliveriesSucceeded = new LongAdder();
+  private final LongAdder mySubscriptionDeliveriesFailed = new LongAdder();
+  private final RequestInterceptor myRequestInterceptor = new RequestInterceptor();
+  private final StorageInterceptor myStorageInterceptor = new StorageInterceptor();
+  private ResourceReadCache myResourceReadCache;
+  private TenantUsageTracker myTenantUsageTracker;
+  private MatchUrlCache myMatchUrlCache;
+  private ExpungeSchedulerSvc myExpungeSchedulerSvc;
+  private HistoryRetentionSvc myHistoryRetentionSvc;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext          The FHIR context (must not be null)
+   * @param theDataSource           The connection pool (must not be null)
+   * @param theEntityManagerFactory The entity manager factory (must not be null)
+   */
+  public ServerMetrics(FhirContext theFhirContext, BasicDataSource theDataSource, EntityManagerFactory theEntityManagerFactory) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theDataSource, "theDataSource must not be null");
+    Validate.notNull(theEntityManagerFactory, "theEntityManagerFactory must not be null");
+    myFhirContext = theFhirContext;
+    myResourceTypes = Collections.unmodifiableSet(new HashSet<>(theFhirContext.getResourceTypes()));
+    myDataSource = theDataSource;
+    myEntityManagerFactory = theEntityManagerFactory;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the REST server
+   */
+  public Object getRequestInterceptor() {
+    return myRequestInterceptor;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor service
+   */
+  public Object getStorageInterceptor() {
+    return myStorageInterceptor;
+  }
+
+  /**
+   * Adds the statistics of the resource read cache to the metrics
+   */
+  public void setResourceReadCache(ResourceReadCache theResourceReadCache) {
+    myResourceReadCache = theResourceReadCache;
+  }
+
+  /**
+   * Adds the statistics of the match URL cache to the metrics
+   */
+  public void setMatchUrlCache(MatchUrlCache theMatchUrlCache) {
+    myMatchUrlCache = theMatchUrlCache;
+  }
+
+  /**
+   * Adds the progress of the expunge scheduler to the metrics
+   */
+  public void setExpungeSchedulerSvc(ExpungeSchedulerSvc theExpungeSchedulerSvc) {
+    myExpungeSchedulerSvc = theExpungeSchedulerSvc;
+  }
+
+  /**
+   * Adds the versions pruned by the history retention to the metrics
+   */
+  public void setHistoryRetentionSvc(HistoryRetentionSvc theHistoryRetentionSvc) {
+    myHistoryRetentionSvc = theHistoryRetentionSvc;
+  }
+
+  /**
+   * Adds the per tenant usage to the metrics
+   */
+  public void setTenantUsageTracker(TenantUsageTracker theTenantUsageTracker) {
+    myTenantUsageTracker = theTenantUsageTracker;
+  }
+
+  public void write(Writer theWriter) throws IOException {
+    PrometheusWriter w = new PrometheusWriter(theWriter);
+    writeRequestMetrics(w);
+    writeSearchMetrics(w);
+    writeSubscriptionMetrics(w);
+    writeCacheMetrics(w);
+    writeTenantMetrics(w);
+    writeExpungeMetrics(w);
+    writeConnectionPoolMetrics(w);
+    writeHibernateMetrics(w);
+    writeJvmMetrics(w);
+    w.flush();
+  }
+
+  private void writeRequestMetrics(PrometheusWriter theWriter) {
+    theWriter.type("hapi_requests_total", "counter", "Completed requests by REST operation, resource type and status");
+    for (Map.Entry<String, LongAdder> next : new TreeMap<>(myResponseCounts).entrySet()) {
+      String[] parts = next.getKey().split("\\|", -1);
+      theWriter.sample("hapi_requests_total", next.getValue().sum(), "operation", parts[0], "resource_type", parts[1], "status", parts[2]);
+    }
+
+    theWriter.type("hapi_request_duration_seconds", "histogram", "Request latency by REST operation and resource type");
+    double[] bounds = LatencyHistogram.getBucketBoundsSeconds();
+    SortedMap<RequestKey, LatencyHistogram> latencies = new TreeMap<>(myRequestLatencies);
+    for (Map.Entry<RequestKey, LatencyHistogram> next : latencies.entrySet()) {
+      String operation = next.getKey().myOperation;
+      String resourceType = next.getKey().myResourceType;
+      long[] counts = next.getValue().getCumulativeBucketCounts();
+      for (int i = 0; i < bounds.length; i++) {
+        theWriter.sample("hapi_request_duration_seconds_bucket", counts[i], "operation", operation, "resource_type", resourceType, "le", formatDouble(bounds[i]));
+      }
+      long count = counts[counts.length - 1];
+      theWriter.sample("hapi_request_duration_seconds_bucket", count, "operation", operation, "resource_type", resourceType, "le", "+Inf");
+      theWriter.sample("hapi_request_duration_seconds_sum", next.getValue().getTotalMillis() / 1000, "operation", operation, "resource_type", resourceType);
+      theWriter.sample("hapi_request_duration_seconds_count", count, "operation", operation, "resource_type", resourceType);
+    }
+  }
+
+  private void writeSearchMetrics(PrometheusWriter theWriter) {
+    theWriter.type("hapi_searches_total", "counter", "Searches executed against the database or answered from a reused cached search");
+    theWriter.sample("hapi_searches_total", mySearchesExecuted.sum(), "result", "executed");
+    theWriter.sample("hapi_searches_total", mySearchesReused.sum(), "result", "reused");
+  }
+
+  private void writeSubscriptionMetrics(PrometheusWriter theWriter) {
+    theWriter.type("hapi_subscription_matches_total", "counter", "Resources which matched a subscription");
+    theWriter.sample("hapi_subscription_matches_total", mySubscriptionResourcesMatched.sum());
+
+    theWriter.type("hapi_subscription_deliveries_total", "counter", "Finished subscription deliveries by outcome");
+    theWriter.sample("hapi_subscription_deliveries_total", mySubscriptionDeliveriesSucceeded.sum(), "outcome", "success");
+    theWriter.sample("hapi_subscription_deliveries_total", mySubscriptionDeliveriesFailed.sum(), "outcome", "failure");
+
+    // Matched resources are queued for delivery, deliveries start when they are taken off the queue
+    long queued = mySubscriptionResourcesMatched.sum() - mySubscriptionDeliveriesStarted.sum();
+    long inProgress = mySubscriptionDeliveriesStarted.sum() - mySubscriptionDeliveriesSucceeded.sum() - mySubscriptionDeliveriesFailed.sum();
+    theWriter.type("hapi_subscription_delivery_queue_depth", "gauge", "Matched resources waiting for delivery");
+    theWriter.sample("hapi_subscription_delivery_queue_depth", Math.max(0, queued));
+    theWriter.type("hapi_subscription_deliveries_in_progress", "gauge", "Subscription deliveries currently running");
+    theWriter.sample("hapi_subscription_deliveries_in_progress", Math.max(0, inProgress));
+  }
+
+  private void writeCacheMetrics(PrometheusWriter theWriter) {
+    if (myResourceReadCache != null) {
+      Map<String, ResourceReadCache.Statistics> statistics = myResourceReadCache.getStatistics();
+      theWriter.type("hapi_resource_read_cache_requests_total", "counter", "Reads looked up in the resource read cache by result");
+      for (Map.Entry<String, ResourceReadCache.Statistics> next : statistics.entrySet()) {
+        theWriter.sample("hapi_resource_read_cache_requests_total", next.getValue().getHitCount(), "resource_type", next.getKey(), "result", "hit");
+        theWriter.sample("hapi_resource_read_cache_requests_total", next.getValue().getMissCount(), "resource_type", next.getKey(), "result", "miss");
+      }
+      theWriter.type("hapi_resource_read_cache_size", "gauge", "Entries in the resource read cache");
+      for (Map.Entry<String, ResourceReadCache.Statistics> next : statistics.entrySet()) {
+        theWriter.sample("hapi_resource_read_cache_size", next.getValue().getSize(), "resource_type", next.getKey());
+      }
+    }
+
+    if (myMatchUrlCache != null) {
+      theWriter.type("hapi_match_url_cache_requests_total", "counter", "Identifier match URLs looked up in the match URL cache by result");
+      theWriter.sample("hapi_match_url_cache_requests_total", myMatchUrlCache.getHitCount(), "result", "hit");
+      theWriter.sample("hapi_match_url_cache_requests_total", myMatchUrlCache.getMissCount(), "result", "miss");
+    }
+
+    if (myFhirContext.getNarrativeGenerator() instanceof CachingNarrativeGenerator) {
+      CachingNarrativeGenerator narrativeGenerator = (CachingNarrativeGenerator) myFhirContext.getNarrativeGenerator();
+      theWriter.type("hapi_narrative_cache_requests_total", "counter", "Narratives looked up in the narrative cache by result");
+      theWriter.sample("hapi_narrative_cache_requests_total", narrativeGenerator.getHitCount(), "result", "hit");
+      theWriter.sample("hapi_narrative_cache_requests_total", narrativeGenerator.getMissCount(), "result", "miss");
+    }
+  }
+
+  private void writeTenantMetrics(PrometheusWriter theWriter) {
+    if (myTenantUsageTracker == null) {
+      return;
+    }
+    SortedMap<String, TenantUsageTracker.TenantUsage> usage = myTenantUsageTracker.getUsage();
+
+    theWriter.type("hapi_tenant_requests_total", "counter", "Completed requests by tenant and operation class");
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : usage.entrySet()) {
+      for (Map.Entry<String, Long> nextCount : next.getValue().getRequestCounts().entrySet()) {
+        theWriter.sample("hapi_tenant_requests_total", nextCount.getValue(), "tenant", next.getKey(), "operation_class", nextCount.getKey());
+      }
+    }
+    theWriter.type("hapi_tenant_requests_failed_total", "counter", "Failed requests by tenant and reason");
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : usage.entrySet()) {
+      theWriter.sample("hapi_tenant_requests_failed_total", next.getValue().getErrorCount(), "tenant", next.getKey(), "reason", "error");
+      theWriter.sample("hapi_tenant_requests_failed_total", next.getValue().getRejectedCount(), "tenant", next.getKey(), "reason", "rejected");
+    }
+
+    theWriter.type("hapi_tenant_request_duration_seconds", "histogram", "Request latency by tenant");
+    double[] bounds = LatencyHistogram.getBucketBoundsSeconds();
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : usage.entrySet()) {
+      LatencyHistogram latency = next.getValue().getLatency();
+      long[] counts = latency.getCumulativeBucketCounts();
+      for (int i = 0; i < bounds.length; i++) {
+        theWriter.sample("hapi_tenant_request_duration_seconds_bucket", counts[i], "tenant", next.getKey(), "le", formatDouble(bounds[i]));
+      }
+      long count = counts[counts.length - 1];
+      theWriter.sample("hapi_tenant_request_duration_seconds_bucket", count, "tenant", next.getKey(), "le", "+Inf");
+      theWriter.sample("hapi_tenant_request_duration_seconds_sum", latency.getTotalMillis() / 1000, "tenant", next.getKey());
+      theWriter.sample("hapi_tenant_request_duration_seconds_count", count, "tenant", next.getKey());
+    }
+
+    theWriter.type("hapi_tenant_versions_written_total", "counter", "Resource versions written by tenant");
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : usage.entrySet()) {
+      theWriter.sample("hapi_tenant_versions_written_total", next.getValue().getVersionsWritten(), "tenant", next.getKey());
+    }
+    theWriter.type("hapi_tenant_bytes_written_total", "counter", "JSON bytes of the resource versions written by tenant");
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : usage.entrySet()) {
+      theWriter.sample("hapi_tenant_bytes_written_total", next.getValue().getBytesWritten(), "tenant", next.getKey());
+    }
+  }
+
+  private void writeExpungeMetrics(PrometheusWriter theWriter) {
+    if (myHistoryRetentionSvc != null) {
+      theWriter.type("hapi_history_versions_pruned_total", "counter", "Resource versions expunged by the history retention on this node");
+      theWriter.sample("hapi_history_versions_pruned_total", myHistoryRetentionSvc.getVersionsPruned());
+    }
+    if (myExpungeSchedulerSvc == null) {
+      return;
+    }
+    theWriter.type("hapi_expunge_jobs_queued", "gauge", "Expunge jobs waiting or running");
+    theWriter.sample("hapi_expunge_jobs_queued", myExpungeSchedulerSvc.getQueuedJobCount());
+    theWriter.type("hapi_expunge_job_running", "gauge", "Whether this node is running an expunge job");
+    theWriter.sample("hapi_expunge_job_running", myExpungeSchedulerSvc.isRunning() ? 1 : 0);
+    theWriter.type("hapi_expunge_resources_scanned_total", "counter", "Resources processed by expunge jobs on this node");
+    theWriter.sample("hapi_expunge_resources_scanned_total", myExpungeSchedulerSvc.getResourcesScanned());
+    theWriter.type("hapi_expunge_rows_total", "counter", "Rows expunged by expunge jobs on this node");
+    theWriter.sample("hapi_expunge_rows_total", myExpungeSchedulerSvc.getRowsExpunged());
+  }
+
+  private void writeConnectionPoolMetrics(PrometheusWriter theWriter) {
+    theWriter.type("hapi_db_pool_connections", "gauge", "Database connections by state");
+    theWriter.sample("hapi_db_pool_connections", myDataSource.getNumActive(), "state", "active");
+    theWriter.sample("hapi_db_pool_connections", myDataSource.getNumIdle(), "state", "idle");
+    theWriter.type("hapi_db_pool_connections_max", "gauge", "Maximum number of database connections");
+    theWriter.sample("hapi_db_pool_connections_max", myDataSource.getMaxTotal());
+  }
+
+  private void writeHibernateMetrics(PrometheusWriter theWriter) {
+    Statistics statistics = myEntityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    if (!statistics.isStatisticsEnabled()) {
+      return;
+    }
+
+    theWriter.type("hibernate_sessions_opened_total", "counter", "Hibernate sessions opened");
+    theWriter.sample("hibernate_sessions_opened_total", statistics.getSessionOpenCount());
+    theWriter.type("hibernate_transactions_total", "counter", "Hibernate transactions by outcome");
+    theWriter.sample("hibernate_transactions_total", statistics.getSuccessfulTransactionCount(), "outcome", "success");
+    theWriter.sample("hibernate_transactions_total", statistics.getTransactionCount() - statistics.getSuccessfulTransactionCount(), "outcome", "failure");
+    theWriter.type("hibernate_statements_prepared_total", "counter", "JDBC statements prepared");
+    theWriter.sample("hibernate_statements_prepared_total", statistics.getPrepareStatementCount());
+    theWriter.type("hibernate_flushes_total", "counter", "Session flushes");
+    theWriter.sample("hibernate_flushes_total", statistics.getFlushCount());
+    theWriter.type("hibernate_queries_executed_total", "counter", "HQL/JPQL queries executed");
+    theWriter.sample("hibernate_queries_executed_total", statistics.getQueryExecutionCount());
+    theWriter.type("hibernate_query_execution_max_seconds", "gauge", "Slowest query execution");
+    theWriter.sample("hibernate_query_execution_max_seconds", statistics.getQueryExecutionMaxTime() / 1000.0);
+    theWriter.type("hibernate_entities_total", "counter", "Entity operations by kind");
+    theWriter.sample("hibernate_entities_total", statistics.getEntityLoadCount(), "operation", "load");
+    theWriter.sample("hibernate_entities_total", statistics.getEntityFetchCount(), "operation", "fetch");
+    theWriter.sample("hibernate_entities_total", statistics.getEntityInsertCount(), "operation", "insert");
+    theWriter.sample("hibernate_entities_total", statistics.getEntityUpdateCount(), "operation", "update");
+    theWriter.sample("hibernate_entities_total", statistics.getEntityDeleteCount(), "operation", "delete");
+    theWriter.type("hibernate_second_level_cache_requests_total", "counter", "Second level cache lookups by result");
+    theWriter.sample("hibernate_second_level_cache_requests_total", statistics.getSecondLevelCacheHitCount(), "result", "hit");
+    theWriter.sample("hibernate_second_level_cache_requests_total", statistics.getSecondLevelCacheMissCount(), "result", "miss");
+  }
+
+  private void writeJvmMetrics(PrometheusWriter theWriter) {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    theWriter.type("jvm_memory_bytes", "gauge", "JVM memory by area and kind");
+    writeMemoryUsage(theWriter, "heap", memory.getHeapMemoryUsage());
+    writeMemoryUsage(theWriter, "nonheap", memory.getNonHeapMemoryUsage());
+
+    theWriter.type("jvm_gc_collections_total", "counter", "Garbage collections by collector");
+    for (GarbageCollectorMXBean next : ManagementFactory.getGarbageCollectorMXBeans()) {
+      theWriter.sample("jvm_gc_collections_total", next.getCollectionCount(), "gc", next.getName());
+    }
+    theWriter.type("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection by collector");
+    for (GarbageCollectorMXBean next : ManagementFactory.getGarbageCollectorMXBeans()) {
+      theWriter.sample("jvm_gc_collection_seconds_total", next.getCollectionTime() / 1000.0, "gc", next.getName());
+    }
+
+    theWriter.type("jvm_threads", "gauge", "Live JVM threads");
+    theWriter.sample("jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+    theWriter.type("jvm_uptime_seconds", "gauge", "JVM uptime");
+    theWriter.sample("jvm_uptime_seconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+  }
+
+  private static void writeMemoryUsage(PrometheusWriter theWriter, String theArea, MemoryUsage theUsage) {
+    theWriter.sample("jvm_memory_bytes", theUsage.getUsed(), "area", theArea, "kind", "used");
+    theWriter.sample("jvm_memory_bytes", theUsage.getCommitted(), "area", theArea, "kind", "committed");
+    if (theUsage.getMax() >= 0) {
+      theWriter.sample("jvm_memory_bytes", theUsage.getMax(), "area", theArea, "kind", "max");
+    }
+  }
+
+  /**
+   * Maps the resource name of the request to a label, collapsing names which
+   * aren't resource types (e.g. typos in the URL) into one value so clients
+   * can't grow the number of series
+   */
+  private String toResourceTypeLabel(String theResourceName) {
+    if (StringUtils.isBlank(theResourceName)) {
+      return "";
+    }
+    return myResourceTypes.contains(theResourceName) ? theResourceName : RESOURCE_TYPE_OTHER;
+  }
+
+  private static String formatDouble(double theValue) {
+    if (theValue == Math.rint(theValue) && Math.abs(theValue) < 1e15) {
+      return Long.toString((long) theValue);
+    }
+    return Double.toString(theValue);
+  }
+
+  /**
+   * Server hooks which count and time every request
+   */
+  @Interceptor
+  public class RequestInterceptor {
+
+    @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, order = Integer.MIN_VALUE)
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest) {
+      theRequest.setAttribute(REQUEST_START_ATTRIBUTE, System.nanoTime());
+      return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+      RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+      String operation = operationType != null ? operationType.getCode() : "unknown";
+      String resourceType = toResourceTypeLabel(theRequestDetails.getResourceName());
+      int status = theServletRequestDetails.getServletResponse().getStatus();
+
+      myResponseCounts.computeIfAbsent(operation + "|" + resourceType + "|" + status, t -> new LongAdder()).increment();
+      Object start = theServletRequestDetails.getServletRequest().getAttribute(REQUEST_START_ATTRIBUTE);
+      if (start instanceof Long) {
+        myRequestLatencies.computeIfAbsent(new RequestKey(operation, resourceType), t -> new LatencyHistogram()).record(System.nanoTime() - (Long) start);
+      }
+    }
+  }
+
+  /**
+   * Storage hooks which count searches and subscription processing
+   */
+  @Interceptor
+  public class StorageInterceptor {
+
+    @Hook(Pointcut.JPA_PERFTRACE_SEARCH_REUSING_CACHED)
+    public void searchReusingCached() {
+      mySearchesReused.increment();
+    }
+
+    @Hook(Pointcut.JPA_PERFTRACE_SEARCH_COMPLETE)
+    public void searchComplete() {
+      mySearchesExecuted.increment();
+    }
+
+    @Hook(Pointcut.JPA_PERFTRACE_SEARCH_FAILED)
+    public void searchFailed() {
+      mySearchesExecuted.increment();
+    }
+
+    @Hook(Pointcut.SUBSCRIPTION_RESOURCE_MATCHED)
+    public boolean subscriptionResourceMatched() {
+      mySubscriptionResourcesMatched.increment();
+      return true;
+    }
+
+    @Hook(Pointcut.SUBSCRIPTION_BEFORE_DELIVERY)
+    public boolean subscriptionBeforeDelivery() {
+      mySubscriptionDeliveriesStarted.increment();
+      return true;
+    }
+
+    @Hook(Pointcut.SUBSCRIPTION_AFTER_DELIVERY)
+    public void subscriptionAfterDelivery() {
+      mySubscriptionDeliveriesSucceeded.increment();
+    }
+
+    @Hook(Pointcut.SUBSCRIPTION_AFTER_DELIVERY_FAILED)
+    public boolean subscriptionAfterDeliveryFailed() {
+      mySubscriptionDeliveriesFailed.increment();
+      return true;
+    }
+  }
+
+  private static class RequestKey implements Comparable<RequestKey> {
+
+    private final String myOperation;
+    private final String myResourceType;
+
+    private RequestKey(String theOperation, String theResourceType) {
+      myOperation = theOperation;
+      myResourceType = theResourceType;
+    }
+
+    @Override
+    public int compareTo(RequestKey theOther) {
+      int retVal = myOperation.compareTo(theOther.myOperation);
+      return retVal != 0 ? retVal : myResourceType.compareTo(theOther.myResourceType);
+    }
+
+    @Override
+    public boolean equals(Object theO) {
+      if (this == theO) {
+        return true;
+      }
+      if (!(theO instanceof RequestKey)) {
+        return false;
+      }
+      RequestKey that = (RequestKey) theO;
+      return myOperation.equals(that.myOperation) && myResourceType.equals(that.myResourceType);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myOperation, myResourceType);
+    }
+  }
+
+  /**
+   * Writes samples in the Prometheus text exposition format (version 0.0.4)
+   */
+  static class PrometheusWriter {
+
+    private final PrintWriter myWriter;
+
+    PrometheusWriter(Writer theWriter) {
+      myWriter = new PrintWriter(theWriter);
+    }
+
+    void type(String theName, String theType, String theHelp) {
+      myWriter.append("# HELP ").append(theName).append(' ').append(theHelp).append('\n');
+      myWriter.append("# TYPE ").append(theName).append(' ').append(theType).append('\n');
+    }
+
+    /**
+     * @param theLabels Alternating label names and values
+     */
+    void sample(String theName, double theValue, String... theLabels) {
+      myWriter.append(theName);
+      if (theLabels.length > 0) {
+        myWriter.append('{');
+        for (int i = 0; i < theLabels.length; i += 2) {
+          if (i > 0) {
+            myWriter.append(',');
+          }
+          myWriter.append(theLabels[i]).append("=\"").append(escape(theLabels[i + 1])).append('"');
+        }
+        myWriter.append('}');
+      }
+      myWriter.append(' ').append(formatDouble(theValue)).append('\n');
+    }
+
+    void flush() throws IOException {
+      myWriter.flush();
+      if (myWriter.checkError()) {
+        throw new IOException("Failed to write metrics");
+      }
+    }
+
+    private static String escape(String theValue) {
+      return theValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+  }
+
+}
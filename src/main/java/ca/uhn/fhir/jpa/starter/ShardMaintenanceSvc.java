@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.jpa.bulk.api.IBulkDataExportSvc;
+import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Runs the scheduled jobs of HAPI FHIR on the shards of a sharded server.
+ * <p>
+ * HAPI FHIR schedules its jobs without a request, so they only ever see the
+ * default data source of the {@link TenantRoutingDataSource}. This service runs
+ * the jobs which work on the tables of a shard (deleting stale searches, and
+ * building and purging bulk export files) once per shard, with that shard
+ * selected for the thread, at the intervals HAPI FHIR uses for the default
+ * data source. Work the jobs hand to thread pool executors keeps the shard,
+ * see {@link TenantShardPropagatingPostProcessor}.
+ */
+public class ShardMaintenanceSvc {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ShardMaintenanceSvc.class);
+  private static final long STALE_SEARCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long BULK_EXPORT_BUILD_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final long BULK_EXPORT_PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  @Autowired
+  private IStaleSearchDeletingSvc myStaleSearchDeletingSvc;
+  @Autowired
+  private IBulkDataExportSvc myBulkDataExportSvc;
+
+  private final Collection<String> myShardNames;
+  private final boolean myBulkExportEnabled;
+  private ScheduledExecutorService myExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param theShardNames        The shards to run the jobs on (must not be null)
+   * @param theBulkExportEnabled Whether to run the bulk export jobs
+   */
+  public ShardMaintenanceSvc(Collection<String> theShardNames, boolean theBulkExportEnabled) {
+    Validate.notNull(theShardNames, "theShardNames must not be null");
+    myShardNames = new TreeSet<>(theShardNames);
+    myBulkExportEnabled = theBulkExportEnabled;
+  }
+
+  @PostConstruct
+  public void start() {
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("shard-maintenance-%d")
+      .setDaemon(true)
+      .build());
+    myExecutor.scheduleWithFixedDelay(() -> runOnShards("delete stale searches", myStaleSearchDeletingSvc::pollForStaleSearchesAndDeleteThem),
+      STALE_SEARCH_INTERVAL_MILLIS, STALE_SEARCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    if (myBulkExportEnabled) {
+      myExecutor.scheduleWithFixedDelay(() -> runOnShards("build bulk export files", myBulkDataExportSvc::buildExportFiles),
+        BULK_EXPORT_BUILD_INTERVAL_MILLIS, BULK_EXPORT_BUILD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      myExecutor.scheduleWithFixedDelay(() -> runOnShards("purge bulk export files", myBulkDataExportSvc::purgeExpiredFiles),
+        BULK_EXPORT_PURGE_INTERVAL_MILLIS, BULK_EXPORT_PURGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    ourLog.info("Shard maintenance started for shards {}", myShardNames);
+  }
+
+  @PreDestroy
+  public void stop() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Runs the job on every shard; a failure on one shard doesn't keep it from running on the others
+   */
+  private void runOnShards(String theJobName, Runnable theJob) {
+    for (String next : myShardNames) {
+      try {
+        TenantRoutingDataSource.runInShard(next, theJob);
+      } catch (Exception e) {
+        ourLog.error("Failed to " + theJobName + " on shard " + next, e);
+      }
+    }
+  }
+
+}
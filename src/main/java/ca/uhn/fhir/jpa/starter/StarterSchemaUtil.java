@@ -0,0 +1,55 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Creates the few tables this server keeps next to the HAPI schema. The DDL
+ * handed in must stick to types every supported database understands
+ * (<code>BIGINT</code>, <code>SMALLINT</code>, <code>VARCHAR</code>).
+ */
+final class StarterSchemaUtil {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StarterSchemaUtil.class);
+
+  private StarterSchemaUtil() {
+    // utility class
+  }
+
+  /**
+   * Runs the given statements if the table can not be queried yet
+   *
+   * @param theCreateStatements The <code>CREATE TABLE</code> statement followed by any <code>CREATE INDEX</code> statements
+   */
+  static void createTableIfMissing(JdbcTemplate theJdbcTemplate, String theTableName, String... theCreateStatements) {
+    try {
+      theJdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + theTableName + " WHERE 1 = 0", Long.class);
+      return;
+    } catch (DataAccessException e) {
+      ourLog.info("Creating table {}", theTableName);
+    }
+
+    for (String next : theCreateStatements) {
+      theJdbcTemplate.execute(next);
+    }
+  }
+
+}
@@ -0,0 +1,477 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.model.valueset.BundleEntryTransactionMethodEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which answers JSON searches, history requests and
+ * <code>_getpages</code> requests by writing the resulting Bundle entry by entry,
+ * instead of building the complete Bundle in memory and encoding it afterwards.
+ * <p>
+ * The page is loaded from the bundle provider in small chunks; every chunk is
+ * encoded and flushed to the client before the next one is loaded, so the memory
+ * held per request is bounded by the chunk size and the first entries reach the
+ * client while the rest of the page is still being fetched. The Bundle envelope
+ * (total, self/next/previous links) is written before the first entry, and paging
+ * links point to the same <code>_getpages</code> URLs as the regular server uses.
+ * Entries get their <code>fullUrl</code> and search mode the way the server's
+ * bundle factory assigns them.
+ * <p>
+ * Only requests the regular server would answer identically are streamed: plain
+ * search parameters, no <code>_include</code>/<code>_revinclude</code>,
+ * <code>_summary</code>, <code>_elements</code>, <code>_sort</code> or
+ * <code>_total</code>, and JSON output. Everything else falls through to the
+ * normal processing. The interceptor runs after every other incoming request
+ * hook and calls the pre-handled hooks (e.g. authorization) itself before the
+ * search is run. Streamed responses bypass the outgoing response hooks, so the
+ * server refuses to combine streaming with response validation and the first
+ * page cache.
+ * <p>
+ * The search is run and the first chunk is loaded before anything is written,
+ * so invalid requests and failures while loading it are answered with a regular
+ * OperationOutcome. A failure after the first byte has been sent can only be
+ * signalled by aborting the response, which leaves the client with a truncated
+ * Bundle.
+ */
+@Interceptor
+public class StreamingBundleInterceptor {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StreamingBundleInterceptor.class);
+  private static final String BUNDLE_TYPE_SEARCHSET = "searchset";
+  private static final String BUNDLE_TYPE_HISTORY = "history";
+  private static final Set<String> STREAMABLE_SPECIAL_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    Constants.PARAM_COUNT,
+    Constants.PARAM_FORMAT,
+    Constants.PARAM_PRETTY,
+    Constants.PARAM_ID,
+    Constants.PARAM_LASTUPDATED,
+    Constants.PARAM_TAG,
+    Constants.PARAM_PROFILE,
+    Constants.PARAM_SECURITY,
+    Constants.PARAM_LANGUAGE,
+    Constants.PARAM_CONTENT,
+    Constants.PARAM_TEXT
+  )));
+  private static final Set<String> STREAMABLE_HISTORY_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    Constants.PARAM_COUNT,
+    Constants.PARAM_FORMAT,
+    Constants.PARAM_PRETTY,
+    Constants.PARAM_SINCE
+  )));
+  private static final Set<String> STREAMABLE_PAGING_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    Constants.PARAM_COUNT,
+    Constants.PARAM_FORMAT,
+    Constants.PARAM_PRETTY,
+    Constants.PARAM_PAGINGACTION,
+    Constants.PARAM_PAGINGOFFSET,
+    Constants.PARAM_BUNDLETYPE
+  )));
+
+  private final FhirContext myFhirContext;
+  private final DaoRegistry myDaoRegistry;
+  private final IFhirSystemDao<?, ?> mySystemDao;
+  private final MatchUrlService myMatchUrlService;
+  private final int myChunkSize;
+  private final JsonFactory myJsonFactory = new JsonFactory();
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext     The FHIR context (must not be null)
+   * @param theDaoRegistry     The DAO registry used to run searches (must not be null)
+   * @param theSystemDao       The system DAO used for server level history (must not be null)
+   * @param theMatchUrlService Translates request parameters into search parameter maps (must not be null)
+   * @param theChunkSize       The number of resources loaded and written at a time
+   */
+  public StreamingBundleInterceptor(FhirContext theFhirContext, DaoRegistry theDaoRegistry, IFhirSystemDao<?, ?> theSystemDao, MatchUrlService theMatchUrlService, int theChunkSize) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theDaoRegistry, "theDaoRegistry must not be null");
+    Validate.notNull(theSystemDao, "theSystemDao must not be null");
+    Validate.notNull(theMatchUrlService, "theMatchUrlService must not be null");
+    Validate.isTrue(theChunkSize > 0, "theChunkSize must be positive");
+    myFhirContext = theFhirContext;
+    myDaoRegistry = theDaoRegistry;
+    mySystemDao = theSystemDao;
+    myMatchUrlService = theMatchUrlService;
+    myChunkSize = theChunkSize;
+  }
+
+  /**
+   * Runs after every other post-processing hook, so those see the request before it is answered here
+   */
+  @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) throws IOException {
+    if (theRequestDetails.getRequestType() != RequestTypeEnum.GET || !isJsonResponse(theRequestDetails)) {
+      return true;
+    }
+    IPagingProvider pagingProvider = theRequestDetails.getServer().getPagingProvider();
+    if (pagingProvider == null) {
+      return true;
+    }
+
+    /*
+     * Run the search (or look up the stored one) before anything is written, so
+     * invalid requests are still answered with a regular OperationOutcome
+     */
+    IBundleProvider bundleProvider;
+    String bundleType;
+    int offset = 0;
+    RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+    if (operationType == RestOperationTypeEnum.SEARCH_TYPE) {
+      if (!hasOnlyParams(theRequestDetails, STREAMABLE_SPECIAL_PARAMS) || !myDaoRegistry.isResourceTypeSupported(theRequestDetails.getResourceName())) {
+        return true;
+      }
+      callPreHandledHooks(theRequestDetails, operationType);
+      bundleProvider = search(theRequestDetails, theServletResponse);
+      bundleType = BUNDLE_TYPE_SEARCHSET;
+    } else if (operationType == RestOperationTypeEnum.HISTORY_TYPE || operationType == RestOperationTypeEnum.HISTORY_INSTANCE || operationType == RestOperationTypeEnum.HISTORY_SYSTEM) {
+      if (!hasOnlyParams(theRequestDetails, STREAMABLE_HISTORY_PARAMS)) {
+        return true;
+      }
+      callPreHandledHooks(theRequestDetails, operationType);
+      bundleProvider = history(theRequestDetails);
+      bundleType = BUNDLE_TYPE_HISTORY;
+    } else if (operationType == RestOperationTypeEnum.GET_PAGE) {
+      if (!hasOnlyParams(theRequestDetails, STREAMABLE_PAGING_PARAMS)) {
+        return true;
+      }
+      callPreHandledHooks(theRequestDetails, operationType);
+      String searchId = theRequestDetails.getParameters().get(Constants.PARAM_PAGINGACTION)[0];
+      bundleProvider = pagingProvider.retrieveResultList(theRequestDetails, searchId);
+      if (bundleProvider == null) {
+        throw new ResourceGoneException("Search ID[" + searchId + "] does not exist and may have expired.");
+      }
+      bundleType = StringUtils.defaultIfBlank(getFirstParam(theRequestDetails, Constants.PARAM_BUNDLETYPE), BUNDLE_TYPE_SEARCHSET);
+      offset = Math.max(0, parseInt(getFirstParam(theRequestDetails, Constants.PARAM_PAGINGOFFSET), 0));
+    } else {
+      return true;
+    }
+
+    int count = pagingProvider.getDefaultPageSize();
+    String countParam = getFirstParam(theRequestDetails, Constants.PARAM_COUNT);
+    if (countParam != null) {
+      count = Math.max(0, parseInt(countParam, count));
+    }
+    count = Math.min(count, pagingProvider.getMaximumPageSize());
+
+    writeBundle(theRequestDetails, theServletResponse, bundleProvider, bundleType, offset, count);
+    return false;
+  }
+
+  /**
+   * Calls the hooks the server calls before handing a request to its provider,
+   * as the request never gets there. Parameters without a value here are passed
+   * as <code>null</code>.
+   */
+  private void callPreHandledHooks(RequestDetails theRequestDetails, RestOperationTypeEnum theOperationType) {
+    Pointcut pointcut = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED;
+    Map<String, Object> values = new HashMap<>();
+    values.put(RequestDetails.class.getName(), theRequestDetails);
+    values.put(ServletRequestDetails.class.getName(), theRequestDetails instanceof ServletRequestDetails ? theRequestDetails : null);
+    values.put(RestOperationTypeEnum.class.getName(), theOperationType);
+
+    HookParams params = new HookParams();
+    for (String next : pointcut.getParameterTypes()) {
+      params.add(loadParameterType(next), values.get(next));
+    }
+    theRequestDetails.getInterceptorBroadcaster().callHooks(pointcut, params);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<Object> loadParameterType(String theClassName) {
+    try {
+      return (Class<Object>) Class.forName(theClassName);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Unknown hook parameter type " + theClassName, e);
+    }
+  }
+
+  private IBundleProvider search(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) {
+    String resourceType = theRequestDetails.getResourceName();
+    StringBuilder matchUrl = new StringBuilder(resourceType).append('?');
+    for (Map.Entry<String, String[]> next : theRequestDetails.getParameters().entrySet()) {
+      if (next.getKey().equals(Constants.PARAM_COUNT) || next.getKey().equals(Constants.PARAM_FORMAT) || next.getKey().equals(Constants.PARAM_PRETTY)) {
+        continue;
+      }
+      for (String nextValue : next.getValue()) {
+        matchUrl.append(UrlUtil.escapeUrlParam(next.getKey())).append('=').append(UrlUtil.escapeUrlParam(nextValue)).append('&');
+      }
+    }
+
+    SearchParameterMap map = myMatchUrlService.translateMatchUrl(matchUrl.toString(), myFhirContext.getResourceDefinition(resourceType));
+    IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(resourceType);
+    return dao.search(map, theRequestDetails, theServletResponse);
+  }
+
+  private IBundleProvider history(RequestDetails theRequestDetails) {
+    String since = getFirstParam(theRequestDetails, Constants.PARAM_SINCE);
+    Date sinceDate = since != null ? new InstantDt(since).getValue() : null;
+
+    switch (theRequestDetails.getRestOperationType()) {
+      case HISTORY_INSTANCE:
+        IIdType id = theRequestDetails.getId().toUnqualifiedVersionless();
+        return myDaoRegistry.getResourceDao(theRequestDetails.getResourceName()).history(id, sinceDate, null, theRequestDetails);
+      case HISTORY_TYPE:
+        return myDaoRegistry.getResourceDao(theRequestDetails.getResourceName()).history(sinceDate, null, theRequestDetails);
+      default:
+        return mySystemDao.history(sinceDate, null, theRequestDetails);
+    }
+  }
+
+  private void writeBundle(RequestDetails theRequestDetails, HttpServletResponse theServletResponse, IBundleProvider theBundleProvider, String theBundleType, int theOffset, int theCount) throws IOException {
+    String serverBase = theRequestDetails.getFhirServerBase();
+    Integer size = theBundleProvider.size();
+    boolean history = BUNDLE_TYPE_HISTORY.equals(theBundleType);
+
+    IParser parser = RestfulServerUtils.getNewParser(myFhirContext, myFhirContext.getVersion().getVersion(), theRequestDetails);
+    parser.setServerBaseUrl(serverBase);
+
+    // Load the first chunk before the response is committed, so a failure still gets a proper error response
+    int end = theOffset + theCount;
+    if (size != null) {
+      end = Math.min(end, size);
+    }
+    List<IBaseResource> chunk = theOffset < end ? theBundleProvider.getResources(theOffset, Math.min(theOffset + myChunkSize, end)) : Collections.emptyList();
+
+    theServletResponse.setStatus(Constants.STATUS_HTTP_200_OK);
+    theServletResponse.setContentType(EncodingEnum.JSON.getResourceContentType());
+    theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+
+    Writer writer = new OutputStreamWriter(theServletResponse.getOutputStream(), StandardCharsets.UTF_8);
+    JsonGenerator json = myJsonFactory.createGenerator(writer);
+    if (RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails)) {
+      json.useDefaultPrettyPrinter();
+    }
+
+    int written = 0;
+    try {
+      json.writeStartObject();
+      json.writeStringField("resourceType", "Bundle");
+      json.writeStringField("id", UUID.randomUUID().toString());
+      json.writeObjectFieldStart("meta");
+      json.writeStringField("lastUpdated", new InstantDt(new Date()).getValueAsString());
+      json.writeEndObject();
+      json.writeStringField("type", theBundleType);
+      if (size != null) {
+        json.writeNumberField("total", size);
+      }
+
+      json.writeArrayFieldStart("link");
+      writeLink(json, Constants.LINK_SELF, theRequestDetails.getCompleteUrl());
+      String searchId = theBundleProvider.getUuid();
+      if (searchId != null && theCount > 0) {
+        if (size == null || theOffset + theCount < size) {
+          writeLink(json, Constants.LINK_NEXT, createPagingLink(theRequestDetails, serverBase, searchId, theOffset + theCount, theCount, theBundleType));
+        }
+        if (theOffset > 0) {
+          writeLink(json, Constants.LINK_PREVIOUS, createPagingLink(theRequestDetails, serverBase, searchId, Math.max(0, theOffset - theCount), theCount, theBundleType));
+        }
+      }
+      json.writeEndArray();
+
+      json.writeArrayFieldStart("entry");
+      for (int from = theOffset; from < end; from += myChunkSize) {
+        int to = Math.min(from + myChunkSize, end);
+        if (from > theOffset) {
+          chunk = theBundleProvider.getResources(from, to);
+        }
+        for (IBaseResource next : chunk) {
+          writeEntry(json, parser, serverBase, next, history);
+          written++;
+        }
+        json.flush();
+        if (chunk.size() < to - from) {
+          break;
+        }
+      }
+      json.writeEndArray();
+
+      json.writeEndObject();
+      json.close();
+    } catch (IOException | RuntimeException e) {
+      // Headers are gone already, so the truncated body is all the client gets
+      ourLog.error("Failed to stream " + theBundleType + " Bundle after " + written + " entries", e);
+      throw e;
+    }
+
+    ourLog.debug("Streamed {} Bundle with {} entries", theBundleType, written);
+  }
+
+  private void writeEntry(JsonGenerator theJson, IParser theParser, String theServerBase, IBaseResource theResource, boolean theHistory) throws IOException {
+    IIdType id = theResource.getIdElement();
+    String resourceType = myFhirContext.getResourceType(theResource);
+    boolean deleted = getMetadata(theResource, ResourceMetadataKeyEnum.DELETED_AT) != null;
+
+    theJson.writeStartObject();
+    if (id.hasIdPart()) {
+      // As the bundle factory: the versionless ID, on the server's base unless it has a base of its own
+      IIdType fullUrl = id.hasBaseUrl() ? id : id.withServerBase(theServerBase, resourceType);
+      theJson.writeStringField("fullUrl", fullUrl.toVersionless().getValue());
+    }
+    if (!deleted) {
+      theJson.writeFieldName("resource");
+      theJson.writeRawValue(theParser.encodeResourceToString(theResource));
+    }
+
+    if (theHistory) {
+      String method = getHistoryMethod(theResource, deleted);
+      theJson.writeObjectFieldStart("request");
+      theJson.writeStringField("method", method);
+      theJson.writeStringField("url", "POST".equals(method) ? resourceType : resourceType + "/" + id.getIdPart());
+      theJson.writeEndObject();
+    } else {
+      Object searchMode = getMetadata(theResource, ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE);
+      theJson.writeObjectFieldStart("search");
+      theJson.writeStringField("mode", searchMode instanceof BundleEntrySearchModeEnum ? ((BundleEntrySearchModeEnum) searchMode).getCode() : BundleEntrySearchModeEnum.MATCH.getCode());
+      theJson.writeEndObject();
+    }
+    theJson.writeEndObject();
+  }
+
+  private String getHistoryMethod(IBaseResource theResource, boolean theDeleted) {
+    if (theDeleted) {
+      return "DELETE";
+    }
+    Object method = getMetadata(theResource, ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD);
+    if (method instanceof BundleEntryTransactionMethodEnum) {
+      return ((BundleEntryTransactionMethodEnum) method).getCode();
+    }
+    IIdType id = theResource.getIdElement();
+    boolean firstVersion = id.hasVersionIdPart() && id.isVersionIdPartValidLong() && id.getVersionIdPartAsLong() == 1L;
+    return firstVersion ? "POST" : "PUT";
+  }
+
+  private String createPagingLink(RequestDetails theRequestDetails, String theServerBase, String theSearchId, int theOffset, int theCount, String theBundleType) {
+    StringBuilder b = new StringBuilder(theServerBase);
+    b.append('?').append(Constants.PARAM_PAGINGACTION).append('=').append(UrlUtil.escapeUrlParam(theSearchId));
+    b.append('&').append(Constants.PARAM_PAGINGOFFSET).append('=').append(theOffset);
+    b.append('&').append(Constants.PARAM_COUNT).append('=').append(theCount);
+    for (String next : new String[]{Constants.PARAM_FORMAT, Constants.PARAM_PRETTY}) {
+      String value = getFirstParam(theRequestDetails, next);
+      if (value != null) {
+        b.append('&').append(next).append('=').append(UrlUtil.escapeUrlParam(value));
+      }
+    }
+    b.append('&').append(Constants.PARAM_BUNDLETYPE).append('=').append(theBundleType);
+    return b.toString();
+  }
+
+  private static void writeLink(JsonGenerator theJson, String theRelation, String theUrl) throws IOException {
+    theJson.writeStartObject();
+    theJson.writeStringField("relation", theRelation);
+    theJson.writeStringField("url", theUrl);
+    theJson.writeEndObject();
+  }
+
+  private static boolean isJsonResponse(RequestDetails theRequestDetails) {
+    String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+    if (StringUtils.containsIgnoreCase(accept, "text/html")) {
+      return false;
+    }
+    return RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getEncoding() == EncodingEnum.JSON;
+  }
+
+  /**
+   * Returns true if every special (underscore) parameter of the request is one of the given ones
+   */
+  private static boolean hasOnlyParams(RequestDetails theRequestDetails, Set<String> theAllowedSpecialParams) {
+    for (String next : theRequestDetails.getParameters().keySet()) {
+      if (next.startsWith("_") && !theAllowedSpecialParams.contains(next)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Object getMetadata(IBaseResource theResource, ResourceMetadataKeyEnum<?> theKey) {
+    if (theResource instanceof IAnyResource) {
+      return theKey.get((IAnyResource) theResource);
+    }
+    return theKey.get((IResource) theResource);
+  }
+
+  private static String getFirstParam(RequestDetails theRequestDetails, String theName) {
+    String[] values = theRequestDetails.getParameters().get(theName);
+    if (values == null || values.length == 0) {
+      return null;
+    }
+    return values[0];
+  }
+
+  private static int parseInt(String theValue, int theDefault) {
+    try {
+      return Integer.parseInt(theValue);
+    } catch (NumberFormatException e) {
+      return theDefault;
+    }
+  }
+
+}
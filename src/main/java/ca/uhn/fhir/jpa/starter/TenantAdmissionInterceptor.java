@@ -0,0 +1,280 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server interceptor which limits the number of requests every tenant may run
+ * concurrently, per {@link OperationClass}.
+ * <p>
+ * A request which finds no free slot waits in a short queue for up to the queue
+ * timeout. If the queue of its tenant and operation class is full, or the wait
+ * times out, it is rejected at once with <code>429 Too Many Requests</code> and
+ * a <code>Retry-After</code> header, before any database work is done. So a
+ * tenant running heavy searches or exports only exhausts its own slots. The
+ * limits apply per server instance.
+ * <p>
+ * With a {@link TenantValidator}, requests naming a tenant which doesn't exist
+ * share one set of slots, so made up tenant names neither escape the limits nor
+ * create new bulkheads. Such requests are then rejected by the server as usual.
+ */
+@Interceptor
+public class TenantAdmissionInterceptor {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TenantAdmissionInterceptor.class);
+  private static final String USER_DATA_PERMIT = TenantAdmissionInterceptor.class.getName() + "_PERMIT";
+  private static final String DEFAULT_TENANT = TenantValidator.DEFAULT_TENANT;
+  static final String UNKNOWN_TENANT = "UNKNOWN";
+
+  /**
+   * The classes of operations which are limited independently of each other
+   */
+  public enum OperationClass {
+    READ(64, 128),
+    SEARCH(16, 32),
+    WRITE(32, 64),
+    BULK(2, 0);
+
+    private final int myDefaultMaxConcurrent;
+    private final int myDefaultMaxQueued;
+
+    OperationClass(int theDefaultMaxConcurrent, int theDefaultMaxQueued) {
+      myDefaultMaxConcurrent = theDefaultMaxConcurrent;
+      myDefaultMaxQueued = theDefaultMaxQueued;
+    }
+
+    public String getPropertyName() {
+      return name().toLowerCase();
+    }
+
+    public int getDefaultMaxConcurrent() {
+      return myDefaultMaxConcurrent;
+    }
+
+    public int getDefaultMaxQueued() {
+      return myDefaultMaxQueued;
+    }
+  }
+
+  private final Map<OperationClass, Integer> myMaxConcurrent = new ConcurrentHashMap<>();
+  private final Map<OperationClass, Integer> myMaxQueued = new ConcurrentHashMap<>();
+  private final Map<String, Bulkhead> myBulkheads = new ConcurrentHashMap<>();
+  private final long myQueueTimeoutMillis;
+  private final int myRetryAfterSeconds;
+  private TenantValidator myTenantValidator;
+
+  /**
+   * Constructor
+   *
+   * @param theQueueTimeoutMillis How long a queued request waits for a free slot before it is rejected
+   * @param theRetryAfterSeconds  The value of the <code>Retry-After</code> header of rejected requests
+   */
+  public TenantAdmissionInterceptor(long theQueueTimeoutMillis, int theRetryAfterSeconds) {
+    Validate.isTrue(theQueueTimeoutMillis >= 0, "theQueueTimeoutMillis must not be negative");
+    Validate.isTrue(theRetryAfterSeconds > 0, "theRetryAfterSeconds must be positive");
+    myQueueTimeoutMillis = theQueueTimeoutMillis;
+    myRetryAfterSeconds = theRetryAfterSeconds;
+    for (OperationClass next : OperationClass.values()) {
+      setLimits(next, next.getDefaultMaxConcurrent(), next.getDefaultMaxQueued());
+    }
+  }
+
+  /**
+   * Sets the limits of one operation class. Must be called before the first request.
+   *
+   * @param theMaxConcurrent The number of requests of one tenant which may run at the same time
+   * @param theMaxQueued     The number of requests of one tenant which may wait for a slot
+   */
+  public void setLimits(OperationClass theOperationClass, int theMaxConcurrent, int theMaxQueued) {
+    Validate.notNull(theOperationClass, "theOperationClass must not be null");
+    Validate.isTrue(theMaxConcurrent > 0, "theMaxConcurrent must be positive");
+    Validate.isTrue(theMaxQueued >= 0, "theMaxQueued must not be negative");
+    myMaxConcurrent.put(theOperationClass, theMaxConcurrent);
+    myMaxQueued.put(theOperationClass, theMaxQueued);
+  }
+
+  /**
+   * Sets the validator which tells existing tenants from unknown ones. Without
+   * one every tenant name gets its own slots. Must be called before the first request.
+   */
+  public void setTenantValidator(TenantValidator theTenantValidator) {
+    myTenantValidator = theTenantValidator;
+  }
+
+  /**
+   * @return Returns the number of rejected requests keyed by <code>[tenant]|[operation class]</code>
+   */
+  public Map<String, Long> getRejectedCounts() {
+    Map<String, Long> retVal = new TreeMap<>();
+    myBulkheads.forEach((theKey, theBulkhead) -> retVal.put(theKey, theBulkhead.myRejected.sum()));
+    return retVal;
+  }
+
+  /**
+   * Runs before the other post processing hooks, so that requests which are
+   * answered directly by one of them (e.g. streamed searches) are limited too
+   */
+  @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+  public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+    OperationClass operationClass = classify(theRequestDetails);
+    if (operationClass == null) {
+      return true;
+    }
+
+    String tenant = StringUtils.defaultIfBlank(theRequestDetails.getTenantId(), DEFAULT_TENANT);
+    if (myTenantValidator != null && !myTenantValidator.isKnownTenant(tenant)) {
+      tenant = UNKNOWN_TENANT;
+    }
+    String key = tenant + "|" + operationClass.name();
+    Bulkhead bulkhead = myBulkheads.computeIfAbsent(key, t -> new Bulkhead(myMaxConcurrent.get(operationClass), myMaxQueued.get(operationClass)));
+
+    if (!bulkhead.acquire(myQueueTimeoutMillis)) {
+      bulkhead.myRejected.increment();
+      ourLog.debug("Rejecting {} request of tenant {}, all {} slots busy", operationClass, tenant, bulkhead.myMaxConcurrent);
+      TooManyRequestsException exception = new TooManyRequestsException("Too many concurrent " + operationClass.getPropertyName() + " requests for tenant " + tenant + ", retry later");
+      exception.addResponseHeader("Retry-After", Integer.toString(myRetryAfterSeconds));
+      throw exception;
+    }
+
+    theRequestDetails.getUserData().put(USER_DATA_PERMIT, bulkhead);
+    return true;
+  }
+
+  @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+  public void processingCompleted(RequestDetails theRequestDetails) {
+    Bulkhead bulkhead = (Bulkhead) theRequestDetails.getUserData().remove(USER_DATA_PERMIT);
+    if (bulkhead != null) {
+      bulkhead.release();
+    }
+  }
+
+  /**
+   * @return Returns the operation class of the request, or <code>null</code> if
+   * the request is not limited (e.g. the capability statement)
+   */
+  static OperationClass classify(RequestDetails theRequestDetails) {
+    RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+    if (operationType == null) {
+      return null;
+    }
+    switch (operationType) {
+      case READ:
+      case VREAD:
+      case META:
+        return OperationClass.READ;
+      case SEARCH_TYPE:
+      case SEARCH_SYSTEM:
+      case GET_PAGE:
+      case HISTORY_INSTANCE:
+      case HISTORY_TYPE:
+      case HISTORY_SYSTEM:
+      case GRAPHQL_REQUEST:
+        return OperationClass.SEARCH;
+      case CREATE:
+      case UPDATE:
+      case PATCH:
+      case DELETE:
+      case TRANSACTION:
+      case META_ADD:
+      case META_DELETE:
+        return OperationClass.WRITE;
+      case EXTENDED_OPERATION_SERVER:
+      case EXTENDED_OPERATION_TYPE:
+      case EXTENDED_OPERATION_INSTANCE:
+        return isBulkOperation(theRequestDetails.getOperation()) ? OperationClass.BULK : OperationClass.SEARCH;
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isBulkOperation(String theOperation) {
+    return JpaConstants.OPERATION_EXPORT.equals(theOperation)
+      || JpaConstants.OPERATION_EXPUNGE.equals(theOperation)
+      || ParallelBulkExportProvider.OPERATION_EXPORT.equals(theOperation);
+  }
+
+  private static class Bulkhead {
+
+    private final int myMaxConcurrent;
+    private final int myMaxQueued;
+    private final Semaphore myPermits;
+    private final AtomicInteger myQueued = new AtomicInteger();
+    private final LongAdder myRejected = new LongAdder();
+
+    private Bulkhead(int theMaxConcurrent, int theMaxQueued) {
+      myMaxConcurrent = theMaxConcurrent;
+      myMaxQueued = theMaxQueued;
+      myPermits = new Semaphore(theMaxConcurrent, true);
+    }
+
+    private boolean acquire(long theQueueTimeoutMillis) {
+      if (myPermits.tryAcquire()) {
+        return true;
+      }
+      if (myQueued.incrementAndGet() > myMaxQueued) {
+        myQueued.decrementAndGet();
+        return false;
+      }
+      try {
+        return myPermits.tryAcquire(theQueueTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        myQueued.decrementAndGet();
+      }
+    }
+
+    private void release() {
+      myPermits.release();
+    }
+  }
+
+  /**
+   * Responds with <code>429 Too Many Requests</code>
+   */
+  public static class TooManyRequestsException extends BaseServerResponseException {
+
+    public static final int STATUS_CODE = 429;
+    private static final long serialVersionUID = 1L;
+
+    public TooManyRequestsException(String theMessage) {
+      super(STATUS_CODE, theMessage);
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Data source which hands out connections of the database (shard) the tenant of
+ * the current request is mapped to. Tenants without a mapping, and work done
+ * outside of a request, use the default data source.
+ * <p>
+ * The shard is selected by the {@link #getShardSelectingInterceptor() shard
+ * selecting interceptor} once the tenant of a request is known, and carried
+ * over to the tasks the request hands to thread pool executors by the
+ * {@link TenantShardPropagatingPostProcessor}. All shards share one entity
+ * manager factory, so they must have the same schema, and their ID sequences
+ * must not overlap.
+ * <p>
+ * The schedulers of HAPI FHIR only see the default data source; the
+ * {@link ShardMaintenanceSvc} runs their jobs on the shards. Subscriptions are
+ * loaded from the default data source only, so the {@link
+ * #getShardStorageInterceptor() shard storage interceptor} rejects them on
+ * sharded tenants.
+ */
+public class TenantRoutingDataSource extends AbstractRoutingDataSource {
+
+  private static final ThreadLocal<String> ourCurrentShard = new ThreadLocal<>();
+
+  private final Map<String, String> myTenantToShard;
+  private final Map<Object, Object> myShards = new HashMap<>();
+  private final ShardSelectingInterceptor myShardSelectingInterceptor = new ShardSelectingInterceptor();
+  private final ShardStorageInterceptor myShardStorageInterceptor = new ShardStorageInterceptor();
+
+  /**
+   * Constructor
+   *
+   * @param theDefaultDataSource The data source of tenants without a shard (must not be null)
+   * @param theTenantToShard     The shard name of every sharded tenant (must not be null)
+   */
+  public TenantRoutingDataSource(DataSource theDefaultDataSource, Map<String, String> theTenantToShard) {
+    Validate.notNull(theDefaultDataSource, "theDefaultDataSource must not be null");
+    Validate.notNull(theTenantToShard, "theTenantToShard must not be null");
+    myTenantToShard = new HashMap<>(theTenantToShard);
+    setDefaultTargetDataSource(theDefaultDataSource);
+    setTargetDataSources(myShards);
+    setLenientFallback(false);
+  }
+
+  /**
+   * Adds a shard. Must be called before the data source is initialized.
+   */
+  public void addShard(String theShardName, DataSource theDataSource) {
+    Validate.notBlank(theShardName, "theShardName must not be blank");
+    Validate.notNull(theDataSource, "theDataSource must not be null");
+    myShards.put(theShardName, theDataSource);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    for (Map.Entry<String, String> next : myTenantToShard.entrySet()) {
+      Validate.isTrue(myShards.containsKey(next.getValue()), "Tenant %s is mapped to unknown shard %s", next.getKey(), next.getValue());
+    }
+    super.afterPropertiesSet();
+  }
+
+  /**
+   * @return Returns the shard names of the sharded tenants, sorted by tenant
+   */
+  public Map<String, String> getTenantToShard() {
+    return new TreeMap<>(myTenantToShard);
+  }
+
+  /**
+   * @return Returns the shard of the tenant, or <code>null</code> for the default data source
+   */
+  public String getShardForTenant(String theTenant) {
+    return theTenant != null ? myTenantToShard.get(theTenant) : null;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the REST server
+   */
+  public Object getShardSelectingInterceptor() {
+    return myShardSelectingInterceptor;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor service
+   */
+  public Object getShardStorageInterceptor() {
+    return myShardStorageInterceptor;
+  }
+
+  /**
+   * Closes the connection pools of the shards (the default data source is closed by its owner)
+   */
+  public void close() throws SQLException {
+    for (Object next : myShards.values()) {
+      if (next instanceof BasicDataSource) {
+        ((BasicDataSource) next).close();
+      }
+    }
+  }
+
+  @Override
+  protected Object determineCurrentLookupKey() {
+    return ourCurrentShard.get();
+  }
+
+  /**
+   * @return Returns the shard selected for the current thread, or <code>null</code> for the default data source
+   */
+  public static String getCurrentShard() {
+    return ourCurrentShard.get();
+  }
+
+  /**
+   * Selects the shard of the current thread
+   *
+   * @param theShardName The shard, or <code>null</code> for the default data source
+   */
+  public static void setCurrentShard(String theShardName) {
+    if (StringUtils.isBlank(theShardName)) {
+      ourCurrentShard.remove();
+    } else {
+      ourCurrentShard.set(theShardName);
+    }
+  }
+
+  /**
+   * Runs the task with the shard selected for the current thread, and restores
+   * the previous selection afterwards
+   *
+   * @param theShardName The shard, or <code>null</code> for the default data source
+   */
+  public static void runInShard(String theShardName, Runnable theTask) {
+    String previousShard = getCurrentShard();
+    setCurrentShard(theShardName);
+    try {
+      theTask.run();
+    } finally {
+      setCurrentShard(previousShard);
+    }
+  }
+
+  /**
+   * Server hooks which select the shard of the request's tenant for the
+   * duration of the request
+   */
+  @Interceptor
+  public class ShardSelectingInterceptor {
+
+    @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+      setCurrentShard(getShardForTenant(theRequestDetails.getTenantId()));
+      return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void processingCompleted() {
+      setCurrentShard(null);
+    }
+  }
+
+  /**
+   * Storage hooks which reject subscriptions on sharded tenants, as the
+   * subscription loader only reads those of the default data source
+   */
+  @Interceptor
+  public class ShardStorageInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+      checkNotSubscription(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+      checkNotSubscription(theNewResource);
+    }
+
+    private void checkNotSubscription(IBaseResource theResource) {
+      if (getCurrentShard() != null && "Subscription".equals(theResource.fhirType())) {
+        throw new InvalidRequestException("Subscriptions are not supported on sharded tenants");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Lets tasks submitted to the thread pool executors of the application context
+ * (e.g. the search coordinator, which loads search results in the background)
+ * use the shard of the request which submitted them, see
+ * {@link TenantRoutingDataSource}.
+ */
+public class TenantShardPropagatingPostProcessor implements BeanPostProcessor {
+
+  @Override
+  public Object postProcessBeforeInitialization(Object theBean, String theBeanName) throws BeansException {
+    if (HapiProperties.getShardingEnabled() && theBean instanceof ThreadPoolTaskExecutor) {
+      ((ThreadPoolTaskExecutor) theBean).setTaskDecorator(theTask -> {
+        String shard = TenantRoutingDataSource.getCurrentShard();
+        return () -> {
+          String previousShard = TenantRoutingDataSource.getCurrentShard();
+          TenantRoutingDataSource.setCurrentShard(shard);
+          try {
+            theTask.run();
+          } finally {
+            TenantRoutingDataSource.setCurrentShard(previousShard);
+          }
+        };
+      });
+    }
+    return theBean;
+  }
+
+}
@@ -0,0 +1,102 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Server level <code>$tenant-usage</code> operation which reports the
+ * {@link TenantUsageTracker usage} of every tenant, or of the tenant given in
+ * the <code>tenant</code> parameter. As it reports on all tenants, it is only
+ * available on the <code>DEFAULT</code> tenant, like the partition management
+ * operations.
+ */
+public class TenantUsageProvider {
+
+  public static final String OPERATION_TENANT_USAGE = "$tenant-usage";
+
+  private final FhirContext myFhirContext;
+  private final TenantUsageTracker myTracker;
+
+  /**
+   * Constructor
+   *
+   * @param theFhirContext The FHIR context (must not be null)
+   * @param theTracker     The usage tracker (must not be null)
+   */
+  public TenantUsageProvider(FhirContext theFhirContext, TenantUsageTracker theTracker) {
+    Validate.notNull(theFhirContext, "theFhirContext must not be null");
+    Validate.notNull(theTracker, "theTracker must not be null");
+    myFhirContext = theFhirContext;
+    myTracker = theTracker;
+  }
+
+  @Operation(name = OPERATION_TENANT_USAGE, idempotent = true)
+  public IBaseParameters tenantUsage(
+    @OperationParam(name = "tenant", min = 0, max = 1, typeName = "string") IPrimitiveType<String> theTenant,
+    RequestDetails theRequestDetails
+  ) {
+    String requestTenant = StringUtils.defaultIfBlank(theRequestDetails.getTenantId(), TenantUsageTracker.DEFAULT_TENANT);
+    if (!TenantUsageTracker.DEFAULT_TENANT.equals(requestTenant)) {
+      throw new ForbiddenOperationException(OPERATION_TENANT_USAGE + " is only available on the " + TenantUsageTracker.DEFAULT_TENANT + " tenant");
+    }
+    String tenant = theTenant != null ? theTenant.getValueAsString() : null;
+
+    IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+    for (Map.Entry<String, TenantUsageTracker.TenantUsage> next : myTracker.getUsage().entrySet()) {
+      if (tenant != null && !tenant.equals(next.getKey())) {
+        continue;
+      }
+      TenantUsageTracker.TenantUsage usage = next.getValue();
+      LatencyHistogram latency = usage.getLatency();
+      IBase part = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "tenant");
+      ParametersUtil.addPartString(myFhirContext, part, "name", next.getKey());
+      for (Map.Entry<String, Long> nextCount : usage.getRequestCounts().entrySet()) {
+        ParametersUtil.addPartString(myFhirContext, part, nextCount.getKey() + "Requests", Long.toString(nextCount.getValue()));
+      }
+      ParametersUtil.addPartString(myFhirContext, part, "errors", Long.toString(usage.getErrorCount()));
+      ParametersUtil.addPartString(myFhirContext, part, "rejected", Long.toString(usage.getRejectedCount()));
+      ParametersUtil.addPartString(myFhirContext, part, "meanMillis", formatMillis(latency.getMeanMillis()));
+      ParametersUtil.addPartString(myFhirContext, part, "p95Millis", formatMillis(latency.getQuantileMillis(0.95)));
+      ParametersUtil.addPartString(myFhirContext, part, "p99Millis", formatMillis(latency.getQuantileMillis(0.99)));
+      ParametersUtil.addPartString(myFhirContext, part, "versionsWritten", Long.toString(usage.getVersionsWritten()));
+      ParametersUtil.addPartString(myFhirContext, part, "bytesWritten", Long.toString(usage.getBytesWritten()));
+    }
+    return retVal;
+  }
+
+  private static String formatMillis(double theMillis) {
+    return String.format(Locale.US, "%.3f", theMillis);
+  }
+
+}
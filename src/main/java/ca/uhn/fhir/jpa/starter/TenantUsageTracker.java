@@ -0,0 +1,251 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Collects request counts, request latencies, written resource versions and
+ * written bytes per tenant, as resolved by the tenant identification strategy
+ * of the server. Work done without a tenant is attributed to
+ * <code>DEFAULT</code>, requests naming a tenant the {@link TenantValidator}
+ * doesn't know to <code>UNKNOWN</code>, so the number of tracked tenants is
+ * bounded by the number of real ones.
+ * <p>
+ * Written bytes are the size of the stored body (in the configured resource
+ * encoding, e.g. compressed JSON) of every committed resource version, taken
+ * from the history rows as Hibernate inserts them, and attributed to the tenant
+ * owning the partition of the row. So they follow the growth of the resource
+ * tables without encoding anything again.
+ */
+public class TenantUsageTracker {
+
+  public static final String DEFAULT_TENANT = TenantValidator.DEFAULT_TENANT;
+  public static final String UNKNOWN_TENANT = "UNKNOWN";
+  private static final String REQUEST_START_ATTRIBUTE = TenantUsageTracker.class.getName() + "_START";
+
+  private final TenantValidator myTenantValidator;
+  private final Map<String, TenantUsage> myUsage = new ConcurrentHashMap<>();
+  private final RequestInterceptor myRequestInterceptor = new RequestInterceptor();
+  private final StorageInterceptor myStorageInterceptor = new StorageInterceptor();
+  private final HistoryInsertListener myHistoryInsertListener = new HistoryInsertListener();
+
+  /**
+   * Constructor
+   *
+   * @param theTenantValidator Tells real tenants from unknown ones (must not be null)
+   */
+  public TenantUsageTracker(TenantValidator theTenantValidator) {
+    Validate.notNull(theTenantValidator, "theTenantValidator must not be null");
+    myTenantValidator = theTenantValidator;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the REST server
+   */
+  public Object getRequestInterceptor() {
+    return myRequestInterceptor;
+  }
+
+  /**
+   * Returns the interceptor which must be registered with the storage interceptor service
+   */
+  public Object getStorageInterceptor() {
+    return myStorageInterceptor;
+  }
+
+  /**
+   * Returns the listener which must be appended to the Hibernate
+   * <code>POST_COMMIT_INSERT</code> listeners to count written bytes
+   */
+  public PostInsertEventListener getHistoryInsertListener() {
+    return myHistoryInsertListener;
+  }
+
+  /**
+   * @return Returns the usage of all tenants seen so far, sorted by tenant
+   */
+  public SortedMap<String, TenantUsage> getUsage() {
+    return new TreeMap<>(myUsage);
+  }
+
+  private TenantUsage getUsage(RequestDetails theRequestDetails) {
+    String tenant = StringUtils.defaultIfBlank(theRequestDetails != null ? theRequestDetails.getTenantId() : null, DEFAULT_TENANT);
+    if (!myTenantValidator.isKnownTenant(tenant)) {
+      tenant = UNKNOWN_TENANT;
+    }
+    return myUsage.computeIfAbsent(tenant, t -> new TenantUsage());
+  }
+
+  /**
+   * The usage of one tenant
+   */
+  public static class TenantUsage {
+
+    private final Map<String, LongAdder> myRequestCounts = new ConcurrentHashMap<>();
+    private final LongAdder myErrorCount = new LongAdder();
+    private final LongAdder myRejectedCount = new LongAdder();
+    private final LatencyHistogram myLatency = new LatencyHistogram();
+    private final LongAdder myVersionsWritten = new LongAdder();
+    private final LongAdder myBytesWritten = new LongAdder();
+
+    /**
+     * @return Returns the number of completed requests by operation class
+     * (<code>read</code>, <code>search</code>, <code>write</code>,
+     * <code>bulk</code> or <code>other</code>)
+     */
+    public SortedMap<String, Long> getRequestCounts() {
+      SortedMap<String, Long> retVal = new TreeMap<>();
+      myRequestCounts.forEach((theClass, theCount) -> retVal.put(theClass, theCount.sum()));
+      return retVal;
+    }
+
+    /**
+     * @return Returns the number of requests which failed with a 4xx or 5xx status
+     */
+    public long getErrorCount() {
+      return myErrorCount.sum();
+    }
+
+    /**
+     * @return Returns the number of requests rejected by the admission control
+     */
+    public long getRejectedCount() {
+      return myRejectedCount.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+      return myLatency;
+    }
+
+    public long getVersionsWritten() {
+      return myVersionsWritten.sum();
+    }
+
+    public long getBytesWritten() {
+      return myBytesWritten.sum();
+    }
+  }
+
+  /**
+   * Server hooks which count and time the requests of every tenant
+   */
+  @Interceptor
+  public class RequestInterceptor {
+
+    @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, order = Integer.MIN_VALUE)
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest) {
+      theRequest.setAttribute(REQUEST_START_ATTRIBUTE, System.nanoTime());
+      return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+      TenantUsage usage = getUsage(theRequestDetails);
+      TenantAdmissionInterceptor.OperationClass operationClass = TenantAdmissionInterceptor.classify(theRequestDetails);
+      String operationClassName = operationClass != null ? operationClass.getPropertyName() : "other";
+      usage.myRequestCounts.computeIfAbsent(operationClassName, t -> new LongAdder()).increment();
+
+      int status = theServletRequestDetails.getServletResponse().getStatus();
+      if (status == TenantAdmissionInterceptor.TooManyRequestsException.STATUS_CODE) {
+        usage.myRejectedCount.increment();
+      } else if (status >= 400) {
+        usage.myErrorCount.increment();
+      }
+
+      Object start = theServletRequestDetails.getServletRequest().getAttribute(REQUEST_START_ATTRIBUTE);
+      if (start instanceof Long) {
+        usage.myLatency.record(System.nanoTime() - (Long) start);
+      }
+    }
+  }
+
+  /**
+   * Storage hooks which count the resource versions written by every tenant
+   */
+  @Interceptor
+  public class StorageInterceptor {
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(RequestDetails theRequestDetails) {
+      getUsage(theRequestDetails).myVersionsWritten.increment();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(RequestDetails theRequestDetails) {
+      getUsage(theRequestDetails).myVersionsWritten.increment();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(RequestDetails theRequestDetails) {
+      getUsage(theRequestDetails).myVersionsWritten.increment();
+    }
+  }
+
+  /**
+   * Counts the stored body of every committed resource version
+   */
+  private class HistoryInsertListener implements PostInsertEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void onPostInsert(PostInsertEvent theEvent) {
+      if (!(theEvent.getEntity() instanceof ResourceHistoryTable)) {
+        return;
+      }
+      ResourceHistoryTable history = (ResourceHistoryTable) theEvent.getEntity();
+      byte[] body = history.getResource();
+      if (body == null || body.length == 0) {
+        // A deletion writes a version without a body
+        return;
+      }
+      Integer partitionId = history.getPartitionId() != null ? history.getPartitionId().getPartitionId() : null;
+      String tenant = myTenantValidator.getTenantForPartition(partitionId);
+      if (tenant != null) {
+        myUsage.computeIfAbsent(tenant, t -> new TenantUsage()).myBytesWritten.add(body.length);
+      }
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister thePersister) {
+      return true;
+    }
+  }
+
+}
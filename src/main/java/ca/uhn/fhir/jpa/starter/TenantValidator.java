@@ -0,0 +1,121 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import ca.uhn.fhir.jpa.entity.PartitionEntity;
+import ca.uhn.fhir.jpa.partition.IPartitionLookupSvc;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/*
+ * %%
+ * Copyright (C) 2020 Awesome Technologies Innovationslabor GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Tells whether a tenant named in a request exists, so that per tenant state
+ * (bulkheads, usage counters) is only kept for real tenants and can't be grown
+ * by requests for made up tenant names.
+ * <p>
+ * The default tenant and the configured sharded tenants are always known, all
+ * other names are looked up as partitions. Answers, including negative ones,
+ * are remembered for a minute, so unknown names don't cost a lookup per request.
+ */
+public class TenantValidator {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TenantValidator.class);
+  public static final String DEFAULT_TENANT = "DEFAULT";
+
+  private final IPartitionLookupSvc myPartitionLookupSvc;
+  private final Set<String> myStaticTenants;
+  private final Cache<String, Boolean> myKnownTenants = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .expireAfterWrite(1, TimeUnit.MINUTES)
+    .build();
+  private final Cache<Integer, String> myPartitionNames = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .expireAfterWrite(1, TimeUnit.MINUTES)
+    .build();
+
+  /**
+   * Constructor
+   *
+   * @param thePartitionLookupSvc The partition lookup used for tenants which aren't configured statically (must not be null)
+   * @param theStaticTenants      Tenants known without a lookup, e.g. the sharded tenants (must not be null)
+   */
+  public TenantValidator(IPartitionLookupSvc thePartitionLookupSvc, Collection<String> theStaticTenants) {
+    Validate.notNull(thePartitionLookupSvc, "thePartitionLookupSvc must not be null");
+    Validate.notNull(theStaticTenants, "theStaticTenants must not be null");
+    myPartitionLookupSvc = thePartitionLookupSvc;
+    myStaticTenants = new TreeSet<>(theStaticTenants);
+    myStaticTenants.add(DEFAULT_TENANT);
+  }
+
+  /**
+   * @return Returns true if the tenant is the default tenant, a configured tenant or an existing partition
+   */
+  public boolean isKnownTenant(String theTenant) {
+    if (StringUtils.isBlank(theTenant) || myStaticTenants.contains(theTenant)) {
+      return true;
+    }
+    try {
+      return myKnownTenants.get(theTenant, () -> lookUp(theTenant));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      ourLog.warn("Failed to look up tenant {}: {}", theTenant, e.getCause().toString());
+      return false;
+    }
+  }
+
+  /**
+   * @return Returns the tenant owning the given partition (the default tenant
+   * for <code>null</code>), or <code>null</code> if the partition doesn't exist
+   */
+  public String getTenantForPartition(Integer thePartitionId) {
+    if (thePartitionId == null) {
+      return DEFAULT_TENANT;
+    }
+    try {
+      String retVal = myPartitionNames.get(thePartitionId, () -> {
+        PartitionEntity partition = myPartitionLookupSvc.getPartitionById(thePartitionId);
+        return partition != null ? partition.getName() : "";
+      });
+      return StringUtils.defaultIfBlank(retVal, null);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      ourLog.debug("Failed to look up partition {}: {}", thePartitionId, e.getCause().toString());
+      return null;
+    }
+  }
+
+  private boolean lookUp(String theTenant) {
+    try {
+      myPartitionLookupSvc.getPartitionByName(theTenant);
+      return true;
+    } catch (ResourceNotFoundException | IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+}
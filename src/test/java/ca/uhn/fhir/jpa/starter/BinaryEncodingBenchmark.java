@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Compares payload size and encode/parse throughput of FHIR JSON with its
+ * {@link BinaryEncodingEnum binary encodings}, using a batch of vital sign
+ * Observations as a device gateway would send them.
+ * <p>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ca.uhn.fhir.jpa.starter.BinaryEncodingBenchmark</code>
+ */
+public class BinaryEncodingBenchmark {
+
+  private static final int OBSERVATIONS = 500;
+  private static final int WARMUP_ROUNDS = 50;
+  private static final int ROUNDS = 200;
+
+  public static void main(String[] theArgs) {
+    FhirContext ctx = FhirContext.forR4();
+    Bundle bundle = createBatch();
+    IParser jsonParser = ctx.newJsonParser();
+
+    byte[] json = jsonParser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+    System.out.println(String.format("%-6s %10s %14s %14s", "format", "bytes", "encode/s", "parse/s"));
+    report("JSON", json.length,
+      measure(() -> jsonParser.encodeResourceToString(bundle)),
+      measure(() -> jsonParser.parseResource(Bundle.class, new String(json, StandardCharsets.UTF_8))));
+
+    for (BinaryEncodingEnum next : BinaryEncodingEnum.values()) {
+      byte[] encoded = next.encodeResource(ctx, bundle);
+      report(next.name(), encoded.length,
+        measure(() -> next.encodeResource(ctx, bundle)),
+        measure(() -> next.parseResource(ctx, Bundle.class, encoded)));
+    }
+  }
+
+  private static Bundle createBatch() {
+    Bundle retVal = new Bundle();
+    retVal.setType(Bundle.BundleType.BATCH);
+    for (int i = 0; i < OBSERVATIONS; i++) {
+      Observation observation = new Observation();
+      observation.setStatus(Observation.ObservationStatus.FINAL);
+      observation.addCategory(new CodeableConcept().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "Vital Signs")));
+      observation.setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "8867-4", "Heart rate")));
+      observation.setSubject(new Reference("Patient/" + (i % 20)));
+      observation.setDevice(new Reference("Device/gateway-1"));
+      observation.setEffective(new DateTimeType(new Date(1600000000000L + i * 1000L)));
+      observation.setValue(new Quantity().setValue(60 + (i % 40) + 0.25).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+      retVal.addEntry()
+        .setResource(observation)
+        .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+    }
+    return retVal;
+  }
+
+  private static double measure(Runnable theTask) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      theTask.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      theTask.run();
+    }
+    return ROUNDS / ((System.nanoTime() - start) / 1e9);
+  }
+
+  private static void report(String theFormat, int theBytes, double theEncodesPerSecond, double theParsesPerSecond) {
+    System.out.println(String.format("%-6s %10d %14.1f %14.1f", theFormat, theBytes, theEncodesPerSecond, theParsesPerSecond));
+  }
+
+}
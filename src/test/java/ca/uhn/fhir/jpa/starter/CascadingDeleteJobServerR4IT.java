@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CascadingDeleteJobServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CascadingDeleteJobServerR4IT.class);
+  private static final int CHUNK_SIZE = 5;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-cascading-delete-jobs");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.CASCADING_DELETE_JOBS_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.CASCADING_DELETE_JOBS_CHUNK_SIZE, Integer.toString(CHUNK_SIZE));
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testRootReferencedByMoreThanOneChunk() {
+    Organization organization = new Organization();
+    organization.setName("Root");
+    IIdType root = ourClient.create().resource(organization).execute().getId().toUnqualifiedVersionless();
+
+    List<IIdType> ids = new ArrayList<>();
+    ids.add(root);
+    int patientCount = CHUNK_SIZE * 2 + 2;
+    for (int i = 0; i < patientCount; i++) {
+      Patient patient = new Patient();
+      patient.setManagingOrganization(new Reference(root));
+      IIdType patientId = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+      ids.add(patientId);
+      if (i == 0) {
+        // One level deeper
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setSubject(new Reference(patientId));
+        ids.add(ourClient.create().resource(observation).execute().getId().toUnqualifiedVersionless());
+      }
+    }
+
+    Parameters status = runJob(root);
+
+    assertEquals("COMPLETE", getValue(status, "status"));
+    assertEquals(root.getValue(), getValue(status, "resource"));
+    assertEquals(Integer.toString(ids.size()), getValue(status, "deleted"));
+    assertEquals("0", getValue(status, "pending"));
+    assertDeleted(ids);
+  }
+
+  @Test
+  public void testReferenceCycleIsDeletedTogether() {
+    IIdType first = ourClient.create().resource(new Patient()).execute().getId().toUnqualifiedVersionless();
+    Patient second = new Patient();
+    second.addLink().setType(Patient.LinkType.SEEALSO).setOther(new Reference(first));
+    IIdType secondId = ourClient.create().resource(second).execute().getId().toUnqualifiedVersionless();
+    Patient firstUpdate = ourClient.read().resource(Patient.class).withId(first).execute();
+    firstUpdate.addLink().setType(Patient.LinkType.SEEALSO).setOther(new Reference(secondId));
+    ourClient.update().resource(firstUpdate).execute();
+
+    // Something outside the cycle which references it
+    Observation observation = new Observation();
+    observation.setStatus(Observation.ObservationStatus.FINAL);
+    observation.setSubject(new Reference(secondId));
+    IIdType observationId = ourClient.create().resource(observation).execute().getId().toUnqualifiedVersionless();
+
+    Parameters status = runJob(first);
+
+    assertEquals("COMPLETE", getValue(status, "status"));
+    assertEquals("3", getValue(status, "deleted"));
+    assertEquals("0", getValue(status, "pending"));
+    List<IIdType> ids = new ArrayList<>();
+    ids.add(first);
+    ids.add(secondId);
+    ids.add(observationId);
+    assertDeleted(ids);
+  }
+
+  /**
+   * Submits a job for the resource and waits until it is no longer pending
+   *
+   * @return Returns the final status of the job
+   */
+  private static Parameters runJob(IIdType theRoot) {
+    Parameters submitted = ourClient
+      .operation()
+      .onServer()
+      .named(CascadingDeleteJobProvider.OPERATION_CASCADING_DELETE)
+      .withParameter(Parameters.class, "resource", new StringType(theRoot.getValue()))
+      .execute();
+    String jobId = getValue(submitted, "jobId");
+
+    await().atMost(60, TimeUnit.SECONDS).until(() -> {
+      String status = getValue(getStatus(jobId), "status");
+      return "COMPLETE".equals(status) || "ERROR".equals(status);
+    });
+    return getStatus(jobId);
+  }
+
+  private static Parameters getStatus(String theJobId) {
+    return ourClient
+      .operation()
+      .onServer()
+      .named(CascadingDeleteJobProvider.OPERATION_CASCADING_DELETE_STATUS)
+      .withParameter(Parameters.class, "jobId", new StringType(theJobId))
+      .execute();
+  }
+
+  private static void assertDeleted(List<IIdType> theIds) {
+    for (IIdType next : theIds) {
+      assertThrows(ResourceGoneException.class, () -> ourClient.read().resource(next.getResourceType()).withId(next).execute(), next.getValue());
+    }
+  }
+
+  private static String getValue(Parameters theParameters, String theName) {
+    return theParameters.getParameter(theName).primitiveValue();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+  }
+
+}
@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs two server nodes on one database, each with its own first page cache,
+ * and checks that writes on one node invalidate the cache of the other
+ */
+public class ClusterCacheInvalidationServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ClusterCacheInvalidationServerR4IT.class);
+  private static IGenericClient ourClientA;
+  private static IGenericClient ourClientB;
+  private static FhirContext ourCtx;
+  private static Server ourServerA;
+  private static Server ourServerB;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-cluster");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.SEARCH_FIRST_PAGE_CACHE_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.CLUSTER_CACHE_INVALIDATION_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.CLUSTER_CACHE_INVALIDATION_POLL_INTERVAL_MILLIS, "200");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testCreateOnOneNodeInvalidatesTheOther() {
+    String family = "testCreateOnOneNodeInvalidatesTheOther";
+    createPatient(ourClientA, family);
+
+    // Node B now serves the first page from its cache
+    assertEquals(1, searchByFamily(ourClientB, family).getEntry().size());
+    assertEquals(1, searchByFamily(ourClientB, family).getEntry().size());
+
+    createPatient(ourClientA, family);
+    await().atMost(10, TimeUnit.SECONDS).until(() -> searchByFamily(ourClientB, family).getEntry().size() == 2);
+  }
+
+  @Test
+  public void testWritesOnBothNodesAreSeenByBoth() {
+    String family = "testWritesOnBothNodesAreSeenByBoth";
+    assertEquals(0, searchByFamily(ourClientA, family).getEntry().size());
+    assertEquals(0, searchByFamily(ourClientB, family).getEntry().size());
+
+    for (int i = 0; i < 5; i++) {
+      createPatient(ourClientA, family);
+      createPatient(ourClientB, family);
+    }
+
+    await().atMost(10, TimeUnit.SECONDS).until(() -> searchByFamily(ourClientA, family).getEntry().size() == 10);
+    await().atMost(10, TimeUnit.SECONDS).until(() -> searchByFamily(ourClientB, family).getEntry().size() == 10);
+  }
+
+  private static IIdType createPatient(IGenericClient theClient, String theFamily) {
+    Patient pt = new Patient();
+    pt.addName().setFamily(theFamily);
+    return theClient.create().resource(pt).execute().getId();
+  }
+
+  private static Bundle searchByFamily(IGenericClient theClient, String theFamily) {
+    return theClient.search().forResource(Patient.class).where(Patient.FAMILY.matchesExactly().value(theFamily)).count(100).returnBundle(Bundle.class).execute();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServerA.stop();
+    ourServerB.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    ourServerA = startServer();
+    ourServerB = startServer();
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    ourClientA = newClient(ourServerA);
+    ourClientB = newClient(ourServerB);
+  }
+
+  private static Server startServer() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    Server server = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    server.setHandler(webAppContext);
+    server.start();
+    return server;
+  }
+
+  private static IGenericClient newClient(Server theServer) {
+    int port = JettyUtil.getPortForStartedServer(theServer);
+    IGenericClient retVal = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/hapi-fhir-jpaserver/fhir/");
+    retVal.registerInterceptor(new LoggingInterceptor(true));
+    return retVal;
+  }
+
+}
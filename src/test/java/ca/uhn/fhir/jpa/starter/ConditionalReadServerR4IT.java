@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConditionalReadServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ConditionalReadServerR4IT.class);
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-cr");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.CONDITIONAL_READ_INDEX_ENABLED, "true");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testNotModifiedUntilUpdated() {
+    IIdType id = createPatient("testNotModifiedUntilUpdated");
+
+    assertNull(readIfNoneMatch(id, "1"));
+    assertNull(readIfNoneMatch(id, "1"));
+
+    Patient pt = new Patient();
+    pt.setId(id.toUnqualifiedVersionless());
+    pt.addName().setFamily("testNotModifiedUntilUpdated2");
+    ourClient.update().resource(pt).execute();
+
+    Patient read = readIfNoneMatch(id, "1");
+    assertNotNull(read);
+    assertEquals("2", read.getIdElement().getVersionIdPart());
+    assertNull(readIfNoneMatch(id, "2"));
+  }
+
+  @Test
+  public void testRolledBackUpdateIsNotIndexed() {
+    IIdType id = createPatient("testRolledBackUpdateIsNotIndexed");
+    IIdType otherId = createPatient("testRolledBackUpdateIsNotIndexedOther");
+    assertNull(readIfNoneMatch(id, "1"));
+
+    // The second update fails on its version check, so the first one is rolled back
+    Bundle transaction = new Bundle();
+    transaction.setType(Bundle.BundleType.TRANSACTION);
+    Patient pt = new Patient();
+    pt.setId(id.toUnqualifiedVersionless());
+    pt.addName().setFamily("testRolledBackUpdateIsNotIndexed2");
+    transaction.addEntry().setResource(pt).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(id.toUnqualifiedVersionless().getValue());
+    Patient other = new Patient();
+    other.setId(otherId.toUnqualifiedVersionless());
+    transaction.addEntry().setResource(other).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(otherId.toUnqualifiedVersionless().getValue()).setIfMatch("W/\"99\"");
+    try {
+      ourClient.transaction().withBundle(transaction).execute();
+    } catch (Exception e) {
+      ourLog.info("Transaction failed as expected: {}", e.getMessage());
+    }
+
+    // Version 2 was never committed, so it must not be answered with 304
+    Patient read = readIfNoneMatch(id, "2");
+    assertNotNull(read);
+    assertEquals("1", read.getIdElement().getVersionIdPart());
+    assertNull(readIfNoneMatch(id, "1"));
+  }
+
+  @Test
+  public void testDeletedIsNeverNotModified() {
+    IIdType id = createPatient("testDeletedIsNeverNotModified");
+    assertNull(readIfNoneMatch(id, "1"));
+
+    ourClient.delete().resourceById(id.toUnqualifiedVersionless()).execute();
+    assertThrows(ResourceGoneException.class, () -> readIfNoneMatch(id, "2"));
+  }
+
+  private IIdType createPatient(String theFamily) {
+    Patient pt = new Patient();
+    pt.addName().setFamily(theFamily);
+    return ourClient.create().resource(pt).execute().getId();
+  }
+
+  private Patient readIfNoneMatch(IIdType theId, String theVersion) {
+    return ourClient.read().resource(Patient.class).withId(theId.toUnqualifiedVersionless()).ifVersionMatches(theVersion).returnNull().execute();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+  }
+
+}
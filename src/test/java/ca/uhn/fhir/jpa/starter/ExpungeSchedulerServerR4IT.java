@@ -0,0 +1,163 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExpungeSchedulerServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ExpungeSchedulerServerR4IT.class);
+  private static final int PATIENT_COUNT = 12;
+  private static final LocalTime IN_WINDOW = LocalTime.of(1, 30);
+  private static final LocalTime OUT_OF_WINDOW = LocalTime.of(12, 0);
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static WebAppContext ourWebAppContext;
+  private static ExpungeSchedulerSvc ourExpungeSchedulerSvc;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-expunge-scheduler");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.EXPUNGE_SCHEDULER_ENABLED, "true");
+    // Slow enough to pause the job half way, a batch of two resources at a time
+    HapiProperties.setProperty(HapiProperties.EXPUNGE_SCHEDULER_ROWS_PER_SECOND, "2");
+    HapiProperties.setProperty(HapiProperties.EXPUNGE_SCHEDULER_BATCH_SIZE, "2");
+    HapiProperties.setProperty(HapiProperties.EXPUNGE_SCHEDULER_WINDOWS, "01:00-02:00");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testJobPausesOutsideWindowAndResumesFromCursor() {
+    List<IIdType> ids = new ArrayList<>();
+    for (int i = 0; i < PATIENT_COUNT; i++) {
+      Patient patient = new Patient();
+      patient.addName().setFamily("Expunge" + i);
+      IIdType id = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+      ourClient.delete().resourceById(id).execute();
+      ids.add(id);
+    }
+
+    setTime(OUT_OF_WINDOW);
+    Parameters submitted = ourClient
+      .operation()
+      .onServer()
+      .named(ExpungeSchedulerProvider.OPERATION_EXPUNGE_SCHEDULE)
+      .withParameter(Parameters.class, "_type", new StringType("Patient"))
+      .execute();
+    String jobId = getValue(submitted, "jobId");
+
+    // Nothing runs outside of the windows
+    await().during(12, TimeUnit.SECONDS).atMost(15, TimeUnit.SECONDS).until(() -> {
+      ExpungeSchedulerSvc.ExpungeJob job = ourExpungeSchedulerSvc.getJob(jobId);
+      return job.getStatus() == ExpungeSchedulerSvc.JobStatus.SUBMITTED && job.getCursor() == 0;
+    });
+
+    // Let the job start, then close the window while it is still running
+    setTime(IN_WINDOW);
+    await().atMost(30, TimeUnit.SECONDS).until(() -> ourExpungeSchedulerSvc.getJob(jobId).getCursor() > 0);
+    setTime(OUT_OF_WINDOW);
+    await().atMost(30, TimeUnit.SECONDS).until(() -> !ourExpungeSchedulerSvc.isRunning());
+
+    ExpungeSchedulerSvc.ExpungeJob paused = ourExpungeSchedulerSvc.getJob(jobId);
+    assertEquals(ExpungeSchedulerSvc.JobStatus.SUBMITTED, paused.getStatus());
+    assertTrue(paused.getCursor() > 0);
+    assertTrue(paused.getScannedCount() < PATIENT_COUNT, "scanned " + paused.getScannedCount());
+
+    // The position is kept while paused
+    await().during(12, TimeUnit.SECONDS).atMost(15, TimeUnit.SECONDS).until(() -> ourExpungeSchedulerSvc.getJob(jobId).getCursor() == paused.getCursor());
+
+    // The next window continues from the cursor, so no resource is scanned twice
+    setTime(IN_WINDOW);
+    await().atMost(60, TimeUnit.SECONDS).until(() -> ourExpungeSchedulerSvc.getJob(jobId).getStatus() == ExpungeSchedulerSvc.JobStatus.COMPLETE);
+
+    Parameters status = ourClient
+      .operation()
+      .onServer()
+      .named(ExpungeSchedulerProvider.OPERATION_EXPUNGE_SCHEDULE_STATUS)
+      .withParameter(Parameters.class, "jobId", new StringType(jobId))
+      .execute();
+    assertEquals("COMPLETE", getValue(status, "status"));
+    assertEquals(Integer.toString(PATIENT_COUNT), getValue(status, "scanned"));
+    assertTrue(Long.parseLong(getValue(status, "expunged")) >= PATIENT_COUNT);
+
+    // Expunged resources are gone entirely instead of deleted
+    for (IIdType next : ids) {
+      assertThrows(ResourceNotFoundException.class, () -> ourClient.read().resource(Patient.class).withId(next).execute());
+    }
+  }
+
+  private static void setTime(LocalTime theTime) {
+    ZoneId zone = ZoneId.systemDefault();
+    ourExpungeSchedulerSvc.setClock(Clock.fixed(theTime.atDate(LocalDate.now()).atZone(zone).toInstant(), zone));
+  }
+
+  private static String getValue(Parameters theParameters, String theName) {
+    return theParameters.getParameter(theName).primitiveValue();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    ourWebAppContext = new WebAppContext();
+    ourWebAppContext.setContextPath("/hapi-fhir-jpaserver");
+    ourWebAppContext.setDisplayName("HAPI FHIR");
+    ourWebAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    ourWebAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    ourWebAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(ourWebAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourExpungeSchedulerSvc = WebApplicationContextUtils.getRequiredWebApplicationContext(ourWebAppContext.getServletContext()).getBean(ExpungeSchedulerSvc.class);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+  }
+
+}
@@ -0,0 +1,147 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import com.google.common.hash.Hashing;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FilesystemBinaryStorageServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FilesystemBinaryStorageServerR4IT.class);
+  private static final String BASE_DIRECTORY = "target/binaries-it";
+  // Large enough to be externalized whatever the minimum binary size is
+  private static final int ATTACHMENT_SIZE = 300 * 1024;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-filesystem-binary");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.BINARY_STORAGE_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.BINARY_STORAGE_BACKEND, "FILESYSTEM");
+    HapiProperties.setProperty(HapiProperties.BINARY_STORAGE_FILESYSTEM_BASE_DIRECTORY, BASE_DIRECTORY);
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testExpungeOldVersionKeepsBlobOfCurrentVersion() {
+    byte[] data = createAttachment('a');
+    ourClient.update().resource(createDocument("doc-old-version", data, "v1")).execute();
+    // Same content, so both versions share the content addressed blob
+    ourClient.update().resource(createDocument("doc-old-version", data, "v2")).execute();
+    assertTrue(Files.exists(getBlobFile(data)));
+
+    ourClient
+      .operation()
+      .onInstance(new IdType("DocumentReference/doc-old-version"))
+      .named(JpaConstants.OPERATION_EXPUNGE)
+      .withParameter(Parameters.class, JpaConstants.OPERATION_EXPUNGE_PARAM_EXPUNGE_PREVIOUS_VERSIONS, new BooleanType(true))
+      .execute();
+
+    Bundle history = ourClient.history().onInstance(new IdType("DocumentReference/doc-old-version")).returnBundle(Bundle.class).execute();
+    assertEquals(1, history.getEntry().size());
+    assertTrue(Files.exists(getBlobFile(data)));
+
+    DocumentReference current = ourClient.read().resource(DocumentReference.class).withId("doc-old-version").execute();
+    assertEquals("v2", current.getDescription());
+    assertArrayEquals(data, current.getContentFirstRep().getAttachment().getData());
+  }
+
+  @Test
+  public void testExpungeDeletedResourceRemovesBlob() {
+    byte[] data = createAttachment('b');
+    IIdType id = ourClient.update().resource(createDocument("doc-deleted", data, "v1")).execute().getId().toUnqualifiedVersionless();
+    assertTrue(Files.exists(getBlobFile(data)));
+
+    ourClient.delete().resourceById(id).execute();
+    ourClient
+      .operation()
+      .onInstance(id)
+      .named(JpaConstants.OPERATION_EXPUNGE)
+      .withParameter(Parameters.class, JpaConstants.OPERATION_EXPUNGE_PARAM_EXPUNGE_DELETED_RESOURCES, new BooleanType(true))
+      .andParameter(JpaConstants.OPERATION_EXPUNGE_PARAM_EXPUNGE_PREVIOUS_VERSIONS, new BooleanType(true))
+      .execute();
+
+    assertFalse(Files.exists(getBlobFile(data)));
+  }
+
+  private static DocumentReference createDocument(String theId, byte[] theData, String theDescription) {
+    DocumentReference retVal = new DocumentReference();
+    retVal.setId("DocumentReference/" + theId);
+    retVal.setDescription(theDescription);
+    retVal.addContent().getAttachment().setContentType("application/octet-stream").setData(theData);
+    return retVal;
+  }
+
+  private static byte[] createAttachment(char theFill) {
+    byte[] retVal = new byte[ATTACHMENT_SIZE];
+    Arrays.fill(retVal, (byte) theFill);
+    return retVal;
+  }
+
+  private static Path getBlobFile(byte[] theData) {
+    String blobId = Hashing.sha256().hashBytes(theData).toString();
+    return Paths.get(BASE_DIRECTORY).toAbsolutePath().resolve(blobId.substring(0, 2)).resolve(blobId.substring(2, 4)).resolve(blobId);
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+  }
+
+}
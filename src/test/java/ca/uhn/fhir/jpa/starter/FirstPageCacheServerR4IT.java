@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FirstPageCacheServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FirstPageCacheServerR4IT.class);
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-fpc");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.SEARCH_FIRST_PAGE_CACHE_ENABLED, "true");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testCreateInvalidatesCachedPage() {
+    String family = "testCreateInvalidatesCachedPage";
+    createPatient(family);
+
+    // The second search is answered from the cache
+    assertEquals(1, searchByFamily(family).getEntry().size());
+    assertEquals(1, searchByFamily(family).getEntry().size());
+
+    createPatient(family);
+    assertEquals(2, searchByFamily(family).getEntry().size());
+  }
+
+  @Test
+  public void testUpdateAndDeleteInvalidateCachedPage() {
+    String family = "testUpdateAndDeleteInvalidateCachedPage";
+    IIdType id = createPatient(family);
+    assertEquals(1, searchByFamily(family).getEntry().size());
+
+    Patient pt = new Patient();
+    pt.setId(id.toUnqualifiedVersionless());
+    pt.addName().setFamily(family + "Renamed");
+    ourClient.update().resource(pt).execute();
+    assertEquals(0, searchByFamily(family).getEntry().size());
+    assertEquals(1, searchByFamily(family + "Renamed").getEntry().size());
+
+    ourClient.delete().resourceById(id.toUnqualifiedVersionless()).execute();
+    assertEquals(0, searchByFamily(family + "Renamed").getEntry().size());
+  }
+
+  @Test
+  public void testFailedTransactionKeepsResultsCorrect() {
+    String family = "testFailedTransactionKeepsResultsCorrect";
+    createPatient(family);
+    IIdType otherId = createPatient(family + "Other");
+    assertEquals(1, searchByFamily(family).getEntry().size());
+
+    // The update fails on its version check, so the create is rolled back
+    Bundle transaction = new Bundle();
+    transaction.setType(Bundle.BundleType.TRANSACTION);
+    Patient pt = new Patient();
+    pt.addName().setFamily(family);
+    transaction.addEntry().setResource(pt).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+    Patient other = new Patient();
+    other.setId(otherId.toUnqualifiedVersionless());
+    other.addName().setFamily(family + "Other");
+    transaction.addEntry().setResource(other).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(otherId.toUnqualifiedVersionless().getValue()).setIfMatch("W/\"99\"");
+    try {
+      ourClient.transaction().withBundle(transaction).execute();
+    } catch (Exception e) {
+      ourLog.info("Transaction failed as expected: {}", e.getMessage());
+    }
+
+    assertEquals(1, searchByFamily(family).getEntry().size());
+    createPatient(family);
+    assertEquals(2, searchByFamily(family).getEntry().size());
+  }
+
+  private IIdType createPatient(String theFamily) {
+    Patient pt = new Patient();
+    pt.addName().setFamily(theFamily);
+    return ourClient.create().resource(pt).execute().getId();
+  }
+
+  private Bundle searchByFamily(String theFamily) {
+    return ourClient.search().forResource(Patient.class).where(Patient.FAMILY.matchesExactly().value(theFamily)).returnBundle(Bundle.class).execute();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+  }
+
+}
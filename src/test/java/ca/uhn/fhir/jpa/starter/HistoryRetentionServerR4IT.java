@@ -0,0 +1,172 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HistoryRetentionServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HistoryRetentionServerR4IT.class);
+  private static final int VERSION_COUNT = 5;
+  private static final long OLD_MILLIS = TimeUnit.DAYS.toMillis(60);
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static WebAppContext ourWebAppContext;
+  private static HistoryRetentionSvc ourHistoryRetentionSvc;
+  private static JdbcTemplate ourJdbcTemplate;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-history-retention");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.HISTORY_RETENTION_ENABLED, "true");
+    // Patient by count only, Observation by age only, Organization by both
+    HapiProperties.setProperty(HapiProperties.HISTORY_RETENTION_MAX_VERSIONS, "Patient:2,Organization:2");
+    HapiProperties.setProperty(HapiProperties.HISTORY_RETENTION_MAX_AGE_DAYS, "Observation:30,Organization:30");
+    HapiProperties.setProperty(HapiProperties.HISTORY_RETENTION_BATCH_SIZE, "2");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testMaxVersionsKeepsLastVersions() throws InterruptedException {
+    IIdType id = createVersions(new Patient(), t -> ((Patient) t).addName().setFamily("Version" + t.getMeta().getVersionId()));
+
+    ourHistoryRetentionSvc.prune();
+
+    assertEquals(Arrays.asList("5", "4"), getVersions(id));
+  }
+
+  @Test
+  public void testMaxAgeDaysKeepsRecentVersions() throws InterruptedException {
+    IIdType id = createVersions(new Observation(), t -> ((Observation) t).setStatus(Observation.ObservationStatus.FINAL).addNote().setText("v" + t.getMeta().getVersionId()));
+    age(id, 1, 2);
+
+    ourHistoryRetentionSvc.prune();
+
+    assertEquals(Arrays.asList("5", "4", "3"), getVersions(id));
+  }
+
+  @Test
+  public void testCurrentVersionIsNeverPruned() throws InterruptedException {
+    IIdType id = createVersions(new Observation(), t -> ((Observation) t).setStatus(Observation.ObservationStatus.FINAL).addNote().setText("v" + t.getMeta().getVersionId()));
+    age(id, 1, 2, 3, 4, 5);
+
+    ourHistoryRetentionSvc.prune();
+
+    assertEquals(Arrays.asList("5"), getVersions(id));
+  }
+
+  @Test
+  public void testBothPoliciesKeepWhatEitherKeeps() throws InterruptedException {
+    // The age policy keeps more than the version count
+    IIdType recent = createVersions(new Organization(), t -> ((Organization) t).setName("Recent" + t.getMeta().getVersionId()));
+    age(recent, 1, 2);
+    // The version count keeps more than the age policy
+    IIdType old = createVersions(new Organization(), t -> ((Organization) t).setName("Old" + t.getMeta().getVersionId()));
+    age(old, 1, 2, 3, 4, 5);
+
+    ourHistoryRetentionSvc.prune();
+
+    assertEquals(Arrays.asList("5", "4", "3"), getVersions(recent));
+    assertEquals(Arrays.asList("5", "4"), getVersions(old));
+  }
+
+  /**
+   * Creates a resource and updates it until it has {@link #VERSION_COUNT} versions
+   */
+  private static IIdType createVersions(IBaseResource theResource, Function<IBaseResource, ?> theModifier) {
+    IIdType retVal = ourClient.create().resource(theResource).execute().getId().toUnqualifiedVersionless();
+    for (int i = 2; i <= VERSION_COUNT; i++) {
+      IBaseResource current = ourClient.read().resource(theResource.getClass()).withId(retVal).execute();
+      theModifier.apply(current);
+      ourClient.update().resource(current).execute();
+    }
+    return retVal;
+  }
+
+  /**
+   * Moves the given versions of a resource back in time, past the age limit
+   */
+  private static void age(IIdType theId, int... theVersions) {
+    Date updated = new Date(System.currentTimeMillis() - OLD_MILLIS);
+    for (int next : theVersions) {
+      ourJdbcTemplate.update("UPDATE HFJ_RES_VER SET RES_UPDATED = ? WHERE RES_ID = ? AND RES_VER = ?", updated, theId.getIdPartAsLong(), next);
+    }
+  }
+
+  private static List<String> getVersions(IIdType theId) {
+    Bundle history = ourClient.history().onInstance(theId).returnBundle(Bundle.class).execute();
+    List<String> retVal = new ArrayList<>();
+    for (Bundle.BundleEntryComponent next : history.getEntry()) {
+      retVal.add(next.getResource().getIdElement().getVersionIdPart());
+    }
+    return retVal;
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    ourWebAppContext = new WebAppContext();
+    ourWebAppContext.setContextPath("/hapi-fhir-jpaserver");
+    ourWebAppContext.setDisplayName("HAPI FHIR");
+    ourWebAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    ourWebAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    ourWebAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(ourWebAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ApplicationContext appCtx = WebApplicationContextUtils.getRequiredWebApplicationContext(ourWebAppContext.getServletContext());
+    ourHistoryRetentionSvc = appCtx.getBean(HistoryRetentionSvc.class);
+    ourJdbcTemplate = new JdbcTemplate(appCtx.getBean(BasicDataSource.class));
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+  }
+
+}
@@ -0,0 +1,155 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.search.cache.DatabaseSearchResultCacheSvcImpl;
+import ca.uhn.fhir.jpa.search.cache.ISearchResultCacheSvc;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.storage.ResourcePersistentId;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeysetPagingServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(KeysetPagingServerR4IT.class);
+  private static final String FAMILY = "Keyset";
+  private static final int PATIENT_COUNT = 55;
+  private static final int PAGE_SIZE = 10;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static WebAppContext ourWebAppContext;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-keyset-paging");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.SEARCH_KEYSET_PAGING_ENABLED, "true");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testKeysetPagingIsUsed() {
+    assertTrue(getAppCtx().getBean(ISearchResultCacheSvc.class) instanceof KeysetSearchResultCacheSvcImpl);
+  }
+
+  @Test
+  public void testPagesMatchOffsetPaging() {
+    Bundle page = ourClient.search().byUrl("Patient?family=" + FAMILY + "&_count=" + PAGE_SIZE).returnBundle(Bundle.class).execute();
+    assertNotNull(page.getLink(Bundle.LINK_NEXT));
+    String searchUuid = getParam(page.getLink(Bundle.LINK_NEXT).getUrl(), Constants.PARAM_PAGINGACTION);
+
+    List<Long> pagedPids = new ArrayList<>(toPids(page));
+    while (page.getLink(Bundle.LINK_NEXT) != null) {
+      page = ourClient.loadPage().next(page).execute();
+      pagedPids.addAll(toPids(page));
+    }
+    assertEquals(PATIENT_COUNT, pagedPids.size());
+    assertEquals(PATIENT_COUNT, pagedPids.stream().distinct().count());
+
+    // Every page, as loaded with a LIMIT/OFFSET query by the default implementation
+    ApplicationContext appCtx = getAppCtx();
+    DatabaseSearchResultCacheSvcImpl offsetSvc = appCtx.getAutowireCapableBeanFactory().createBean(DatabaseSearchResultCacheSvcImpl.class);
+    ISearchResultCacheSvc keysetSvc = appCtx.getBean(ISearchResultCacheSvc.class);
+    ISearchDao searchDao = appCtx.getBean(ISearchDao.class);
+    new TransactionTemplate(appCtx.getBean(PlatformTransactionManager.class)).execute(t -> {
+      Search search = searchDao.findByUuidAndFetchIncludes(searchUuid).orElseThrow(IllegalStateException::new);
+      List<Long> offsetPids = new ArrayList<>();
+      for (int from = 0; from < PATIENT_COUNT; from += PAGE_SIZE) {
+        List<Long> offsetPage = ResourcePersistentId.toLongList(offsetSvc.fetchResultPids(search, from, from + PAGE_SIZE));
+        assertEquals(offsetPage, ResourcePersistentId.toLongList(keysetSvc.fetchResultPids(search, from, from + PAGE_SIZE)), "page at " + from);
+        offsetPids.addAll(offsetPage);
+      }
+      assertEquals(offsetPids, pagedPids);
+      return null;
+    });
+  }
+
+  /**
+   * Server assigned IDs are the persistent IDs of the resources
+   */
+  private static List<Long> toPids(Bundle theBundle) {
+    List<Long> retVal = new ArrayList<>();
+    for (Bundle.BundleEntryComponent next : theBundle.getEntry()) {
+      retVal.add(next.getResource().getIdElement().getIdPartAsLong());
+    }
+    return retVal;
+  }
+
+  private static String getParam(String theUrl, String theName) {
+    for (String next : URI.create(theUrl).getQuery().split("&")) {
+      if (next.startsWith(theName + "=")) {
+        return next.substring(theName.length() + 1);
+      }
+    }
+    throw new IllegalStateException("No " + theName + " in " + theUrl);
+  }
+
+  private static ApplicationContext getAppCtx() {
+    return WebApplicationContextUtils.getRequiredWebApplicationContext(ourWebAppContext.getServletContext());
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    ourWebAppContext = new WebAppContext();
+    ourWebAppContext.setContextPath("/hapi-fhir-jpaserver");
+    ourWebAppContext.setDisplayName("HAPI FHIR");
+    ourWebAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    ourWebAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    ourWebAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(ourWebAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+
+    for (int i = 0; i < PATIENT_COUNT; i++) {
+      Patient patient = new Patient();
+      patient.addName().setFamily(FAMILY).addGiven("Given" + i);
+      ourClient.create().resource(patient).execute();
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MatchUrlCacheServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(MatchUrlCacheServerR4IT.class);
+  private static final String SYSTEM = "http://example.com/mrn";
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static WebAppContext ourWebAppContext;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-match-url-cache");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.MATCH_URL_CACHE_ENABLED, "true");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testRepeatedConditionalCreateIsServedFromCache() {
+    MethodOutcome first = conditionalCreate("testRepeatedConditionalCreate");
+    assertTrue(first.getCreated());
+    IIdType id = first.getId().toUnqualifiedVersionless();
+
+    long hitsBefore = getMatchUrlCache().getHitCount();
+    for (int i = 0; i < 3; i++) {
+      MethodOutcome next = conditionalCreate("testRepeatedConditionalCreate");
+      assertFalse(Boolean.TRUE.equals(next.getCreated()));
+      assertEquals(id.getValue(), next.getId().toUnqualifiedVersionless().getValue());
+    }
+    assertTrue(getMatchUrlCache().getHitCount() > hitsBefore);
+    assertEquals(1, searchByIdentifier("testRepeatedConditionalCreate").getTotal());
+  }
+
+  @Test
+  public void testChangedIdentifierNoLongerMatches() {
+    IIdType id = conditionalCreate("testChangedIdentifierOld").getId().toUnqualifiedVersionless();
+    // Cache the match
+    assertEquals(id.getValue(), conditionalCreate("testChangedIdentifierOld").getId().toUnqualifiedVersionless().getValue());
+
+    Patient pt = ourClient.read().resource(Patient.class).withId(id).execute();
+    pt.getIdentifierFirstRep().setValue("testChangedIdentifierNew");
+    ourClient.update().resource(pt).execute();
+
+    MethodOutcome oldIdentifier = conditionalCreate("testChangedIdentifierOld");
+    assertTrue(oldIdentifier.getCreated());
+    assertNotEquals(id.getValue(), oldIdentifier.getId().toUnqualifiedVersionless().getValue());
+
+    MethodOutcome newIdentifier = conditionalCreate("testChangedIdentifierNew");
+    assertFalse(Boolean.TRUE.equals(newIdentifier.getCreated()));
+    assertEquals(id.getValue(), newIdentifier.getId().toUnqualifiedVersionless().getValue());
+  }
+
+  @Test
+  public void testDeleteThenRecreate() {
+    IIdType id = conditionalCreate("testDeleteThenRecreate").getId().toUnqualifiedVersionless();
+    // Cache the match
+    assertEquals(id.getValue(), conditionalCreate("testDeleteThenRecreate").getId().toUnqualifiedVersionless().getValue());
+
+    ourClient.delete().resourceById(id).execute();
+
+    MethodOutcome recreated = conditionalCreate("testDeleteThenRecreate");
+    assertTrue(recreated.getCreated());
+    IIdType newId = recreated.getId().toUnqualifiedVersionless();
+    assertNotEquals(id.getValue(), newId.getValue());
+
+    MethodOutcome repeated = conditionalCreate("testDeleteThenRecreate");
+    assertFalse(Boolean.TRUE.equals(repeated.getCreated()));
+    assertEquals(newId.getValue(), repeated.getId().toUnqualifiedVersionless().getValue());
+    assertEquals(1, searchByIdentifier("testDeleteThenRecreate").getTotal());
+  }
+
+  private static MethodOutcome conditionalCreate(String theIdentifier) {
+    Patient pt = new Patient();
+    pt.addIdentifier().setSystem(SYSTEM).setValue(theIdentifier);
+    return ourClient
+      .create()
+      .resource(pt)
+      .conditionalByUrl("Patient?identifier=" + SYSTEM + "|" + theIdentifier)
+      .execute();
+  }
+
+  private static Bundle searchByIdentifier(String theIdentifier) {
+    return ourClient
+      .search()
+      .forResource(Patient.class)
+      .where(Patient.IDENTIFIER.exactly().systemAndIdentifier(SYSTEM, theIdentifier))
+      .totalMode(SearchTotalModeEnum.ACCURATE)
+      .returnBundle(Bundle.class)
+      .cacheControl(new CacheControlDirective().setNoCache(true))
+      .execute();
+  }
+
+  private static MatchUrlCache getMatchUrlCache() {
+    return WebApplicationContextUtils
+      .getRequiredWebApplicationContext(ourWebAppContext.getServletContext())
+      .getBean(MatchUrlCache.class);
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    ourWebAppContext = new WebAppContext();
+    ourWebAppContext.setContextPath("/hapi-fhir-jpaserver");
+    ourWebAppContext.setDisplayName("HAPI FHIR");
+    ourWebAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    ourWebAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    ourWebAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(ourWebAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+  }
+
+}
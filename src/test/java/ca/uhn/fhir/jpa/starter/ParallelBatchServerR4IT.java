@@ -0,0 +1,167 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.UrlTenantSelectionInterceptor;
+import ca.uhn.fhir.rest.server.provider.ProviderConstants;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParallelBatchServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParallelBatchServerR4IT.class);
+  private static final int ENTRY_COUNT = 20;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static UrlTenantSelectionInterceptor ourClientTenantInterceptor;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-parallel-batch");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.PARTITIONING_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.PARTITIONING_MULTITENANCY_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_THREADS, "2");
+    // A queue this small makes the request thread process entries as well
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_QUEUE_SIZE, "1");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_MIN_ENTRIES, "2");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testEntriesAreStoredInTenantOfBatch() {
+    ourClientTenantInterceptor.setTenantId("DEFAULT");
+    ourClient
+      .operation()
+      .onServer()
+      .named(ProviderConstants.PARTITION_MANAGEMENT_CREATE_PARTITION)
+      .withParameter(Parameters.class, ProviderConstants.PARTITION_MANAGEMENT_PARTITION_ID, new IntegerType(1))
+      .andParameter(ProviderConstants.PARTITION_MANAGEMENT_PARTITION_NAME, new CodeType("TENANT-BATCH"))
+      .execute();
+
+    ourClientTenantInterceptor.setTenantId("TENANT-BATCH");
+    Bundle response = ourClient.transaction().withBundle(createBatch("testEntriesAreStoredInTenantOfBatch")).execute();
+
+    assertEquals(ENTRY_COUNT, response.getEntry().size());
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      Bundle.BundleEntryResponseComponent entryResponse = response.getEntry().get(i).getResponse();
+      assertTrue(entryResponse.getStatus().startsWith("201"), entryResponse.getStatus());
+
+      // Response entries keep the order of the request entries
+      Patient pt = ourClient.read().resource(Patient.class).withId(new IdType(entryResponse.getLocation()).toUnqualifiedVersionless()).execute();
+      assertEquals("testEntriesAreStoredInTenantOfBatch" + i, pt.getNameFirstRep().getFamily());
+    }
+
+    Bundle inTenant = searchByFamilyPrefix("testEntriesAreStoredInTenantOfBatch");
+    assertEquals(ENTRY_COUNT, inTenant.getTotal());
+
+    ourClientTenantInterceptor.setTenantId("DEFAULT");
+    Bundle inDefault = searchByFamilyPrefix("testEntriesAreStoredInTenantOfBatch");
+    assertEquals(0, inDefault.getTotal());
+  }
+
+  @Test
+  public void testFailedEntryDoesNotFailOthers() {
+    ourClientTenantInterceptor.setTenantId("DEFAULT");
+    Bundle batch = createBatch("testFailedEntryDoesNotFailOthers");
+    batch.getEntry().get(5).getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Patient/does-not-exist");
+    batch.getEntry().get(5).setResource(null);
+
+    Bundle response = ourClient.transaction().withBundle(batch).execute();
+
+    assertEquals(ENTRY_COUNT, response.getEntry().size());
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      String status = response.getEntry().get(i).getResponse().getStatus();
+      if (i == 5) {
+        assertTrue(status.startsWith("404"), status);
+      } else {
+        assertTrue(status.startsWith("201"), status);
+      }
+    }
+  }
+
+  private static Bundle createBatch(String theFamilyPrefix) {
+    Bundle retVal = new Bundle();
+    retVal.setType(Bundle.BundleType.BATCH);
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      Patient pt = new Patient();
+      pt.addName().setFamily(theFamilyPrefix + i);
+      retVal.addEntry()
+        .setResource(pt)
+        .getRequest()
+        .setMethod(Bundle.HTTPVerb.POST)
+        .setUrl("Patient");
+    }
+    return retVal;
+  }
+
+  private static Bundle searchByFamilyPrefix(String theFamilyPrefix) {
+    return ourClient
+      .search()
+      .forResource(Patient.class)
+      .where(Patient.FAMILY.matches().value(theFamilyPrefix))
+      .totalMode(SearchTotalModeEnum.ACCURATE)
+      .returnBundle(Bundle.class)
+      .cacheControl(new CacheControlDirective().setNoCache(true))
+      .execute();
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+
+    ourClientTenantInterceptor = new UrlTenantSelectionInterceptor();
+    ourClient.registerInterceptor(ourClientTenantInterceptor);
+  }
+
+}
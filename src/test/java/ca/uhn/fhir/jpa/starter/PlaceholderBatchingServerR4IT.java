@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PlaceholderBatchingServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PlaceholderBatchingServerR4IT.class);
+  private static final int ENTRY_COUNT = 10;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-placeholder-batching");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.AUTO_CREATE_PLACEHOLDER_REFERENCE_TARGETS, "true");
+    HapiProperties.setProperty(HapiProperties.PLACEHOLDER_BATCHING_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.PLACEHOLDER_BATCHING_MIN_REFERENCES, "2");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_THREADS, "4");
+    HapiProperties.setProperty(HapiProperties.BATCH_PARALLEL_MIN_ENTRIES, "2");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testTransactionCreatesMissingTargets() {
+    Bundle response = ourClient.transaction().withBundle(createBundle(Bundle.BundleType.TRANSACTION, "tx")).execute();
+
+    assertEquals(ENTRY_COUNT, response.getEntry().size());
+    assertTargetsExist("tx");
+  }
+
+  @Test
+  public void testParallelBatchCreatesMissingTargets() {
+    Bundle response = ourClient.transaction().withBundle(createBundle(Bundle.BundleType.BATCH, "batch")).execute();
+
+    assertEquals(ENTRY_COUNT, response.getEntry().size());
+    for (Bundle.BundleEntryComponent next : response.getEntry()) {
+      assertTrue(next.getResponse().getStatus().startsWith("201"), next.getResponse().getStatus());
+    }
+    assertTargetsExist("batch");
+  }
+
+  private static Bundle createBundle(Bundle.BundleType theType, String theIdPrefix) {
+    Bundle retVal = new Bundle();
+    retVal.setType(theType);
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      Observation obs = new Observation();
+      obs.setStatus(Observation.ObservationStatus.FINAL);
+      obs.setSubject(new Reference("Patient/" + theIdPrefix + "-patient-" + i));
+      obs.addPerformer(new Reference("Practitioner/" + theIdPrefix + "-practitioner-" + i));
+      retVal.addEntry()
+        .setResource(obs)
+        .getRequest()
+        .setMethod(Bundle.HTTPVerb.POST)
+        .setUrl("Observation");
+    }
+    return retVal;
+  }
+
+  private static void assertTargetsExist(String theIdPrefix) {
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      Patient patient = ourClient.read().resource(Patient.class).withId(theIdPrefix + "-patient-" + i).execute();
+      assertEquals("1", patient.getIdElement().getVersionIdPart());
+      Practitioner practitioner = ourClient.read().resource(Practitioner.class).withId(theIdPrefix + "-practitioner-" + i).execute();
+      assertEquals("1", practitioner.getIdElement().getVersionIdPart());
+    }
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+  }
+
+}
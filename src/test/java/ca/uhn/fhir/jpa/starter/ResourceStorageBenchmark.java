@@ -0,0 +1,272 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Compares the stored size and the encode/decode cost of a resource version
+ * in the storage encodings, over a mixed corpus of Patients, Encounters,
+ * Observations, ServiceRequests and CommunicationRequests. Every resource is
+ * encoded on its own, as it is stored.
+ * <ul>
+ * <li><code>JSON</code> and <code>JSONC</code> (gzip) are the values of
+ * <code>resource_encoding</code></li>
+ * <li><code>DICT</code> is deflate with a preset dictionary built from a
+ * separate sample of the same kinds of resources, showing what a trained
+ * dictionary would add on top of JSONC. The JPA server can not store this
+ * encoding.</li>
+ * </ul>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ca.uhn.fhir.jpa.starter.ResourceStorageBenchmark</code>
+ */
+public class ResourceStorageBenchmark {
+
+  private static final int RESOURCES = 2000;
+  private static final int DICTIONARY_SAMPLES = 100;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 10;
+
+  public static void main(String[] theArgs) {
+    FhirContext ctx = FhirContext.forR4();
+    IParser parser = ctx.newJsonParser();
+    List<IBaseResource> corpus = createCorpus(0, RESOURCES);
+    byte[] dictionary = createDictionary(parser, createCorpus(RESOURCES, DICTIONARY_SAMPLES));
+
+    System.out.println(String.format("%-6s %12s %8s %14s %14s", "codec", "bytes", "saved", "encode us/res", "decode us/res"));
+    long jsonBytes = run("JSON", parser, corpus, -1, t -> t, t -> t);
+    run("JSONC", parser, corpus, jsonBytes, ResourceStorageBenchmark::gzip, ResourceStorageBenchmark::gunzip);
+    run("DICT", parser, corpus, jsonBytes, t -> deflate(t, dictionary), t -> inflate(t, dictionary));
+  }
+
+  /**
+   * @return Returns the total number of stored bytes
+   */
+  private static long run(String theName, IParser theParser, List<IBaseResource> theCorpus, long theJsonBytes, Function<byte[], byte[]> theEncoder, Function<byte[], byte[]> theDecoder) {
+    List<byte[]> stored = new ArrayList<>();
+    for (IBaseResource next : theCorpus) {
+      stored.add(theEncoder.apply(theParser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8)));
+    }
+    long bytes = stored.stream().mapToLong(t -> t.length).sum();
+
+    double encodeMicros = measure(theCorpus.size(), () -> {
+      for (IBaseResource next : theCorpus) {
+        theEncoder.apply(theParser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    double decodeMicros = measure(theCorpus.size(), () -> {
+      for (byte[] next : stored) {
+        theParser.parseResource(new String(theDecoder.apply(next), StandardCharsets.UTF_8));
+      }
+    });
+
+    String saved = theJsonBytes > 0 ? String.format("%.1f%%", 100.0 * (theJsonBytes - bytes) / theJsonBytes) : "-";
+    System.out.println(String.format("%-6s %12d %8s %14.1f %14.1f", theName, bytes, saved, encodeMicros, decodeMicros));
+    return bytes;
+  }
+
+  /**
+   * @return Returns the microseconds per resource
+   */
+  private static double measure(int theResources, Runnable theTask) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      theTask.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      theTask.run();
+    }
+    return (System.nanoTime() - start) / 1e3 / ROUNDS / theResources;
+  }
+
+  private static byte[] createDictionary(IParser theParser, List<IBaseResource> theSamples) {
+    ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+    for (IBaseResource next : theSamples) {
+      byte[] json = theParser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8);
+      retVal.write(json, 0, json.length);
+    }
+    // Deflate only looks back 32 KB, and prefers the end of the dictionary
+    byte[] samples = retVal.toByteArray();
+    return Arrays.copyOfRange(samples, Math.max(0, samples.length - DICTIONARY_SIZE), samples.length);
+  }
+
+  private static List<IBaseResource> createCorpus(int theFirst, int theCount) {
+    List<IBaseResource> retVal = new ArrayList<>();
+    for (int i = theFirst; i < theFirst + theCount; i++) {
+      switch (i % 5) {
+        case 0:
+          retVal.add(createPatient(i));
+          break;
+        case 1:
+          retVal.add(createEncounter(i));
+          break;
+        case 2:
+          retVal.add(createObservation(i));
+          break;
+        case 3:
+          retVal.add(createServiceRequest(i));
+          break;
+        default:
+          retVal.add(createCommunicationRequest(i));
+          break;
+      }
+    }
+    return retVal;
+  }
+
+  private static Patient createPatient(int theIndex) {
+    Patient retVal = new Patient();
+    retVal.setId("Patient/" + theIndex);
+    retVal.addIdentifier(new Identifier().setSystem("http://hospital.example.org/mrn").setValue("MRN" + (100000 + theIndex)));
+    retVal.addName().setFamily("Family" + theIndex % 97).addGiven("Given" + theIndex % 89);
+    retVal.setGender(theIndex % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+    retVal.setBirthDateElement(new DateType("19" + (40 + theIndex % 60) + "-0" + (1 + theIndex % 9) + "-1" + theIndex % 10));
+    retVal.addAddress().addLine(theIndex + " Main Street").setCity("Springfield").setPostalCode(String.valueOf(10000 + theIndex % 900)).setCountry("US");
+    retVal.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("+1 555 " + (1000000 + theIndex));
+    return retVal;
+  }
+
+  private static Encounter createEncounter(int theIndex) {
+    Encounter retVal = new Encounter();
+    retVal.setId("Encounter/" + theIndex);
+    retVal.setStatus(Encounter.EncounterStatus.FINISHED);
+    retVal.setClass_(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "AMB", "ambulatory"));
+    retVal.addType(new CodeableConcept().addCoding(new Coding("http://snomed.info/sct", "185349003", "Encounter for check up")));
+    retVal.setSubject(new Reference("Patient/" + theIndex % 400));
+    retVal.setPeriod(new Period().setStart(new Date(1600000000000L + theIndex * 60000L)).setEnd(new Date(1600000000000L + theIndex * 60000L + 1800000L)));
+    retVal.setServiceProvider(new Reference("Organization/hospital"));
+    return retVal;
+  }
+
+  private static Observation createObservation(int theIndex) {
+    Observation retVal = new Observation();
+    retVal.setId("Observation/" + theIndex);
+    retVal.setStatus(Observation.ObservationStatus.FINAL);
+    retVal.addCategory(new CodeableConcept().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "Vital Signs")));
+    retVal.setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "8867-4", "Heart rate")));
+    retVal.setSubject(new Reference("Patient/" + theIndex % 400));
+    retVal.setEncounter(new Reference("Encounter/" + (theIndex - 1)));
+    retVal.setEffective(new DateTimeType(new Date(1600000000000L + theIndex * 1000L)));
+    retVal.setValue(new Quantity().setValue(60 + (theIndex % 40) + 0.25).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+    return retVal;
+  }
+
+  private static ServiceRequest createServiceRequest(int theIndex) {
+    ServiceRequest retVal = new ServiceRequest();
+    retVal.setId("ServiceRequest/" + theIndex);
+    retVal.addIdentifier(new Identifier().setSystem("http://hospital.example.org/order").setValue("ORD" + theIndex));
+    retVal.setStatus(ServiceRequest.ServiceRequestStatus.values()[theIndex % 4]);
+    retVal.setIntent(ServiceRequest.ServiceRequestIntent.ORDER);
+    retVal.setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "58410-2", "CBC panel - Blood by Automated count")));
+    retVal.setSubject(new Reference("Patient/" + theIndex % 400));
+    retVal.setAuthoredOnElement(new DateTimeType(new Date(1600000000000L + theIndex * 1000L)));
+    retVal.setRequester(new Reference("Practitioner/" + theIndex % 30));
+    retVal.addNote().setText("Fasting sample requested, patient informed on " + theIndex % 28 + " of the month");
+    return retVal;
+  }
+
+  private static CommunicationRequest createCommunicationRequest(int theIndex) {
+    CommunicationRequest retVal = new CommunicationRequest();
+    retVal.setId("CommunicationRequest/" + theIndex);
+    retVal.setStatus(CommunicationRequest.CommunicationRequestStatus.values()[theIndex % 4]);
+    retVal.setSubject(new Reference("Patient/" + theIndex % 400));
+    retVal.addRecipient(new Reference("Practitioner/" + theIndex % 30));
+    retVal.setAuthoredOnElement(new DateTimeType(new Date(1600000000000L + theIndex * 1000L)));
+    retVal.addPayload().setContent(new StringType("Please review the results of order ORD" + (theIndex - 1)));
+    return retVal;
+  }
+
+  private static byte[] gzip(byte[] theInput) {
+    ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(retVal)) {
+      out.write(theInput);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return retVal.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] theInput) {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(theInput))) {
+      return IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] deflate(byte[] theInput, byte[] theDictionary) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setDictionary(theDictionary);
+      deflater.setInput(theInput);
+      deflater.finish();
+      ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        retVal.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return retVal.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] theInput, byte[] theDictionary) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(theInput);
+      ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0 && inflater.needsDictionary()) {
+          inflater.setDictionary(theDictionary);
+        } else if (count == 0 && inflater.needsInput()) {
+          throw new IllegalStateException("Truncated input");
+        }
+        retVal.write(buffer, 0, count);
+      }
+      return retVal.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StreamingBundleServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StreamingBundleServerR4IT.class);
+  private static final String FAMILY = "Streamington";
+  private static final int CHUNK_SIZE = 7;
+  private static final int PATIENT_COUNT = 45;
+  private static final int PAGE_SIZE = 20;
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static String ourServerBase;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-search-streaming");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.SEARCH_STREAMING_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.SEARCH_STREAMING_CHUNK_SIZE, Integer.toString(CHUNK_SIZE));
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testStreamedSearchMatchesRegularSearch() {
+    // _summary=false isn't streamed, so it is answered by the regular server
+    Bundle regular = ourClient.search().byUrl("Patient?family=" + FAMILY + "&_count=" + PATIENT_COUNT + "&_summary=false").returnBundle(Bundle.class).execute();
+    Bundle streamed = ourClient.search().byUrl("Patient?family=" + FAMILY + "&_count=" + PATIENT_COUNT).returnBundle(Bundle.class).execute();
+
+    assertEquals(Bundle.BundleType.SEARCHSET, streamed.getType());
+    assertEquals(PATIENT_COUNT, streamed.getTotal());
+    assertEquals(PATIENT_COUNT, streamed.getEntry().size());
+    // Neither search is sorted, so only the sets of entries are compared
+    assertEquals(new TreeSet<>(toFullUrls(regular)), new TreeSet<>(toFullUrls(streamed)));
+    for (Bundle.BundleEntryComponent next : streamed.getEntry()) {
+      assertEquals(Bundle.SearchEntryMode.MATCH, next.getSearch().getMode());
+      assertEquals(FAMILY, ((Patient) next.getResource()).getNameFirstRep().getFamily());
+      assertEquals(next.getFullUrl(), next.getResource().getIdElement().toVersionless().getValue());
+    }
+  }
+
+  @Test
+  public void testStreamedSearchPagesThroughAllResults() {
+    Bundle page = ourClient.search().byUrl("Patient?family=" + FAMILY + "&_count=" + PAGE_SIZE).returnBundle(Bundle.class).execute();
+    assertEquals(PATIENT_COUNT, page.getTotal());
+    assertNull(page.getLink(Bundle.LINK_PREV));
+
+    List<String> fullUrls = new ArrayList<>(toFullUrls(page));
+    int pages = 1;
+    while (page.getLink(Bundle.LINK_NEXT) != null) {
+      page = ourClient.loadPage().next(page).execute();
+      assertNotNull(page.getLink(Bundle.LINK_PREV));
+      fullUrls.addAll(toFullUrls(page));
+      pages++;
+    }
+
+    assertEquals(3, pages);
+    assertEquals(PATIENT_COUNT % PAGE_SIZE, page.getEntry().size());
+    assertEquals(PATIENT_COUNT, fullUrls.size());
+    assertEquals(PATIENT_COUNT, fullUrls.stream().distinct().count());
+  }
+
+  @Test
+  public void testStreamedInstanceHistory() {
+    Patient patient = new Patient();
+    patient.setId("streamed-history");
+    patient.addName().setFamily("History");
+    ourClient.update().resource(patient).execute();
+    patient.getNameFirstRep().setFamily("History2");
+    ourClient.update().resource(patient).execute();
+
+    Bundle history = ourClient.history().onInstance(new IdType("Patient/streamed-history")).returnBundle(Bundle.class).execute();
+
+    assertEquals(Bundle.BundleType.HISTORY, history.getType());
+    assertEquals(2, history.getEntry().size());
+    assertEquals("2", history.getEntry().get(0).getResource().getIdElement().getVersionIdPart());
+    assertEquals(Bundle.HTTPVerb.PUT, history.getEntry().get(0).getRequest().getMethod());
+    assertEquals(ourServerBase + "Patient/streamed-history", history.getEntry().get(0).getFullUrl());
+    assertEquals("1", history.getEntry().get(1).getResource().getIdElement().getVersionIdPart());
+  }
+
+  @Test
+  public void testInvalidSearchIsAnsweredWithOperationOutcome() {
+    // The search fails before the first byte is written, so the client gets a regular error response
+    assertThrows(InvalidRequestException.class, () -> ourClient.search().byUrl("Patient?birthdate=not-a-date").returnBundle(Bundle.class).execute());
+  }
+
+  private static List<String> toFullUrls(Bundle theBundle) {
+    List<String> retVal = new ArrayList<>();
+    for (Bundle.BundleEntryComponent next : theBundle.getEntry()) {
+      retVal.add(next.getFullUrl());
+    }
+    return retVal;
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    WebAppContext webAppContext = new WebAppContext();
+    webAppContext.setContextPath("/hapi-fhir-jpaserver");
+    webAppContext.setDisplayName("HAPI FHIR");
+    webAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    webAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    webAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(webAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.setEncoding(EncodingEnum.JSON);
+    ourClient.registerInterceptor(new LoggingInterceptor(false));
+
+    for (int i = 0; i < PATIENT_COUNT; i++) {
+      Patient patient = new Patient();
+      patient.addName().setFamily(FAMILY).addGiven("Given" + i);
+      ourClient.create().resource(patient).execute();
+    }
+  }
+
+}
@@ -0,0 +1,139 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.UrlTenantSelectionInterceptor;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.provider.ProviderConstants;
+import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TenantAdmissionServerR4IT {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TenantAdmissionServerR4IT.class);
+  private static IGenericClient ourClient;
+  private static FhirContext ourCtx;
+  private static int ourPort;
+  private static Server ourServer;
+  private static WebAppContext ourWebAppContext;
+  private static UrlTenantSelectionInterceptor ourClientTenantInterceptor;
+
+  static {
+    HapiProperties.forceReload();
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:dbr4-admission");
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.PARTITIONING_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.PARTITIONING_MULTITENANCY_ENABLED, "true");
+    HapiProperties.setProperty(HapiProperties.ADMISSION_CONTROL_ENABLED, "true");
+    ourCtx = FhirContext.forR4();
+  }
+
+  @Test
+  public void testKnownTenantGetsOwnSlots() {
+    ourClientTenantInterceptor.setTenantId("DEFAULT");
+    ourClient
+      .operation()
+      .onServer()
+      .named(ProviderConstants.PARTITION_MANAGEMENT_CREATE_PARTITION)
+      .withParameter(Parameters.class, ProviderConstants.PARTITION_MANAGEMENT_PARTITION_ID, new IntegerType(1))
+      .andParameter(ProviderConstants.PARTITION_MANAGEMENT_PARTITION_NAME, new CodeType("TENANT-A"))
+      .execute();
+
+    ourClientTenantInterceptor.setTenantId("TENANT-A");
+    Patient pt = new Patient();
+    pt.addName().setFamily("testKnownTenantGetsOwnSlots");
+    IIdType id = ourClient.create().resource(pt).execute().getId();
+    ourClient.read().resource(Patient.class).withId(id.toUnqualifiedVersionless()).execute();
+
+    Map<String, Long> bulkheads = getAdmissionInterceptor().getRejectedCounts();
+    assertTrue(bulkheads.containsKey("TENANT-A|WRITE"), bulkheads.toString());
+    assertTrue(bulkheads.containsKey("TENANT-A|READ"), bulkheads.toString());
+  }
+
+  @Test
+  public void testUnknownTenantsShareSlots() {
+    for (int i = 0; i < 5; i++) {
+      ourClientTenantInterceptor.setTenantId("NO-SUCH-TENANT-" + i);
+      assertThrows(Exception.class, () -> ourClient.read().resource(Patient.class).withId("1").execute());
+    }
+
+    Map<String, Long> bulkheads = getAdmissionInterceptor().getRejectedCounts();
+    assertTrue(bulkheads.containsKey(TenantAdmissionInterceptor.UNKNOWN_TENANT + "|READ"), bulkheads.toString());
+    for (String next : bulkheads.keySet()) {
+      assertFalse(next.startsWith("NO-SUCH-TENANT-"), bulkheads.toString());
+    }
+    assertEquals(0L, (long) bulkheads.get(TenantAdmissionInterceptor.UNKNOWN_TENANT + "|READ"));
+  }
+
+  private static TenantAdmissionInterceptor getAdmissionInterceptor() {
+    try {
+      RestfulServer server = (RestfulServer) ourWebAppContext.getServletHandler().getServlet("fhirServlet").getServlet();
+      return server
+        .getInterceptorService()
+        .getAllRegisteredInterceptors()
+        .stream()
+        .filter(t -> t instanceof TenantAdmissionInterceptor)
+        .map(t -> (TenantAdmissionInterceptor) t)
+        .findFirst()
+        .orElseThrow(IllegalStateException::new);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @AfterAll
+  public static void afterClass() throws Exception {
+    ourServer.stop();
+  }
+
+  @BeforeAll
+  public static void beforeClass() throws Exception {
+    String path = Paths.get("").toAbsolutePath().toString();
+
+    ourLog.info("Project base path is: {}", path);
+
+    ourServer = new Server(0);
+
+    ourWebAppContext = new WebAppContext();
+    ourWebAppContext.setContextPath("/hapi-fhir-jpaserver");
+    ourWebAppContext.setDisplayName("HAPI FHIR");
+    ourWebAppContext.setDescriptor(path + "/src/main/webapp/WEB-INF/web.xml");
+    ourWebAppContext.setResourceBase(path + "/target/hapi-fhir-jpaserver-starter");
+    ourWebAppContext.setParentLoaderPriority(true);
+
+    ourServer.setHandler(ourWebAppContext);
+    ourServer.start();
+
+    ourPort = JettyUtil.getPortForStartedServer(ourServer);
+
+    ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+    String ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
+
+    ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
+    ourClient.registerInterceptor(new LoggingInterceptor(true));
+
+    ourClientTenantInterceptor = new UrlTenantSelectionInterceptor();
+    ourClient.registerInterceptor(ourClientTenantInterceptor);
+  }
+
+}